@@ -0,0 +1,72 @@
+package com.mycompany.pepitoapp.benchmarks;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.ledger.GroupCommitLedgerAppender;
+import com.mycompany.pepitoapp.security.ledger.LedgerService;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Keystore, database and ledger in a temporary directory, opened and unlocked
+ * the same way SecurityModule does at the start of a shift.
+ */
+final class BenchmarkLedger implements AutoCloseable {
+
+    static final String KEY_ID = "ed25519-bench";
+
+    final Path directory;
+    final char[] passphrase = "pepito-bench-pass".toCharArray();
+    final KeyStoreManager keyStore;
+    final CryptoService crypto;
+    final SecureDatabaseProvider database;
+    final LedgerService ledger;
+
+    BenchmarkLedger() throws Exception {
+        directory = Files.createTempDirectory("pepito-bench");
+        keyStore = new KeyStoreManager(new Argon2KeyDeriver(), directory.resolve("keystore"));
+        crypto = new CryptoService(keyStore);
+        database = new SecureDatabaseProvider(new Argon2KeyDeriver(), directory.resolve("db"));
+        ledger = new LedgerService(database);
+        keyStore.unlock(passphrase, KEY_ID);
+        database.open(passphrase);
+        ledger.loadHead(passphrase);
+    }
+
+    /**
+     * Appends count sales through the group-commit appender, which is much
+     * faster than one transaction per sale when preparing large ledgers.
+     */
+    void fill(int count) throws Exception {
+        CompletableFuture<Long> last = null;
+        try (GroupCommitLedgerAppender appender = new GroupCommitLedgerAppender(ledger, crypto, KEY_ID, passphrase)) {
+            for (int i = 0; i < count; i++) {
+                last = appender.submit(SampleSales.sale(i));
+            }
+        }
+        if (last != null) {
+            last.join();
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        keyStore.lock();
+        database.close();
+        deleteRecursively(directory);
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
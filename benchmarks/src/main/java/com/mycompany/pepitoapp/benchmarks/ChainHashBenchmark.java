@@ -0,0 +1,66 @@
+package com.mycompany.pepitoapp.benchmarks;
+
+import com.mycompany.pepitoapp.security.ledger.ChainHasher;
+import com.mycompany.pepitoapp.security.ledger.LedgerEntry;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chain hash of one sale: the original String-concatenation version against
+ * the per-thread ChainHasher in both entry formats. Run with -prof gc to see
+ * the bytes allocated per hash.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChainHashBenchmark {
+
+    private String saleJson;
+    private byte[] previousHash;
+    private byte[] out;
+
+    @Setup
+    public void setup() {
+        saleJson = SampleSales.sale(42);
+        previousHash = new byte[ChainHasher.HASH_LENGTH];
+        out = new byte[ChainHasher.HASH_LENGTH];
+    }
+
+    @Benchmark
+    public byte[] concatenatedString() throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        String input = Base64.getEncoder().encodeToString(previousHash) + saleJson;
+        return digest.digest(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] hasherV1() {
+        return ChainHasher.forCurrentThread().chain(LedgerEntry.FORMAT_V1, previousHash, saleJson);
+    }
+
+    @Benchmark
+    public byte[] hasherV2() {
+        return ChainHasher.forCurrentThread().chain(LedgerEntry.FORMAT_V2, previousHash, saleJson);
+    }
+
+    @Benchmark
+    public byte[] hasherStreamingIntoBuffer() {
+        ChainHasher.forCurrentThread().update(previousHash).update(saleJson).finish(out, 0);
+        return out;
+    }
+}
@@ -0,0 +1,52 @@
+package com.mycompany.pepitoapp.benchmarks;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one Argon2id derivation, paid at unlock and, without an unlocked
+ * keystore, on every sale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyDerivationBenchmark {
+
+    /**
+     * iterations:memoryKb:parallelism. The middle one is the default used by
+     * the keystore and the database.
+     */
+    @Param({"2:19456:1", "3:65536:1", "4:131072:2"})
+    public String profile;
+
+    private Argon2KeyDeriver deriver;
+    private final char[] passphrase = "pepito-bench-pass".toCharArray();
+    private final byte[] salt = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    @Setup
+    public void setup() {
+        String[] parts = profile.split(":");
+        deriver = new Argon2KeyDeriver(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                Integer.parseInt(parts[2]), 32);
+    }
+
+    @Benchmark
+    public byte[] deriveKey() {
+        return deriver.deriveKey(passphrase, salt);
+    }
+}
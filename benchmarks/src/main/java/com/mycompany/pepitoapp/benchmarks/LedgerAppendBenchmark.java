@@ -0,0 +1,72 @@
+package com.mycompany.pepitoapp.benchmarks;
+
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of registering one sale: a plain insert of the boleta with no hash
+ * chain and no signature (the baseline) against
+ * {@link com.mycompany.pepitoapp.security.ledger.LedgerService#appendSignedEntry}.
+ * Both run on the same warm connection of a temporary database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LedgerAppendBenchmark {
+
+    private static final String CREATE_PLAIN = "CREATE TABLE IF NOT EXISTS plain_sales (id INTEGER PRIMARY KEY AUTOINCREMENT, created_at INTEGER NOT NULL, sale_json TEXT NOT NULL)";
+    private static final String INSERT_PLAIN = "INSERT INTO plain_sales(created_at, sale_json) VALUES(?,?)";
+
+    private BenchmarkLedger env;
+    private long sequence;
+
+    @Setup
+    public void setup() throws Exception {
+        env = new BenchmarkLedger();
+        try (DatabaseSession session = env.database.openSession(env.passphrase);
+             Statement statement = session.connection().createStatement()) {
+            statement.executeUpdate(CREATE_PLAIN);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        env.close();
+    }
+
+    @Benchmark
+    public int appendPlain() throws Exception {
+        try (DatabaseSession session = env.database.openSession(env.passphrase)) {
+            return insertPlain(session, SampleSales.sale(sequence++));
+        }
+    }
+
+    @Benchmark
+    public boolean appendSignedEntry() {
+        return env.ledger.appendSignedEntry(SampleSales.sale(sequence++), BenchmarkLedger.KEY_ID, env.passphrase, env.crypto);
+    }
+
+    private static int insertPlain(DatabaseSession session, String saleJson) throws SQLException {
+        PreparedStatement statement = session.prepare(INSERT_PLAIN);
+        statement.setLong(1, System.currentTimeMillis() / 1000);
+        statement.setString(2, saleJson);
+        return statement.executeUpdate();
+    }
+}
@@ -0,0 +1,19 @@
+package com.mycompany.pepitoapp.benchmarks;
+
+/**
+ * Boleta JSON with the same shape as BoletaFXMLController builds, for a
+ * two-item sale.
+ */
+final class SampleSales {
+
+    private SampleSales() {
+    }
+
+    static String sale(long n) {
+        return "{\"timestamp\":" + (1_700_000_000L + n)
+                + ",\"cliente\":{\"nombre\":\"Cliente " + n + "\",\"ruc\":\"10456789012\"}"
+                + ",\"total\":" + (14.0 + n % 100)
+                + ",\"items\":[{\"descripcion\":\"Arroz Costeño 1kg\",\"precio\":4.9,\"cantidad\":2},"
+                + "{\"descripcion\":\"Leche Gloria 400g\",\"precio\":" + (4.2 + n % 100) + ",\"cantidad\":1}]}";
+    }
+}
@@ -0,0 +1,94 @@
+package com.mycompany.pepitoapp.benchmarks;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.Ed25519BatchVerifier;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ed25519 sign and verify through CryptoService, with the key unlocked (the
+ * per-sale path) and with the passphrase only, which derives and decrypts the
+ * key on every call. Sampled so the report includes p95/p99. verifyBatch
+ * checks a full Ed25519BatchVerifier batch and reports the time per signature.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+    private BenchmarkLedger unlocked;
+    private KeyStoreManager lockedKeyStore;
+    private CryptoService lockedCrypto;
+    private byte[] payload;
+    private String signature;
+    private PublicKey publicKey;
+    private byte[][] batchPayloads;
+    private byte[][] batchSignatures;
+    private Ed25519BatchVerifier batchVerifier;
+
+    @Setup
+    public void setup() throws Exception {
+        unlocked = new BenchmarkLedger();
+        lockedKeyStore = new KeyStoreManager(new Argon2KeyDeriver(), unlocked.directory.resolve("locked-keystore"));
+        lockedCrypto = new CryptoService(lockedKeyStore);
+        lockedKeyStore.loadOrCreateKeyPair(BenchmarkLedger.KEY_ID, unlocked.passphrase);
+        payload = "k3mYx0cQ8N3oTt3cJ0n5m8bq4lR2o1yq2QW7v9lKp0E=".getBytes(StandardCharsets.UTF_8);
+        signature = unlocked.crypto.sign(payload, BenchmarkLedger.KEY_ID);
+        publicKey = unlocked.crypto.publicKeyResolver().resolve(BenchmarkLedger.KEY_ID);
+        batchPayloads = new byte[Ed25519BatchVerifier.DEFAULT_BATCH_SIZE][];
+        batchSignatures = new byte[Ed25519BatchVerifier.DEFAULT_BATCH_SIZE][];
+        for (int i = 0; i < batchPayloads.length; i++) {
+            batchPayloads[i] = SampleSales.sale(i).getBytes(StandardCharsets.UTF_8);
+            batchSignatures[i] = Base64.getDecoder().decode(unlocked.crypto.sign(batchPayloads[i], BenchmarkLedger.KEY_ID));
+        }
+        batchVerifier = new Ed25519BatchVerifier();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        unlocked.close();
+    }
+
+    @Benchmark
+    public String signUnlocked() throws Exception {
+        return unlocked.crypto.sign(payload, BenchmarkLedger.KEY_ID);
+    }
+
+    @Benchmark
+    public boolean verifyUnlocked() throws Exception {
+        return unlocked.crypto.verify(payload, signature, BenchmarkLedger.KEY_ID);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Ed25519BatchVerifier.DEFAULT_BATCH_SIZE)
+    public boolean verifyBatch() throws Exception {
+        for (int i = 0; i < batchPayloads.length; i++) {
+            batchVerifier.add(publicKey, batchPayloads[i], batchSignatures[i]);
+        }
+        return batchVerifier.verify().isEmpty();
+    }
+
+    @Benchmark
+    public String signWithPassphrase() throws Exception {
+        return lockedCrypto.sign(payload, BenchmarkLedger.KEY_ID, unlocked.passphrase);
+    }
+}
@@ -0,0 +1,81 @@
+package com.mycompany.pepitoapp.benchmarks;
+
+import com.mycompany.pepitoapp.security.ledger.SigningMode;
+import com.mycompany.pepitoapp.security.ledger.VerificationResult;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cash-close verification over ledgers of several sizes, signed per entry or
+ * per Merkle batch. Every call walks the ledger once, so each measurement is a
+ * single shot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VerifyChainBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int ledgerSize;
+
+    @Param({"PER_ENTRY", "MERKLE_BATCH"})
+    public SigningMode signingMode;
+
+    private BenchmarkLedger env;
+
+    @Setup
+    public void setup() throws Exception {
+        env = new BenchmarkLedger();
+        env.ledger.setSigningMode(signingMode);
+        env.fill(ledgerSize);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        env.close();
+    }
+
+    @Benchmark
+    public VerificationResult verifyChain() {
+        return requireValid(env.ledger.verifyChain(env.passphrase, env.crypto));
+    }
+
+    @Benchmark
+    public VerificationResult verifyChainHashesOnly() {
+        return requireValid(env.ledger.verifyChain(env.passphrase, null));
+    }
+
+    @Benchmark
+    public VerificationResult verifyChainParallel() {
+        return requireValid(env.ledger.verifyChainParallel(env.passphrase, env.crypto));
+    }
+
+    @Benchmark
+    public VerificationResult verifyFromCheckpoint() {
+        return requireValid(env.ledger.verifyFromCheckpoint(env.passphrase, env.crypto));
+    }
+
+    /**
+     * A failing verification would stop early and report a misleading time.
+     */
+    private static VerificationResult requireValid(VerificationResult result) {
+        if (!result.valid()) {
+            throw new IllegalStateException("Ledger did not verify: " + result.errors());
+        }
+        return result;
+    }
+}
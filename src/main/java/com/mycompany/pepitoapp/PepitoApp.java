@@ -2,6 +2,9 @@
 
 package com.mycompany.pepitoapp;
 
+import com.mycompany.pepitoapp.catalog.ProductCatalog;
+import com.mycompany.pepitoapp.checkout.CheckoutPipeline;
+import com.mycompany.pepitoapp.security.app.SecurityModule;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
@@ -20,6 +23,8 @@ public class PepitoApp extends Application {
 
     @Override
     public void start(Stage primaryStage) {
+        // El catálogo se carga en segundo plano mientras se abre la ventana
+        ProductCatalog.getInstance();
         try {
             String fxmlPath = "/com/mycompany/pepitoapp/view/bodegaFXML.fxml";
             FXMLLoader loader = new FXMLLoader(getClass().getResource(fxmlPath));
@@ -35,6 +40,12 @@ public class PepitoApp extends Application {
         }
     }
 
+    @Override
+    public void stop() {
+        CheckoutPipeline.getInstance().close();
+        SecurityModule.getInstance().shutdown();
+    }
+
     public static void setRoot(String fxml) {
         try {
             scene.setRoot(loadFXML(fxml));
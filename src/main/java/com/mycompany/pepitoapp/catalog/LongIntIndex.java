@@ -0,0 +1,81 @@
+package com.mycompany.pepitoapp.catalog;
+
+import java.util.Arrays;
+
+/**
+ * Immutable open-addressing map from primitive long keys to int slots, with
+ * linear probing at a load factor of at most one half. Lookups neither box nor
+ * allocate and touch one or two cache lines in the common case.
+ */
+final class LongIntIndex {
+
+    static final int MISSING = -1;
+
+    private final long[] keys;
+    private final int[] slots;
+    private final int mask;
+    private final int size;
+
+    private LongIntIndex(long[] keys, int[] slots, int size) {
+        this.keys = keys;
+        this.slots = slots;
+        this.mask = keys.length - 1;
+        this.size = size;
+    }
+
+    /**
+     * Maps keys[i] to i. Later duplicates replace earlier ones.
+     */
+    static LongIntIndex of(long[] keys, int count) {
+        int capacity = Integer.highestOneBit(Math.max(4, count) * 2 - 1) << 1;
+        long[] table = new long[capacity];
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, MISSING);
+        int mask = capacity - 1;
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int position = mix(keys[i]) & mask;
+            while (slots[position] != MISSING && table[position] != keys[i]) {
+                position = (position + 1) & mask;
+            }
+            if (slots[position] == MISSING) {
+                size++;
+            }
+            table[position] = keys[i];
+            slots[position] = i;
+        }
+        return new LongIntIndex(table, slots, size);
+    }
+
+    /**
+     * @return the slot of key, or {@link #MISSING}
+     */
+    int get(long key) {
+        int position = mix(key) & mask;
+        int slot;
+        while ((slot = slots[position]) != MISSING) {
+            if (keys[position] == key) {
+                return slot;
+            }
+            position = (position + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Finalizer of MurmurHash3: sequential product codes spread over the table.
+     */
+    private static int mix(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
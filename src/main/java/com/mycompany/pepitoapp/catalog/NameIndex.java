@@ -0,0 +1,344 @@
+package com.mycompany.pepitoapp.catalog;
+
+import com.mycompany.pepitoapp.model.Producto;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trigram index over the nombre and tipo of every product, for search as the
+ * cashier types.
+ *
+ * Text is lowercased, stripped of accents and split into words; each word is
+ * indexed by its trigrams, plus its first letter and first two letters so
+ * short queries match word starts. A query looks up the rarest gram of its
+ * words and checks only the products on that list, so a keystroke costs a
+ * few hash lookups and a scan of one posting list.
+ *
+ * Unlike the id index, this one is updated in place with the products a
+ * reload added, changed or removed, under a read-write lock.
+ */
+final class NameIndex {
+
+    // Shorter names first, then lower ids: the order of every posting list.
+    private static final Comparator<Entry> RANK = Comparator.comparingInt((Entry entry) -> entry.nombre().length())
+            .thenComparingLong(Entry::id);
+    private static final Comparator<Match> WORST_FIRST = Comparator.comparingInt(Match::score)
+            .thenComparing(Comparator.comparing(Match::entry, RANK).reversed());
+
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The first nombreGrams of grams come from the name, the rest only from
+     * the type.
+     */
+    private record Entry(long id, Producto producto, String nombre, String tipo, long[] grams, int nombreGrams) {}
+
+    private record Match(Entry entry, int score) {}
+
+    /**
+     * Indexes the given products, replacing any earlier version of them, and
+     * drops the removed ids.
+     */
+    void update(Collection<Producto> upserts, long[] removed, int removedCount) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < removedCount; i++) {
+                remove(removed[i]);
+            }
+            Entry[] added = new Entry[upserts.size()];
+            int count = 0;
+            for (Producto producto : upserts) {
+                long id = Long.parseLong(producto.getCodigo());
+                remove(id);
+                String nombre = normalize(producto.getNombre());
+                String tipo = normalize(producto.getTipo());
+                long[] nombreGrams = grams(nombre);
+                added[count++] = new Entry(id, producto, nombre, tipo, withGrams(nombreGrams, tipo), nombreGrams.length);
+            }
+            // Appending in rank order keeps the lists sorted; only a list that
+            // already held later-ranked entries has to be sorted again.
+            Arrays.sort(added, 0, count, RANK);
+            List<Postings> unsorted = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Entry entry = added[i];
+                entries.put(entry.id(), entry);
+                long[] grams = entry.grams();
+                for (int g = 0; g < grams.length; g++) {
+                    Postings list = postings.get(grams[g]);
+                    if (list == null) {
+                        list = new Postings();
+                        postings.put(grams[g], list);
+                    }
+                    if (g < entry.nombreGrams()) {
+                        list.nombres++;
+                    }
+                    if (list.add(entry) && !list.unsorted) {
+                        list.unsorted = true;
+                        unsorted.add(list);
+                    }
+                }
+            }
+            for (Postings list : unsorted) {
+                list.sort();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Products whose name or type contains every word of query, best first:
+     * a word that starts a word of the name counts most, then one inside the
+     * name, then one in the type; ties go to the shorter name, then the lower
+     * id.
+     */
+    List<Producto> search(String query, int limit) {
+        String[] words = words(normalize(query));
+        if (words.length == 0 || limit <= 0) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            Postings rarest = null;
+            int maxScore = 0;
+            for (String word : words) {
+                boolean inNombre = true;
+                for (long gram : queryGrams(word)) {
+                    Postings list = postings.get(gram);
+                    if (list == null) {
+                        return List.of();
+                    }
+                    if (rarest == null || list.size < rarest.size) {
+                        rarest = list;
+                    }
+                    inNombre &= list.nombres > 0;
+                }
+                // A short word that starts no name can still sit inside one
+                maxScore += inNombre ? 3 : word.length() < 3 ? 2 : 1;
+            }
+            // The list is in rank order, so once limit matches with the best
+            // score the query can reach are in, nothing after them can place.
+            PriorityQueue<Match> best = new PriorityQueue<>(limit + 1, WORST_FIRST);
+            for (int i = 0; i < rarest.size; i++) {
+                Entry entry = rarest.entries[i];
+                int score = score(entry, words);
+                if (score > 0) {
+                    best.add(new Match(entry, score));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                    if (best.size() == limit && best.peek().score() == maxScore) {
+                        break;
+                    }
+                }
+            }
+            Producto[] result = new Producto[best.size()];
+            for (int i = result.length - 1; i >= 0; i--) {
+                result[i] = best.poll().entry().producto();
+            }
+            return Arrays.asList(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void remove(long id) {
+        Entry old = entries.remove(id);
+        if (old == null) {
+            return;
+        }
+        long[] grams = old.grams();
+        for (int g = 0; g < grams.length; g++) {
+            Postings list = postings.get(grams[g]);
+            if (list == null || !list.remove(old)) {
+                continue;
+            }
+            if (g < old.nombreGrams()) {
+                list.nombres--;
+            }
+            if (list.size == 0) {
+                postings.remove(grams[g]);
+            }
+        }
+    }
+
+    /**
+     * @return 0 if some word does not match at all
+     */
+    private static int score(Entry entry, String[] words) {
+        int score = 0;
+        String nombre = entry.nombre();
+        for (String word : words) {
+            if (startsWord(nombre, word)) {
+                score += 3;
+                continue;
+            }
+            // As in queryGrams, a word of one or two letters only matches the
+            // start of a word, even when it is not the word whose list is read.
+            if (word.length() < 3 && !startsWord(entry.tipo(), word)) {
+                return 0;
+            }
+            if (nombre.contains(word)) {
+                score += 2;
+            } else if (entry.tipo().contains(word)) {
+                score += 1;
+            } else {
+                return 0;
+            }
+        }
+        return score;
+    }
+
+    private static boolean startsWord(String text, String word) {
+        int at = text.indexOf(word);
+        while (at > 0 && text.charAt(at - 1) != ' ') {
+            at = text.indexOf(word, at + 1);
+        }
+        return at >= 0;
+    }
+
+    /**
+     * Lowercase letters and digits without accents, words separated by one
+     * space.
+     */
+    static String normalize(String text) {
+        if (text == null || text.isEmpty()) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder builder = new StringBuilder(decomposed.length());
+        boolean space = true;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                builder.append(Character.toLowerCase(c));
+                space = false;
+            } else if (!space) {
+                builder.append(' ');
+                space = true;
+            }
+        }
+        int length = builder.length();
+        return length > 0 && builder.charAt(length - 1) == ' ' ? builder.substring(0, length - 1) : builder.toString();
+    }
+
+    private static String[] words(String normalized) {
+        return normalized.isEmpty() ? new String[0] : normalized.split(" ");
+    }
+
+    private static long[] grams(String normalized) {
+        return withGrams(new long[0], normalized);
+    }
+
+    /**
+     * grams plus those of the words of normalized, without repeats.
+     */
+    private static long[] withGrams(long[] grams, String normalized) {
+        long[] result = Arrays.copyOf(grams, grams.length + 2 * normalized.length() + 2);
+        int size = grams.length;
+        for (String word : words(normalized)) {
+            size = addGram(result, size, gram(' ', word.charAt(0), '\0'));
+            if (word.length() > 1) {
+                size = addGram(result, size, gram(' ', word.charAt(0), word.charAt(1)));
+            }
+            for (int i = 2; i < word.length(); i++) {
+                size = addGram(result, size, gram(word.charAt(i - 2), word.charAt(i - 1), word.charAt(i)));
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static int addGram(long[] grams, int size, long gram) {
+        for (int i = 0; i < size; i++) {
+            if (grams[i] == gram) {
+                return size;
+            }
+        }
+        grams[size] = gram;
+        return size + 1;
+    }
+
+    /**
+     * Grams a query word needs: its initial or its first two letters at the
+     * start of a word when it is that short, its trigrams anywhere otherwise.
+     */
+    private static long[] queryGrams(String word) {
+        if (word.length() == 1) {
+            return new long[] {gram(' ', word.charAt(0), '\0')};
+        }
+        if (word.length() == 2) {
+            return new long[] {gram(' ', word.charAt(0), word.charAt(1))};
+        }
+        long[] grams = new long[word.length() - 2];
+        for (int i = 2; i < word.length(); i++) {
+            grams[i - 2] = gram(word.charAt(i - 2), word.charAt(i - 1), word.charAt(i));
+        }
+        return grams;
+    }
+
+    private static long gram(char a, char b, char c) {
+        return ((long) a << 32) | ((long) b << 16) | c;
+    }
+
+    /**
+     * Entries holding one gram, in {@link #RANK} order once sorted.
+     */
+    private static final class Postings {
+
+        private Entry[] entries = new Entry[4];
+        private int size;
+        // Entries holding the gram in their name rather than only in their type.
+        private int nombres;
+        private boolean unsorted;
+
+        /**
+         * @return whether entry ranks before the one it was appended after
+         */
+        boolean add(Entry entry) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = entry;
+            return size > 1 && RANK.compare(entries[size - 2], entry) > 0;
+        }
+
+        boolean remove(Entry entry) {
+            for (int i = 0; i < size; i++) {
+                if (entries[i] == entry) {
+                    System.arraycopy(entries, i + 1, entries, i, size - i - 1);
+                    entries[--size] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void sort() {
+            Arrays.sort(entries, 0, size, RANK);
+            unsorted = false;
+        }
+    }
+}
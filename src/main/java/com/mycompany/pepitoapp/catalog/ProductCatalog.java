@@ -0,0 +1,307 @@
+package com.mycompany.pepitoapp.catalog;
+
+import com.mycompany.pepitoapp.model.Producto;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of the productos table, indexed by id_productos.
+ *
+ * The table is read once into an immutable snapshot (products in an array and a
+ * primitive long-to-slot index), so a lookup at the till is a couple of array
+ * reads with no SQLite connection involved. A background watcher compares the
+ * database file's size and modification time (including its WAL file) and, when
+ * they change, reloads the table and swaps in a new snapshot; products whose
+ * columns did not change keep their existing instances.
+ *
+ * {@link #buscarPorNombre} searches nombre and tipo through a {@link NameIndex}
+ * that each reload updates with only the products it added, changed or
+ * removed.
+ *
+ * The database path comes from the pepito.catalogo.db system property, then
+ * the PEPITO_CATALOGO_DB environment variable, then the original location.
+ */
+public final class ProductCatalog implements AutoCloseable {
+
+    public static final String PATH_PROPERTY = "pepito.catalogo.db";
+    public static final String PATH_ENV = "PEPITO_CATALOGO_DB";
+    public static final Duration DEFAULT_WATCH_INTERVAL = Duration.ofSeconds(5);
+
+    private static final String LEGACY_PATH = "C:\\Users\\USUARIO\\Documents\\NetBeansProjects\\PepitoApp\\productos2.db";
+    private static final String SELECT_PRODUCTOS = "SELECT id_productos, nombre, tipo, stock_unidades, precio_unitario_costo, precio_unitario_venta, fecha_de_caducidad FROM productos";
+    private static final DateTimeFormatter FECHA_LOCAL = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    private static ProductCatalog instance;
+
+    private final Path dbFile;
+    private final NameIndex nombres = new NameIndex();
+    private volatile Snapshot snapshot;
+    private ScheduledExecutorService watcher;
+
+    public ProductCatalog(Path dbFile) {
+        this.dbFile = Objects.requireNonNull(dbFile, "dbFile");
+    }
+
+    /**
+     * Shared catalog for the configured database, watched for changes. The
+     * watcher loads it right away in the background; a lookup made before
+     * that load finishes loads it on the calling thread.
+     */
+    public static synchronized ProductCatalog getInstance() {
+        if (instance == null) {
+            instance = new ProductCatalog(configuredPath());
+            instance.startWatching(DEFAULT_WATCH_INTERVAL);
+        }
+        return instance;
+    }
+
+    public static Path configuredPath() {
+        String path = System.getProperty(PATH_PROPERTY);
+        if (path == null || path.isBlank()) {
+            path = System.getenv(PATH_ENV);
+        }
+        if (path == null || path.isBlank()) {
+            path = LEGACY_PATH;
+        }
+        return Path.of(path);
+    }
+
+    public Path getDbFile() {
+        return dbFile;
+    }
+
+    /**
+     * @return the product, or null if no product has this id
+     * @throws SQLException if the catalog has never been loaded and loading it
+     *         now fails
+     */
+    public Producto buscar(long id) throws SQLException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            reload();
+            current = snapshot;
+        }
+        int slot = current.index().get(id);
+        return slot == LongIntIndex.MISSING ? null : current.productos()[slot];
+    }
+
+    /**
+     * Looks up count ids against the same snapshot, so a batch of scans sees
+     * one version of the catalog.
+     *
+     * @return the product of each id, null where there is none
+     * @throws SQLException if the catalog has never been loaded and loading it
+     *         now fails
+     */
+    public Producto[] buscarLote(long[] ids, int count) throws SQLException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            reload();
+            current = snapshot;
+        }
+        Producto[] productos = new Producto[count];
+        for (int i = 0; i < count; i++) {
+            int slot = current.index().get(ids[i]);
+            productos[i] = slot == LongIntIndex.MISSING ? null : current.productos()[slot];
+        }
+        return productos;
+    }
+
+    /**
+     * Products whose name or type contains every word typed so far, best
+     * match first. Accents and case are ignored.
+     *
+     * @throws SQLException if the catalog has never been loaded and loading it
+     *         now fails
+     */
+    public List<Producto> buscarPorNombre(String consulta, int limite) throws SQLException {
+        if (snapshot == null) {
+            reload();
+        }
+        return nombres.search(consulta, limite);
+    }
+
+    /**
+     * Whether a snapshot is in place, so lookups will not read the database.
+     */
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    public int size() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.index().size();
+    }
+
+    /**
+     * Reads the whole table and replaces the snapshot. Lookups keep using the
+     * previous snapshot until the new one is complete.
+     */
+    public synchronized ReloadStats reload() throws SQLException {
+        if (!Files.exists(dbFile)) {
+            // Connecting would silently create an empty database.
+            throw new SQLException("No existe la base de datos de productos: " + dbFile);
+        }
+        FileStamp stamp = FileStamp.of(dbFile);
+        Snapshot previous = snapshot;
+        long[] ids = new long[previous == null ? 256 : Math.max(16, previous.productos().length)];
+        Producto[] productos = new Producto[ids.length];
+        int count = 0;
+        int added = 0;
+        int changed = 0;
+        int kept = 0;
+        List<Producto> upserts = new ArrayList<>();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+             PreparedStatement statement = connection.prepareStatement(SELECT_PRODUCTOS);
+             ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                long id = rs.getLong("id_productos");
+                Producto leido = new Producto(
+                        Long.toString(id),
+                        rs.getString("nombre"),
+                        rs.getString("tipo"),
+                        rs.getDouble("precio_unitario_costo"),
+                        rs.getDouble("precio_unitario_venta"),
+                        rs.getInt("stock_unidades"),
+                        parseFecha(rs.getString("fecha_de_caducidad"))
+                );
+                int oldSlot = previous == null ? LongIntIndex.MISSING : previous.index().get(id);
+                Producto producto = leido;
+                if (oldSlot == LongIntIndex.MISSING) {
+                    added++;
+                    upserts.add(producto);
+                } else if (previous.productos()[oldSlot].equals(leido)) {
+                    producto = previous.productos()[oldSlot];
+                    kept++;
+                } else {
+                    changed++;
+                    upserts.add(producto);
+                }
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    productos = Arrays.copyOf(productos, count * 2);
+                }
+                ids[count] = id;
+                productos[count] = producto;
+                count++;
+            }
+        }
+        int removed = previous == null ? 0 : previous.index().size() - kept - changed;
+        LongIntIndex index = LongIntIndex.of(ids, count);
+        long[] removedIds = new long[removed];
+        int removedCount = 0;
+        for (int i = 0; removedCount < removed && i < previous.productos().length; i++) {
+            Producto anterior = previous.productos()[i];
+            if (anterior != null && index.get(Long.parseLong(anterior.getCodigo())) == LongIntIndex.MISSING) {
+                removedIds[removedCount++] = Long.parseLong(anterior.getCodigo());
+            }
+        }
+        nombres.update(upserts, removedIds, removedCount);
+        snapshot = new Snapshot(index, productos, stamp);
+        return new ReloadStats(added, changed, removed, snapshot.index().size());
+    }
+
+    /**
+     * Loads the catalog now, on the watcher thread, then checks the database
+     * file every interval and reloads when it changed. Failed reloads keep the
+     * current snapshot and are retried next time.
+     */
+    public synchronized void startWatching(Duration interval) {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "catalog-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long millis = interval.toMillis();
+        watcher.scheduleWithFixedDelay(this::reloadIfChanged, 0L, millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    private void reloadIfChanged() {
+        try {
+            Snapshot current = snapshot;
+            if (current == null || !current.stamp().equals(FileStamp.of(dbFile))) {
+                reload();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static LocalDate parseFecha(String texto) {
+        if (texto == null || texto.isBlank()) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(texto.trim());
+        } catch (DateTimeParseException ex) {
+            try {
+                return LocalDate.parse(texto.trim(), FECHA_LOCAL);
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Counts of one reload compared with the snapshot it replaced.
+     */
+    public record ReloadStats(int added, int changed, int removed, int total) {}
+
+    private record Snapshot(LongIntIndex index, Producto[] productos, FileStamp stamp) {}
+
+    /**
+     * Size and modification time of the database and its WAL file; writes in
+     * WAL mode reach the main file only at checkpoint.
+     */
+    private record FileStamp(long modified, long size, long walModified, long walSize) {
+
+        static FileStamp of(Path dbFile) {
+            Path wal = dbFile.resolveSibling(dbFile.getFileName() + "-wal");
+            return new FileStamp(modified(dbFile), size(dbFile), modified(wal), size(wal));
+        }
+
+        private static long modified(Path file) {
+            try {
+                return Files.getLastModifiedTime(file).toMillis();
+            } catch (IOException ex) {
+                return -1L;
+            }
+        }
+
+        private static long size(Path file) {
+            try {
+                return Files.size(file);
+            } catch (IOException ex) {
+                return -1L;
+            }
+        }
+    }
+}
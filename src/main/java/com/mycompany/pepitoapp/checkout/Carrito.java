@@ -0,0 +1,197 @@
+package com.mycompany.pepitoapp.checkout;
+
+import com.mycompany.pepitoapp.model.Item;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
+import javafx.beans.value.ChangeListener;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+/**
+ * Cart of one checkout, with one line per product id. Adding a product that
+ * is already in the cart adds to its line, at the price it was first added
+ * with. Amounts are long cents.
+ *
+ * The total is kept up to date as lines are added, removed or change
+ * quantity, including quantities edited in the table, instead of being
+ * summed again on every refresh. Adding to a product already in the cart
+ * is a map lookup; removing a line also scans the table list, see
+ * {@link #quitar(long)}. {@link #getItems()} is the list the TableView
+ * shows; each change to the cart is one small change to it, so the table
+ * only redraws the rows involved.
+ *
+ * Must only be used from the FX thread.
+ */
+public final class Carrito {
+
+    private final ObservableList<Item> items = FXCollections.observableArrayList();
+    private final Map<Long, Linea> lineas = new HashMap<>();
+    private final ReadOnlyLongWrapper totalCentimos = new ReadOnlyLongWrapper(this, "totalCentimos");
+    private boolean enLote;
+
+    private record Linea(Item item, ChangeListener<Number> cantidad) {}
+
+    /**
+     * Units of one product to add with {@link #agregarTodos}.
+     */
+    public record Entrada(long codigo, String descripcion, long precioCentimos, int cantidad) {}
+
+    /**
+     * Lines in the order they were added. Sorting it is fine; adding or
+     * removing lines must go through the cart.
+     */
+    public ObservableList<Item> getItems() {
+        return items;
+    }
+
+    public ReadOnlyLongProperty totalCentimosProperty() {
+        return totalCentimos.getReadOnlyProperty();
+    }
+
+    public long getTotalCentimos() {
+        return totalCentimos.get();
+    }
+
+    public boolean isEmpty() {
+        return lineas.isEmpty();
+    }
+
+    public int size() {
+        return lineas.size();
+    }
+
+    /**
+     * Adds cantidad units of the product codigo, merging them into its line
+     * if it already has one.
+     *
+     * @return the line of the product
+     */
+    public Item agregar(long codigo, String descripcion, long precioCentimos, int cantidad) {
+        if (cantidad <= 0) {
+            throw new IllegalArgumentException("Quantity must be positive");
+        }
+        Linea linea = lineas.get(codigo);
+        if (linea != null) {
+            linea.item().setCantidad(linea.item().getCantidad() + cantidad);
+            return linea.item();
+        }
+        Item item = nuevaLinea(codigo, descripcion, precioCentimos, cantidad);
+        items.add(item);
+        sumar(item.getSubtotalCentimos());
+        return item;
+    }
+
+    /**
+     * Adds several products at once: new lines reach the table in a single
+     * change and the total moves once, however many entries there are.
+     */
+    public void agregarTodos(List<Entrada> entradas) {
+        List<Item> nuevos = new ArrayList<>();
+        long centimos = 0L;
+        enLote = true;
+        try {
+            for (Entrada entrada : entradas) {
+                if (entrada.cantidad() <= 0) {
+                    throw new IllegalArgumentException("Quantity must be positive");
+                }
+                Linea linea = lineas.get(entrada.codigo());
+                if (linea != null) {
+                    linea.item().setCantidad(linea.item().getCantidad() + entrada.cantidad());
+                    centimos += linea.item().getPrecioCentimos() * entrada.cantidad();
+                } else {
+                    Item item = nuevaLinea(entrada.codigo(), entrada.descripcion(), entrada.precioCentimos(), entrada.cantidad());
+                    nuevos.add(item);
+                    centimos += item.getSubtotalCentimos();
+                }
+            }
+        } finally {
+            enLote = false;
+            items.addAll(nuevos);
+            sumar(centimos);
+        }
+    }
+
+    /**
+     * Finding the line is a map lookup, but taking it out of the table list
+     * scans that list: the table may have sorted it in place, so the cart
+     * keeps no position for the line. A cart holds a few dozen lines, so
+     * this stays cheaper than tracking positions through every sort.
+     *
+     * @return whether the product had a line
+     */
+    public boolean quitar(long codigo) {
+        Linea linea = lineas.remove(codigo);
+        if (linea == null) {
+            return false;
+        }
+        linea.item().cantidadProperty().removeListener(linea.cantidad());
+        items.remove(linea.item());
+        sumar(-linea.item().getSubtotalCentimos());
+        return true;
+    }
+
+    public boolean quitar(Item item) {
+        Linea linea = item == null ? null : lineas.get(item.getCodigo());
+        return linea != null && linea.item() == item && quitar(item.getCodigo());
+    }
+
+    /**
+     * Takes the units of a confirmed sale out of the cart. Units added while
+     * the sale was being processed stay; a line left without units is
+     * removed.
+     */
+    public void descontar(VentaSnapshot venta) {
+        for (VentaSnapshot.Linea vendida : venta.items()) {
+            Linea linea = lineas.get(vendida.codigo());
+            if (linea == null) {
+                continue;
+            }
+            int quedan = linea.item().getCantidad() - vendida.cantidad();
+            if (quedan > 0) {
+                linea.item().setCantidad(quedan);
+            } else {
+                quitar(vendida.codigo());
+            }
+        }
+    }
+
+    /**
+     * Empties the cart for the next checkout.
+     */
+    public void vaciar() {
+        for (Linea linea : lineas.values()) {
+            linea.item().cantidadProperty().removeListener(linea.cantidad());
+        }
+        lineas.clear();
+        items.clear();
+        totalCentimos.set(0L);
+    }
+
+    /**
+     * Amount in soles with two decimals, for example 12.50.
+     */
+    public static String formatear(long centimos) {
+        return BigDecimal.valueOf(centimos, 2).toPlainString();
+    }
+
+    private Item nuevaLinea(long codigo, String descripcion, long precioCentimos, int cantidad) {
+        Item item = new Item(codigo, descripcion, precioCentimos, cantidad);
+        ChangeListener<Number> listener = (observable, antes, ahora) -> {
+            if (!enLote) {
+                sumar(item.getPrecioCentimos() * (ahora.longValue() - antes.longValue()));
+            }
+        };
+        item.cantidadProperty().addListener(listener);
+        lineas.put(codigo, new Linea(item, listener));
+        return item;
+    }
+
+    private void sumar(long centimos) {
+        totalCentimos.set(totalCentimos.get() + centimos);
+    }
+}
@@ -0,0 +1,99 @@
+package com.mycompany.pepitoapp.checkout;
+
+import com.mycompany.pepitoapp.security.app.MetricsCollector;
+import com.mycompany.pepitoapp.security.app.SecurityModule;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the slow part of a checkout (sales journal, key unlock, hashing, signing
+ * and the SQLite commit) away from the JavaFX application thread.
+ *
+ * Sales are handled one at a time on a single virtual thread, in the order
+ * they were confirmed, and handed to the group-commit appender in that same
+ * order, so ledger order always matches confirmation order.
+ */
+public final class CheckoutPipeline implements AutoCloseable {
+
+    private static final CheckoutPipeline INSTANCE = new CheckoutPipeline(SecurityModule.getInstance());
+
+    private final SecurityModule securityModule;
+    private final SalesJournal journal;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(
+            Thread.ofVirtual().name("checkout").factory());
+
+    public CheckoutPipeline(SecurityModule securityModule) {
+        this(securityModule, SalesJournal.configured());
+    }
+
+    public CheckoutPipeline(SecurityModule securityModule, SalesJournal journal) {
+        this.securityModule = Objects.requireNonNull(securityModule, "securityModule");
+        this.journal = Objects.requireNonNull(journal, "journal");
+    }
+
+    public static CheckoutPipeline getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the sale and returns immediately. The future completes on a
+     * background thread once the entry is durable in the ledger (or failed);
+     * UI code must hop back with Platform.runLater.
+     */
+    public CompletableFuture<ResultadoCompra> procesar(VentaSnapshot venta) {
+        Objects.requireNonNull(venta, "venta");
+        long inicio = System.nanoTime();
+        return CompletableFuture
+                .supplyAsync(() -> registrar(venta), worker)
+                .thenCompose(pendiente -> pendiente)
+                .whenComplete((resultado, error) -> MetricsCollector.getInstance().recordSince(MetricsCollector.Metric.CHECKOUT, inicio));
+    }
+
+    private CompletableFuture<ResultadoCompra> registrar(VentaSnapshot venta) {
+        String saleJson = venta.toSaleJson();
+        boolean historialGuardado = guardarHistorial(venta, saleJson);
+        return securityModule.registrarVentaAsync(saleJson)
+                .handle((ledgerId, error) -> {
+                    if (error != null) {
+                        error.printStackTrace();
+                        return new ResultadoCompra(historialGuardado, -1L);
+                    }
+                    return new ResultadoCompra(historialGuardado, ledgerId);
+                });
+    }
+
+    private boolean guardarHistorial(VentaSnapshot venta, String saleJson) {
+        try {
+            journal.append(venta, saleJson);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Lets queued sales finish before the ledger is closed, then writes out
+     * and closes the sales journal. If the calling thread is interrupted
+     * while waiting, the journal is still closed and the interrupt flag is
+     * restored.
+     */
+    @Override
+    public void close() {
+        worker.shutdown();
+        try {
+            worker.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
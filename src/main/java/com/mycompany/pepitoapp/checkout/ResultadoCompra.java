@@ -0,0 +1,14 @@
+package com.mycompany.pepitoapp.checkout;
+
+/**
+ * Outcome of one checkout.
+ *
+ * @param historialGuardado whether the sale reached the {@link SalesJournal}
+ * @param ledgerId id of the signed ledger entry, or -1 if it could not be recorded
+ */
+public record ResultadoCompra(boolean historialGuardado, long ledgerId) {
+
+    public boolean registrada() {
+        return ledgerId > 0;
+    }
+}
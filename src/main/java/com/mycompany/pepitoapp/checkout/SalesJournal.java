@@ -0,0 +1,416 @@
+package com.mycompany.pepitoapp.checkout;
+
+import com.mycompany.pepitoapp.security.ledger.LedgerEntry;
+import com.mycompany.pepitoapp.security.ledger.MerkleBatch;
+import com.mycompany.pepitoapp.security.ledger.SaleAggregates;
+import com.mycompany.pepitoapp.security.ledger.StorageService;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain-text history of every confirmed sale, replacing historial.txt.
+ *
+ * Records go through one long-lived file channel and a reused buffer. A new
+ * file is started each day and whenever the current one reaches the size
+ * limit: historial-2026-10-17.tsv, then historial-2026-10-17.1.tsv, and so on.
+ * Each sale is one tab-separated line:
+ *
+ * <pre>
+ * timestamp  digest  totalCents  items  descripcion|precioCents|cantidad ...
+ * </pre>
+ *
+ * where digest is the first 16 bytes of the SHA-256 of the sale JSON signed
+ * into the ledger, in hex, so {@link #reconcile} can match journal and ledger
+ * by digest alone.
+ *
+ * {@link Flush#SALE} writes each sale to the file before returning;
+ * {@link Flush#INTERVAL} keeps sales in the buffer until it fills or the flush
+ * interval passes. {@link Sync} decides when the file is forced to disk.
+ * {@link #configured()} reads every setting from a pepito.journal.* system
+ * property, then the matching PEPITO_JOURNAL_* environment variable.
+ */
+public final class SalesJournal implements AutoCloseable {
+
+    public static final String DIRECTORY_PROPERTY = "pepito.journal.dir";
+    public static final String DIRECTORY_ENV = "PEPITO_JOURNAL_DIR";
+    public static final String MAX_SIZE_PROPERTY = "pepito.journal.maxMb";
+    public static final String MAX_SIZE_ENV = "PEPITO_JOURNAL_MAX_MB";
+    public static final String FLUSH_PROPERTY = "pepito.journal.flush";
+    public static final String FLUSH_ENV = "PEPITO_JOURNAL_FLUSH";
+    public static final String FLUSH_MILLIS_PROPERTY = "pepito.journal.flushMillis";
+    public static final String FLUSH_MILLIS_ENV = "PEPITO_JOURNAL_FLUSH_MILLIS";
+    public static final String SYNC_PROPERTY = "pepito.journal.sync";
+    public static final String SYNC_ENV = "PEPITO_JOURNAL_SYNC";
+    public static final String DEFAULT_DIRECTORY = "historial";
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+    public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofSeconds(1);
+
+    private static final String PREFIX = "historial-";
+    private static final String SUFFIX = ".tsv";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DIGEST_BYTES = 16;
+    private static final HexFormat HEX = HexFormat.of();
+
+    /**
+     * When buffered sales are written to the file.
+     */
+    public enum Flush {
+        /** After every sale. */
+        SALE,
+        /** When the buffer fills, every flush interval and on close. */
+        INTERVAL
+    }
+
+    /**
+     * When the file is forced to disk.
+     */
+    public enum Sync {
+        /** Left to the operating system. */
+        NEVER,
+        /** After every write to the file. */
+        FLUSH,
+        /** When a file is finished, by rotation or on close. */
+        ROTATE
+    }
+
+    /**
+     * Sales found on only one side. Each digest is listed once per
+     * unmatched sale.
+     */
+    public record Reconciliation(long journalSales, long ledgerSales, List<String> onlyInJournal, List<String> onlyInLedger) {
+
+        public boolean matches() {
+            return onlyInJournal.isEmpty() && onlyInLedger.isEmpty();
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Flush flush;
+    private final Sync sync;
+    private final ZoneId zone;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final StringBuilder line = new StringBuilder(256);
+    private final MessageDigest sha256;
+    private final ScheduledExecutorService flusher;
+    private FileChannel channel;
+    private LocalDate day;
+    private int index;
+    private long size;
+    private boolean closed;
+
+    public SalesJournal(Path directory, long maxBytes, Flush flush, Duration flushInterval, Sync sync, ZoneId zone) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Journal file size must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.flush = Objects.requireNonNull(flush, "flush");
+        this.sync = Objects.requireNonNull(sync, "sync");
+        this.zone = Objects.requireNonNull(zone, "zone");
+        this.sha256 = newSha256();
+        if (flush == Flush.INTERVAL) {
+            long millis = flushInterval.toMillis();
+            if (millis <= 0) {
+                throw new IllegalArgumentException("Flush interval must be positive");
+            }
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "sales-journal-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, millis, millis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Journal set up from the pepito.journal.* system properties or the
+     * PEPITO_JOURNAL_* environment variables: dir (historial in the working
+     * directory), maxMb (8), flush (sale or interval, default sale),
+     * flushMillis (1000) and sync (never, flush or rotate, default rotate).
+     */
+    public static SalesJournal configured() {
+        String directory = configured(DIRECTORY_PROPERTY, DIRECTORY_ENV);
+        String maxMb = configured(MAX_SIZE_PROPERTY, MAX_SIZE_ENV);
+        String flush = configured(FLUSH_PROPERTY, FLUSH_ENV);
+        String flushMillis = configured(FLUSH_MILLIS_PROPERTY, FLUSH_MILLIS_ENV);
+        String sync = configured(SYNC_PROPERTY, SYNC_ENV);
+        return new SalesJournal(
+                Path.of(directory != null ? directory : DEFAULT_DIRECTORY),
+                maxMb != null ? Long.parseLong(maxMb) * 1024 * 1024 : DEFAULT_MAX_BYTES,
+                flush != null ? Flush.valueOf(flush.toUpperCase(Locale.ROOT)) : Flush.SALE,
+                flushMillis != null ? Duration.ofMillis(Long.parseLong(flushMillis)) : DEFAULT_FLUSH_INTERVAL,
+                sync != null ? Sync.valueOf(sync.toUpperCase(Locale.ROOT)) : Sync.ROTATE,
+                ZoneId.systemDefault());
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Records one sale.
+     *
+     * @param saleJson the JSON of the sale as signed into the ledger
+     */
+    public synchronized void append(VentaSnapshot venta, String saleJson) throws IOException {
+        Objects.requireNonNull(venta, "venta");
+        Objects.requireNonNull(saleJson, "saleJson");
+        if (closed) {
+            throw new IOException("Sales journal is closed");
+        }
+        LocalDate saleDay = LocalDate.ofInstant(Instant.ofEpochSecond(venta.timestamp()), zone);
+        if (channel == null || !saleDay.equals(day) || size + buffer.position() >= maxBytes) {
+            rotate(saleDay);
+        }
+        line.setLength(0);
+        long totalCents = 0L;
+        for (VentaSnapshot.Linea linea : venta.items()) {
+            totalCents += cents(linea.precioUnitario()) * linea.cantidad();
+        }
+        line.append(venta.timestamp()).append('\t')
+                .append(digest(saleJson)).append('\t')
+                .append(totalCents).append('\t')
+                .append(venta.items().size());
+        for (VentaSnapshot.Linea linea : venta.items()) {
+            line.append('\t');
+            appendField(linea.descripcion());
+            line.append('|').append(cents(linea.precioUnitario())).append('|').append(linea.cantidad());
+        }
+        line.append('\n');
+        encode();
+        if (flush == Flush.SALE) {
+            writeBuffer();
+        }
+    }
+
+    /**
+     * Writes buffered sales to the file, forcing it to disk under
+     * {@link Sync#FLUSH}.
+     */
+    public synchronized void flush() throws IOException {
+        writeBuffer();
+    }
+
+    /**
+     * Compares the sales of every journal file in directory with the sales
+     * in the ledger, by digest. Ledger entries are told apart as
+     * {@link SaleAggregates#isSale} does, so checkpoints and other non-sale
+     * entries are ignored whatever text they carry; ledger rows that have
+     * been archived are not seen.
+     */
+    public static Reconciliation reconcile(Path directory, StorageService storage, char[] passphrase) throws Exception {
+        Map<String, Integer> journal = new HashMap<>();
+        long journalSales = 0L;
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+                for (Path file : files) {
+                    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                        String record;
+                        while ((record = reader.readLine()) != null) {
+                            int first = record.indexOf('\t');
+                            int second = first < 0 ? -1 : record.indexOf('\t', first + 1);
+                            if (second > first) {
+                                journal.merge(record.substring(first + 1, second), 1, Integer::sum);
+                                journalSales++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        MessageDigest sha256 = newSha256();
+        List<String> onlyInLedger = new ArrayList<>();
+        long[] ledgerSales = {0L};
+        storage.scan(passphrase, 0L, new StorageService.Visitor() {
+            @Override
+            public void entry(LedgerEntry entry) {
+                if (entry.checkpoint() || !SaleAggregates.isSale(entry.saleJson())) {
+                    return;
+                }
+                ledgerSales[0]++;
+                String digest = digest(sha256, entry.saleJson());
+                Integer count = journal.get(digest);
+                if (count == null) {
+                    onlyInLedger.add(digest);
+                } else if (count == 1) {
+                    journal.remove(digest);
+                } else {
+                    journal.put(digest, count - 1);
+                }
+            }
+
+            @Override
+            public void batch(MerkleBatch batch) {
+            }
+        });
+        List<String> onlyInJournal = new ArrayList<>();
+        journal.forEach((digest, count) -> {
+            for (int i = 0; i < count; i++) {
+                onlyInJournal.add(digest);
+            }
+        });
+        return new Reconciliation(journalSales, ledgerSales[0], onlyInJournal, onlyInLedger);
+    }
+
+    /**
+     * Writes what is buffered and closes the current file; later appends fail.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        finishFile();
+    }
+
+    private void rotate(LocalDate saleDay) throws IOException {
+        finishFile();
+        Files.createDirectories(directory);
+        if (!saleDay.equals(day)) {
+            day = saleDay;
+            index = 0;
+            // Carry on after a restart: skip the files of this day that are full.
+            while (Files.exists(file(index + 1)) || (Files.exists(file(index)) && Files.size(file(index)) >= maxBytes)) {
+                index++;
+            }
+        } else {
+            index++;
+        }
+        channel = FileChannel.open(file(index), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    private Path file(int number) {
+        return directory.resolve(PREFIX + day + (number == 0 ? "" : "." + number) + SUFFIX);
+    }
+
+    private void finishFile() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            writeBuffer();
+            if (sync == Sync.ROTATE) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void encode() throws IOException {
+        CharBuffer chars = CharBuffer.wrap(line);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                writeBuffer();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            writeBuffer();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (channel == null || buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+        buffer.clear();
+        if (sync == Sync.FLUSH) {
+            channel.force(false);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void appendField(String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            line.append(c == '\t' || c == '\n' || c == '\r' || c == '|' ? ' ' : c);
+        }
+    }
+
+    private String digest(String saleJson) {
+        return digest(sha256, saleJson);
+    }
+
+    private static String digest(MessageDigest sha256, String saleJson) {
+        byte[] hash = sha256.digest(saleJson.getBytes(StandardCharsets.UTF_8));
+        return HEX.formatHex(hash, 0, DIGEST_BYTES);
+    }
+
+    private static long cents(double amount) {
+        return BigDecimal.valueOf(amount).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    private static String configured(String property, String env) {
+        String value = System.getProperty(property);
+        if (value == null || value.isBlank()) {
+            value = System.getenv(env);
+        }
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+}
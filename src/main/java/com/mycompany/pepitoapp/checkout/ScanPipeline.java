@@ -0,0 +1,177 @@
+package com.mycompany.pepitoapp.checkout;
+
+import com.mycompany.pepitoapp.catalog.ProductCatalog;
+import com.mycompany.pepitoapp.model.Item;
+import com.mycompany.pepitoapp.model.Producto;
+import com.mycompany.pepitoapp.security.app.MetricsCollector;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import javafx.animation.AnimationTimer;
+
+/**
+ * Barcode scans as a stream: codes are queued as they arrive, and the cart
+ * catches up once per frame.
+ *
+ * Scans of the same code between two frames become one quantity. Each frame
+ * sends what has queued up to the catalog as one batch, on a background
+ * thread, and adds the batch resolved since the previous frame to the cart
+ * in one go. While a batch is being resolved new scans keep queuing, so a
+ * burst costs a few batches rather than one lookup and one table update per
+ * scan. Nothing in this path opens a dialog: codes that are not in the
+ * catalog are reported to the listener. When the catalog cannot be read the
+ * batch goes back to the queue and is tried again after a pause, and the
+ * listener is told the catalog failed rather than that the codes are unknown.
+ *
+ * {@link #escanear}, {@link #iniciar} and {@link #detener} must be called on
+ * the FX thread.
+ */
+public final class ScanPipeline {
+
+    /**
+     * What one frame added to the cart.
+     *
+     * @param unidades units added
+     * @param desconocidos scanned codes that are not in the catalog
+     * @param fallo error reading the catalog, whose scans are queued again;
+     *        null if none
+     */
+    public record Resumen(int unidades, List<Long> desconocidos, Exception fallo) {}
+
+    private static final long PAUSA_TRAS_FALLO_NANOS = 1_000_000_000L;
+
+    private record Lote(long[] codigos, int[] cantidades, Producto[] productos, Exception error) {}
+
+    private final Carrito carrito;
+    private final ProductCatalog catalog;
+    private final Consumer<Resumen> listener;
+    private final Map<Long, Integer> pendientes = new LinkedHashMap<>();
+    private final ConcurrentLinkedQueue<Lote> resueltos = new ConcurrentLinkedQueue<>();
+    private final ExecutorService resolver = Executors.newSingleThreadExecutor(
+            Thread.ofVirtual().name("scan-lookup").factory());
+    private AnimationTimer frames;
+    private boolean enVuelo;
+    private boolean enPausa;
+    private long reintentarDesde;
+
+    /**
+     * @param listener told after every frame that changed the cart or
+     *        found the catalog unreadable
+     */
+    public ScanPipeline(Carrito carrito, ProductCatalog catalog, Consumer<Resumen> listener) {
+        this.carrito = Objects.requireNonNull(carrito, "carrito");
+        this.catalog = Objects.requireNonNull(catalog, "catalog");
+        this.listener = Objects.requireNonNull(listener, "listener");
+    }
+
+    /**
+     * Starts catching up once per frame. The timer is created here rather
+     * than with the pipeline, so building one does not need the FX toolkit.
+     */
+    public void iniciar() {
+        if (frames == null) {
+            frames = new AnimationTimer() {
+                @Override
+                public void handle(long now) {
+                    frame(now);
+                }
+            };
+        }
+        frames.start();
+    }
+
+    /**
+     * Stops updating the cart. Scans still queued are applied when the
+     * pipeline is started again.
+     */
+    public void detener() {
+        if (frames != null) {
+            frames.stop();
+        }
+    }
+
+    public void escanear(long codigo) {
+        pendientes.merge(codigo, 1, Integer::sum);
+    }
+
+    /**
+     * Shuts down the lookup thread; the pipeline cannot be started again.
+     */
+    public void cerrar() {
+        detener();
+        resolver.shutdownNow();
+    }
+
+    /**
+     * One frame at now, in System.nanoTime() units: applies the batches
+     * resolved since the last frame and sends what has queued up since.
+     */
+    void frame(long now) {
+        Lote lote;
+        List<Carrito.Entrada> entradas = new ArrayList<>();
+        List<Long> desconocidos = new ArrayList<>();
+        Exception fallo = null;
+        int unidades = 0;
+        while ((lote = resueltos.poll()) != null) {
+            enVuelo = false;
+            if (lote.error() != null) {
+                lote.error().printStackTrace();
+                fallo = lote.error();
+                enPausa = true;
+                reintentarDesde = now + PAUSA_TRAS_FALLO_NANOS;
+                for (int i = 0; i < lote.codigos().length; i++) {
+                    pendientes.merge(lote.codigos()[i], lote.cantidades()[i], Integer::sum);
+                }
+                continue;
+            }
+            for (int i = 0; i < lote.codigos().length; i++) {
+                Producto producto = lote.productos()[i];
+                if (producto == null) {
+                    desconocidos.add(lote.codigos()[i]);
+                    continue;
+                }
+                entradas.add(new Carrito.Entrada(lote.codigos()[i], producto.getNombre(),
+                        Item.aCentimos(producto.getPrecio_unitario_venta()), lote.cantidades()[i]));
+                unidades += lote.cantidades()[i];
+            }
+        }
+        if (!entradas.isEmpty()) {
+            carrito.agregarTodos(entradas);
+        }
+        if (!entradas.isEmpty() || !desconocidos.isEmpty() || fallo != null) {
+            listener.accept(new Resumen(unidades, desconocidos, fallo));
+        }
+        if (!enVuelo && !pendientes.isEmpty() && (!enPausa || now - reintentarDesde >= 0)) {
+            enPausa = false;
+            enviar();
+        }
+    }
+
+    private void enviar() {
+        long[] codigos = new long[pendientes.size()];
+        int[] cantidades = new int[codigos.length];
+        int i = 0;
+        for (Map.Entry<Long, Integer> pendiente : pendientes.entrySet()) {
+            codigos[i] = pendiente.getKey();
+            cantidades[i] = pendiente.getValue();
+            i++;
+        }
+        pendientes.clear();
+        enVuelo = true;
+        resolver.execute(() -> {
+            long inicio = System.nanoTime();
+            try {
+                resueltos.add(new Lote(codigos, cantidades, catalog.buscarLote(codigos, codigos.length), null));
+            } catch (Exception ex) {
+                resueltos.add(new Lote(codigos, cantidades, null, ex));
+            }
+            MetricsCollector.getInstance().recordSince(MetricsCollector.Metric.PRODUCT_LOOKUP, inicio);
+        });
+    }
+}
@@ -0,0 +1,66 @@
+package com.mycompany.pepitoapp.checkout;
+
+import com.mycompany.pepitoapp.model.Item;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable copy of the cart taken when the sale is confirmed. The checkout
+ * pipeline works only on this copy, so editing the cart afterwards cannot
+ * change what is written to the history or signed in the ledger.
+ */
+public record VentaSnapshot(long timestamp, String clienteNombre, String clienteRuc, List<Linea> items, double total) {
+
+    public record Linea(long codigo, String descripcion, double precioUnitario, int cantidad) {}
+
+    public VentaSnapshot {
+        items = List.copyOf(items);
+    }
+
+    /**
+     * Must be called on the FX thread; the total is the one the cart keeps.
+     */
+    public static VentaSnapshot of(Carrito carrito, String clienteNombre, String clienteRuc) {
+        List<Linea> lineas = new ArrayList<>(carrito.size());
+        for (Item item : carrito.getItems()) {
+            lineas.add(new Linea(item.getCodigo(), item.getDescripcion(), item.getPrecioUnitario(), item.getCantidad()));
+        }
+        return new VentaSnapshot(Instant.now().getEpochSecond(), clienteNombre, clienteRuc, lineas,
+                carrito.getTotalCentimos() / 100.0);
+    }
+
+    /**
+     * Boleta JSON recorded in the ledger.
+     */
+    public String toSaleJson() {
+        StringBuilder builder = new StringBuilder();
+        builder.append('{');
+        builder.append("\"timestamp\":").append(timestamp).append(',');
+        builder.append("\"cliente\":{\"nombre\":\"").append(escape(clienteNombre)).append("\",\"ruc\":\"")
+                .append(escape(clienteRuc)).append("\"},");
+        builder.append("\"total\":").append(total).append(',');
+        builder.append("\"items\":[");
+        for (int i = 0; i < items.size(); i++) {
+            Linea linea = items.get(i);
+            builder.append('{')
+                    .append("\"descripcion\":\"").append(escape(linea.descripcion())).append("\",")
+                    .append("\"precio\":").append(linea.precioUnitario()).append(',')
+                    .append("\"cantidad\":").append(linea.cantidad())
+                    .append('}');
+            if (i < items.size() - 1) {
+                builder.append(',');
+            }
+        }
+        builder.append(']');
+        builder.append('}');
+        return builder.toString();
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -7,38 +7,45 @@ package com.mycompany.pepitoapp.controller;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.List;
 import java.util.ResourceBundle;
-import java.util.LinkedList;
 import javafx.beans.property.SimpleIntegerProperty;
 
 import javafx.fxml.FXML;
+import javafx.geometry.Side;
 import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.Label;
+import javafx.scene.control.MenuItem;
 import javafx.scene.control.TextField;
 import javafx.scene.text.Text;
 import javafx.stage.Stage;
+import javafx.stage.WindowEvent;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
 import javafx.event.ActionEvent;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 
 
+import com.mycompany.pepitoapp.catalog.ProductCatalog;
+import com.mycompany.pepitoapp.checkout.Carrito;
+import com.mycompany.pepitoapp.checkout.ScanPipeline;
 import com.mycompany.pepitoapp.model.Item;
+import com.mycompany.pepitoapp.model.Producto;
+import com.mycompany.pepitoapp.security.app.MetricsCollector;
 /**
  * FXML Controller class
  *
  * @author Equipo A
  */
 public class BodegaFXMLController implements Initializable {
-    public static LinkedList<Item> listaItem = new LinkedList<>();
+    public static final Carrito carrito = new Carrito();
 
     @FXML private Button btnAñadirCarrito;
     @FXML private Button btnBuscarProducto;
@@ -53,8 +60,14 @@ public class BodegaFXMLController implements Initializable {
     @FXML private TextField tfLote;
     @FXML private TextField tfNombre;
     @FXML private TextField tfRUC;
+    @FXML private CheckBox chkEscaner;
+    @FXML private Label lblEscaneo;
     public static String boleta_nombre;
     public static String boleta_RUC;
+    private long codigoEncontrado;
+    private static final int MAX_SUGERENCIAS = 8;
+    private final ContextMenu sugerencias = new ContextMenu();
+    private ScanPipeline escaner;
     
     
     
@@ -62,9 +75,109 @@ public class BodegaFXMLController implements Initializable {
     public void initialize(URL url, ResourceBundle rb) {
         btnAñadirCarrito.setDisable(true);
         tfCantidad.setDisable(true);
+        // Si no es un código, lo escrito se busca por nombre o tipo en el catálogo en memoria
+        tfCodigo.textProperty().addListener((observable, anterior, texto) -> sugerirProductos(texto));
+        tfCodigo.focusedProperty().addListener((observable, antes, enfocado) -> {
+            if (!enfocado) {
+                sugerencias.hide();
+            }
+        });
     }    
+
+    private void sugerirProductos(String texto) {
+        if (chkEscaner.isSelected() || texto == null || texto.isBlank() || esNumeroValido(texto.trim())) {
+            sugerencias.hide();
+            return;
+        }
+        ProductCatalog catalogo = ProductCatalog.getInstance();
+        if (!catalogo.isLoaded()) {
+            // Sin sugerencias hasta que termine la carga inicial; cargarlo aquí
+            // bloquearía la interfaz en cada tecla
+            sugerencias.hide();
+            return;
+        }
+        long inicio = System.nanoTime();
+        List<Producto> encontrados;
+        try {
+            encontrados = catalogo.buscarPorNombre(texto, MAX_SUGERENCIAS);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            sugerencias.hide();
+            return;
+        }
+        MetricsCollector.getInstance().recordSince(MetricsCollector.Metric.PRODUCT_SEARCH, inicio);
+        if (encontrados.isEmpty()) {
+            sugerencias.hide();
+            return;
+        }
+        sugerencias.getItems().clear();
+        for (Producto producto : encontrados) {
+            MenuItem opcion = new MenuItem(producto.getNombre() + " (" + producto.getTipo() + ") - S/ "
+                    + producto.getPrecio_unitario_venta());
+            opcion.setOnAction(event -> {
+                sugerencias.hide();
+                tfCodigo.setText(producto.getCodigo());
+                accionBuscarProducto();
+            });
+            sugerencias.getItems().add(opcion);
+        }
+        if (!sugerencias.isShowing()) {
+            sugerencias.show(tfCodigo, Side.BOTTOM, 0, 0);
+        }
+    }
     
     
+    @FXML private void accionModoEscaner() {
+        if (!chkEscaner.isSelected()) {
+            escaner.detener();
+            lblEscaneo.setText("");
+            return;
+        }
+        if (escaner == null) {
+            // Las lecturas van directo al carrito; se aplican una vez por cuadro
+            escaner = new ScanPipeline(carrito, ProductCatalog.getInstance(), this::mostrarEscaneo);
+            tfCodigo.getScene().getWindow().addEventHandler(WindowEvent.WINDOW_HIDDEN, event -> escaner.cerrar());
+        }
+        sugerencias.hide();
+        limpiarCampos();
+        btnAñadirCarrito.setDisable(true);
+        tfCantidad.setDisable(true);
+        escaner.iniciar();
+        lblEscaneo.setText("Escanee los productos");
+        tfCodigo.requestFocus();
+    }
+
+    // El lector de códigos escribe el código y envía Enter
+    @FXML private void accionCodigoIngresado() {
+        if (!chkEscaner.isSelected()) {
+            accionBuscarProducto();
+            return;
+        }
+        String codigo = tfCodigo.getText().trim();
+        tfCodigo.clear();
+        if (codigo.isEmpty()) {
+            return;
+        }
+        if (!esNumeroValido(codigo)) {
+            // Sin diálogos: una alerta modal detendría la ráfaga de lecturas
+            lblEscaneo.setText("Código inválido: " + codigo);
+            return;
+        }
+        escaner.escanear(Long.parseLong(codigo));
+    }
+
+    private void mostrarEscaneo(ScanPipeline.Resumen resumen) {
+        String texto = "+" + resumen.unidades() + " unidades - Total S/ " + Carrito.formatear(carrito.getTotalCentimos());
+        if (!resumen.desconocidos().isEmpty()) {
+            texto += " - No encontrados: " + resumen.desconocidos();
+        }
+        if (resumen.fallo() != null) {
+            // Las lecturas no se pierden: vuelven a la cola y se reintentan
+            texto += " - No se pudo leer el catálogo, reintentando";
+        }
+        lblEscaneo.setText(texto);
+    }
+
     @FXML private void accionBuscarProducto(){
         String codigoIngresado = tfCodigo.getText();
 
@@ -73,43 +186,31 @@ public class BodegaFXMLController implements Initializable {
             return; 
         }
 
-        String url = "jdbc:sqlite:C:\\Users\\USUARIO\\Documents\\NetBeansProjects\\PepitoApp\\productos2.db";
-
-        try (Connection connection = DriverManager.getConnection(url)) {
-         
-            String sql = "SELECT * FROM productos WHERE id_productos = ?";
-
-            try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
-
-               // int id = Integer.parseInt(codigoIngresado);
-               // preparedStatement.setInt(1, id);
-               preparedStatement.setString(1, codigoIngresado);
-               
-
-                try (ResultSet resultSet = preparedStatement.executeQuery()) {
-                    if (resultSet.next()) {
+        long inicioBusqueda = System.nanoTime();
+        try {
+            Producto producto = ProductCatalog.getInstance().buscar(Long.parseLong(codigoIngresado));
+            MetricsCollector.getInstance().recordSince(MetricsCollector.Metric.PRODUCT_LOOKUP, inicioBusqueda);
+            if (producto != null) {
 
-                        tfNombreProducto.setEditable(false);
-                        tfTipo.setEditable(false);
-                        tfPrecioUnitarioCosto.setEditable(false);
-                        tfPrecioUnitarioVenta.setEditable(false);
-                        tfStock.setEditable(false);
-                        tfLote.setEditable(false);
-                        
-                        tfCantidad.setText("0");
-                        tfTipo.setText(resultSet.getString("tipo"));
-                        tfStock.setText(Integer.toString(resultSet.getInt("stock_unidades")));
-                        tfNombreProducto.setText(resultSet.getString("nombre"));
-                        tfPrecioUnitarioCosto.setText(Double.toString(resultSet.getDouble("precio_unitario_costo")));
-                        tfLote.setText(resultSet.getString("fecha_de_caducidad"));
-                        tfPrecioUnitarioVenta.setText(Double.toString(resultSet.getDouble("precio_unitario_venta")));
+                codigoEncontrado = Long.parseLong(codigoIngresado);
+                tfNombreProducto.setEditable(false);
+                tfTipo.setEditable(false);
+                tfPrecioUnitarioCosto.setEditable(false);
+                tfPrecioUnitarioVenta.setEditable(false);
+                tfStock.setEditable(false);
+                tfLote.setEditable(false);
 
+                tfCantidad.setText("0");
+                tfTipo.setText(producto.getTipo());
+                tfStock.setText(Integer.toString(producto.getStock()));
+                tfNombreProducto.setText(producto.getNombre());
+                tfPrecioUnitarioCosto.setText(Double.toString(producto.getPrecio_unitario_costo()));
+                tfLote.setText(producto.getFechaDeCaducidad() == null ? "" : producto.getFechaDeCaducidad().toString());
+                tfPrecioUnitarioVenta.setText(Double.toString(producto.getPrecio_unitario_venta()));
 
-                    } else {
-                        limpiarCampos();     //cuando codigo ingresado se convertia a entero "id" iba en vez de "codigoIngresado"
-                        mostrarAlerta("Producto no encontrado", "El producto con ID " + codigoIngresado + " no fue encontrado.");
-                    }
-                }
+            } else {
+                limpiarCampos();
+                mostrarAlerta("Producto no encontrado", "El producto con ID " + codigoIngresado + " no fue encontrado.");
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -166,24 +267,18 @@ public class BodegaFXMLController implements Initializable {
     }
     
     @FXML private void accionAñadirACarrito() {
-        Item prod = new Item ("vacio", 0.0, 0);
-        
-        prod.setDescripcion (tfNombreProducto.getText());
-        prod.setPrecioUnitario(Double.parseDouble(tfPrecioUnitarioVenta.getText()));
-        prod.setCantidad(Integer.parseInt(tfCantidad.getText()));
-        if (!prod.getDescripcion().equals("vacio") && prod.getPrecioUnitario() > 0.0 && prod.getCantidad()!=0) {
-
-            if (listaItem.contains(prod)) {
-                for (Item item: listaItem){
-                    if (item.equals(prod)){
-                        item.setCantidad(item.getCantidad() + prod.getCantidad());
-                        break;
-                    }
-                }
-            }
-            else {
-                listaItem.add(prod);
-            }
+        String descripcion = tfNombreProducto.getText();
+        long precioCentimos;
+        int cantidad;
+        try {
+            precioCentimos = Item.aCentimos(Double.parseDouble(tfPrecioUnitarioVenta.getText()));
+            cantidad = Integer.parseInt(tfCantidad.getText());
+        } catch (NumberFormatException e) {
+            precioCentimos = 0L;
+            cantidad = 0;
+        }
+        if (descripcion != null && !descripcion.isEmpty() && precioCentimos > 0L && cantidad > 0) {
+            carrito.agregar(codigoEncontrado, descripcion, precioCentimos, cantidad);
             limpiarCampos();
             mostrarAlerta("Añadido al carrito", "El producto ha sido añadido al carrito correctamente.");           
         } else mostrarAlerta("Error", "Verifique que los campos estén rellenados correctamente");
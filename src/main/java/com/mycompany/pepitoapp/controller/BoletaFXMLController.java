@@ -6,17 +6,19 @@ package com.mycompany.pepitoapp.controller;
 
 import static com.mycompany.pepitoapp.controller.BodegaFXMLController.boleta_RUC;
 import static com.mycompany.pepitoapp.controller.BodegaFXMLController.boleta_nombre;
-import static com.mycompany.pepitoapp.controller.BodegaFXMLController.listaItem;
+import static com.mycompany.pepitoapp.controller.BodegaFXMLController.carrito;
 import static com.mycompany.pepitoapp.controller.BodegaFXMLController.mostrarAlerta;
 
+import com.mycompany.pepitoapp.checkout.Carrito;
+import com.mycompany.pepitoapp.checkout.CheckoutPipeline;
+import com.mycompany.pepitoapp.checkout.ResultadoCompra;
+import com.mycompany.pepitoapp.checkout.VentaSnapshot;
 import com.mycompany.pepitoapp.model.Calendario;
 import com.mycompany.pepitoapp.model.Item;
-import com.mycompany.pepitoapp.security.crypto.CryptoService;
-import com.mycompany.pepitoapp.security.ledger.LedgerService;
 import java.net.URL;
-import java.time.Instant;
 import java.util.ResourceBundle;
-import javafx.collections.FXCollections;
+import javafx.application.Platform;
+import javafx.beans.binding.Bindings;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
@@ -27,18 +29,8 @@ import javafx.scene.control.cell.TextFieldTableCell;
 import javafx.scene.text.Text;
 import javafx.util.converter.IntegerStringConverter;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-
 public class BoletaFXMLController implements Initializable {
 
-    private static final String DEFAULT_KEY_ID = "ed25519-pos";
-    private static final char[] DEFAULT_PASSPHRASE = System.getenv()
-            .getOrDefault("PEPITO_PASSPHRASE", "pepito-demo-pass").toCharArray();
-    private final CryptoService cryptoService = new CryptoService();
-    private final LedgerService ledgerService = new LedgerService();
-
     @FXML private TableView<Item> tableView;
     @FXML private TableColumn<Item, String> descripcionColumn;
     @FXML private TableColumn<Item, Double> precioUnitarioColumn;
@@ -58,14 +50,30 @@ public class BoletaFXMLController implements Initializable {
         precioUnitarioColumn.setCellValueFactory(cellData -> cellData.getValue().precioUnitarioProperty().asObject());
         cantidadColumn.setCellValueFactory(cellData -> cellData.getValue().cantidadProperty().asObject());
 
-        cantidadColumn.setCellFactory(TextFieldTableCell.forTableColumn(new IntegerStringConverter()));
+        cantidadColumn.setCellFactory(TextFieldTableCell.forTableColumn(new IntegerStringConverter() {
+            @Override
+            public Integer fromString(String texto) {
+                // Un texto que no es número llega como null y se rechaza abajo
+                try {
+                    return super.fromString(texto);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }));
         cantidadColumn.setOnEditCommit(event -> {
-            Item itemSeleccionado = event.getRowValue();
-            itemSeleccionado.setCantidad(event.getNewValue());
+            Integer cantidad = event.getNewValue();
+            if (cantidad == null || cantidad <= 0) {
+                // La cantidad no cambia; refresh vuelve a mostrar la anterior
+                tableView.refresh();
+                mostrarAlerta("Error", "La cantidad debe ser un número mayor que cero");
+                return;
+            }
+            event.getRowValue().setCantidad(cantidad);
         });
 
         tableView.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue)->{});
-        tableView.setItems(FXCollections.observableArrayList(listaItem));
+        tableView.setItems(carrito.getItems());
 
         // Uso de la clase Calendario.java
         Calendario cal = new Calendario();
@@ -74,7 +82,9 @@ public class BoletaFXMLController implements Initializable {
         txtNombre.setText(boleta_nombre);
         txtRUC.setText(boleta_RUC);
 
-        calcularTotal();
+        // El carrito lleva el total; el campo solo lo muestra
+        tfTotal.textProperty().bind(Bindings.createStringBinding(
+                () -> Carrito.formatear(carrito.getTotalCentimos()), carrito.totalCentimosProperty()));
     }
 
     @FXML
@@ -82,97 +92,48 @@ public class BoletaFXMLController implements Initializable {
         Item selectedItem = tableView.getSelectionModel().getSelectedItem();
 
         if (selectedItem != null) {
-            listaItem.remove(selectedItem);
-            tableView.setItems(FXCollections.observableArrayList(listaItem));
+            carrito.quitar(selectedItem);
 
         } else mostrarAlerta("Error", "Producto no seleccionado");
-
-        calcularTotal();
     }
 
     @FXML private void confirmarCompra(){
-        if (listaItem.isEmpty()){
+        if (carrito.isEmpty()){
             mostrarAlerta ("Error", "Primero añada algún producto a su carrito");
             return;
         }
 
-        double total = calcularTotal();
-        guardarHistorial();
-        boolean recorded = registrarEnBitacora(total);
-        if (recorded) {
-            mostrarAlerta("Compra", "Su compra se ha registrado y firmado correctamente");
-        } else {
-            mostrarAlerta("Advertencia", "Compra guardada pero no se pudo registrar en la bitácora de seguridad");
-        }
+        VentaSnapshot venta = VentaSnapshot.of(carrito, boleta_nombre, boleta_RUC);
+        btnConfirmarCompra.setDisable(true);
+        btnConfirmarCompra.setText("Procesando...");
+        CheckoutPipeline.getInstance().procesar(venta)
+                .whenComplete((resultado, error) -> Platform.runLater(() -> compraTerminada(venta, resultado, error)));
     }
 
-    private double calcularTotal() {
-        double total = 0.0;
-        for (Item item : listaItem) {
-            total += item.getPrecioUnitario() * item.getCantidad();
+    private void compraTerminada(VentaSnapshot venta, ResultadoCompra resultado, Throwable error) {
+        btnConfirmarCompra.setText("Confirmar compra");
+        btnConfirmarCompra.setDisable(false);
+        if (error != null) {
+            error.printStackTrace();
+            mostrarAlerta("Error", "No se pudo procesar la compra");
+            return;
         }
-        tfTotal.setText(String.valueOf(total));
-        return total;
-    }
-
-    private void guardarHistorial() {
-        String nombreArchivo = "historial.txt";
-
-        try (PrintWriter writer = new PrintWriter(new FileWriter(nombreArchivo, true))) {
-            for (Item item : listaItem) {
-                writer.println(item.getDescripcion() + "\t" + item.getPrecioUnitario() + "\t" + item.getCantidad());
-            }
-            writer.println("Total: " + tfTotal.getText());
-            writer.println("-----------");
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (!resultado.historialGuardado()) {
             mostrarAlerta("Error", "Error al guardar el historial.");
         }
-    }
-
-    private boolean registrarEnBitacora(double total) {
-        try {
-            String saleJson = buildSaleJson(total);
-            return ledgerService.appendSignedEntry(saleJson, DEFAULT_KEY_ID, DEFAULT_PASSPHRASE, cryptoService);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            return false;
-        }
-    }
-
-    private String buildSaleJson(double total) {
-        StringBuilder builder = new StringBuilder();
-        builder.append('{');
-        builder.append("\"timestamp\":").append(Instant.now().getEpochSecond()).append(',');
-        builder.append("\"cliente\":{\"nombre\":\"").append(escape(boleta_nombre)).append("\",\"ruc\":\"")
-                .append(escape(boleta_RUC)).append("\"},");
-        builder.append("\"total\":").append(total).append(',');
-        builder.append("\"items\":[");
-        for (int i = 0; i < listaItem.size(); i++) {
-            Item item = listaItem.get(i);
-            builder.append('{')
-                    .append("\"descripcion\":\"").append(escape(item.getDescripcion())).append("\",")
-                .append("\"precio\":").append(item.getPrecioUnitario()).append(',')
-                    .append("\"cantidad\":").append(item.getCantidad())
-                    .append('}');
-            if (i < listaItem.size() - 1) {
-                builder.append(',');
-            }
-        }
-        builder.append(']');
-        builder.append('}');
-        return builder.toString();
-    }
-
-    private String escape(String value) {
-        if (value == null) {
-            return "";
+        if (resultado.registrada()) {
+            // La venta quedó firmada: se quita del carrito solo lo vendido, no lo
+            // que se añadió mientras se procesaba
+            carrito.descontar(venta);
+            mostrarAlerta("Compra", "Su compra se ha registrado y firmado correctamente");
+        } else {
+            mostrarAlerta("Advertencia", "Compra guardada pero no se pudo registrar en la bitácora de seguridad");
         }
-        return value.replace("\\", "\\\\").replace("\"", "\\\"");
     }
 
+    // El total ya se actualiza solo; se conserva el botón
     @FXML private void actualizar() {
-    calcularTotal();
+        tableView.refresh();
     }
 
 }
@@ -4,23 +4,60 @@
  */
 package com.mycompany.pepitoapp.model;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.Objects;
 import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleStringProperty;
 
+/**
+ * Linea del carrito. El precio se guarda en centimos (precioCentimos) para
+ * sumar sin errores de redondeo; precioUnitario es solo su vista en soles
+ * para la tabla.
+ */
 public class Item {
     
     public SimpleStringProperty descripcion;
     public SimpleDoubleProperty precioUnitario;
     public SimpleIntegerProperty cantidad;
+    private final long codigo;
+    private long precioCentimos;
 
     public Item(String descripcion, double precioUnitario, int cantidad ) {
+        this(0L, descripcion, aCentimos(precioUnitario), cantidad);
+    }
+
+    public Item(long codigo, String descripcion, long precioCentimos, int cantidad) {
+        this.codigo = codigo;
+        this.precioCentimos = precioCentimos;
         this.descripcion = new SimpleStringProperty(descripcion);
-        this.precioUnitario = new SimpleDoubleProperty(precioUnitario);
+        this.precioUnitario = new SimpleDoubleProperty(precioCentimos / 100.0);
         this.cantidad = new SimpleIntegerProperty(cantidad); 
     }
 
+    /**
+     * Monto en soles redondeado al centimo.
+     */
+    public static long aCentimos(double monto) {
+        return BigDecimal.valueOf(monto).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * id_productos del producto, 0 si la linea no viene del catalogo.
+     */
+    public long getCodigo() {
+        return codigo;
+    }
+
+    public long getPrecioCentimos() {
+        return precioCentimos;
+    }
+
+    public long getSubtotalCentimos() {
+        return precioCentimos * cantidad.get();
+    }
+
     public int getCantidad() {
         return cantidad.get();
     }
@@ -47,13 +84,14 @@ public class Item {
         return precioUnitario.get();
     }
     public void setPrecioUnitario(double precioUnitario) {
-        this.precioUnitario.set(precioUnitario);
+        this.precioCentimos = aCentimos(precioUnitario);
+        this.precioUnitario.set(precioCentimos / 100.0);
     }
     public SimpleDoubleProperty precioUnitarioProperty() {
         return precioUnitario;
     }
 
-    // Se sobreescribe el metodo equals para que no haya problemas al usar contains (la comparacion no distingue y es erronea)
+    // Mismo producto al mismo precio; se compara en centimos, no en double
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -63,8 +101,14 @@ public class Item {
             return false;
         }
         Item item = (Item) obj;
-        return descripcion.get().equals(item.descripcion.get()) &&
-               precioUnitario.get() == item.precioUnitario.get();
+        return codigo == item.codigo &&
+               precioCentimos == item.precioCentimos &&
+               Objects.equals(descripcion.get(), item.descripcion.get());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(codigo, descripcion.get(), precioCentimos);
     }
   
 }
@@ -5,6 +5,7 @@
 package com.mycompany.pepitoapp.model;
 
 import java.time.LocalDate;
+import java.util.Objects;
 
 /**
  *
@@ -24,13 +25,19 @@ public class Producto {
     public Producto(String codigo, String nombre, double valor) {
         this.codigo = codigo;
         this.nombre = nombre;
-        this.cantidad = cantidad;
+        this.precio_unitario_venta = valor;
+    }
+
+    // Constructor con todas las columnas de la tabla productos
+    public Producto(String codigo, String nombre, String tipo, double precio_unitario_costo,
+                    double precio_unitario_venta, int stock, LocalDate fechaDeCaducidad) {
+        this.codigo = codigo;
+        this.nombre = nombre;
         this.tipo = tipo;
         this.precio_unitario_costo = precio_unitario_costo;
         this.precio_unitario_venta = precio_unitario_venta;
         this.stock = stock;
         this.fechaDeCaducidad = fechaDeCaducidad;
-        
     }
 
     // Getters y setters (puedes generarlos automáticamente en muchos IDE)
@@ -65,4 +72,28 @@ public class Producto {
     public LocalDate getFechaDeCaducidad(){
          return fechaDeCaducidad;
     }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Producto)) {
+            return false;
+        }
+        Producto otro = (Producto) obj;
+        return cantidad == otro.cantidad
+                && stock == otro.stock
+                && Double.compare(precio_unitario_costo, otro.precio_unitario_costo) == 0
+                && Double.compare(precio_unitario_venta, otro.precio_unitario_venta) == 0
+                && Objects.equals(codigo, otro.codigo)
+                && Objects.equals(nombre, otro.nombre)
+                && Objects.equals(tipo, otro.tipo)
+                && Objects.equals(fechaDeCaducidad, otro.fechaDeCaducidad);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(codigo, nombre, cantidad, tipo, precio_unitario_costo, precio_unitario_venta, stock, fechaDeCaducidad);
+    }
 }
@@ -0,0 +1,100 @@
+package com.mycompany.pepitoapp.security.app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide latency recorder for the POS hot paths. Callers take
+ * {@link System#nanoTime()} around the measured step and pass the difference to
+ * {@link #record}; nothing is allocated, so it is safe on the checkout path.
+ * {@link #snapshot()} turns the histograms into percentiles for export.
+ */
+public final class MetricsCollector {
+
+    /**
+     * Measured steps. The key is the name used in exported snapshots.
+     */
+    public enum Metric {
+        LEDGER_HASH("ledger.hash"),
+        LEDGER_SIGN("ledger.sign"),
+        LEDGER_INSERT("ledger.insert"),
+        LEDGER_COMMIT("ledger.commit"),
+        LEDGER_APPEND("ledger.append"),
+        LEDGER_ARCHIVE("ledger.archive"),
+        VERIFY_CHAIN("verify.chain"),
+        VERIFY_FROM_CHECKPOINT("verify.from_checkpoint"),
+        VERIFY_PARALLEL("verify.parallel"),
+        VERIFY_ARCHIVES("verify.archives"),
+        KDF("crypto.kdf"),
+        PRODUCT_LOOKUP("pos.product_lookup"),
+        PRODUCT_SEARCH("pos.product_search"),
+        CHECKOUT("pos.checkout");
+
+        private final String key;
+
+        Metric(String key) {
+            this.key = key;
+        }
+
+        public String key() {
+            return key;
+        }
+    }
+
+    private static final MetricsCollector INSTANCE = new MetricsCollector();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Metric.values().length];
+
+    public MetricsCollector() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static MetricsCollector getInstance() {
+        return INSTANCE;
+    }
+
+    public void record(Metric metric, long nanos) {
+        histograms[metric.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records the time elapsed since startNanos, taken with System.nanoTime().
+     */
+    public void recordSince(Metric metric, long startNanos) {
+        histograms[metric.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram histogram(Metric metric) {
+        return histograms[metric.ordinal()];
+    }
+
+    /**
+     * Percentiles of every metric recorded at least once.
+     */
+    public MetricsSnapshot snapshot() {
+        List<MetricsSnapshot.Timing> timings = new ArrayList<>();
+        for (Metric metric : Metric.values()) {
+            LatencyHistogram histogram = histograms[metric.ordinal()];
+            if (histogram.count() > 0) {
+                timings.add(new MetricsSnapshot.Timing(
+                        metric.key(),
+                        histogram.count(),
+                        histogram.meanNanos(),
+                        histogram.percentileNanos(50),
+                        histogram.percentileNanos(95),
+                        histogram.percentileNanos(99),
+                        histogram.maxNanos()
+                ));
+            }
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), timings);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.mycompany.pepitoapp.security.app;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Point-in-time percentiles of the {@link MetricsCollector} histograms, in
+ * nanoseconds. Snapshots can be appended to a CSV file or to a local table so
+ * runs can be compared later.
+ */
+public record MetricsSnapshot(long takenAtMillis, List<Timing> timings) {
+
+    public static final String CSV_HEADER = "taken_at,metric,count,mean_ns,p50_ns,p95_ns,p99_ns,max_ns";
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS metrics_snapshot (" +
+            "taken_at INTEGER NOT NULL," +
+            "metric TEXT NOT NULL," +
+            "count INTEGER NOT NULL," +
+            "mean_ns INTEGER NOT NULL," +
+            "p50_ns INTEGER NOT NULL," +
+            "p95_ns INTEGER NOT NULL," +
+            "p99_ns INTEGER NOT NULL," +
+            "max_ns INTEGER NOT NULL" +
+            ")";
+    private static final String INSERT_ROW = "INSERT INTO metrics_snapshot(taken_at, metric, count, mean_ns, p50_ns, p95_ns, p99_ns, max_ns) VALUES(?,?,?,?,?,?,?,?)";
+
+    public record Timing(String metric, long count, long meanNanos, long p50Nanos, long p95Nanos, long p99Nanos, long maxNanos) {}
+
+    public MetricsSnapshot {
+        timings = List.copyOf(timings);
+    }
+
+    public String toCsv() {
+        StringBuilder builder = new StringBuilder(CSV_HEADER).append('\n');
+        appendRows(builder);
+        return builder.toString();
+    }
+
+    /**
+     * Appends the rows to the file, writing the header first if the file is
+     * new or empty.
+     */
+    public void appendCsv(Path file) throws IOException {
+        boolean header = !Files.exists(file) || Files.size(file) == 0;
+        StringBuilder builder = new StringBuilder();
+        if (header) {
+            builder.append(CSV_HEADER).append('\n');
+        }
+        appendRows(builder);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(builder.toString());
+        }
+    }
+
+    /**
+     * Inserts one row per metric into the metrics_snapshot table, creating it
+     * if needed. Runs in the caller's transaction mode.
+     */
+    public void saveTo(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(CREATE_TABLE);
+        }
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_ROW)) {
+            for (Timing timing : timings) {
+                statement.setLong(1, takenAtMillis);
+                statement.setString(2, timing.metric());
+                statement.setLong(3, timing.count());
+                statement.setLong(4, timing.meanNanos());
+                statement.setLong(5, timing.p50Nanos());
+                statement.setLong(6, timing.p95Nanos());
+                statement.setLong(7, timing.p99Nanos());
+                statement.setLong(8, timing.maxNanos());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void appendRows(StringBuilder builder) {
+        for (Timing timing : timings) {
+            builder.append(takenAtMillis).append(',')
+                    .append(timing.metric()).append(',')
+                    .append(timing.count()).append(',')
+                    .append(timing.meanNanos()).append(',')
+                    .append(timing.p50Nanos()).append(',')
+                    .append(timing.p95Nanos()).append(',')
+                    .append(timing.p99Nanos()).append(',')
+                    .append(timing.maxNanos()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package com.mycompany.pepitoapp.security.app;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.crypto.PublicKeyDirectory;
+import com.mycompany.pepitoapp.security.ledger.ArchiveAnchor;
+import com.mycompany.pepitoapp.security.ledger.GroupCommitLedgerAppender;
+import com.mycompany.pepitoapp.security.ledger.KeyRegistry;
+import com.mycompany.pepitoapp.security.ledger.LedgerArchiver;
+import com.mycompany.pepitoapp.security.ledger.LedgerService;
+import com.mycompany.pepitoapp.security.ledger.SaleAggregates;
+import com.mycompany.pepitoapp.security.ledger.SalesTotals;
+import com.mycompany.pepitoapp.security.ledger.SegmentLogStorageService;
+import com.mycompany.pepitoapp.security.ledger.SqliteStorageService;
+import com.mycompany.pepitoapp.security.ledger.StorageService;
+import com.mycompany.pepitoapp.security.ledger.VerificationResult;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Facade used by the POS screens to record sales in the signed ledger. A single
+ * instance is shared by every window so the keystore and the database are
+ * unlocked once per shift instead of once per sale.
+ *
+ * Sales are signed with the active key of the {@link KeyRegistry}. The key
+ * that replaces it is generated and encrypted in the background while the
+ * shift goes on, so {@link #rotarClave()} only swaps keys between two sales.
+ *
+ * With the SQLite ledger, sales totals per shift, day and product are kept
+ * by {@link SaleAggregates} as each sale is committed, so closing the cash
+ * reads the shift's totals instead of adding up its sales.
+ */
+public final class SecurityModule {
+
+    public static final String DEFAULT_KEY_ID = "ed25519-pos";
+    public static final String LEDGER_BACKEND_PROPERTY = "pepito.ledger.backend";
+    public static final String LEDGER_BACKEND_ENV = "PEPITO_LEDGER_BACKEND";
+
+    private static final Path DATA_DIRECTORY = Path.of(System.getProperty("user.home"), ".pepitoapp");
+    // One deriver, so the keystore and the database share the calibrated profile.
+    private static final Argon2KeyDeriver KEY_DERIVER = new Argon2KeyDeriver();
+    private static final SecurityModule INSTANCE = new SecurityModule(
+            new KeyStoreManager(KEY_DERIVER, DATA_DIRECTORY.resolve("keystore")),
+            new SecureDatabaseProvider(KEY_DERIVER, DATA_DIRECTORY),
+            System.getenv().getOrDefault("PEPITO_PASSPHRASE", "pepito-demo-pass").toCharArray()
+    );
+
+    private final KeyStoreManager keyStoreManager;
+    private final CryptoService cryptoService;
+    private final SecureDatabaseProvider databaseProvider;
+    private final LedgerService ledgerService;
+    private final LedgerArchiver archiver;
+    private final KeyRegistry keyRegistry;
+    private final SaleAggregates saleAggregates;
+    private final Object keyPreparationLock = new Object();
+    private final char[] passphrase;
+    private GroupCommitLedgerAppender appender;
+    private Thread migration;
+    private Thread archival;
+    private Thread keyPreparation;
+
+    public SecurityModule(KeyStoreManager keyStoreManager, SecureDatabaseProvider databaseProvider, char[] passphrase) {
+        this.keyStoreManager = Objects.requireNonNull(keyStoreManager, "keyStoreManager");
+        this.cryptoService = new CryptoService(keyStoreManager);
+        this.databaseProvider = Objects.requireNonNull(databaseProvider, "databaseProvider");
+        this.ledgerService = new LedgerService(databaseProvider, configuredStorage(databaseProvider));
+        this.archiver = new LedgerArchiver(databaseProvider);
+        this.keyRegistry = new KeyRegistry(databaseProvider);
+        this.ledgerService.setKeyRegistry(keyRegistry);
+        if (ledgerService.getStorage() instanceof SqliteStorageService) {
+            this.saleAggregates = new SaleAggregates(databaseProvider, ZoneId.systemDefault());
+            this.ledgerService.setSaleAggregates(saleAggregates);
+        } else {
+            this.saleAggregates = null;
+        }
+        this.passphrase = Objects.requireNonNull(passphrase, "passphrase");
+    }
+
+    /**
+     * Ledger storage named by the pepito.ledger.backend system property, then
+     * the PEPITO_LEDGER_BACKEND environment variable: "sqlite" (the default)
+     * for the ledger table, or "segment" for the segment log in ledger-log
+     * next to the database.
+     *
+     * @throws IllegalArgumentException for any other name
+     */
+    public static StorageService configuredStorage(SecureDatabaseProvider databaseProvider) {
+        String backend = System.getProperty(LEDGER_BACKEND_PROPERTY);
+        if (backend == null || backend.isBlank()) {
+            backend = System.getenv(LEDGER_BACKEND_ENV);
+        }
+        if (backend == null || backend.isBlank() || backend.trim().equalsIgnoreCase(SqliteStorageService.NAME)) {
+            return new SqliteStorageService(databaseProvider);
+        }
+        if (backend.trim().equalsIgnoreCase(SegmentLogStorageService.NAME)) {
+            return new SegmentLogStorageService(databaseProvider.getDbFile().resolveSibling("ledger-log"));
+        }
+        throw new IllegalArgumentException("Unknown ledger backend: " + backend);
+    }
+
+    public static SecurityModule getInstance() {
+        return INSTANCE;
+    }
+
+    public KeyStoreManager getKeyStoreManager() {
+        return keyStoreManager;
+    }
+
+    public CryptoService getCryptoService() {
+        return cryptoService;
+    }
+
+    public SecureDatabaseProvider getDatabaseProvider() {
+        return databaseProvider;
+    }
+
+    public LedgerService getLedgerService() {
+        return ledgerService;
+    }
+
+    public KeyRegistry getKeyRegistry() {
+        return keyRegistry;
+    }
+
+    /**
+     * @return the sales totals, or null with a ledger other than SQLite
+     */
+    public SaleAggregates getSaleAggregates() {
+        return saleAggregates;
+    }
+
+    /**
+     * Opens the database and unlocks the signing key if needed. Only the first
+     * sale of a shift (or the first after an idle timeout) pays the Argon2id cost.
+     * Opening the database also starts moving text-format ledger rows to binary
+     * storage in the background. Unlocking the signing key starts preparing
+     * the next one, also in the background.
+     */
+    public synchronized void unlock() throws Exception {
+        if (!databaseProvider.isOpen()) {
+            databaseProvider.open(passphrase);
+            ledgerService.loadHead(passphrase);
+            keyRegistry.load(passphrase);
+            if (saleAggregates != null) {
+                saleAggregates.catchUp(passphrase);
+            }
+            startMigration();
+        }
+        String keyId = activeKeyId();
+        if (!keyStoreManager.isUnlocked(keyId)) {
+            keyStoreManager.unlock(passphrase, keyId);
+            if (keyRegistry.active() == null) {
+                keyRegistry.activateInitial(keyId, keyStoreManager.readPublicKey(keyId), passphrase);
+            }
+            startKeyPreparation();
+        }
+    }
+
+    private String activeKeyId() {
+        KeyRegistry.SigningKey active = keyRegistry.active();
+        return active != null ? active.keyId() : DEFAULT_KEY_ID;
+    }
+
+    /**
+     * Switches the ledger to the prepared key between two sales; the old key
+     * keeps verifying the entries it signed. Waits for the next key only if
+     * its background preparation has not finished yet, and then starts
+     * preparing the one after it.
+     *
+     * @return id of the new signing key
+     */
+    public String rotarClave() throws Exception {
+        unlock();
+        prepareNextKey();
+        String keyId = ledgerService.rotateKey(passphrase).keyId();
+        startKeyPreparation();
+        return keyId;
+    }
+
+    /**
+     * Makes sure the registry has a next key, generated and encrypted in the
+     * keystore and unlocked, so switching to it costs no key derivation. Runs
+     * without the module lock, so shutdown can wait for it.
+     */
+    private void prepareNextKey() throws Exception {
+        synchronized (keyPreparationLock) {
+            KeyRegistry.SigningKey next = keyRegistry.next();
+            if (next == null) {
+                String keyId = keyRegistry.newKeyId(DEFAULT_KEY_ID);
+                keyStoreManager.unlock(passphrase, keyId);
+                keyRegistry.addNext(keyId, keyStoreManager.readPublicKey(keyId), passphrase);
+            } else if (!keyStoreManager.isUnlocked(next.keyId())) {
+                keyStoreManager.unlock(passphrase, next.keyId());
+            }
+        }
+    }
+
+    private synchronized void startKeyPreparation() {
+        if (keyPreparation != null && keyPreparation.isAlive()) {
+            return;
+        }
+        keyPreparation = new Thread(() -> {
+            try {
+                prepareNextKey();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }, "key-preparation");
+        keyPreparation.setDaemon(true);
+        keyPreparation.start();
+    }
+
+    private void startMigration() {
+        if (migration != null && migration.isAlive()) {
+            return;
+        }
+        migration = new Thread(() -> {
+            try {
+                ledgerService.migrateToBinaryStorage(passphrase, LedgerService.DEFAULT_MIGRATION_BATCH);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }, "ledger-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    public boolean registrarVenta(String saleJson) {
+        try {
+            unlock();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return false;
+        }
+        return ledgerService.appendSignedEntry(saleJson, activeKeyId(), passphrase, cryptoService);
+    }
+
+    /**
+     * Queues the sale in the group-commit appender. The future completes with
+     * the ledger id once the entry is durable, or exceptionally if it failed.
+     */
+    public CompletableFuture<Long> registrarVentaAsync(String saleJson) {
+        try {
+            return appender().submit(saleJson);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(ex);
+        } catch (Exception ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    private synchronized GroupCommitLedgerAppender appender() throws Exception {
+        unlock();
+        if (appender == null) {
+            appender = new GroupCommitLedgerAppender(ledgerService, cryptoService, activeKeyId(), passphrase);
+        }
+        return appender;
+    }
+
+    /**
+     * Cash close: verifies the sales since the last valid checkpoint and, if
+     * the chain is intact, seals them with a signed "cierre" checkpoint so the
+     * next close starts from here. Sales still waiting in the asynchronous
+     * appender are committed after the checkpoint and count for the next period.
+     * The checkpoint carries the shift's sales totals, which are then checked
+     * against the sales it closes. The latency percentiles of the shift are
+     * saved with the close, and closed months are archived in the background.
+     */
+    public VerificationResult cerrarCaja() throws Exception {
+        unlock();
+        VerificationResult result = ledgerService.verifyFromCheckpoint(passphrase, cryptoService);
+        if (result.valid()) {
+            long closeId = ledgerService.appendCheckpoint(LedgerService.CHECKPOINT_CASH_CLOSE, activeKeyId(), passphrase, cryptoService);
+            if (saleAggregates != null) {
+                result = saleAggregates.verifyShift(closeId, passphrase);
+            }
+            startArchival();
+        }
+        guardarMetricas();
+        return result;
+    }
+
+    /**
+     * Sales of the shift in progress, up to the last committed sale.
+     *
+     * @return the totals, or {@link SalesTotals#EMPTY} with a ledger other than SQLite
+     */
+    public SalesTotals totalesDelTurno() throws Exception {
+        unlock();
+        return saleAggregates == null ? SalesTotals.EMPTY : saleAggregates.openShift(passphrase);
+    }
+
+    /**
+     * Sales of a day, in the system time zone, checked against the ledger
+     * rows they were counted from.
+     *
+     * @throws IllegalStateException if the stored totals do not match the ledger
+     */
+    public SalesTotals totalesDelDia(LocalDate dia) throws Exception {
+        Objects.requireNonNull(dia, "dia");
+        unlock();
+        if (saleAggregates == null) {
+            return SalesTotals.EMPTY;
+        }
+        VerificationResult check = saleAggregates.verifyDay(dia, passphrase);
+        if (!check.valid()) {
+            throw new IllegalStateException(String.join("; ", check.errors()));
+        }
+        return saleAggregates.day(dia, passphrase);
+    }
+
+    /**
+     * Moves the months before the current one out of the ledger table into
+     * signed archive files and compacts the database. Only the SQLite ledger
+     * is archived.
+     *
+     * @return the anchors of the archived months
+     */
+    public List<ArchiveAnchor> archivarPeriodosCerrados() throws Exception {
+        unlock();
+        return archiveClosedPeriods();
+    }
+
+    /**
+     * Runs without the module lock, so shutdown can wait for it.
+     */
+    private List<ArchiveAnchor> archiveClosedPeriods() throws Exception {
+        if (!(ledgerService.getStorage() instanceof SqliteStorageService)) {
+            return List.of();
+        }
+        List<ArchiveAnchor> archived = archiver.archiveClosedPeriods(YearMonth.now(), ZoneId.systemDefault(),
+                activeKeyId(), passphrase, cryptoService);
+        if (!archived.isEmpty()) {
+            archiver.compact(passphrase);
+        }
+        return archived;
+    }
+
+    private synchronized void startArchival() {
+        if (archival != null && archival.isAlive()) {
+            return;
+        }
+        archival = new Thread(() -> {
+            try {
+                archiveClosedPeriods();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }, "ledger-archival");
+        archival.setDaemon(true);
+        archival.start();
+    }
+
+    public MetricsSnapshot metricas() {
+        return MetricsCollector.getInstance().snapshot();
+    }
+
+    /**
+     * Stores the current percentiles in the metrics_snapshot table of the
+     * local database.
+     */
+    public void guardarMetricas() throws Exception {
+        unlock();
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            metricas().saveTo(session.connection());
+        }
+    }
+
+    /**
+     * Writes the public keys of the keystore, indexed by keyId, for offline
+     * verification with LedgerAuditCli. Needs no passphrase.
+     */
+    public void exportarClavesPublicas(Path file) throws Exception {
+        PublicKeyDirectory.fromKeyStore(keyStoreManager).save(file);
+    }
+
+    /**
+     * Appends the current percentiles to a CSV file.
+     */
+    public void exportarMetricasCsv(Path file) throws IOException {
+        metricas().appendCsv(file);
+    }
+
+    public synchronized void shutdown() {
+        if (appender != null) {
+            appender.close();
+            appender = null;
+        }
+        if (migration != null) {
+            migration.interrupt();
+            try {
+                migration.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            migration = null;
+        }
+        if (archival != null) {
+            archival.interrupt();
+            try {
+                archival.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            archival = null;
+        }
+        if (keyPreparation != null) {
+            try {
+                keyPreparation.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            keyPreparation = null;
+        }
+        keyStoreManager.lock();
+        try {
+            ledgerService.getStorage().close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        try {
+            databaseProvider.close();
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
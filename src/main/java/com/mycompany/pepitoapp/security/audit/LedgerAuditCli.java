@@ -0,0 +1,239 @@
+package com.mycompany.pepitoapp.security.audit;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.crypto.PublicKeyDirectory;
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import com.mycompany.pepitoapp.security.ledger.ArchiveAnchor;
+import com.mycompany.pepitoapp.security.ledger.KeyRegistry;
+import com.mycompany.pepitoapp.security.ledger.LedgerArchiver;
+import com.mycompany.pepitoapp.security.ledger.ParallelChainVerifier;
+import com.mycompany.pepitoapp.security.ledger.VerificationResult;
+import com.mycompany.pepitoapp.security.storage.ConnectionFactory;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import org.sqlite.SQLiteConfig;
+
+/**
+ * Headless ledger verifier for auditors and the nightly job. It checks a copy
+ * of ledger.db with exported public keys only: no keystore passphrase, no
+ * Argon2 and no JavaFX. Verification runs on every core through
+ * {@link ParallelChainVerifier} and the report is one JSON object on stdout.
+ *
+ * Archived periods are checked by their signed anchors; with --archives the
+ * archive files in that directory are read and verified entry by entry too.
+ * Keys come from the exported file only; the key registry of the ledger
+ * contributes the ids each key was valid for.
+ *
+ * <pre>
+ * verify --ledger ledger.db --keys public-keys.properties [--archives DIR] [--threads N] [--output report.json]
+ * export-keys --output public-keys.properties [--keystore ~/.pepitoapp/keystore]
+ * </pre>
+ *
+ * Exit status: 0 when the ledger is valid, 1 when it is not, 2 on bad usage or
+ * when the files cannot be read.
+ */
+public final class LedgerAuditCli {
+
+    public static final int EXIT_VALID = 0;
+    public static final int EXIT_INVALID = 1;
+    public static final int EXIT_ERROR = 2;
+
+    private static final int MIN_RANGE_SIZE = 256;
+    private static final int RANGES_PER_THREAD = 4;
+
+    private static final String SELECT_BOUNDS = "SELECT COUNT(*), MIN(id), MAX(id) FROM ledger";
+    private static final String SELECT_KEYS = "SELECT key_id, COUNT(*) FROM ledger GROUP BY key_id";
+    private static final String SELECT_BATCH_KEYS = "SELECT DISTINCT key_id FROM merkle_batch";
+
+    private LedgerAuditCli() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        if (args.length == 0) {
+            return usage("Missing command");
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                return usage("Invalid option " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        try {
+            return switch (args[0]) {
+                case "verify" -> verify(options);
+                case "export-keys" -> exportKeys(options);
+                default -> usage("Unknown command " + args[0]);
+            };
+        } catch (IllegalArgumentException ex) {
+            return usage(ex.getMessage());
+        } catch (Exception ex) {
+            System.err.println("Audit failed: " + ex.getMessage());
+            return EXIT_ERROR;
+        }
+    }
+
+    private static int verify(Map<String, String> options) throws Exception {
+        Path ledger = Path.of(required(options, "ledger"));
+        PublicKeyDirectory keys = PublicKeyDirectory.load(Path.of(required(options, "keys")));
+        int threads = options.containsKey("threads")
+                ? Integer.parseInt(options.get("threads"))
+                : Runtime.getRuntime().availableProcessors();
+        if (threads < 1) {
+            throw new IllegalArgumentException("--threads must be positive");
+        }
+        if (!Files.isRegularFile(ledger)) {
+            throw new IOException("Ledger not found: " + ledger);
+        }
+        Path archives = options.containsKey("archives") ? Path.of(options.get("archives")) : null;
+        LedgerAuditReport report = audit(ledger, keys, threads, archives);
+        String json = report.toJson();
+        if (options.containsKey("output")) {
+            Files.writeString(Path.of(options.get("output")), json + System.lineSeparator(), StandardCharsets.UTF_8);
+        }
+        System.out.println(json);
+        return report.valid() ? EXIT_VALID : EXIT_INVALID;
+    }
+
+    public static LedgerAuditReport audit(Path ledger, PublicKeyDirectory keys, int threads) throws SQLException, IOException, GeneralSecurityException {
+        return audit(ledger, keys, threads, null);
+    }
+
+    /**
+     * Verifies the ledger at path with the given keys on a pool of the given
+     * size. Keys used by the ledger but missing from the directory are
+     * reported without running the signature checks.
+     *
+     * @param archives directory of the archive files to verify deeply, or
+     *                 null to check archived periods by their anchors only
+     */
+    public static LedgerAuditReport audit(Path ledger, PublicKeyDirectory keys, int threads, Path archives) throws SQLException, IOException, GeneralSecurityException {
+        ConnectionFactory connections = readOnly(ledger);
+        long entries;
+        long firstId;
+        long lastId;
+        Map<String, Long> entriesByKey = new TreeMap<>();
+        List<String> missingKeys = new ArrayList<>();
+        List<KeyRegistry.SigningKey> registered;
+        try (Connection connection = connections.open()) {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_BOUNDS);
+                 ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                entries = rs.getLong(1);
+                firstId = rs.getLong(2);
+                lastId = rs.getLong(3);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_KEYS);
+                 ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    entriesByKey.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+            List<String> usedKeys = new ArrayList<>(entriesByKey.keySet());
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_BATCH_KEYS);
+                 ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    usedKeys.add(rs.getString(1));
+                }
+            }
+            for (ArchiveAnchor anchor : LedgerArchiver.anchors(connection)) {
+                usedKeys.add(anchor.keyId());
+            }
+            for (String keyId : usedKeys) {
+                if (!keys.keyIds().contains(keyId) && !missingKeys.contains(keyId)) {
+                    missingKeys.add(keyId);
+                }
+            }
+            registered = KeyRegistry.read(connection);
+        }
+        List<String> keyErrors = new ArrayList<>();
+        for (String keyId : missingKeys) {
+            keyErrors.add("Clave pública no exportada: " + keyId);
+        }
+        for (KeyRegistry.SigningKey key : registered) {
+            if (keys.keyIds().contains(key.keyId()) && !keys.resolve(key.keyId()).equals(key.publicKey())) {
+                keyErrors.add("La clave " + key.keyId() + " del registro no coincide con la exportada");
+            }
+        }
+        if (!keyErrors.isEmpty()) {
+            return new LedgerAuditReport(ledger.toString(), false, entries, firstId, lastId, entriesByKey, missingKeys,
+                    threads, 0L, keyErrors);
+        }
+
+        int rangeSize = (int) Math.max(MIN_RANGE_SIZE, Math.min(ParallelChainVerifier.DEFAULT_RANGE_SIZE,
+                entries / ((long) threads * RANGES_PER_THREAD) + 1));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            PublicKeyResolver resolver = KeyRegistry.withRanges(registered, keys);
+            VerificationResult result = new ParallelChainVerifier(connections, pool, rangeSize).verify(resolver);
+            List<String> errors = new ArrayList<>(result.errors());
+            if (archives != null) {
+                errors.addAll(LedgerArchiver.verifyArchives(connections, archives, resolver).errors());
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+            return new LedgerAuditReport(ledger.toString(), errors.isEmpty(), entries, firstId, lastId, entriesByKey,
+                    missingKeys, threads, elapsedMillis, errors);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int exportKeys(Map<String, String> options) throws Exception {
+        Path output = Path.of(required(options, "output"));
+        Path keystore = options.containsKey("keystore")
+                ? Path.of(options.get("keystore"))
+                : Path.of(System.getProperty("user.home"), ".pepitoapp", "keystore");
+        PublicKeyDirectory keys = PublicKeyDirectory.fromKeyStore(new KeyStoreManager(new Argon2KeyDeriver(), keystore));
+        if (keys.keyIds().isEmpty()) {
+            throw new IOException("No keys in " + keystore);
+        }
+        keys.save(output);
+        System.out.println("Exported " + keys.keyIds().size() + " public keys to " + output + ": " + keys.keyIds());
+        return EXIT_VALID;
+    }
+
+    /**
+     * Read-only connections, so auditing a copy can never alter it.
+     */
+    private static ConnectionFactory readOnly(Path ledger) {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        String url = "jdbc:sqlite:" + ledger.toAbsolutePath();
+        return () -> config.createConnection(url);
+    }
+
+    private static String required(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing --" + name);
+        }
+        return value;
+    }
+
+    private static int usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage:");
+        System.err.println("  verify --ledger ledger.db --keys public-keys.properties [--archives DIR] [--threads N] [--output report.json]");
+        System.err.println("  export-keys --output public-keys.properties [--keystore DIR]");
+        return EXIT_ERROR;
+    }
+}
@@ -0,0 +1,89 @@
+package com.mycompany.pepitoapp.security.audit;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of an offline ledger audit, printed as a single JSON object so the
+ * nightly job can parse it.
+ */
+public record LedgerAuditReport(String ledger, boolean valid, long entries, long firstId, long lastId,
+                                Map<String, Long> entriesByKey, List<String> missingKeys, int threads,
+                                long elapsedMillis, List<String> errors) {
+
+    public LedgerAuditReport {
+        entriesByKey = Map.copyOf(entriesByKey);
+        missingKeys = List.copyOf(missingKeys);
+        errors = List.copyOf(errors);
+    }
+
+    public double entriesPerSecond() {
+        return elapsedMillis == 0 ? 0.0 : entries * 1000.0 / elapsedMillis;
+    }
+
+    public String toJson() {
+        StringBuilder builder = new StringBuilder("{");
+        builder.append("\"ledger\":\"").append(escape(ledger)).append("\",");
+        builder.append("\"valid\":").append(valid).append(',');
+        builder.append("\"entries\":").append(entries).append(',');
+        builder.append("\"firstId\":").append(firstId).append(',');
+        builder.append("\"lastId\":").append(lastId).append(',');
+        builder.append("\"entriesByKey\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : new TreeMap<>(entriesByKey).entrySet()) {
+            if (!first) {
+                builder.append(',');
+            }
+            builder.append('"').append(escape(entry.getKey())).append("\":").append(entry.getValue());
+            first = false;
+        }
+        builder.append("},");
+        builder.append("\"missingKeys\":");
+        appendStrings(builder, missingKeys);
+        builder.append(',');
+        builder.append("\"threads\":").append(threads).append(',');
+        builder.append("\"elapsedMillis\":").append(elapsedMillis).append(',');
+        builder.append("\"entriesPerSecond\":").append(Math.round(entriesPerSecond())).append(',');
+        builder.append("\"errors\":");
+        appendStrings(builder, errors);
+        builder.append('}');
+        return builder.toString();
+    }
+
+    private static void appendStrings(StringBuilder builder, List<String> values) {
+        builder.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append('"').append(escape(values.get(i))).append('"');
+        }
+        builder.append(']');
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> builder.append("\\\\");
+                case '"' -> builder.append("\\\"");
+                case '\n' -> builder.append("\\n");
+                case '\r' -> builder.append("\\r");
+                case '\t' -> builder.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                }
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -1,48 +1,228 @@
 package com.mycompany.pepitoapp.security.crypto;
 
-import de.mkammerer.argon2.Argon2;
+import com.mycompany.pepitoapp.security.app.MetricsCollector;
+import de.mkammerer.argon2.Argon2Advanced;
 import de.mkammerer.argon2.Argon2Factory;
-import java.util.Base64;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility to derive fixed-length keys using Argon2id.
+ *
+ * Keys are always derived again with the {@link KdfProfile} stored next to
+ * their salt; {@link #profile()} is the one new keys are wrapped with, and
+ * keys wrapped with another profile are re-wrapped when they are unlocked.
+ *
+ * The no-argument constructor calibrates that profile for the machine the
+ * first time it is needed: it benchmarks Argon2id with one lane per core (up
+ * to four) and takes the most memory, then the most iterations, that fit the
+ * target unlock time within the memory budget, never going under the OWASP
+ * floor of 19 MiB and two passes. The result is saved in
+ * ~/.pepitoapp/kdf.properties, so every unlock afterwards costs the same and
+ * calibration only runs again when the core count, target or budget change.
+ * Target and budget come from the pepito.kdf.targetMillis and
+ * pepito.kdf.maxMemoryMb system properties, then the PEPITO_KDF_TARGET_MILLIS
+ * and PEPITO_KDF_MAX_MEMORY_MB environment variables.
  */
 public class Argon2KeyDeriver {
 
-    private final int iterations;
-    private final int memoryKb;
-    private final int parallelism;
+    public static final String TARGET_MILLIS_PROPERTY = "pepito.kdf.targetMillis";
+    public static final String TARGET_MILLIS_ENV = "PEPITO_KDF_TARGET_MILLIS";
+    public static final String MAX_MEMORY_PROPERTY = "pepito.kdf.maxMemoryMb";
+    public static final String MAX_MEMORY_ENV = "PEPITO_KDF_MAX_MEMORY_MB";
+    public static final Duration DEFAULT_TARGET = Duration.ofMillis(500);
+    public static final int DEFAULT_MAX_MEMORY_MB = 128;
+    public static final int MIN_MEMORY_KB = 19456;
+
+    private static final int MIN_ITERATIONS = 2;
+    private static final int MAX_ITERATIONS = 10;
+    private static final int MAX_LANES = 4;
+    private static final int HASH_LENGTH = 32;
+
     private final int hashLength;
+    private final Path calibrationFile;
+    private final Duration target;
+    private final int maxMemoryKb;
+    private final Map<Integer, Argon2Advanced> instances = new ConcurrentHashMap<>();
+    private volatile KdfProfile profile;
 
     public Argon2KeyDeriver() {
-        this(3, 65536, 1, 32);
+        this(Path.of(System.getProperty("user.home"), ".pepitoapp", "kdf.properties"),
+                Duration.ofMillis(configured(TARGET_MILLIS_PROPERTY, TARGET_MILLIS_ENV, DEFAULT_TARGET.toMillis())),
+                (int) configured(MAX_MEMORY_PROPERTY, MAX_MEMORY_ENV, DEFAULT_MAX_MEMORY_MB) * 1024);
+    }
+
+    /**
+     * Deriver whose profile is calibrated for target and maxMemoryKb on first
+     * use and kept in calibrationFile.
+     */
+    public Argon2KeyDeriver(Path calibrationFile, Duration target, int maxMemoryKb) {
+        this.calibrationFile = Objects.requireNonNull(calibrationFile, "calibrationFile");
+        this.target = Objects.requireNonNull(target, "target");
+        if (target.isNegative() || target.isZero()) {
+            throw new IllegalArgumentException("Target unlock time must be positive");
+        }
+        this.maxMemoryKb = Math.max(MIN_MEMORY_KB, maxMemoryKb);
+        this.hashLength = HASH_LENGTH;
     }
 
     public Argon2KeyDeriver(int iterations, int memoryKb, int parallelism, int hashLength) {
-        this.iterations = iterations;
-        this.memoryKb = memoryKb;
-        this.parallelism = parallelism;
+        this(new KdfProfile(iterations, memoryKb, parallelism), hashLength);
+    }
+
+    /**
+     * Deriver with a fixed profile and no calibration.
+     */
+    public Argon2KeyDeriver(KdfProfile profile, int hashLength) {
+        this.profile = Objects.requireNonNull(profile, "profile");
         this.hashLength = hashLength;
+        this.calibrationFile = null;
+        this.target = null;
+        this.maxMemoryKb = 0;
     }
 
     /**
-     * Derive a key with Argon2id using the provided salt.
+     * Profile new keys are wrapped with, calibrating it first if needed.
+     */
+    public KdfProfile profile() {
+        KdfProfile current = profile;
+        if (current == null) {
+            synchronized (this) {
+                if (profile == null) {
+                    profile = loadOrCalibrate();
+                }
+                current = profile;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Derive a key with Argon2id using the provided salt and the current
+     * profile.
+     *
+     * The passphrase is owned by the caller and is not wiped here, so the same
+     * array can be reused to unlock the keystore and the database.
      *
      * @param passphrase human provided secret
      * @param salt random salt
      * @return derived key bytes of length hashLength
      */
     public byte[] deriveKey(char[] passphrase, byte[] salt) {
-        Argon2 argon2 = Argon2Factory.create(Argon2Factory.Argon2Types.ARGON2id, hashLength, salt.length);
+        return deriveKey(passphrase, salt, profile());
+    }
+
+    /**
+     * Same as {@link #deriveKey(char[], byte[])} with the profile the salt
+     * was stored with.
+     */
+    public byte[] deriveKey(char[] passphrase, byte[] salt, KdfProfile profile) {
+        long start = System.nanoTime();
+        byte[] key = argon2(salt.length).rawHash(profile.iterations(), profile.memoryKb(), profile.parallelism(), passphrase, salt);
+        if (key.length != hashLength) {
+            throw new IllegalStateException("Invalid Argon2 hash length");
+        }
+        MetricsCollector.getInstance().recordSince(MetricsCollector.Metric.KDF, start);
+        return key;
+    }
+
+    /**
+     * Benchmarks Argon2id on this machine and returns the strongest profile
+     * that derives a key in about target using at most maxMemoryKb: memory is
+     * halved from the budget until one pass fits, then as many passes as fit
+     * are added.
+     */
+    public KdfProfile calibrate(Duration target, int maxMemoryKb, int lanes) {
+        long budget = target.toNanos();
+        // The first hash also loads the native library; keep it out of the numbers.
+        measure(new KdfProfile(1, MIN_MEMORY_KB, lanes));
+        int memory = Math.max(MIN_MEMORY_KB, maxMemoryKb);
+        long pass = measure(new KdfProfile(1, memory, lanes));
+        while (pass > budget && memory > MIN_MEMORY_KB) {
+            memory = Math.max(MIN_MEMORY_KB, memory / 2);
+            pass = measure(new KdfProfile(1, memory, lanes));
+        }
+        int floor = memory == MIN_MEMORY_KB ? MIN_ITERATIONS : 1;
+        int iterations = (int) Math.max(floor, Math.min(MAX_ITERATIONS, budget / Math.max(1L, pass)));
+        KdfProfile chosen = new KdfProfile(iterations, memory, lanes);
+        // Passes after the first are not quite as expensive; back off if the estimate overshoots.
+        while (chosen.iterations() > floor && measure(chosen) > budget + budget / 10) {
+            chosen = new KdfProfile(chosen.iterations() - 1, memory, lanes);
+        }
+        return chosen;
+    }
+
+    private KdfProfile loadOrCalibrate() {
+        int lanes = Math.min(MAX_LANES, Runtime.getRuntime().availableProcessors());
+        Properties props = new Properties();
+        if (Files.exists(calibrationFile)) {
+            try (InputStream in = Files.newInputStream(calibrationFile)) {
+                props.load(in);
+                if (String.valueOf(lanes).equals(props.getProperty("calibrated.lanes"))
+                        && String.valueOf(target.toMillis()).equals(props.getProperty("calibrated.targetMillis"))
+                        && String.valueOf(maxMemoryKb).equals(props.getProperty("calibrated.maxMemoryKb"))) {
+                    return KdfProfile.from(props);
+                }
+            } catch (IOException | IllegalArgumentException ex) {
+                // Unreadable or stale: calibrate again.
+            }
+        }
+        KdfProfile calibrated = calibrate(target, maxMemoryKb, lanes);
+        long unlockMillis = measure(calibrated) / 1_000_000L;
+        props.clear();
+        calibrated.store(props);
+        props.setProperty("calibrated.lanes", String.valueOf(lanes));
+        props.setProperty("calibrated.targetMillis", String.valueOf(target.toMillis()));
+        props.setProperty("calibrated.maxMemoryKb", String.valueOf(maxMemoryKb));
+        props.setProperty("calibrated.unlockMillis", String.valueOf(unlockMillis));
         try {
-            String encoded = argon2.hash(iterations, memoryKb, parallelism, passphrase, salt);
-            String[] parts = encoded.split("\\$");
-            if (parts.length < 6) {
-                throw new IllegalStateException("Invalid Argon2 hash format");
+            Files.createDirectories(calibrationFile.toAbsolutePath().getParent());
+            Path temp = calibrationFile.resolveSibling(calibrationFile.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                props.store(out, "PepitoApp Argon2id profile calibrated for this machine");
             }
-            return Base64.getDecoder().decode(parts[5]);
-        } finally {
-            argon2.wipeArray(passphrase);
+            Files.move(temp, calibrationFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // The profile still applies to this run; the next one calibrates again.
+            ex.printStackTrace();
+        }
+        return calibrated;
+    }
+
+    private long measure(KdfProfile candidate) {
+        byte[] salt = new byte[16];
+        char[] password = "pepito-calibration".toCharArray();
+        long start = System.nanoTime();
+        argon2(salt.length).rawHash(candidate.iterations(), candidate.memoryKb(), candidate.parallelism(), password, salt);
+        return System.nanoTime() - start;
+    }
+
+    private Argon2Advanced argon2(int saltLength) {
+        return instances.computeIfAbsent(saltLength,
+                length -> Argon2Factory.createAdvanced(Argon2Factory.Argon2Types.ARGON2id, length, hashLength));
+    }
+
+    private static long configured(String property, String env, long defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null || value.isBlank()) {
+            value = System.getenv(env);
+        }
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        long parsed = Long.parseLong(value.trim());
+        if (parsed <= 0) {
+            throw new IllegalArgumentException(property + " must be positive");
         }
+        return parsed;
     }
 }
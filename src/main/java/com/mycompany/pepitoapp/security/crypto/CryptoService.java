@@ -1,13 +1,17 @@
 package com.mycompany.pepitoapp.security.crypto;
 
 import java.security.KeyPair;
+import java.security.PublicKey;
 import java.security.Signature;
 import java.util.Base64;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides signing and verification with Ed25519 using keys protected by the
- * local KeyStoreManager.
+ * local KeyStoreManager. When the keystore is unlocked the cached keys are used
+ * and no key derivation happens on the signing path.
  */
 public class CryptoService {
 
@@ -21,20 +25,92 @@ public class CryptoService {
         this.keyStoreManager = Objects.requireNonNull(keyStoreManager, "keyStoreManager");
     }
 
+    public KeyStoreManager getKeyStoreManager() {
+        return keyStoreManager;
+    }
+
     public String sign(byte[] payload, String keyId, char[] passphrase) throws Exception {
+        return Base64.getEncoder().encodeToString(signBytes(payload, keyId, passphrase));
+    }
+
+    /**
+     * Same as {@link #sign(byte[], String, char[])} returning the raw 64-byte
+     * signature.
+     */
+    public byte[] signBytes(byte[] payload, String keyId, char[] passphrase) throws Exception {
+        KeySession session = keyStoreManager.session(keyId);
+        if (session != null) {
+            return session.sign(payload);
+        }
         KeyPair keyPair = keyStoreManager.loadOrCreateKeyPair(keyId, passphrase);
         Signature signature = Signature.getInstance("Ed25519");
         signature.initSign(keyPair.getPrivate());
         signature.update(payload);
-        return Base64.getEncoder().encodeToString(signature.sign());
+        return signature.sign();
     }
 
+    /**
+     * Signs with a key that was previously unlocked in the keystore.
+     *
+     * @throws IllegalStateException if keyId is not unlocked
+     */
+    public String sign(byte[] payload, String keyId) throws Exception {
+        return Base64.getEncoder().encodeToString(requireSession(keyId).sign(payload));
+    }
+
+    /**
+     * Verifies with the unlocked key or, when it is locked, with the public
+     * key read from its file. The passphrase is no longer needed for that and
+     * is ignored.
+     */
     public boolean verify(byte[] payload, String signatureBase64, String keyId, char[] passphrase) throws Exception {
-        KeyPair keyPair = keyStoreManager.loadOrCreateKeyPair(keyId, passphrase);
+        byte[] provided = Base64.getDecoder().decode(signatureBase64);
+        KeySession session = keyStoreManager.session(keyId);
+        if (session != null) {
+            return session.verify(payload, provided);
+        }
         Signature signature = Signature.getInstance("Ed25519");
-        signature.initVerify(keyPair.getPublic());
+        signature.initVerify(keyStoreManager.readPublicKey(keyId));
         signature.update(payload);
-        byte[] provided = Base64.getDecoder().decode(signatureBase64);
         return signature.verify(provided);
     }
+
+    /**
+     * Verifies with a key that was previously unlocked in the keystore.
+     *
+     * @throws IllegalStateException if keyId is not unlocked
+     */
+    public boolean verify(byte[] payload, String signatureBase64, String keyId) throws Exception {
+        byte[] provided = Base64.getDecoder().decode(signatureBase64);
+        return requireSession(keyId).verify(payload, provided);
+    }
+
+    /**
+     * Resolver that serves public keys from the unlocked keystore, reading a
+     * locked key's public half from its file once and caching it. No
+     * passphrase is needed.
+     */
+    public PublicKeyResolver publicKeyResolver() {
+        Map<String, PublicKey> cache = new ConcurrentHashMap<>();
+        return keyId -> {
+            PublicKey cached = cache.get(keyId);
+            if (cached != null) {
+                return cached;
+            }
+            KeySession session = keyStoreManager.session(keyId);
+            PublicKey publicKey = session != null
+                    ? session.publicKey()
+                    : keyStoreManager.readPublicKey(keyId);
+            cache.put(keyId, publicKey);
+            return publicKey;
+        };
+    }
+
+    private KeySession requireSession(String keyId) {
+        KeySession session = keyStoreManager.session(keyId);
+        if (session == null) {
+            throw new IllegalStateException("Key " + keyId + " is not unlocked");
+        }
+        return session;
+    }
 }
@@ -0,0 +1,338 @@
+package com.mycompany.pepitoapp.security.crypto;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.EdECPublicKey;
+import java.security.spec.EdECPoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Verifies many Ed25519 signatures with one randomized multi-scalar check.
+ *
+ * For signatures (R_i, s_i) by keys A_i over messages M_i, with
+ * h_i = SHA-512(R_i || A_i || M_i) and random 128-bit z_i, the batch is valid
+ * when
+ *
+ *   8 * (sum(z_i R_i) + sum(z_i h_i A_i) - sum(z_i s_i) B) = 0
+ *
+ * which is one multi-scalar multiplication (Pippenger's bucket method) instead
+ * of one double-scalar multiplication per signature. Terms of the same key are
+ * merged, so a ledger signed by one key pays for R_i and little else.
+ *
+ * When the check fails the batch is split in halves until the invalid
+ * signatures are isolated. A lone signature, and any signature whose encoding
+ * the batch cannot use (bad length, s not below the group order, R or A not a
+ * canonical curve point), is checked by the JDK provider, so every reported
+ * failure is one the JDK also rejects. The batch equation multiplies by the
+ * cofactor, so a signature crafted by the key holder with a small-order
+ * component in R may pass here and fail the JDK; signatures made by the JDK or
+ * any RFC 8032 signer behave the same in both.
+ *
+ * Not thread-safe. The message and signature arrays passed to {@link #add}
+ * must not change until {@link #verify} returns.
+ */
+public final class Ed25519BatchVerifier {
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    static final BigInteger L = BigInteger.ONE.shiftLeft(252).add(new BigInteger("27742317777372353535851937790883648493"));
+
+    private static final int SIGNATURE_LENGTH = 64;
+    private static final int KEY_LENGTH = 32;
+    private static final int SCALAR_BITS = 253;
+
+    private final SecureRandom random;
+    private final List<Item> items = new ArrayList<>();
+    private final Map<PublicKey, Key> keys = new HashMap<>();
+    private final Map<PublicKey, Signature> fallbackVerifiers = new HashMap<>();
+    private final MessageDigest sha512;
+    private final EdwardsPoint.Scratch scratch = new EdwardsPoint.Scratch();
+
+    public Ed25519BatchVerifier() {
+        this(new SecureRandom());
+    }
+
+    public Ed25519BatchVerifier(SecureRandom random) {
+        this.random = Objects.requireNonNull(random, "random");
+        try {
+            this.sha512 = MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-512 not available", ex);
+        }
+    }
+
+    /**
+     * Queues a signature for the next {@link #verify}.
+     *
+     * @return index of the signature in the current batch
+     */
+    public int add(PublicKey publicKey, byte[] message, byte[] signature) {
+        Objects.requireNonNull(publicKey, "publicKey");
+        Objects.requireNonNull(message, "message");
+        Objects.requireNonNull(signature, "signature");
+        Key key = keys.computeIfAbsent(publicKey, Ed25519BatchVerifier::decodeKey);
+        items.add(prepare(key, message, signature));
+        return items.size() - 1;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Verifies the queued signatures and clears the batch.
+     *
+     * @return indices of the invalid signatures
+     */
+    public BitSet verify() throws Exception {
+        BitSet invalid = new BitSet(items.size());
+        try {
+            List<Integer> batchable = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++) {
+                Item item = items.get(i);
+                if (item.r == null) {
+                    if (!verifyAlone(item)) {
+                        invalid.set(i);
+                    }
+                } else {
+                    item.z = randomScalar();
+                    batchable.add(i);
+                }
+            }
+            bisect(batchable, 0, batchable.size(), invalid);
+        } finally {
+            items.clear();
+        }
+        return invalid;
+    }
+
+    private void bisect(List<Integer> indices, int from, int to, BitSet invalid) throws Exception {
+        int count = to - from;
+        if (count == 0) {
+            return;
+        }
+        if (count == 1) {
+            int index = indices.get(from);
+            if (!verifyAlone(items.get(index))) {
+                invalid.set(index);
+            }
+            return;
+        }
+        if (batchEquationHolds(indices, from, to)) {
+            return;
+        }
+        int middle = from + count / 2;
+        bisect(indices, from, middle, invalid);
+        bisect(indices, middle, to, invalid);
+    }
+
+    private boolean batchEquationHolds(List<Integer> indices, int from, int to) {
+        List<EdwardsPoint> points = new ArrayList<>(to - from + 2);
+        List<BigInteger> scalars = new ArrayList<>(to - from + 2);
+        Map<Key, BigInteger> keyScalars = new HashMap<>();
+        BigInteger baseScalar = BigInteger.ZERO;
+        for (int i = from; i < to; i++) {
+            Item item = items.get(indices.get(i));
+            points.add(item.r);
+            scalars.add(item.z);
+            keyScalars.merge(item.key, item.z.multiply(item.h), BigInteger::add);
+            baseScalar = baseScalar.add(item.z.multiply(item.s));
+        }
+        for (Map.Entry<Key, BigInteger> entry : keyScalars.entrySet()) {
+            points.add(entry.getKey().point);
+            scalars.add(entry.getValue().mod(L));
+        }
+        points.add(EdwardsPoint.BASE);
+        scalars.add(L.subtract(baseScalar.mod(L)).mod(L));
+
+        EdwardsPoint sum = multiScalarMultiply(points, scalars);
+        EdwardsPoint.dbl(sum, sum, scratch);
+        EdwardsPoint.dbl(sum, sum, scratch);
+        EdwardsPoint.dbl(sum, sum, scratch);
+        return sum.isIdentity();
+    }
+
+    /**
+     * sum(scalars[i] * points[i]) with Pippenger's bucket method: for each
+     * window of c bits, points are added into the bucket of their digit and
+     * the buckets are summed with weights through a running sum.
+     */
+    private EdwardsPoint multiScalarMultiply(List<EdwardsPoint> points, List<BigInteger> scalars) {
+        int n = points.size();
+        int c = windowBits(n);
+        int windows = (SCALAR_BITS + c - 1) / c;
+        byte[][] digits = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            digits[i] = toLittleEndian(scalars.get(i));
+        }
+        int bucketCount = (1 << c) - 1;
+        EdwardsPoint[] buckets = new EdwardsPoint[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            buckets[b] = new EdwardsPoint();
+        }
+        boolean[] filled = new boolean[bucketCount];
+        EdwardsPoint result = EdwardsPoint.identity();
+        EdwardsPoint running = new EdwardsPoint();
+        EdwardsPoint windowSum = new EdwardsPoint();
+        for (int w = windows - 1; w >= 0; w--) {
+            for (int i = 0; i < c; i++) {
+                EdwardsPoint.dbl(result, result, scratch);
+            }
+            Arrays.fill(filled, false);
+            for (int i = 0; i < n; i++) {
+                int digit = digit(digits[i], w * c, c);
+                if (digit == 0) {
+                    continue;
+                }
+                if (filled[digit - 1]) {
+                    EdwardsPoint.add(buckets[digit - 1], buckets[digit - 1], points.get(i), scratch);
+                } else {
+                    buckets[digit - 1].set(points.get(i));
+                    filled[digit - 1] = true;
+                }
+            }
+            running.setIdentity();
+            windowSum.setIdentity();
+            boolean any = false;
+            for (int b = bucketCount - 1; b >= 0; b--) {
+                if (filled[b]) {
+                    EdwardsPoint.add(running, running, buckets[b], scratch);
+                    any = true;
+                }
+                if (any) {
+                    EdwardsPoint.add(windowSum, windowSum, running, scratch);
+                }
+            }
+            EdwardsPoint.add(result, result, windowSum, scratch);
+        }
+        return result;
+    }
+
+    private static int windowBits(int points) {
+        int log = 31 - Integer.numberOfLeadingZeros(points);
+        return Math.max(4, Math.min(log - 2, 12));
+    }
+
+    private static int digit(byte[] scalar, int bit, int width) {
+        int value = 0;
+        for (int i = 0; i < width; i++) {
+            int position = bit + i;
+            if (position >= 256) {
+                break;
+            }
+            value |= ((scalar[position >> 3] >> (position & 7)) & 1) << i;
+        }
+        return value;
+    }
+
+    private Item prepare(Key key, byte[] message, byte[] signature) {
+        Item item = new Item(key, message, signature);
+        if (key.point == null || signature.length != SIGNATURE_LENGTH) {
+            return item;
+        }
+        BigInteger s = fromLittleEndian(signature, 32, 32);
+        if (s.compareTo(L) >= 0) {
+            return item;
+        }
+        EdwardsPoint r = EdwardsPoint.decode(signature, 0);
+        if (r == null) {
+            return item;
+        }
+        sha512.update(signature, 0, 32);
+        sha512.update(key.encoded);
+        sha512.update(message);
+        item.h = fromLittleEndian(sha512.digest(), 0, 64).mod(L);
+        item.s = s;
+        item.r = r;
+        return item;
+    }
+
+    private boolean verifyAlone(Item item) throws Exception {
+        Signature verifier = fallbackVerifiers.get(item.key.publicKey);
+        if (verifier == null) {
+            verifier = Signature.getInstance("Ed25519");
+            verifier.initVerify(item.key.publicKey);
+            fallbackVerifiers.put(item.key.publicKey, verifier);
+        }
+        verifier.update(item.message);
+        try {
+            return verifier.verify(item.signature);
+        } catch (SignatureException ex) {
+            // The provider throws for an R that is not a curve point; that is
+            // one more invalid signature, not a failed verification.
+            fallbackVerifiers.remove(item.key.publicKey);
+            return false;
+        }
+    }
+
+    private BigInteger randomScalar() {
+        byte[] bytes = new byte[16];
+        BigInteger z;
+        do {
+            random.nextBytes(bytes);
+            z = new BigInteger(1, bytes);
+        } while (z.signum() == 0);
+        return z;
+    }
+
+    private static Key decodeKey(PublicKey publicKey) {
+        if (!(publicKey instanceof EdECPublicKey edKey)) {
+            throw new IllegalArgumentException("Not an Ed25519 public key: " + publicKey.getAlgorithm());
+        }
+        EdECPoint point = edKey.getPoint();
+        byte[] encoded = toLittleEndian(point.getY());
+        if (point.isXOdd()) {
+            encoded[KEY_LENGTH - 1] |= (byte) 0x80;
+        }
+        return new Key(publicKey, encoded, EdwardsPoint.decode(encoded, 0));
+    }
+
+    private static byte[] toLittleEndian(BigInteger value) {
+        return Field25519.toLittleEndian(value);
+    }
+
+    private static BigInteger fromLittleEndian(byte[] bytes, int offset, int length) {
+        byte[] big = new byte[length + 1];
+        for (int i = 0; i < length; i++) {
+            big[length - i] = bytes[offset + i];
+        }
+        return new BigInteger(big);
+    }
+
+    /**
+     * Public key with its encoding and decoded point; the point is null when
+     * the encoding is not a valid curve point.
+     */
+    private record Key(PublicKey publicKey, byte[] encoded, EdwardsPoint point) {
+    }
+
+    /**
+     * One queued signature. r, s and h stay null when the batch cannot use it.
+     */
+    private static final class Item {
+        final Key key;
+        final byte[] message;
+        final byte[] signature;
+        EdwardsPoint r;
+        BigInteger s;
+        BigInteger h;
+        BigInteger z;
+
+        Item(Key key, byte[] message, byte[] signature) {
+            this.key = key;
+            this.message = message;
+            this.signature = signature;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.mycompany.pepitoapp.security.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Mutable point of the Ed25519 curve -x^2 + y^2 = 1 + d x^2 y^2 in extended
+ * coordinates (X:Y:Z:T) with x = X/Z, y = Y/Z and xy = T/Z. Addition and
+ * doubling use the formulas of Hisil, Wong, Carter and Dawson (2008) and write
+ * their result last, so the target may be one of the operands.
+ */
+final class EdwardsPoint {
+
+    static final long[] D;
+    static final long[] D2;
+    static final long[] SQRT_M1;
+    static final EdwardsPoint BASE;
+
+    static {
+        BigInteger p = Field25519.P;
+        BigInteger d = BigInteger.valueOf(-121665).multiply(BigInteger.valueOf(121666).modInverse(p)).mod(p);
+        D = Field25519.of(d);
+        D2 = Field25519.of(d.shiftLeft(1));
+        SQRT_M1 = Field25519.of(BigInteger.TWO.modPow(p.subtract(BigInteger.ONE).shiftRight(2), p));
+        BigInteger baseY = BigInteger.valueOf(4).multiply(BigInteger.valueOf(5).modInverse(p)).mod(p);
+        BASE = decode(Field25519.toLittleEndian(baseY), 0);
+    }
+
+    final long[] x = Field25519.create();
+    final long[] y = Field25519.create();
+    final long[] z = Field25519.create();
+    final long[] t = Field25519.create();
+
+    static EdwardsPoint identity() {
+        EdwardsPoint point = new EdwardsPoint();
+        point.setIdentity();
+        return point;
+    }
+
+    void setIdentity() {
+        Field25519.zero(x);
+        Field25519.setOne(y);
+        Field25519.setOne(z);
+        Field25519.zero(t);
+    }
+
+    void set(EdwardsPoint other) {
+        Field25519.copy(x, other.x);
+        Field25519.copy(y, other.y);
+        Field25519.copy(z, other.z);
+        Field25519.copy(t, other.t);
+    }
+
+    boolean isIdentity() {
+        return Field25519.isZero(x) && Field25519.equal(y, z);
+    }
+
+    /**
+     * Decodes a 32-byte point encoding (RFC 8032, section 5.1.3). Returns null
+     * when y is not canonical, the point is not on the curve or x = 0 comes
+     * with the sign bit set.
+     */
+    static EdwardsPoint decode(byte[] s, int offset) {
+        if (!Field25519.isCanonical(s, offset)) {
+            return null;
+        }
+        boolean sign = (s[offset + 31] & 0x80) != 0;
+        EdwardsPoint point = new EdwardsPoint();
+        long[] y = point.y;
+        Field25519.copy(y, Field25519.fromBytes(s, offset));
+        long[] y2 = Field25519.create();
+        long[] u = Field25519.create();
+        long[] v = Field25519.create();
+        long[] one = Field25519.one();
+        Field25519.square(y2, y);
+        Field25519.sub(u, y2, one);
+        Field25519.mul(v, y2, D);
+        Field25519.add(v, v, one);
+
+        // x = u v^3 (u v^7)^((p - 5) / 8)
+        long[] v3 = Field25519.create();
+        long[] uv7 = Field25519.create();
+        long[] x = point.x;
+        Field25519.square(v3, v);
+        Field25519.mul(v3, v3, v);
+        Field25519.square(uv7, v3);
+        Field25519.mul(uv7, uv7, v);
+        Field25519.mul(uv7, uv7, u);
+        Field25519.pow22523(x, uv7);
+        Field25519.mul(x, x, v3);
+        Field25519.mul(x, x, u);
+
+        long[] check = Field25519.create();
+        Field25519.square(check, x);
+        Field25519.mul(check, check, v);
+        if (!Field25519.equal(check, u)) {
+            long[] minusU = Field25519.create();
+            Field25519.negate(minusU, u);
+            if (!Field25519.equal(check, minusU)) {
+                return null;
+            }
+            Field25519.mul(x, x, SQRT_M1);
+        }
+        if (Field25519.isZero(x) && sign) {
+            return null;
+        }
+        if (Field25519.isNegative(x) != sign) {
+            Field25519.negate(x, x);
+        }
+        Field25519.setOne(point.z);
+        Field25519.mul(point.t, x, y);
+        return point;
+    }
+
+    /**
+     * r = p + q.
+     */
+    static void add(EdwardsPoint r, EdwardsPoint p, EdwardsPoint q, Scratch s) {
+        Field25519.sub(s.a, p.y, p.x);
+        Field25519.sub(s.h, q.y, q.x);
+        Field25519.mul(s.a, s.a, s.h);
+        Field25519.add(s.b, p.y, p.x);
+        Field25519.add(s.h, q.y, q.x);
+        Field25519.mul(s.b, s.b, s.h);
+        Field25519.mul(s.c, p.t, q.t);
+        Field25519.mul(s.c, s.c, D2);
+        Field25519.mul(s.d, p.z, q.z);
+        Field25519.add(s.d, s.d, s.d);
+        Field25519.sub(s.e, s.b, s.a);
+        Field25519.sub(s.f, s.d, s.c);
+        Field25519.add(s.g, s.d, s.c);
+        Field25519.add(s.h, s.b, s.a);
+        finish(r, s);
+    }
+
+    /**
+     * r = 2p.
+     */
+    static void dbl(EdwardsPoint r, EdwardsPoint p, Scratch s) {
+        Field25519.square(s.a, p.x);
+        Field25519.square(s.b, p.y);
+        Field25519.square(s.c, p.z);
+        Field25519.add(s.c, s.c, s.c);
+        Field25519.add(s.e, p.x, p.y);
+        Field25519.square(s.e, s.e);
+        Field25519.sub(s.e, s.e, s.a);
+        Field25519.sub(s.e, s.e, s.b);
+        // D = -A, so G = B - A, F = G - C and H = -A - B.
+        Field25519.sub(s.g, s.b, s.a);
+        Field25519.sub(s.f, s.g, s.c);
+        Field25519.add(s.h, s.a, s.b);
+        Field25519.negate(s.h, s.h);
+        finish(r, s);
+    }
+
+    private static void finish(EdwardsPoint r, Scratch s) {
+        Field25519.mul(r.x, s.e, s.f);
+        Field25519.mul(r.y, s.g, s.h);
+        Field25519.mul(r.t, s.e, s.h);
+        Field25519.mul(r.z, s.f, s.g);
+    }
+
+    /**
+     * Temporaries of the point formulas, reused to keep the inner loops of
+     * the multi-scalar multiplication free of allocations.
+     */
+    static final class Scratch {
+        final long[] a = Field25519.create();
+        final long[] b = Field25519.create();
+        final long[] c = Field25519.create();
+        final long[] d = Field25519.create();
+        final long[] e = Field25519.create();
+        final long[] f = Field25519.create();
+        final long[] g = Field25519.create();
+        final long[] h = Field25519.create();
+    }
+}
@@ -0,0 +1,333 @@
+package com.mycompany.pepitoapp.security.crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Arithmetic modulo p = 2^255 - 19 for the Ed25519 batch verifier.
+ *
+ * An element is a long[10] in radix 2^25.5: limb i holds 26 bits when i is
+ * even and 25 when it is odd, may be negative, and is kept near that size by
+ * {@link #carry}. Products reduce with 2^255 = 19. Only public data (keys and
+ * signatures) is processed, so nothing here tries to be constant-time.
+ */
+final class Field25519 {
+
+    static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+    static final int LIMBS = 10;
+
+    private static final int[] OFFSETS = {0, 26, 51, 77, 102, 128, 153, 179, 204, 230};
+
+    private Field25519() {
+    }
+
+    static long[] create() {
+        return new long[LIMBS];
+    }
+
+    static long[] of(BigInteger value) {
+        return fromBytes(toLittleEndian(value.mod(P)), 0);
+    }
+
+    static long[] one() {
+        long[] h = create();
+        h[0] = 1;
+        return h;
+    }
+
+    static void copy(long[] h, long[] f) {
+        System.arraycopy(f, 0, h, 0, LIMBS);
+    }
+
+    static void zero(long[] h) {
+        Arrays.fill(h, 0L);
+    }
+
+    static void setOne(long[] h) {
+        zero(h);
+        h[0] = 1;
+    }
+
+    static void add(long[] h, long[] f, long[] g) {
+        for (int i = 0; i < LIMBS; i++) {
+            h[i] = f[i] + g[i];
+        }
+        carry(h);
+    }
+
+    static void sub(long[] h, long[] f, long[] g) {
+        for (int i = 0; i < LIMBS; i++) {
+            h[i] = f[i] - g[i];
+        }
+        carry(h);
+    }
+
+    static void negate(long[] h, long[] f) {
+        for (int i = 0; i < LIMBS; i++) {
+            h[i] = -f[i];
+        }
+    }
+
+    /**
+     * h = f * g. h may be the same array as f or g.
+     */
+    static void mul(long[] h, long[] f, long[] g) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4], g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+        long f1_2 = 2 * f1, f3_2 = 2 * f3, f5_2 = 2 * f5, f7_2 = 2 * f7, f9_2 = 2 * f9;
+        long g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4, g5_19 = 19 * g5;
+        long g6_19 = 19 * g6, g7_19 = 19 * g7, g8_19 = 19 * g8, g9_19 = 19 * g9;
+        long h0 = f0 * g0 + f1_2 * g9_19 + f2 * g8_19 + f3_2 * g7_19 + f4 * g6_19 + f5_2 * g5_19 + f6 * g4_19 + f7_2 * g3_19 + f8 * g2_19 + f9_2 * g1_19;
+        long h1 = f0 * g1 + f1 * g0 + f2 * g9_19 + f3 * g8_19 + f4 * g7_19 + f5 * g6_19 + f6 * g5_19 + f7 * g4_19 + f8 * g3_19 + f9 * g2_19;
+        long h2 = f0 * g2 + f1_2 * g1 + f2 * g0 + f3_2 * g9_19 + f4 * g8_19 + f5_2 * g7_19 + f6 * g6_19 + f7_2 * g5_19 + f8 * g4_19 + f9_2 * g3_19;
+        long h3 = f0 * g3 + f1 * g2 + f2 * g1 + f3 * g0 + f4 * g9_19 + f5 * g8_19 + f6 * g7_19 + f7 * g6_19 + f8 * g5_19 + f9 * g4_19;
+        long h4 = f0 * g4 + f1_2 * g3 + f2 * g2 + f3_2 * g1 + f4 * g0 + f5_2 * g9_19 + f6 * g8_19 + f7_2 * g7_19 + f8 * g6_19 + f9_2 * g5_19;
+        long h5 = f0 * g5 + f1 * g4 + f2 * g3 + f3 * g2 + f4 * g1 + f5 * g0 + f6 * g9_19 + f7 * g8_19 + f8 * g7_19 + f9 * g6_19;
+        long h6 = f0 * g6 + f1_2 * g5 + f2 * g4 + f3_2 * g3 + f4 * g2 + f5_2 * g1 + f6 * g0 + f7_2 * g9_19 + f8 * g8_19 + f9_2 * g7_19;
+        long h7 = f0 * g7 + f1 * g6 + f2 * g5 + f3 * g4 + f4 * g3 + f5 * g2 + f6 * g1 + f7 * g0 + f8 * g9_19 + f9 * g8_19;
+        long h8 = f0 * g8 + f1_2 * g7 + f2 * g6 + f3_2 * g5 + f4 * g4 + f5_2 * g3 + f6 * g2 + f7_2 * g1 + f8 * g0 + f9_2 * g9_19;
+        long h9 = f0 * g9 + f1 * g8 + f2 * g7 + f3 * g6 + f4 * g5 + f5 * g4 + f6 * g3 + f7 * g2 + f8 * g1 + f9 * g0;
+        store(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    /**
+     * h = f * f. h may be the same array as f.
+     */
+    static void square(long[] h, long[] f) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long f0_2 = 2 * f0, f1_2 = 2 * f1, f2_2 = 2 * f2, f3_2 = 2 * f3, f4_2 = 2 * f4;
+        long f5_2 = 2 * f5, f6_2 = 2 * f6, f7_2 = 2 * f7, f8_2 = 2 * f8, f9_2 = 2 * f9;
+        long f1_4 = 4 * f1, f3_4 = 4 * f3, f5_4 = 4 * f5, f7_4 = 4 * f7;
+        long f5_19 = 19 * f5, f6_19 = 19 * f6, f7_19 = 19 * f7, f8_19 = 19 * f8, f9_19 = 19 * f9;
+        long h0 = f0 * f0 + f1_4 * f9_19 + f2_2 * f8_19 + f3_4 * f7_19 + f4_2 * f6_19 + f5_2 * f5_19;
+        long h1 = f0_2 * f1 + f2_2 * f9_19 + f3_2 * f8_19 + f4_2 * f7_19 + f5_2 * f6_19;
+        long h2 = f0_2 * f2 + f1_2 * f1 + f3_4 * f9_19 + f4_2 * f8_19 + f5_4 * f7_19 + f6 * f6_19;
+        long h3 = f0_2 * f3 + f1_2 * f2 + f4_2 * f9_19 + f5_2 * f8_19 + f6_2 * f7_19;
+        long h4 = f0_2 * f4 + f1_4 * f3 + f2 * f2 + f5_4 * f9_19 + f6_2 * f8_19 + f7_2 * f7_19;
+        long h5 = f0_2 * f5 + f1_2 * f4 + f2_2 * f3 + f6_2 * f9_19 + f7_2 * f8_19;
+        long h6 = f0_2 * f6 + f1_4 * f5 + f2_2 * f4 + f3_2 * f3 + f7_4 * f9_19 + f8 * f8_19;
+        long h7 = f0_2 * f7 + f1_2 * f6 + f2_2 * f5 + f3_2 * f4 + f8_2 * f9_19;
+        long h8 = f0_2 * f8 + f1_4 * f7 + f2_2 * f6 + f3_4 * f5 + f4 * f4 + f9_2 * f9_19;
+        long h9 = f0_2 * f9 + f1_2 * f8 + f2_2 * f7 + f3_2 * f6 + f4_2 * f5;
+        store(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    /**
+     * h = f^(2^n).
+     */
+    static void squareTimes(long[] h, long[] f, int n) {
+        square(h, f);
+        for (int i = 1; i < n; i++) {
+            square(h, h);
+        }
+    }
+
+    /**
+     * h = f^((p - 5) / 8) = f^(2^252 - 3), the exponent used to take square
+     * roots while decoding points.
+     */
+    static void pow22523(long[] h, long[] f) {
+        long[] t0 = create();
+        long[] t1 = create();
+        long[] t2 = create();
+        square(t0, f);
+        squareTimes(t1, t0, 2);
+        mul(t1, f, t1);
+        mul(t0, t0, t1);
+        square(t0, t0);
+        mul(t0, t1, t0);
+        squareTimes(t1, t0, 5);
+        mul(t0, t1, t0);
+        squareTimes(t1, t0, 10);
+        mul(t1, t1, t0);
+        squareTimes(t2, t1, 20);
+        mul(t1, t2, t1);
+        squareTimes(t1, t1, 10);
+        mul(t0, t1, t0);
+        squareTimes(t1, t0, 50);
+        mul(t1, t1, t0);
+        squareTimes(t2, t1, 100);
+        mul(t1, t2, t1);
+        squareTimes(t1, t1, 50);
+        mul(t0, t1, t0);
+        squareTimes(t0, t0, 2);
+        mul(h, t0, f);
+    }
+
+    static boolean isZero(long[] f) {
+        byte[] s = toBytes(f);
+        int bits = 0;
+        for (byte b : s) {
+            bits |= b;
+        }
+        return bits == 0;
+    }
+
+    /**
+     * Whether the canonical value is odd, which is the sign of x in a point
+     * encoding.
+     */
+    static boolean isNegative(long[] f) {
+        return (toBytes(f)[0] & 1) == 1;
+    }
+
+    static boolean equal(long[] f, long[] g) {
+        long[] d = create();
+        sub(d, f, g);
+        return isZero(d);
+    }
+
+    /**
+     * Reads 255 bits little-endian; the top bit of the last byte is ignored.
+     * The value may be up to 2^255 - 1, so callers that need a canonical
+     * encoding must check it separately.
+     */
+    static long[] fromBytes(byte[] s, int offset) {
+        long[] words = new long[4];
+        for (int i = 0; i < 32; i++) {
+            words[i >> 3] |= (s[offset + i] & 0xFFL) << ((i & 7) << 3);
+        }
+        words[3] &= Long.MAX_VALUE;
+        long[] h = create();
+        for (int i = 0; i < LIMBS; i++) {
+            h[i] = bits(words, OFFSETS[i], width(i));
+        }
+        return h;
+    }
+
+    /**
+     * Canonical 32-byte little-endian encoding of f mod p.
+     */
+    static byte[] toBytes(long[] f) {
+        long[] h = f.clone();
+        normalize(h);
+        // h is now in [0, 2^255); subtract p when h >= p, that is when h + 19 carries into bit 255.
+        long[] t = h.clone();
+        t[0] += 19;
+        long carry = 0;
+        for (int i = 0; i < LIMBS; i++) {
+            t[i] += carry;
+            carry = t[i] >> width(i);
+            t[i] &= mask(i);
+        }
+        long[] v = carry != 0 ? t : h;
+        byte[] s = new byte[32];
+        for (int i = 0; i < LIMBS; i++) {
+            long limb = v[i];
+            int offset = OFFSETS[i];
+            for (int bit = 0; bit < width(i); bit += 8) {
+                int position = offset + bit;
+                int index = position >> 3;
+                int shift = position & 7;
+                s[index] |= (byte) (limb >>> bit << shift);
+                if (shift != 0 && index + 1 < 32) {
+                    s[index + 1] |= (byte) (limb >>> bit >>> (8 - shift));
+                }
+            }
+        }
+        return s;
+    }
+
+    static boolean isCanonical(byte[] s, int offset) {
+        // The only non-canonical 255-bit values are p .. 2^255 - 1.
+        if ((s[offset] & 0xFF) < 0xED) {
+            return true;
+        }
+        for (int i = 1; i < 31; i++) {
+            if ((s[offset + i] & 0xFF) != 0xFF) {
+                return true;
+            }
+        }
+        return (s[offset + 31] & 0x7F) != 0x7F;
+    }
+
+    static byte[] toLittleEndian(BigInteger value) {
+        byte[] big = value.toByteArray();
+        byte[] little = new byte[32];
+        for (int i = 0; i < big.length && i < 32; i++) {
+            little[i] = big[big.length - 1 - i];
+        }
+        return little;
+    }
+
+    static BigInteger toBigInteger(long[] f) {
+        byte[] s = toBytes(f);
+        byte[] big = new byte[33];
+        for (int i = 0; i < 32; i++) {
+            big[32 - i] = s[i];
+        }
+        return new BigInteger(big);
+    }
+
+    /**
+     * Brings every limb within about half its width, signed.
+     */
+    private static void carry(long[] h) {
+        for (int i = 0; i < LIMBS; i++) {
+            int w = width(i);
+            long c = (h[i] + (1L << (w - 1))) >> w;
+            h[i] -= c << w;
+            if (i == LIMBS - 1) {
+                h[0] += 19 * c;
+            } else {
+                h[i + 1] += c;
+            }
+        }
+        long c = (h[0] + (1L << 25)) >> 26;
+        h[0] -= c << 26;
+        h[1] += c;
+    }
+
+    /**
+     * Makes every limb non-negative and within its width, so h represents
+     * a value in [0, 2^255).
+     */
+    private static void normalize(long[] h) {
+        carry(h);
+        while (true) {
+            long c = 0;
+            for (int i = 0; i < LIMBS; i++) {
+                h[i] += c;
+                c = h[i] >> width(i);
+                h[i] &= mask(i);
+            }
+            if (c == 0) {
+                return;
+            }
+            h[0] += 19 * c;
+        }
+    }
+
+    private static void store(long[] h, long h0, long h1, long h2, long h3, long h4,
+                              long h5, long h6, long h7, long h8, long h9) {
+        h[0] = h0;
+        h[1] = h1;
+        h[2] = h2;
+        h[3] = h3;
+        h[4] = h4;
+        h[5] = h5;
+        h[6] = h6;
+        h[7] = h7;
+        h[8] = h8;
+        h[9] = h9;
+        carry(h);
+    }
+
+    private static long bits(long[] words, int offset, int width) {
+        int word = offset >> 6;
+        int shift = offset & 63;
+        long value = words[word] >>> shift;
+        if (shift + width > 64) {
+            value |= words[word + 1] << (64 - shift);
+        }
+        return value & ((1L << width) - 1);
+    }
+
+    private static int width(int limb) {
+        return (limb & 1) == 0 ? 26 : 25;
+    }
+
+    private static long mask(int limb) {
+        return (1L << width(limb)) - 1;
+    }
+}
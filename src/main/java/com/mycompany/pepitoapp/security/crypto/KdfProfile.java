@@ -0,0 +1,53 @@
+package com.mycompany.pepitoapp.security.crypto;
+
+import java.util.Properties;
+
+/**
+ * Argon2id cost parameters. They are stored next to every salt, so a key can
+ * always be derived again with the parameters it was wrapped with, whatever
+ * the current profile is.
+ */
+public record KdfProfile(int iterations, int memoryKb, int parallelism) {
+
+    /**
+     * Parameters of every key written before profiles were stored.
+     */
+    public static final KdfProfile LEGACY = new KdfProfile(3, 65536, 1);
+
+    private static final String ITERATIONS = "kdf.iterations";
+    private static final String MEMORY_KB = "kdf.memoryKb";
+    private static final String PARALLELISM = "kdf.parallelism";
+
+    public KdfProfile {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Argon2 needs at least one iteration");
+        }
+        if (parallelism < 1 || memoryKb < 8 * parallelism) {
+            throw new IllegalArgumentException("Argon2 needs at least 8 KiB of memory per lane");
+        }
+    }
+
+    /**
+     * Reads the profile stored in props, or {@link #LEGACY} if it has none.
+     */
+    public static KdfProfile from(Properties props) {
+        if (props.getProperty(ITERATIONS) == null) {
+            return LEGACY;
+        }
+        return new KdfProfile(
+                Integer.parseInt(props.getProperty(ITERATIONS).trim()),
+                Integer.parseInt(props.getProperty(MEMORY_KB).trim()),
+                Integer.parseInt(props.getProperty(PARALLELISM).trim()));
+    }
+
+    public void store(Properties props) {
+        props.setProperty(ITERATIONS, Integer.toString(iterations));
+        props.setProperty(MEMORY_KB, Integer.toString(memoryKb));
+        props.setProperty(PARALLELISM, Integer.toString(parallelism));
+    }
+
+    @Override
+    public String toString() {
+        return "t=" + iterations + ", m=" + memoryKb + " KiB, p=" + parallelism;
+    }
+}
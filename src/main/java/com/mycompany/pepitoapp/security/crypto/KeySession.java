@@ -0,0 +1,70 @@
+package com.mycompany.pepitoapp.security.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Objects;
+import javax.security.auth.DestroyFailedException;
+
+/**
+ * Decrypted key material for one keyId while the keystore is unlocked. The
+ * Signature instances are initialized once and reused; Ed25519 signatures reset
+ * to their initialized state after every sign/verify call.
+ */
+final class KeySession {
+
+    private final String keyId;
+    private final KeyPair keyPair;
+    private final Signature signer;
+    private final Signature verifier;
+    private boolean destroyed;
+
+    KeySession(String keyId, KeyPair keyPair) throws GeneralSecurityException {
+        this.keyId = Objects.requireNonNull(keyId, "keyId");
+        this.keyPair = Objects.requireNonNull(keyPair, "keyPair");
+        this.signer = Signature.getInstance("Ed25519");
+        this.signer.initSign(keyPair.getPrivate());
+        this.verifier = Signature.getInstance("Ed25519");
+        this.verifier.initVerify(keyPair.getPublic());
+    }
+
+    String keyId() {
+        return keyId;
+    }
+
+    PublicKey publicKey() {
+        return keyPair.getPublic();
+    }
+
+    synchronized byte[] sign(byte[] payload) throws GeneralSecurityException {
+        ensureAlive();
+        signer.update(payload);
+        return signer.sign();
+    }
+
+    synchronized boolean verify(byte[] payload, byte[] signature) throws GeneralSecurityException {
+        ensureAlive();
+        verifier.update(payload);
+        return verifier.verify(signature);
+    }
+
+    synchronized void destroy() {
+        if (destroyed) {
+            return;
+        }
+        destroyed = true;
+        try {
+            keyPair.getPrivate().destroy();
+        } catch (DestroyFailedException ignored) {
+            // The JDK Ed25519 key does not implement destroy(); dropping every
+            // reference to it is the best we can do.
+        }
+    }
+
+    private void ensureAlive() {
+        if (destroyed) {
+            throw new IllegalStateException("Key session for " + keyId + " was locked");
+        }
+    }
+}
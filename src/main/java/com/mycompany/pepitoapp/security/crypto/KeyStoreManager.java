@@ -1,9 +1,11 @@
 package com.mycompany.pepitoapp.security.crypto;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -12,9 +14,19 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
@@ -23,9 +35,19 @@ import javax.crypto.spec.SecretKeySpec;
 /**
  * Minimal local keystore that encrypts Ed25519 private keys with AES-GCM using
  * a key derived from Argon2id.
+ *
+ * The keystore can be unlocked once per shift: {@link #unlock} decrypts the
+ * requested keys and keeps them in memory until {@link #lock} is called or the
+ * idle timeout expires, so signing a sale does not pay the Argon2id cost.
+ *
+ * Each key file stores the {@link KdfProfile} it was wrapped with. A key
+ * wrapped with a profile other than the deriver's current one is re-wrapped
+ * with the current profile, under a new salt, when it is next unlocked.
  */
 public class KeyStoreManager {
 
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(30);
+
     private static final String AES_GCM_NO_PADDING = "AES/GCM/NoPadding";
     private static final int GCM_TAG_LENGTH = 128;
     private static final int IV_LENGTH = 12;
@@ -34,6 +56,11 @@ public class KeyStoreManager {
     private final Argon2KeyDeriver keyDeriver;
     private final Path keyDirectory;
     private final SecureRandom secureRandom = new SecureRandom();
+    private final Map<String, KeySession> sessions = new ConcurrentHashMap<>();
+    private volatile Duration idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long lastAccessNanos;
+    private ScheduledExecutorService idleReaper;
+    private ScheduledFuture<?> idleCheck;
 
     public KeyStoreManager() {
         this(new Argon2KeyDeriver(), Path.of(System.getProperty("user.home"), ".pepitoapp", "keystore"));
@@ -44,11 +71,123 @@ public class KeyStoreManager {
         this.keyDirectory = Objects.requireNonNull(keyDirectory, "keyDirectory");
     }
 
+    /**
+     * Decrypts the given keys (creating them if needed) and keeps them cached
+     * until the keystore is locked or stays idle longer than the timeout.
+     */
+    public void unlock(char[] passphrase, String... keyIds) throws Exception {
+        unlock(passphrase, idleTimeout, keyIds);
+    }
+
+    public synchronized void unlock(char[] passphrase, Duration timeout, String... keyIds) throws Exception {
+        Objects.requireNonNull(passphrase, "passphrase");
+        Objects.requireNonNull(timeout, "timeout");
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        for (String keyId : keyIds) {
+            KeySession session = new KeySession(keyId, loadOrCreateKeyPair(keyId, passphrase));
+            KeySession previous = sessions.put(keyId, session);
+            if (previous != null) {
+                previous.destroy();
+            }
+        }
+        idleTimeout = timeout;
+        lastAccessNanos = System.nanoTime();
+        scheduleIdleCheck();
+    }
+
+    /**
+     * Wipes every cached key. Later calls to {@link #session} return null until
+     * the keystore is unlocked again.
+     */
+    public synchronized void lock() {
+        for (KeySession session : sessions.values()) {
+            session.destroy();
+        }
+        sessions.clear();
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+    }
+
+    public boolean isUnlocked(String keyId) {
+        return session(keyId) != null;
+    }
+
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public synchronized void setIdleTimeout(Duration timeout) {
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        this.idleTimeout = timeout;
+        if (!sessions.isEmpty()) {
+            scheduleIdleCheck();
+        }
+    }
+
+    /**
+     * Returns the cached key for keyId and refreshes the idle timer, or null if
+     * the key is not unlocked or the session already expired.
+     *
+     * Runs under the lock the idle check takes, so a session handed out here
+     * has just had its timer refreshed and the idle check cannot lock it
+     * before the caller signs with it.
+     */
+    synchronized KeySession session(String keyId) {
+        KeySession session = sessions.get(keyId);
+        if (session == null) {
+            return null;
+        }
+        if (isIdle()) {
+            lock();
+            return null;
+        }
+        lastAccessNanos = System.nanoTime();
+        return session;
+    }
+
+    private boolean isIdle() {
+        return System.nanoTime() - lastAccessNanos > idleTimeout.toNanos();
+    }
+
+    private void lockIfIdle() {
+        synchronized (this) {
+            if (!sessions.isEmpty() && isIdle()) {
+                lock();
+            }
+        }
+    }
+
+    private void scheduleIdleCheck() {
+        if (idleReaper == null) {
+            idleReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "keystore-idle-lock");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+        }
+        long periodMillis = Math.max(1000L, Math.min(idleTimeout.toMillis() / 4, 60_000L));
+        idleCheck = idleReaper.scheduleWithFixedDelay(this::lockIfIdle, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
     public KeyPair loadOrCreateKeyPair(String keyId, char[] passphrase) throws Exception {
         Files.createDirectories(keyDirectory);
         Path keyFile = keyDirectory.resolve(keyId + ".properties");
         if (Files.exists(keyFile)) {
-            return readKey(keyFile, passphrase);
+            Properties props = readProperties(keyFile);
+            KeyPair keyPair = readKey(props, passphrase);
+            if (!KdfProfile.from(props).equals(keyDeriver.profile())) {
+                writeKey(keyFile, keyPair, passphrase);
+            }
+            return keyPair;
         }
         KeyPairGenerator generator = KeyPairGenerator.getInstance("Ed25519");
         KeyPair keyPair = generator.generateKeyPair();
@@ -56,23 +195,65 @@ public class KeyStoreManager {
         return keyPair;
     }
 
-    private KeyPair readKey(Path keyFile, char[] passphrase) throws Exception {
+    /**
+     * Reads the public half of a key. It is stored in clear next to the
+     * encrypted private key, so no passphrase or key derivation is needed.
+     *
+     * @throws IllegalArgumentException if there is no key with that id
+     */
+    public PublicKey readPublicKey(String keyId) throws Exception {
+        Path keyFile = keyDirectory.resolve(keyId + ".properties");
+        if (!Files.exists(keyFile)) {
+            throw new IllegalArgumentException("Unknown key " + keyId);
+        }
+        Properties props = readProperties(keyFile);
+        byte[] publicKeyBytes = Base64.getDecoder().decode(props.getProperty("public"));
+        return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(publicKeyBytes));
+    }
+
+    /**
+     * Ids of the keys in the keystore directory, sorted.
+     */
+    public List<String> keyIds() throws IOException {
+        if (!Files.isDirectory(keyDirectory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(keyDirectory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".properties"))
+                    .map(name -> name.substring(0, name.length() - ".properties".length()))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static Properties readProperties(Path keyFile) throws IOException {
         Properties props = new Properties();
         try (InputStream in = Files.newInputStream(keyFile)) {
             props.load(in);
         }
+        return props;
+    }
+
+    private KeyPair readKey(Properties props, char[] passphrase) throws Exception {
+        KdfProfile profile = KdfProfile.from(props);
         byte[] salt = Base64.getDecoder().decode(props.getProperty("salt"));
         byte[] iv = Base64.getDecoder().decode(props.getProperty("iv"));
         byte[] cipherText = Base64.getDecoder().decode(props.getProperty("cipher"));
         byte[] publicKeyBytes = Base64.getDecoder().decode(props.getProperty("public"));
 
-        SecretKey derived = deriveAesKey(passphrase, salt);
+        SecretKey derived = deriveAesKey(passphrase, salt, profile);
         Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
         cipher.init(Cipher.DECRYPT_MODE, derived, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
         byte[] privateKeyBytes = cipher.doFinal(cipherText);
 
         KeyFactory keyFactory = KeyFactory.getInstance("Ed25519");
-        PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKeyBytes));
+        PrivateKey privateKey;
+        try {
+            privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKeyBytes));
+        } finally {
+            Arrays.fill(privateKeyBytes, (byte) 0);
+        }
         PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(publicKeyBytes));
         return new KeyPair(publicKey, privateKey);
     }
@@ -82,25 +263,40 @@ public class KeyStoreManager {
         byte[] iv = new byte[IV_LENGTH];
         secureRandom.nextBytes(salt);
         secureRandom.nextBytes(iv);
-        SecretKey derived = deriveAesKey(passphrase, salt);
+        KdfProfile profile = keyDeriver.profile();
+        SecretKey derived = deriveAesKey(passphrase, salt, profile);
 
         Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
         cipher.init(Cipher.ENCRYPT_MODE, derived, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
-        byte[] cipherText = cipher.doFinal(keyPair.getPrivate().getEncoded());
+        byte[] encodedPrivate = keyPair.getPrivate().getEncoded();
+        byte[] cipherText;
+        try {
+            cipherText = cipher.doFinal(encodedPrivate);
+        } finally {
+            Arrays.fill(encodedPrivate, (byte) 0);
+        }
 
         Properties props = new Properties();
         props.setProperty("salt", Base64.getEncoder().encodeToString(salt));
         props.setProperty("iv", Base64.getEncoder().encodeToString(iv));
         props.setProperty("cipher", Base64.getEncoder().encodeToString(cipherText));
         props.setProperty("public", Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()));
+        profile.store(props);
 
-        try (OutputStream out = Files.newOutputStream(keyFile)) {
+        // Re-wrapping replaces a working key file: never leave it half written.
+        Path temp = keyFile.resolveSibling(keyFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
             props.store(out, "PepitoApp Ed25519 key");
         }
+        Files.move(temp, keyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    private SecretKey deriveAesKey(char[] passphrase, byte[] salt) {
-        byte[] keyBytes = keyDeriver.deriveKey(passphrase, salt);
-        return new SecretKeySpec(keyBytes, "AES");
+    private SecretKey deriveAesKey(char[] passphrase, byte[] salt, KdfProfile profile) {
+        byte[] keyBytes = keyDeriver.deriveKey(passphrase, salt, profile);
+        try {
+            return new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
     }
 }
@@ -0,0 +1,89 @@
+package com.mycompany.pepitoapp.security.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Exported Ed25519 public keys indexed by keyId. It is all an auditor needs
+ * to check ledger signatures: no keystore, passphrase or key derivation.
+ *
+ * The file is a properties file with one line per key,
+ * keyId=Base64(X.509 SubjectPublicKeyInfo).
+ */
+public final class PublicKeyDirectory implements PublicKeyResolver {
+
+    private final Map<String, PublicKey> keys;
+
+    public PublicKeyDirectory(Map<String, PublicKey> keys) {
+        this.keys = Collections.unmodifiableMap(new TreeMap<>(Objects.requireNonNull(keys, "keys")));
+    }
+
+    /**
+     * Collects the public keys of every key in the keystore.
+     */
+    public static PublicKeyDirectory fromKeyStore(KeyStoreManager keyStoreManager) throws Exception {
+        Map<String, PublicKey> keys = new TreeMap<>();
+        for (String keyId : keyStoreManager.keyIds()) {
+            keys.put(keyId, keyStoreManager.readPublicKey(keyId));
+        }
+        return new PublicKeyDirectory(keys);
+    }
+
+    public static PublicKeyDirectory load(Path file) throws IOException, GeneralSecurityException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        KeyFactory keyFactory = KeyFactory.getInstance("Ed25519");
+        Map<String, PublicKey> keys = new TreeMap<>();
+        for (String keyId : props.stringPropertyNames()) {
+            byte[] encoded = Base64.getDecoder().decode(props.getProperty(keyId).trim());
+            keys.put(keyId, keyFactory.generatePublic(new X509EncodedKeySpec(encoded)));
+        }
+        return new PublicKeyDirectory(keys);
+    }
+
+    public void save(Path file) throws IOException {
+        Properties props = new Properties();
+        for (Map.Entry<String, PublicKey> entry : keys.entrySet()) {
+            props.setProperty(entry.getKey(), Base64.getEncoder().encodeToString(entry.getValue().getEncoded()));
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            props.store(out, "PepitoApp Ed25519 public keys");
+        }
+    }
+
+    public Set<String> keyIds() {
+        return keys.keySet();
+    }
+
+    /**
+     * @throws IllegalArgumentException if keyId was not exported
+     */
+    @Override
+    public PublicKey resolve(String keyId) {
+        PublicKey key = keys.get(keyId);
+        if (key == null) {
+            throw new IllegalArgumentException("Unknown public key " + keyId);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,31 @@
+package com.mycompany.pepitoapp.security.crypto;
+
+import java.security.PublicKey;
+
+/**
+ * Looks up the Ed25519 public key that verifies signatures made with a keyId.
+ * Implementations must be safe to call from several verification threads.
+ */
+@FunctionalInterface
+public interface PublicKeyResolver {
+
+    PublicKey resolve(String keyId) throws Exception;
+
+    /**
+     * Whether keyId was the signing key when the ledger entry with that id
+     * was appended. Resolvers that know nothing about validity ranges accept
+     * every id.
+     */
+    default boolean validFor(String keyId, long entryId) {
+        return true;
+    }
+
+    /**
+     * Whether keyId was still the signing key once the ledger reached the
+     * entry with that id, as the key that seals an archive ending there must
+     * be. Resolvers that know nothing about validity ranges accept every id.
+     */
+    default boolean validAfter(String keyId, long entryId) {
+        return true;
+    }
+}
@@ -0,0 +1,26 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+/**
+ * What the ledger table keeps of an archived period: the id range, the hashes
+ * the chain enters and leaves the archive with, and a signature binding them
+ * to the SHA-256 digest of the archive file. Hashes, digest and signature are
+ * raw bytes.
+ *
+ * format is the highest entry format inside the archive, so the downgrade
+ * check carries over to the entries after it.
+ */
+public record ArchiveAnchor(
+        long id,
+        String period,
+        long firstId,
+        long lastId,
+        long entryCount,
+        byte[] firstPreviousHash,
+        byte[] lastHash,
+        int format,
+        String file,
+        byte[] digest,
+        byte[] signature,
+        String keyId,
+        long createdAt
+) {}
@@ -0,0 +1,205 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Reusable SHA-256 hasher for the ledger chain. Each thread gets one instance
+ * with its own MessageDigest and encoding buffer, so hashing an entry feeds the
+ * previous hash and the UTF-8 of the sale straight into the digest without
+ * building an intermediate String or byte array.
+ *
+ * Text is encoded by hand with the same rules as String.getBytes(UTF_8),
+ * including '?' for unpaired surrogates, so the result is identical to hashing
+ * the encoded String. A surrogate pair split across two update calls is still
+ * encoded as one code point.
+ *
+ * An instance is not thread-safe; use {@link #forCurrentThread()} and do not
+ * hand it to another thread.
+ */
+public final class ChainHasher {
+
+    public static final int HASH_LENGTH = 32;
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int BASE64_HASH_LENGTH = 44;
+    private static final ThreadLocal<ChainHasher> HASHERS = ThreadLocal.withInitial(ChainHasher::new);
+
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] base64 = new byte[BASE64_HASH_LENGTH];
+    private final byte[] rawHash = new byte[HASH_LENGTH];
+    private int position;
+    private char pendingHighSurrogate;
+
+    public ChainHasher() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    public static ChainHasher forCurrentThread() {
+        return HASHERS.get().reset();
+    }
+
+    /**
+     * Discards any partial input.
+     */
+    public ChainHasher reset() {
+        digest.reset();
+        position = 0;
+        pendingHighSurrogate = 0;
+        return this;
+    }
+
+    public ChainHasher update(byte[] bytes) {
+        return update(bytes, 0, bytes.length);
+    }
+
+    public ChainHasher update(byte[] bytes, int offset, int length) {
+        flushPendingSurrogate();
+        flush();
+        digest.update(bytes, offset, length);
+        return this;
+    }
+
+    public ChainHasher update(ByteBuffer bytes) {
+        flushPendingSurrogate();
+        flush();
+        digest.update(bytes);
+        return this;
+    }
+
+    /**
+     * Feeds the UTF-8 encoding of text.
+     */
+    public ChainHasher update(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (pendingHighSurrogate != 0) {
+                char high = pendingHighSurrogate;
+                pendingHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    putCodePoint(Character.toCodePoint(high, c));
+                    continue;
+                }
+                put('?');
+            }
+            if (c < 0x80) {
+                if (position == BUFFER_SIZE) {
+                    flush();
+                }
+                buffer[position++] = (byte) c;
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                put('?');
+            } else {
+                putCodePoint(c);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Completes the hash and returns it in a new array. The hasher is reset.
+     */
+    public byte[] finish() {
+        flushPendingSurrogate();
+        flush();
+        return digest.digest();
+    }
+
+    /**
+     * Completes the hash into out at offset, without allocating. The hasher is
+     * reset.
+     */
+    public void finish(byte[] out, int offset) {
+        flushPendingSurrogate();
+        flush();
+        try {
+            digest.digest(out, offset, HASH_LENGTH);
+        } catch (DigestException ex) {
+            throw new IllegalArgumentException("No room for a " + HASH_LENGTH + "-byte hash at offset " + offset, ex);
+        }
+    }
+
+    /**
+     * Chain hash of an entry in the given format (see {@link ChainHashing}).
+     */
+    public byte[] chain(int format, byte[] previousHash, CharSequence saleJson) {
+        reset();
+        if (format == LedgerEntry.FORMAT_V1) {
+            int length = Base64.getEncoder().encode(previousHash, base64);
+            digest.update(base64, 0, length);
+        } else {
+            digest.update(previousHash);
+        }
+        return update(saleJson).finish();
+    }
+
+    /**
+     * Chain hash of an entry whose 32-byte previous hash and UTF-8 sale are
+     * already in buffers, such as slices of a mapped segment, completed into
+     * out at offset. Both buffers are consumed; nothing is allocated.
+     */
+    public void chain(int format, ByteBuffer previousHash, ByteBuffer saleJson, byte[] out, int offset) {
+        reset();
+        if (format == LedgerEntry.FORMAT_V1) {
+            previousHash.get(rawHash);
+            int length = Base64.getEncoder().encode(rawHash, base64);
+            digest.update(base64, 0, length);
+        } else {
+            digest.update(previousHash);
+        }
+        digest.update(saleJson);
+        finish(out, offset);
+    }
+
+    private void putCodePoint(int codePoint) {
+        if (position > BUFFER_SIZE - 4) {
+            flush();
+        }
+        if (codePoint < 0x800) {
+            buffer[position++] = (byte) (0xC0 | (codePoint >> 6));
+        } else if (codePoint < 0x10000) {
+            buffer[position++] = (byte) (0xE0 | (codePoint >> 12));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        } else {
+            buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        }
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+    }
+
+    private void put(char ascii) {
+        if (position == BUFFER_SIZE) {
+            flush();
+        }
+        buffer[position++] = (byte) ascii;
+    }
+
+    /**
+     * A high surrogate with nothing after it encodes as '?', like String does.
+     */
+    private void flushPendingSurrogate() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            put('?');
+        }
+    }
+
+    private void flush() {
+        if (position > 0) {
+            digest.update(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Hash function of the ledger chain in both entry formats.
+ *
+ * v1 (text): SHA-256 over the UTF-8 of Base64(previousHash) + saleJson, signed
+ * over the Base64 text of the hash. v2 (binary): SHA-256 over the 32 raw bytes
+ * of previousHash followed by the UTF-8 of saleJson, signed over the raw hash.
+ * Hashes are handled as raw bytes in both; v1 only encodes to rebuild its
+ * original input. The genesis hash is the same in both formats.
+ *
+ * Hashing goes through the calling thread's {@link ChainHasher}, so append and
+ * verify loops reuse one digest per thread.
+ */
+final class ChainHashing {
+
+    static final byte[] GENESIS_HASH = sha256("GENESIS".getBytes(StandardCharsets.UTF_8));
+
+    private ChainHashing() {
+    }
+
+    static byte[] chain(int format, byte[] previousHash, String saleJson) {
+        return ChainHasher.forCurrentThread().chain(format, previousHash, saleJson);
+    }
+
+    /**
+     * Bytes covered by the entry signature.
+     */
+    static byte[] signingPayload(int format, byte[] hash) {
+        return format == LedgerEntry.FORMAT_V1 ? Base64.getEncoder().encode(hash) : hash;
+    }
+
+    static String encode(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static byte[] sha256(byte[] data) {
+        return new ChainHasher().update(data).finish();
+    }
+}
@@ -0,0 +1,7 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+/**
+ * Last committed position of the hash chain, plus the number of entries since
+ * the last checkpoint. An empty ledger has id 0 and the genesis hash.
+ */
+public record ChainHead(long lastId, byte[] lastHash, long entriesSinceCheckpoint) {}
@@ -0,0 +1,266 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.crypto.Ed25519BatchVerifier;
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the hash and signature of single entries. Linkage depends on the
+ * previous entry and is left to the caller. Not thread-safe: each verification
+ * thread uses its own instance, which keeps one initialized Signature per keyId.
+ *
+ * Entries covered by a Merkle batch have no signature of their own. Each must
+ * sit inside the id range of its batch at the leaf index its id gives, and the
+ * batch must end at an entry of its own, so a row cannot borrow a batch that
+ * does not cover it. The batch is checked once, when its last entry comes by:
+ * the root is rebuilt from the leaves on the verifier's connection and its
+ * signature verified.
+ *
+ * Signatures are queued in an {@link Ed25519BatchVerifier} and checked a batch
+ * at a time. The error of an invalid signature is inserted where it would have
+ * been added had it been checked at once, so callers must use one error list
+ * until {@link #flush} and call it before reading the list.
+ */
+final class EntryVerifier {
+
+    private final PublicKeyResolver keys;
+    private final Connection connection;
+    private final Map<String, PublicKey> publicKeys = new HashMap<>();
+    private final Map<String, Signature> verifiers = new HashMap<>();
+    private final Ed25519BatchVerifier batchVerifier = new Ed25519BatchVerifier();
+    private final List<PendingSignature> pending = new ArrayList<>();
+    private final int batchSize;
+    private MerkleBatch currentBatch;
+    private boolean currentBatchCloses;
+
+    /**
+     * @param keys resolver for signature checks, or null to skip them
+     * @param connection connection used to read Merkle batches, or null when
+     *                   the caller checks batches itself through {@link #queue}
+     */
+    EntryVerifier(PublicKeyResolver keys, Connection connection) {
+        this(keys, connection, Ed25519BatchVerifier.DEFAULT_BATCH_SIZE);
+    }
+
+    EntryVerifier(PublicKeyResolver keys, Connection connection, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.keys = keys;
+        this.connection = connection;
+        this.batchSize = batchSize;
+    }
+
+    void check(LedgerEntry entry, List<String> errors) throws Exception {
+        check(entry, errors, false);
+    }
+
+    /**
+     * Like {@link #check} but always verifies the Merkle batch of the entry,
+     * for entries such as checkpoints that are trusted on their own. Its
+     * signature is checked at once, so errors is complete on return.
+     */
+    void checkAnchor(LedgerEntry entry, List<String> errors) throws Exception {
+        check(entry, errors, true);
+    }
+
+    private void check(LedgerEntry entry, List<String> errors, boolean anchor) throws Exception {
+        if (!checkHash(entry, errors)) {
+            return;
+        }
+        if (entry.merkleBatched()) {
+            MerkleBatch batch = batch(entry.merkleBatch());
+            if (batch == null) {
+                errors.add("Lote Merkle ausente para la entrada " + entry.id());
+            } else if (!covers(batch.id(), batch.lastEntryId(), entry.id(), entry.leafIndex())) {
+                errors.add(outOfBatchError(entry.id(), batch.id()));
+            } else if (!currentBatchCloses) {
+                errors.add(unclosedBatchError(entry.id(), batch.id()));
+            } else if (anchor || entry.id() == batch.lastEntryId()) {
+                checkBatch(batch, errors, anchor);
+            }
+        } else if (keys != null) {
+            byte[] payload = ChainHashing.signingPayload(entry.format(), entry.currentHash());
+            checkSignature(entry.keyId(), payload, entry.signature(), errors, entry.id(), false, anchor);
+        }
+    }
+
+    /**
+     * Checks only the format and the hash of the entry, for callers that
+     * handle its Merkle batch themselves.
+     *
+     * @return false if the format is unknown and the hash was not checked
+     */
+    boolean checkHash(LedgerEntry entry, List<String> errors) {
+        if (entry.format() != LedgerEntry.FORMAT_V1 && entry.format() != LedgerEntry.FORMAT_V2) {
+            errors.add("Formato desconocido en la entrada " + entry.id());
+            return false;
+        }
+        byte[] recomputedHash = ChainHashing.chain(entry.format(), entry.previousHash(), entry.saleJson());
+        if (!MessageDigest.isEqual(recomputedHash, entry.currentHash())) {
+            errors.add("Hash mismatch at id " + entry.id());
+        }
+        return true;
+    }
+
+    boolean verifiesSignatures() {
+        return keys != null;
+    }
+
+    /**
+     * Whether keyId was still signing once the ledger reached id; see
+     * {@link PublicKeyResolver#validAfter}.
+     */
+    boolean validAfter(String keyId, long id) {
+        return keys.validAfter(keyId, id);
+    }
+
+    /**
+     * Verifies the queued signatures and inserts the errors of the invalid
+     * ones into their lists.
+     */
+    void flush() throws Exception {
+        if (pending.isEmpty()) {
+            return;
+        }
+        BitSet invalid = batchVerifier.verify();
+        // Backwards, so each insertion leaves the positions before it valid.
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (invalid.get(i)) {
+                PendingSignature signature = pending.get(i);
+                signature.errors().add(signature.position(), signature.merkleBatch()
+                        ? batchSignatureError(signature.id())
+                        : entrySignatureError(signature.id()));
+            }
+        }
+        pending.clear();
+    }
+
+    static String downgradeError(long id) {
+        return "Entrada v1 después de una v2 en la entrada " + id;
+    }
+
+    static String outOfBatchError(long id, long batchId) {
+        return "Entrada " + id + " fuera del lote Merkle " + batchId;
+    }
+
+    static String unclosedBatchError(long id, long batchId) {
+        return "El lote Merkle " + batchId + " de la entrada " + id + " no termina en una entrada suya";
+    }
+
+    /**
+     * Whether the entry id with leafIndex lies inside the batch batchId..lastEntryId
+     * at the position its id gives; batch ids are the ids of their first entry.
+     */
+    static boolean covers(long batchId, long lastEntryId, long id, int leafIndex) {
+        return id >= batchId && id <= lastEntryId && leafIndex == id - batchId;
+    }
+
+    private MerkleBatch batch(long batchId) throws Exception {
+        if (currentBatch == null || currentBatch.id() != batchId) {
+            currentBatch = MerkleBatches.find(connection, batchId);
+            currentBatchCloses = currentBatch != null && MerkleBatches.closes(connection, currentBatch);
+        }
+        return currentBatch;
+    }
+
+    private void checkBatch(MerkleBatch batch, List<String> errors, boolean anchor) throws Exception {
+        checkBatch(batch, MerkleBatches.leaves(connection, batch), errors, anchor);
+    }
+
+    /**
+     * Checks the root of the batch against leaves (the current hashes of its
+     * entries in order, or null if they are inconsistent) and its signature,
+     * queued unless anchor is set.
+     */
+    void checkBatch(MerkleBatch batch, List<byte[]> leaves, List<String> errors, boolean anchor) throws Exception {
+        byte[] root = Base64.getDecoder().decode(batch.root());
+        if (leaves == null || !MessageDigest.isEqual(MerkleTree.root(leaves), root)) {
+            errors.add("Raíz Merkle inválida en el lote " + batch.id());
+        } else if (keys != null) {
+            checkSignature(batch.keyId(), root, Base64.getDecoder().decode(batch.signature()), errors, batch.id(), true, anchor);
+        }
+    }
+
+    /**
+     * Checks the signature of entry or Merkle batch id: at once when anchor
+     * is set, queued otherwise. A key used outside its validity range is
+     * reported without checking the signature.
+     */
+    void checkSignature(String keyId, byte[] payload, byte[] signature, List<String> errors, long id,
+                        boolean merkleBatch, boolean anchor) throws Exception {
+        if (!keys.validFor(keyId, id)) {
+            errors.add("Clave " + keyId + " fuera de su vigencia en " + (merkleBatch ? "el lote " : "la entrada ") + id);
+        } else if (!anchor) {
+            queue(keyId, payload, signature, errors, id, merkleBatch);
+        } else if (!verifySignature(keyId, payload, signature)) {
+            errors.add(merkleBatch ? batchSignatureError(id) : entrySignatureError(id));
+        }
+    }
+
+    /**
+     * Queues a signature for the next {@link #flush}; if it is invalid, its
+     * error is inserted into errors at the current end of the list.
+     */
+    void queue(String keyId, byte[] payload, byte[] signature, List<String> errors, long id, boolean merkleBatch)
+            throws Exception {
+        batchVerifier.add(publicKey(keyId), payload, signature);
+        pending.add(new PendingSignature(errors, errors.size(), id, merkleBatch));
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Checks one signature at once, outside the batch.
+     */
+    boolean verifySignature(String keyId, byte[] payload, byte[] signature) throws Exception {
+        Signature verifier = verifiers.get(keyId);
+        if (verifier == null) {
+            verifier = Signature.getInstance("Ed25519");
+            verifier.initVerify(publicKey(keyId));
+            verifiers.put(keyId, verifier);
+        }
+        verifier.update(payload);
+        try {
+            return verifier.verify(signature);
+        } catch (SignatureException ex) {
+            // Thrown for an R that is not a curve point.
+            verifiers.remove(keyId);
+            return false;
+        }
+    }
+
+    private PublicKey publicKey(String keyId) throws Exception {
+        PublicKey publicKey = publicKeys.get(keyId);
+        if (publicKey == null) {
+            publicKey = keys.resolve(keyId);
+            publicKeys.put(keyId, publicKey);
+        }
+        return publicKey;
+    }
+
+    static String entrySignatureError(long id) {
+        return "Firma inválida en la entrada " + id;
+    }
+
+    static String batchSignatureError(long id) {
+        return "Firma de lote Merkle inválida en el lote " + id;
+    }
+
+    /**
+     * A queued signature and where its error goes if it turns out invalid.
+     */
+    private record PendingSignature(List<String> errors, int position, long id, boolean merkleBatch) {
+    }
+}
@@ -0,0 +1,182 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous appender that groups queued sales into one SQLite transaction
+ * (and one fsync) per batch.
+ *
+ * Sales are taken from a bounded queue by a single writer thread, so ledger
+ * order equals submission order. A batch closes when it reaches the size limit
+ * or when the oldest queued sale has waited the maximum delay. When the queue
+ * is full {@link #submit(String)} blocks, which pushes back on the callers
+ * instead of letting memory grow.
+ */
+public class GroupCommitLedgerAppender implements AutoCloseable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final Duration DEFAULT_MAX_BATCH_DELAY = Duration.ofMillis(10);
+
+    private static final PendingSale SHUTDOWN = new PendingSale(null, null);
+
+    private final LedgerService ledgerService;
+    private final CryptoService cryptoService;
+    private final String keyId;
+    private final char[] passphrase;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final BlockingQueue<PendingSale> queue;
+    private final Thread writer;
+    private volatile boolean closed;
+    // Set by the writer before its final drain of the queue.
+    private volatile boolean stopped;
+
+    public GroupCommitLedgerAppender(LedgerService ledgerService, CryptoService cryptoService, String keyId, char[] passphrase) {
+        this(ledgerService, cryptoService, keyId, passphrase, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_DELAY);
+    }
+
+    public GroupCommitLedgerAppender(LedgerService ledgerService, CryptoService cryptoService, String keyId, char[] passphrase,
+                                     int queueCapacity, int maxBatchSize, Duration maxBatchDelay) {
+        this.ledgerService = Objects.requireNonNull(ledgerService, "ledgerService");
+        this.cryptoService = Objects.requireNonNull(cryptoService, "cryptoService");
+        this.keyId = Objects.requireNonNull(keyId, "keyId");
+        this.passphrase = Objects.requireNonNull(passphrase, "passphrase");
+        if (queueCapacity < 1 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Queue capacity and batch size must be positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = maxBatchDelay.toNanos();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writer = new Thread(this::runWriter, "ledger-group-commit");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a sale for the ledger. Blocks while the queue is full.
+     *
+     * @return a future completed with the ledger id once the entry is
+     *         committed, or failed if the appender closes before it is
+     * @throws IllegalStateException if the appender is already closed
+     */
+    public CompletableFuture<Long> submit(String saleJson) throws InterruptedException {
+        Objects.requireNonNull(saleJson, "saleJson");
+        if (closed) {
+            throw new IllegalStateException("Appender is closed");
+        }
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        PendingSale pending = new PendingSale(saleJson, result);
+        queue.put(pending);
+        // close() may have run between the check above and the put: if the
+        // writer has stopped, its last drain may have missed this sale.
+        if (stopped && queue.remove(pending)) {
+            result.completeExceptionally(new IllegalStateException("Appender is closed"));
+        }
+        return result;
+    }
+
+    /**
+     * Stops accepting sales, commits everything already queued and waits for
+     * the writer thread to finish.
+     *
+     * If the calling thread is interrupted while waiting, the writer is
+     * interrupted too: it commits the batch it holds, fails the sales still
+     * queued, and the interrupt flag of the caller is restored.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(SHUTDOWN);
+            writer.join();
+        } catch (InterruptedException ex) {
+            writer.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        List<PendingSale> batch = new ArrayList<>(maxBatchSize);
+        boolean running = true;
+        while (running) {
+            try {
+                PendingSale first = queue.take();
+                if (first == SHUTDOWN) {
+                    running = false;
+                } else {
+                    batch.add(first);
+                    running = fillBatch(batch);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+        stopped = true;
+        failRemaining();
+    }
+
+    /**
+     * @return false if the shutdown marker was reached
+     */
+    private boolean fillBatch(List<PendingSale> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + maxBatchDelayNanos;
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            PendingSale next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                return true;
+            }
+            if (next == SHUTDOWN) {
+                return false;
+            }
+            batch.add(next);
+        }
+        return true;
+    }
+
+    private void commit(List<PendingSale> batch) {
+        List<String> saleJsons = new ArrayList<>(batch.size());
+        for (PendingSale pending : batch) {
+            saleJsons.add(pending.saleJson());
+        }
+        try {
+            long[] ids = ledgerService.appendBatch(saleJsons, keyId, passphrase, cryptoService);
+            for (int i = 0; i < ids.length; i++) {
+                batch.get(i).result().complete(ids[i]);
+            }
+        } catch (Exception ex) {
+            for (PendingSale pending : batch) {
+                pending.result().completeExceptionally(ex);
+            }
+        }
+    }
+
+    private void failRemaining() {
+        List<PendingSale> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        for (PendingSale pending : remaining) {
+            if (pending != SHUTDOWN) {
+                pending.result().completeExceptionally(new IllegalStateException("Appender is closed"));
+            }
+        }
+    }
+
+    private record PendingSale(String saleJson, CompletableFuture<Long> result) {}
+}
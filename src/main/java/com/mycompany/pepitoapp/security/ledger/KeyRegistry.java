@@ -0,0 +1,276 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The signing keys of the ledger and the ledger ids each one signed, kept in
+ * the signing_key table and mirrored in memory so neither signing nor
+ * verification reads the keystore.
+ *
+ * A key is NEXT once it has been generated and encrypted in the keystore,
+ * ACTIVE from the ledger id where it took over, and RETIRED after the last id
+ * it signed. There is at most one NEXT and one ACTIVE key.
+ * {@link LedgerService#rotateKey} switches from one to the other under the
+ * append lock, so the ranges never overlap.
+ *
+ * Ledgers that predate the registry get their signing key registered as
+ * active from the first entry; keys that were never registered are resolved
+ * as before and accepted for any id.
+ */
+public class KeyRegistry {
+
+    private static final String TABLE_EXISTS = "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'signing_key'";
+    private static final String SELECT_ALL = "SELECT key_id, status, first_id, last_id, public_key, created_at "
+            + "FROM signing_key ORDER BY created_at ASC, rowid ASC";
+    private static final String INSERT = "INSERT INTO signing_key(key_id, status, first_id, last_id, public_key, created_at) "
+            + "VALUES(?,?,?,?,?,?)";
+    private static final String RETIRE = "UPDATE signing_key SET status = 'RETIRED', last_id = ? WHERE key_id = ? AND status = 'ACTIVE'";
+    private static final String ACTIVATE = "UPDATE signing_key SET status = 'ACTIVE', first_id = ? WHERE key_id = ? AND status = 'NEXT'";
+
+    public enum Status { NEXT, ACTIVE, RETIRED }
+
+    /**
+     * @param firstId first ledger id signed with the key, 0 while NEXT
+     * @param lastId last ledger id signed with the key, 0 until RETIRED
+     */
+    public record SigningKey(String keyId, Status status, long firstId, long lastId, PublicKey publicKey, long createdAt) {
+
+        /**
+         * Whether the key was the signing key when entryId was appended.
+         */
+        public boolean covers(long entryId) {
+            return status != Status.NEXT && entryId >= firstId && (status == Status.ACTIVE || entryId <= lastId);
+        }
+
+        /**
+         * Whether the key was the signing key at entryId or at some id after
+         * it.
+         */
+        public boolean coversAfter(long entryId) {
+            return status == Status.ACTIVE || (status == Status.RETIRED && entryId <= lastId);
+        }
+    }
+
+    private final SecureDatabaseProvider databaseProvider;
+    private volatile List<SigningKey> keys = List.of();
+
+    public KeyRegistry(SecureDatabaseProvider databaseProvider) {
+        this.databaseProvider = Objects.requireNonNull(databaseProvider, "databaseProvider");
+    }
+
+    /**
+     * Reads the registry into memory. Called once the database is open.
+     */
+    public synchronized void load(char[] passphrase) throws Exception {
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            keys = read(session.connection());
+        }
+    }
+
+    /**
+     * Registered keys, oldest first.
+     */
+    public List<SigningKey> keys() {
+        return keys;
+    }
+
+    public SigningKey active() {
+        return find(Status.ACTIVE);
+    }
+
+    public SigningKey next() {
+        return find(Status.NEXT);
+    }
+
+    /**
+     * First id of the form prefix-N that is not registered.
+     */
+    public String newKeyId(String prefix) {
+        List<SigningKey> current = keys;
+        for (int n = current.size() + 1; ; n++) {
+            String keyId = prefix + "-" + n;
+            if (current.stream().noneMatch(key -> key.keyId().equals(keyId))) {
+                return keyId;
+            }
+        }
+    }
+
+    /**
+     * Registers keyId as the active key from the first ledger entry, for
+     * ledgers written before the registry. Does nothing if a key is active.
+     */
+    public synchronized void activateInitial(String keyId, PublicKey publicKey, char[] passphrase) throws Exception {
+        if (active() != null) {
+            return;
+        }
+        insert(new SigningKey(keyId, Status.ACTIVE, 1L, 0L, publicKey, Instant.now().getEpochSecond()), passphrase);
+    }
+
+    /**
+     * Records a key already generated and encrypted in the keystore as the
+     * one to switch to at the next rotation.
+     *
+     * @throws IllegalStateException if there already is a next key
+     */
+    public synchronized void addNext(String keyId, PublicKey publicKey, char[] passphrase) throws Exception {
+        if (next() != null) {
+            throw new IllegalStateException("Key " + next().keyId() + " is already waiting to be activated");
+        }
+        insert(new SigningKey(keyId, Status.NEXT, 0L, 0L, publicKey, Instant.now().getEpochSecond()), passphrase);
+    }
+
+    /**
+     * Retires the active key after lastId and activates the next one from
+     * lastId + 1, in one transaction. The caller keeps appends out while it
+     * runs; see {@link LedgerService#rotateKey}.
+     *
+     * @return the new active key
+     * @throws IllegalStateException if there is no next key
+     */
+    synchronized SigningKey activateNext(long lastId, char[] passphrase) throws Exception {
+        SigningKey next = next();
+        if (next == null) {
+            throw new IllegalStateException("No key is waiting to be activated");
+        }
+        SigningKey active = active();
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            Connection connection = session.connection();
+            connection.setAutoCommit(false);
+            if (active != null) {
+                try (PreparedStatement statement = connection.prepareStatement(RETIRE)) {
+                    statement.setLong(1, lastId);
+                    statement.setString(2, active.keyId());
+                    statement.executeUpdate();
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(ACTIVATE)) {
+                statement.setLong(1, lastId + 1);
+                statement.setString(2, next.keyId());
+                if (statement.executeUpdate() != 1) {
+                    throw new IllegalStateException("Key " + next.keyId() + " is no longer waiting to be activated");
+                }
+            }
+            connection.commit();
+            connection.setAutoCommit(true);
+            keys = read(connection);
+        }
+        return active();
+    }
+
+    /**
+     * Resolver over the in-memory registry: registered keys come from it and
+     * are only valid for their ids; any other key is resolved by fallback.
+     */
+    public PublicKeyResolver resolver(PublicKeyResolver fallback) {
+        return new RangeResolver(index(keys), Objects.requireNonNull(fallback, "fallback"), true);
+    }
+
+    /**
+     * Resolver that takes every public key from keys and only the validity
+     * ranges from registered, for auditors that do not trust the public keys
+     * stored with the ledger.
+     */
+    public static PublicKeyResolver withRanges(List<SigningKey> registered, PublicKeyResolver keys) {
+        return new RangeResolver(index(registered), Objects.requireNonNull(keys, "keys"), false);
+    }
+
+    /**
+     * Reads the registry table, which may not exist in copies of older
+     * ledgers.
+     */
+    public static List<SigningKey> read(Connection connection) throws SQLException, GeneralSecurityException {
+        List<SigningKey> keys = new ArrayList<>();
+        try (PreparedStatement exists = connection.prepareStatement(TABLE_EXISTS);
+             ResultSet rs = exists.executeQuery()) {
+            if (!rs.next()) {
+                return keys;
+            }
+        }
+        KeyFactory keyFactory = KeyFactory.getInstance("Ed25519");
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_ALL);
+             ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                keys.add(new SigningKey(
+                        rs.getString("key_id"),
+                        Status.valueOf(rs.getString("status")),
+                        rs.getLong("first_id"),
+                        rs.getLong("last_id"),
+                        keyFactory.generatePublic(new X509EncodedKeySpec(rs.getBytes("public_key"))),
+                        rs.getLong("created_at")
+                ));
+            }
+        }
+        return List.copyOf(keys);
+    }
+
+    private SigningKey find(Status status) {
+        for (SigningKey key : keys) {
+            if (key.status() == status) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private void insert(SigningKey key, char[] passphrase) throws Exception {
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            Connection connection = session.connection();
+            try (PreparedStatement statement = connection.prepareStatement(INSERT)) {
+                statement.setString(1, key.keyId());
+                statement.setString(2, key.status().name());
+                statement.setLong(3, key.firstId());
+                statement.setLong(4, key.lastId());
+                statement.setBytes(5, key.publicKey().getEncoded());
+                statement.setLong(6, key.createdAt());
+                statement.executeUpdate();
+            }
+            keys = read(connection);
+        }
+    }
+
+    private static Map<String, SigningKey> index(List<SigningKey> keys) {
+        Map<String, SigningKey> byId = new HashMap<>();
+        for (SigningKey key : keys) {
+            byId.put(key.keyId(), key);
+        }
+        return byId;
+    }
+
+    private record RangeResolver(Map<String, SigningKey> registered, PublicKeyResolver fallback, boolean registeredKeys)
+            implements PublicKeyResolver {
+
+        @Override
+        public PublicKey resolve(String keyId) throws Exception {
+            SigningKey key = registered.get(keyId);
+            return key != null && registeredKeys ? key.publicKey() : fallback.resolve(keyId);
+        }
+
+        @Override
+        public boolean validFor(String keyId, long entryId) {
+            SigningKey key = registered.get(keyId);
+            return key == null || key.covers(entryId);
+        }
+
+        @Override
+        public boolean validAfter(String keyId, long entryId) {
+            SigningKey key = registered.get(keyId);
+            return key == null || key.coversAfter(entryId);
+        }
+    }
+}
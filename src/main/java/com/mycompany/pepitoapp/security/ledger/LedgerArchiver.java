@@ -0,0 +1,338 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.app.MetricsCollector;
+import com.mycompany.pepitoapp.security.app.MetricsCollector.Metric;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import com.mycompany.pepitoapp.security.storage.ConnectionFactory;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Moves closed periods of the SQLite ledger out of the ledger table into
+ * sealed archive files, one per month, so the working database only holds
+ * the open period.
+ *
+ * A period is checked completely (hashes, linkage, signatures and Merkle
+ * roots) before it is sealed; a range that does not verify is never
+ * archived. The file is written and forced to disk, then the signed
+ * {@link ArchiveAnchor} is inserted and the archived rows and batches are
+ * deleted in one transaction. If anything fails before the commit the file
+ * is removed and the ledger is left as it was.
+ *
+ * Verification then checks an archive through its anchor alone: one
+ * signature and the link to its neighbours. {@link #verifyArchives} reads the
+ * files and re-verifies every archived entry.
+ *
+ * Archive files are compressed but not encrypted; like the ledger table,
+ * their integrity rests on the hash chain and the signatures.
+ */
+public class LedgerArchiver {
+
+    public static final String DIRECTORY = "ledger-archive";
+
+    private static final String SELECT_FIRST = "SELECT id, created_at FROM ledger ORDER BY id ASC LIMIT 1";
+    private static final String SELECT_LAST_BEFORE = "SELECT id, merkle_batch FROM ledger WHERE created_at < ? ORDER BY id DESC LIMIT 1";
+    private static final String SELECT_BATCH_END = "SELECT last_entry_id FROM merkle_batch WHERE id = ?";
+    private static final String SELECT_RANGE = "SELECT " + LedgerRows.COLUMNS + " FROM ledger WHERE id BETWEEN ? AND ? ORDER BY id ASC";
+    private static final String DELETE_BATCHES = "DELETE FROM merkle_batch WHERE id BETWEEN ? AND ?";
+    private static final String DELETE_ENTRIES = "DELETE FROM ledger WHERE id BETWEEN ? AND ?";
+    private static final int FETCH_SIZE = 256;
+    private static final MetricsCollector METRICS = MetricsCollector.getInstance();
+
+    private final SecureDatabaseProvider databaseProvider;
+    private final Path directory;
+
+    /**
+     * Archives in ledger-archive next to ledger.db.
+     */
+    public LedgerArchiver(SecureDatabaseProvider databaseProvider) {
+        this(databaseProvider, databaseProvider.getDbFile().resolveSibling(DIRECTORY));
+    }
+
+    public LedgerArchiver(SecureDatabaseProvider databaseProvider, Path directory) {
+        this.databaseProvider = Objects.requireNonNull(databaseProvider, "databaseProvider");
+        this.directory = Objects.requireNonNull(directory, "directory");
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Archives, oldest first, every month before current that still has
+     * entries in the ledger table. Stops between months if the thread is
+     * interrupted.
+     *
+     * @return the anchors written, in order
+     */
+    public List<ArchiveAnchor> archiveClosedPeriods(YearMonth current, ZoneId zone, String keyId, char[] passphrase,
+                                                    CryptoService cryptoService) throws Exception {
+        Objects.requireNonNull(current, "current");
+        Objects.requireNonNull(zone, "zone");
+        List<ArchiveAnchor> archived = new ArrayList<>();
+        YearMonth period;
+        try (Connection connection = databaseProvider.readConnections(passphrase).open();
+             PreparedStatement statement = connection.prepareStatement(SELECT_FIRST);
+             ResultSet rs = statement.executeQuery()) {
+            if (!rs.next()) {
+                return archived;
+            }
+            period = YearMonth.from(Instant.ofEpochSecond(rs.getLong("created_at")).atZone(zone));
+        }
+        for (; period.isBefore(current) && !Thread.currentThread().isInterrupted(); period = period.plusMonths(1)) {
+            ArchiveAnchor anchor = archivePeriod(period, zone, keyId, passphrase, cryptoService);
+            if (anchor != null) {
+                archived.add(anchor);
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Archives the entries of the ledger table up to the last one created
+     * before the end of period, in zone. Entries of earlier periods still in
+     * the table go into the same archive. A Merkle batch is never split: if
+     * the period ends inside one, the batch stays for the next period.
+     *
+     * @return the anchor, or null if there was nothing to archive
+     * @throws IllegalStateException if the entries do not verify or another
+     *         archival moved the ledger meanwhile
+     */
+    public synchronized ArchiveAnchor archivePeriod(YearMonth period, ZoneId zone, String keyId, char[] passphrase,
+                                                    CryptoService cryptoService) throws Exception {
+        Objects.requireNonNull(keyId, "keyId");
+        Objects.requireNonNull(cryptoService, "cryptoService");
+        long start = System.nanoTime();
+        long end = period.plusMonths(1).atDay(1).atStartOfDay(zone).toEpochSecond();
+        String label = period.toString();
+        ArchiveAnchor previous;
+        long firstId;
+        long lastId;
+        Path file;
+        Path partial;
+        LedgerArchives.ChainCheck check;
+        byte[] digest;
+        try (Connection connection = databaseProvider.readConnections(passphrase).open()) {
+            previous = LedgerArchives.last(connection);
+            firstId = firstId(connection);
+            lastId = lastIdBefore(connection, end);
+            if (firstId == 0 || lastId < firstId) {
+                return null;
+            }
+            if (previous != null && firstId <= previous.lastId()) {
+                throw new IllegalStateException("Ledger entry " + firstId + " is already archived in " + previous.file());
+            }
+            Files.createDirectories(directory);
+            file = directory.resolve("ledger-" + label + "-" + firstId + ".arc");
+            partial = file.resolveSibling(file.getFileName() + ".tmp");
+            List<String> errors = new ArrayList<>();
+            check = new LedgerArchives.ChainCheck(
+                    previous == null ? ChainHashing.GENESIS_HASH : previous.lastHash(),
+                    previous == null ? LedgerEntry.FORMAT_V1 : previous.format(),
+                    new EntryVerifier(cryptoService.publicKeyResolver(), null), errors);
+            try (LedgerArchives.Writer writer = new LedgerArchives.Writer(partial, label, firstId, lastId)) {
+                byte[] firstPreviousHash = copyRange(connection, firstId, lastId, check, writer);
+                check.finish();
+                if (!errors.isEmpty()) {
+                    throw new IllegalStateException("Ledger entries " + firstId + " to " + lastId + " do not verify, "
+                            + label + " not archived: " + errors.get(0));
+                }
+                digest = writer.finish(check.count(), firstPreviousHash, check.lastHash(), check.format());
+            } catch (Exception ex) {
+                Files.deleteIfExists(partial);
+                throw ex;
+            }
+        }
+        try {
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+            ArchiveAnchor unsigned = new ArchiveAnchor(0L, label, firstId, lastId, check.count(),
+                    previous == null ? ChainHashing.GENESIS_HASH : previous.lastHash(), check.lastHash(), check.format(),
+                    file.getFileName().toString(), digest, new byte[0], keyId, Instant.now().getEpochSecond());
+            byte[] signature = cryptoService.signBytes(LedgerArchives.signingPayload(unsigned), keyId, passphrase);
+            ArchiveAnchor anchor = seal(passphrase, previous, new ArchiveAnchor(0L, label, firstId, lastId, check.count(),
+                    unsigned.firstPreviousHash(), unsigned.lastHash(), unsigned.format(), unsigned.file(), digest, signature,
+                    keyId, unsigned.createdAt()));
+            METRICS.recordSince(Metric.LEDGER_ARCHIVE, start);
+            return anchor;
+        } catch (Exception ex) {
+            Files.deleteIfExists(partial);
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+    }
+
+    /**
+     * Deep verification: every archive file against its anchor, and every
+     * entry and Merkle batch inside it. The anchors themselves (signatures
+     * and linkage) are checked by the chain verification.
+     */
+    public VerificationResult verifyArchives(char[] passphrase, PublicKeyResolver keys) {
+        return verifyArchives(databaseProvider.readConnections(passphrase), directory, keys);
+    }
+
+    /**
+     * Same as {@link #verifyArchives(char[], PublicKeyResolver)} for the
+     * anchors of any ledger database, such as an audit copy.
+     *
+     * @param keys resolver for signature checks, or null to check only hashes
+     */
+    public static VerificationResult verifyArchives(ConnectionFactory connections, Path directory, PublicKeyResolver keys) {
+        long start = System.nanoTime();
+        List<String> errors = new ArrayList<>();
+        try (Connection connection = connections.open()) {
+            EntryVerifier verifier = new EntryVerifier(keys, null);
+            int format = LedgerEntry.FORMAT_V1;
+            for (ArchiveAnchor anchor : LedgerArchives.list(connection)) {
+                LedgerArchives.verifyFile(directory, anchor, format, verifier, errors);
+                format = Math.max(format, anchor.format());
+            }
+        } catch (Exception ex) {
+            errors.add("Verification failed: " + ex.getMessage());
+        }
+        METRICS.recordSince(Metric.VERIFY_ARCHIVES, start);
+        return new VerificationResult(errors.isEmpty(), errors);
+    }
+
+    /**
+     * Anchors of the archived periods, oldest first.
+     */
+    public static List<ArchiveAnchor> anchors(Connection connection) throws SQLException {
+        return LedgerArchives.list(connection);
+    }
+
+    /**
+     * Rebuilds the database file without the pages freed by archival. It
+     * holds the database exclusively while it runs, so call it when the till
+     * is idle, for example after the cash close.
+     */
+    public void compact(char[] passphrase) throws Exception {
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            session.releaseStatements();
+            try (Statement statement = session.connection().createStatement()) {
+                statement.executeUpdate("VACUUM");
+            }
+        }
+    }
+
+    /**
+     * Streams the rows firstId..lastId, with each Merkle batch after its last
+     * entry, to the check and the writer.
+     *
+     * @return previous hash of the first entry
+     */
+    private static byte[] copyRange(Connection connection, long firstId, long lastId, LedgerArchives.ChainCheck check,
+                                    LedgerArchives.Writer writer) throws Exception {
+        byte[] firstPreviousHash = null;
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_RANGE)) {
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setLong(1, firstId);
+            statement.setLong(2, lastId);
+            MerkleBatch batch = null;
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    LedgerEntry entry = LedgerRows.read(rs);
+                    if (firstPreviousHash == null) {
+                        firstPreviousHash = entry.previousHash();
+                    }
+                    check.entry(entry);
+                    writer.entry(entry);
+                    if (entry.merkleBatched()) {
+                        if (batch == null || batch.id() != entry.merkleBatch()) {
+                            batch = MerkleBatches.find(connection, entry.merkleBatch());
+                        }
+                        if (batch != null && batch.lastEntryId() == entry.id()) {
+                            check.batch(batch);
+                            writer.batch(batch);
+                        }
+                    }
+                }
+            }
+        }
+        return firstPreviousHash;
+    }
+
+    /**
+     * Inserts the anchor and deletes what it covers in one transaction.
+     */
+    private ArchiveAnchor seal(char[] passphrase, ArchiveAnchor previous, ArchiveAnchor anchor) throws Exception {
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            Connection connection = session.connection();
+            connection.setAutoCommit(false);
+            try {
+                ArchiveAnchor last = LedgerArchives.last(connection);
+                if ((last == null ? 0L : last.lastId()) != (previous == null ? 0L : previous.lastId())) {
+                    throw new IllegalStateException("Another archival ran meanwhile; " + anchor.period() + " not archived");
+                }
+                ArchiveAnchor inserted = LedgerArchives.insert(session, anchor);
+                PreparedStatement batches = session.prepare(DELETE_BATCHES);
+                batches.setLong(1, anchor.firstId());
+                batches.setLong(2, anchor.lastId());
+                batches.executeUpdate();
+                PreparedStatement entries = session.prepare(DELETE_ENTRIES);
+                entries.setLong(1, anchor.firstId());
+                entries.setLong(2, anchor.lastId());
+                if (entries.executeUpdate() != anchor.entryCount()) {
+                    throw new IllegalStateException("Ledger entries " + anchor.firstId() + " to " + anchor.lastId()
+                            + " changed during archival");
+                }
+                connection.commit();
+                return inserted;
+            } catch (Exception ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static long firstId(Connection connection) throws Exception {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_FIRST);
+             ResultSet rs = statement.executeQuery()) {
+            return rs.next() ? rs.getLong("id") : 0L;
+        }
+    }
+
+    /**
+     * Last entry created before end, moved back before the start of its
+     * Merkle batch if the batch goes on after it. 0 if there is none.
+     */
+    private static long lastIdBefore(Connection connection, long end) throws Exception {
+        long lastId;
+        long batchId;
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_LAST_BEFORE)) {
+            statement.setLong(1, end);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return 0L;
+                }
+                lastId = rs.getLong("id");
+                batchId = rs.getLong("merkle_batch");
+            }
+        }
+        if (batchId <= 0) {
+            return lastId;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_BATCH_END)) {
+            statement.setLong(1, batchId);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() && rs.getLong(1) > lastId ? batchId - 1 : lastId;
+            }
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * SQL for the ledger_archive table, the archive file format and the checks
+ * shared by archival and verification.
+ *
+ * An archive file holds the entries of one period, with their Merkle batches,
+ * exactly as they were in the ledger table:
+ *
+ * <pre>
+ * int   magic "PARC"
+ * int   version
+ *       GZIP stream:
+ * UTF   period
+ * long  first id, last id
+ *       records, each after a type byte:
+ *       1 entry  id, created at, format (byte), checkpoint (boolean), Merkle
+ *                batch, leaf index (int), previous hash, current hash,
+ *                signature (short length), key id (UTF), sale (int length, UTF-8)
+ *       2 batch  id, last entry id, leaf count (int), root, signature and key
+ *                id (UTF), created at
+ *       0 end    entry count, first previous hash, last hash, format (int)
+ * </pre>
+ *
+ * The digest of an archive is the SHA-256 of the whole file. Its anchor is
+ * signed over {@link #signingPayload}, which binds the digest to the id range
+ * and the hashes the chain enters and leaves the archive with.
+ */
+final class LedgerArchives {
+
+    static final int MAGIC = 0x50415243;
+    static final int VERSION = 1;
+
+    private static final String TABLE_EXISTS = "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'ledger_archive'";
+    private static final String SELECT_ALL = "SELECT id, period, first_id, last_id, entry_count, first_previous_hash, last_hash, format, file, digest, signature, key_id, created_at "
+            + "FROM ledger_archive ORDER BY first_id ASC";
+    private static final String INSERT = "INSERT INTO ledger_archive(period, first_id, last_id, entry_count, first_previous_hash, last_hash, format, file, digest, signature, key_id, created_at) "
+            + "VALUES(?,?,?,?,?,?,?,?,?,?,?,?) RETURNING id";
+    private static final byte[] SIGNING_DOMAIN = "pepito-ledger-archive-v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_ENTRY = 1;
+    private static final byte RECORD_BATCH = 2;
+    private static final int BUFFER = 64 << 10;
+
+    private LedgerArchives() {
+    }
+
+    /**
+     * Anchors in chain order; none for a database that predates archival and
+     * is opened read-only.
+     */
+    static List<ArchiveAnchor> list(Connection connection) throws SQLException {
+        List<ArchiveAnchor> anchors = new ArrayList<>();
+        try (PreparedStatement exists = connection.prepareStatement(TABLE_EXISTS);
+             ResultSet rs = exists.executeQuery()) {
+            if (!rs.next()) {
+                return anchors;
+            }
+        }
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_ALL);
+             ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                anchors.add(new ArchiveAnchor(
+                        rs.getLong("id"),
+                        rs.getString("period"),
+                        rs.getLong("first_id"),
+                        rs.getLong("last_id"),
+                        rs.getLong("entry_count"),
+                        rs.getBytes("first_previous_hash"),
+                        rs.getBytes("last_hash"),
+                        rs.getInt("format"),
+                        rs.getString("file"),
+                        rs.getBytes("digest"),
+                        rs.getBytes("signature"),
+                        rs.getString("key_id"),
+                        rs.getLong("created_at")
+                ));
+            }
+        }
+        return anchors;
+    }
+
+    static ArchiveAnchor last(Connection connection) throws SQLException {
+        List<ArchiveAnchor> anchors = list(connection);
+        return anchors.isEmpty() ? null : anchors.get(anchors.size() - 1);
+    }
+
+    /**
+     * Inserts the anchor inside the caller's transaction.
+     *
+     * @return the anchor with its row id
+     */
+    static ArchiveAnchor insert(DatabaseSession session, ArchiveAnchor anchor) throws SQLException {
+        PreparedStatement statement = session.prepare(INSERT);
+        statement.setString(1, anchor.period());
+        statement.setLong(2, anchor.firstId());
+        statement.setLong(3, anchor.lastId());
+        statement.setLong(4, anchor.entryCount());
+        statement.setBytes(5, anchor.firstPreviousHash());
+        statement.setBytes(6, anchor.lastHash());
+        statement.setInt(7, anchor.format());
+        statement.setString(8, anchor.file());
+        statement.setBytes(9, anchor.digest());
+        statement.setBytes(10, anchor.signature());
+        statement.setString(11, anchor.keyId());
+        statement.setLong(12, anchor.createdAt());
+        try (ResultSet rs = statement.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("Archive insert returned no id");
+            }
+            return new ArchiveAnchor(rs.getLong(1), anchor.period(), anchor.firstId(), anchor.lastId(), anchor.entryCount(),
+                    anchor.firstPreviousHash(), anchor.lastHash(), anchor.format(), anchor.file(), anchor.digest(),
+                    anchor.signature(), anchor.keyId(), anchor.createdAt());
+        }
+    }
+
+    /**
+     * Bytes covered by the anchor signature: a domain tag, the period, the id
+     * range, the entry count, the format, both chain hashes and the digest.
+     */
+    static byte[] signingPayload(ArchiveAnchor anchor) {
+        byte[] period = anchor.period().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(SIGNING_DOMAIN.length + Integer.BYTES + period.length + 3 * Long.BYTES
+                + Integer.BYTES + anchor.firstPreviousHash().length + anchor.lastHash().length + anchor.digest().length);
+        payload.put(SIGNING_DOMAIN)
+                .putInt(period.length).put(period)
+                .putLong(anchor.firstId()).putLong(anchor.lastId()).putLong(anchor.entryCount())
+                .putInt(anchor.format())
+                .put(anchor.firstPreviousHash()).put(anchor.lastHash()).put(anchor.digest());
+        return payload.array();
+    }
+
+    /**
+     * Checks that each anchor continues the chain where the previous one
+     * left it and, when verifier checks signatures, its signature and the
+     * validity range of its key. This is all an archive costs without deep
+     * verification.
+     *
+     * @return the last anchor, where the ledger table continues, or null
+     */
+    static ArchiveAnchor check(List<ArchiveAnchor> anchors, EntryVerifier verifier, List<String> errors) throws Exception {
+        ArchiveAnchor previous = null;
+        for (ArchiveAnchor anchor : anchors) {
+            byte[] expected = previous == null ? ChainHashing.GENESIS_HASH : previous.lastHash();
+            if (!Arrays.equals(anchor.firstPreviousHash(), expected)
+                    || (previous != null && (anchor.firstId() <= previous.lastId() || anchor.format() < previous.format()))) {
+                errors.add("El archivo del periodo " + anchor.period() + " no enlaza con la cadena");
+            }
+            String signatureError = verifier.verifiesSignatures() ? anchorSignatureError(anchor, verifier) : null;
+            if (signatureError != null) {
+                errors.add(signatureError);
+            }
+            previous = anchor;
+        }
+        return previous;
+    }
+
+    /**
+     * The newest anchor with a valid signature by a key in its validity
+     * range, for verification that starts at the last trusted point. Invalid
+     * anchors are reported and skipped.
+     */
+    static ArchiveAnchor newestValid(List<ArchiveAnchor> anchors, EntryVerifier verifier, List<String> errors) throws Exception {
+        for (int i = anchors.size() - 1; i >= 0; i--) {
+            ArchiveAnchor anchor = anchors.get(i);
+            String signatureError = verifier.verifiesSignatures() ? anchorSignatureError(anchor, verifier) : null;
+            if (signatureError == null) {
+                return anchor;
+            }
+            errors.add(signatureError);
+        }
+        return null;
+    }
+
+    /**
+     * The anchor whose id range holds id, or null.
+     */
+    static ArchiveAnchor covering(List<ArchiveAnchor> anchors, long id) {
+        for (ArchiveAnchor anchor : anchors) {
+            if (id >= anchor.firstId() && id <= anchor.lastId()) {
+                return anchor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deep check of one archive: the file digest, every entry and batch in it
+     * as {@link ChainCheck} does, and the anchor against what the file holds.
+     *
+     * @param format highest format before the archive
+     */
+    static void verifyFile(Path directory, ArchiveAnchor anchor, int format, EntryVerifier verifier, List<String> errors) throws Exception {
+        Path file = directory.resolve(anchor.file());
+        if (!Files.isRegularFile(file)) {
+            errors.add("Falta el archivo del periodo " + anchor.period() + ": " + anchor.file());
+            return;
+        }
+        ChainCheck check = new ChainCheck(anchor.firstPreviousHash(), format, verifier, errors);
+        Contents contents;
+        try {
+            contents = read(file, check);
+        } catch (IOException ex) {
+            errors.add("Archivo ilegible del periodo " + anchor.period() + ": " + ex.getMessage());
+            return;
+        }
+        check.finish();
+        if (!MessageDigest.isEqual(contents.digest(), anchor.digest())) {
+            errors.add("Archivo alterado del periodo " + anchor.period());
+        }
+        if (contents.firstId() != anchor.firstId() || contents.lastId() != anchor.lastId()
+                || contents.entryCount() != anchor.entryCount() || check.count() != anchor.entryCount()
+                || contents.format() != anchor.format() || check.format() != anchor.format()
+                || !Arrays.equals(contents.firstPreviousHash(), anchor.firstPreviousHash())
+                || !Arrays.equals(contents.lastHash(), anchor.lastHash())
+                || !Arrays.equals(check.lastHash(), anchor.lastHash())) {
+            errors.add("El archivo del periodo " + anchor.period() + " no coincide con su ancla");
+        }
+    }
+
+    /**
+     * Reads an archive, passing its entries and batches to visitor in file
+     * order.
+     *
+     * @throws IOException if the file is not an archive or is truncated
+     */
+    static Contents read(Path file, StorageService.Visitor visitor) throws Exception {
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), BUFFER)) {
+            DigestInputStream digest = new DigestInputStream(raw, sha256());
+            DataInputStream header = new DataInputStream(digest);
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                throw new IOException("Not a ledger archive: " + file.getFileName());
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(digest, BUFFER), BUFFER));
+            String period = in.readUTF();
+            long firstId = in.readLong();
+            long lastId = in.readLong();
+            byte type;
+            while ((type = in.readByte()) != RECORD_END) {
+                if (type == RECORD_ENTRY) {
+                    visitor.entry(readEntry(in));
+                } else if (type == RECORD_BATCH) {
+                    visitor.batch(readBatch(in));
+                } else {
+                    throw new IOException("Unknown archive record " + type);
+                }
+            }
+            long entryCount = in.readLong();
+            byte[] firstPreviousHash = in.readNBytes(ChainHasher.HASH_LENGTH);
+            byte[] lastHash = in.readNBytes(ChainHasher.HASH_LENGTH);
+            int format = in.readInt();
+            // Reading to the end makes GZIP check its CRC and the digest
+            // cover the whole file.
+            if (in.read() != -1) {
+                throw new IOException("Data after the end of the archive");
+            }
+            digest.transferTo(OutputStream.nullOutputStream());
+            return new Contents(period, firstId, lastId, entryCount, firstPreviousHash, lastHash, format,
+                    digest.getMessageDigest().digest());
+        }
+    }
+
+    private static LedgerEntry readEntry(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        long createdAt = in.readLong();
+        int format = in.readByte();
+        boolean checkpoint = in.readBoolean();
+        long merkleBatch = in.readLong();
+        int leafIndex = in.readInt();
+        byte[] previousHash = in.readNBytes(ChainHasher.HASH_LENGTH);
+        byte[] currentHash = in.readNBytes(ChainHasher.HASH_LENGTH);
+        byte[] signature = in.readNBytes(in.readUnsignedShort());
+        String keyId = in.readUTF();
+        int saleLength = in.readInt();
+        if (saleLength < 0) {
+            throw new IOException("Invalid sale length at entry " + id);
+        }
+        byte[] sale = in.readNBytes(saleLength);
+        if (sale.length != saleLength) {
+            throw new IOException("Archive truncated at entry " + id);
+        }
+        return new LedgerEntry(id, createdAt, new String(sale, StandardCharsets.UTF_8), previousHash, currentHash, signature,
+                keyId, checkpoint, merkleBatch, leafIndex, format);
+    }
+
+    private static MerkleBatch readBatch(DataInputStream in) throws IOException {
+        return new MerkleBatch(in.readLong(), in.readLong(), in.readInt(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong());
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    /**
+     * Why the signature of anchor does not hold, or null if it does. An
+     * archive is sealed after its last entry is appended, so its key must
+     * still have been signing then; a key retired earlier is reported
+     * without checking the signature.
+     */
+    private static String anchorSignatureError(ArchiveAnchor anchor, EntryVerifier verifier) throws Exception {
+        if (!verifier.validAfter(anchor.keyId(), anchor.lastId())) {
+            return "Clave " + anchor.keyId() + " fuera de su vigencia en el archivo del periodo " + anchor.period();
+        }
+        if (!verifier.verifySignature(anchor.keyId(), signingPayload(anchor), anchor.signature())) {
+            return "Firma inválida en el archivo del periodo " + anchor.period();
+        }
+        return null;
+    }
+
+    /**
+     * What {@link #read} found in the trailer of an archive, and the digest of
+     * the file.
+     */
+    record Contents(String period, long firstId, long lastId, long entryCount, byte[] firstPreviousHash,
+                    byte[] lastHash, int format, byte[] digest) {
+    }
+
+    /**
+     * Writes an archive file. The file is complete and on disk only after
+     * {@link #finish}; closing before that leaves a partial file for the
+     * caller to delete.
+     */
+    static final class Writer implements StorageService.Visitor, Closeable {
+
+        private final FileOutputStream file;
+        private final MessageDigest digest = sha256();
+        private final OutputStream buffered;
+        private final GZIPOutputStream gzip;
+        private final DataOutputStream out;
+
+        Writer(Path path, String period, long firstId, long lastId) throws IOException {
+            this.file = new FileOutputStream(path.toFile());
+            this.buffered = new DigestOutputStream(new BufferedOutputStream(file, BUFFER), digest);
+            DataOutputStream header = new DataOutputStream(buffered);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            this.gzip = new GZIPOutputStream(buffered, BUFFER);
+            this.out = new DataOutputStream(new BufferedOutputStream(gzip, BUFFER));
+            out.writeUTF(period);
+            out.writeLong(firstId);
+            out.writeLong(lastId);
+        }
+
+        @Override
+        public void entry(LedgerEntry entry) throws IOException {
+            byte[] sale = entry.saleJson().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(RECORD_ENTRY);
+            out.writeLong(entry.id());
+            out.writeLong(entry.createdAt());
+            out.writeByte(entry.format());
+            out.writeBoolean(entry.checkpoint());
+            out.writeLong(entry.merkleBatch());
+            out.writeInt(entry.leafIndex());
+            out.write(entry.previousHash());
+            out.write(entry.currentHash());
+            out.writeShort(entry.signature().length);
+            out.write(entry.signature());
+            out.writeUTF(entry.keyId());
+            out.writeInt(sale.length);
+            out.write(sale);
+        }
+
+        @Override
+        public void batch(MerkleBatch batch) throws IOException {
+            out.writeByte(RECORD_BATCH);
+            out.writeLong(batch.id());
+            out.writeLong(batch.lastEntryId());
+            out.writeInt(batch.leafCount());
+            out.writeUTF(batch.root());
+            out.writeUTF(batch.signature());
+            out.writeUTF(batch.keyId());
+            out.writeLong(batch.createdAt());
+        }
+
+        /**
+         * Writes the trailer and forces the file to disk.
+         *
+         * @return the digest of the file
+         */
+        byte[] finish(long entryCount, byte[] firstPreviousHash, byte[] lastHash, int format) throws IOException {
+            out.writeByte(RECORD_END);
+            out.writeLong(entryCount);
+            out.write(firstPreviousHash);
+            out.write(lastHash);
+            out.writeInt(format);
+            out.flush();
+            gzip.finish();
+            buffered.flush();
+            file.getChannel().force(true);
+            file.close();
+            return digest.digest();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Verifies entries and batches in chain order without a database: hashes,
+     * linkage from a known hash, signatures (queued in the verifier) and each
+     * Merkle root against the entries read before it, which must end at its
+     * last entry id with each leaf at the index its id gives. Used to check a
+     * range before it is sealed and to check an archive deeply.
+     */
+    static final class ChainCheck implements StorageService.Visitor {
+
+        private final EntryVerifier verifier;
+        private final List<String> errors;
+        private final List<byte[]> leaves = new ArrayList<>();
+        private final List<Long> unsealed = new ArrayList<>();
+        private byte[] expectedPrev;
+        private int format;
+        private long openBatch;
+        private boolean consistent = true;
+        private long count;
+
+        /**
+         * @param expectedPrev hash the first entry must link to
+         * @param format highest format before the first entry
+         */
+        ChainCheck(byte[] expectedPrev, int format, EntryVerifier verifier, List<String> errors) {
+            this.expectedPrev = expectedPrev;
+            this.format = format;
+            this.verifier = verifier;
+            this.errors = errors;
+        }
+
+        @Override
+        public void entry(LedgerEntry entry) throws Exception {
+            if (!Arrays.equals(entry.previousHash(), expectedPrev)) {
+                errors.add("Prev hash mismatch at id " + entry.id());
+            }
+            if (entry.format() < format) {
+                errors.add(EntryVerifier.downgradeError(entry.id()));
+            }
+            if (entry.merkleBatch() != openBatch) {
+                closeBatch();
+                openBatch = entry.merkleBatch();
+            }
+            if (entry.merkleBatched()) {
+                verifier.checkHash(entry, errors);
+                if (!EntryVerifier.covers(entry.merkleBatch(), Long.MAX_VALUE, entry.id(), entry.leafIndex())) {
+                    errors.add(EntryVerifier.outOfBatchError(entry.id(), entry.merkleBatch()));
+                }
+                consistent &= entry.leafIndex() == leaves.size();
+                leaves.add(entry.currentHash());
+                unsealed.add(entry.id());
+            } else {
+                verifier.check(entry, errors);
+            }
+            expectedPrev = entry.currentHash();
+            format = Math.max(format, entry.format());
+            count++;
+        }
+
+        @Override
+        public void batch(MerkleBatch batch) throws Exception {
+            boolean matches = batch.id() == openBatch && consistent && !unsealed.isEmpty()
+                    && leaves.size() == batch.leafCount() && unsealed.get(unsealed.size() - 1) == batch.lastEntryId();
+            verifier.checkBatch(batch, matches ? leaves : null, errors, false);
+            if (batch.id() == openBatch) {
+                leaves.clear();
+                unsealed.clear();
+                consistent = true;
+                // Entries after it that name the same batch are outside it.
+                openBatch = 0L;
+            }
+        }
+
+        /**
+         * Reports entries left without a batch and checks the queued
+         * signatures.
+         */
+        void finish() throws Exception {
+            closeBatch();
+            verifier.flush();
+        }
+
+        long count() {
+            return count;
+        }
+
+        byte[] lastHash() {
+            return expectedPrev;
+        }
+
+        int format() {
+            return format;
+        }
+
+        private void closeBatch() {
+            for (long id : unsealed) {
+                errors.add("Lote Merkle ausente para la entrada " + id);
+            }
+            leaves.clear();
+            unsealed.clear();
+            consistent = true;
+            openBatch = 0L;
+        }
+    }
+}
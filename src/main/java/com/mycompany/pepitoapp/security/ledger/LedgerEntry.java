@@ -1,15 +1,44 @@
 package com.mycompany.pepitoapp.security.ledger;
 
 /**
- * Immutable view of a ledger entry persisted in SQLite.
+ * Immutable view of a ledger entry as kept by a {@link StorageService}.
+ * Hashes (32 bytes) and signatures (64 bytes) are raw bytes whatever the
+ * storage format; the arrays are shared, not copied, and must not be modified.
+ *
+ * format tells how the hash and signature were computed, see
+ * {@link #FORMAT_V1} and {@link #FORMAT_V2}.
+ *
+ * Entries appended in Merkle mode carry an empty signature; merkleBatch is the
+ * id of the signed batch that covers them (0 otherwise) and leafIndex their
+ * position in its tree (-1 otherwise).
  */
 public record LedgerEntry(
         long id,
         long createdAt,
         String saleJson,
-        String previousHash,
-        String currentHash,
-        String signature,
+        byte[] previousHash,
+        byte[] currentHash,
+        byte[] signature,
         String keyId,
-        boolean checkpoint
-) {}
+        boolean checkpoint,
+        long merkleBatch,
+        int leafIndex,
+        int format
+) {
+
+    /**
+     * Original text format: hash over Base64(previousHash) + saleJson, signature
+     * over the Base64 text of the hash.
+     */
+    public static final int FORMAT_V1 = 1;
+
+    /**
+     * Binary format: hash over the raw previous hash and saleJson, signature
+     * over the raw hash.
+     */
+    public static final int FORMAT_V2 = 2;
+
+    public boolean merkleBatched() {
+        return merkleBatch > 0;
+    }
+}
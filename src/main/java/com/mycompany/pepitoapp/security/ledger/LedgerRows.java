@@ -0,0 +1,51 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Base64;
+
+/**
+ * Column list and row mapping shared by every query that reads full ledger
+ * entries.
+ *
+ * Hashes and signatures live in the *_bin BLOB columns. Rows written before
+ * the binary storage and not migrated yet still keep them as Base64 in the
+ * original TEXT columns, with the BLOB columns null.
+ */
+final class LedgerRows {
+
+    static final String COLUMNS = "id, created_at, sale_json, previous_hash, current_hash, signature, key_id, checkpoint, merkle_batch, leaf_index, format, "
+            + "previous_hash_bin, current_hash_bin, signature_bin";
+
+    private LedgerRows() {
+    }
+
+    static LedgerEntry read(ResultSet rs) throws SQLException {
+        return new LedgerEntry(
+                rs.getLong("id"),
+                rs.getLong("created_at"),
+                rs.getString("sale_json"),
+                bytes(rs, "previous_hash_bin", "previous_hash"),
+                bytes(rs, "current_hash_bin", "current_hash"),
+                bytes(rs, "signature_bin", "signature"),
+                rs.getString("key_id"),
+                rs.getInt("checkpoint") == 1,
+                rs.getLong("merkle_batch"),
+                rs.getObject("leaf_index") == null ? -1 : rs.getInt("leaf_index"),
+                rs.getInt("format")
+        );
+    }
+
+    /**
+     * Reads a hash or signature from its BLOB column, falling back to the
+     * Base64 TEXT column of unmigrated rows.
+     */
+    static byte[] bytes(ResultSet rs, String binaryColumn, String textColumn) throws SQLException {
+        byte[] value = rs.getBytes(binaryColumn);
+        if (value != null) {
+            return value;
+        }
+        String text = rs.getString(textColumn);
+        return text == null ? new byte[0] : Base64.getDecoder().decode(text);
+    }
+}
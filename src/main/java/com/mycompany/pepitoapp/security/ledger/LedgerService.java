@@ -1,13 +1,10 @@
 package com.mycompany.pepitoapp.security.ledger;
 
+import com.mycompany.pepitoapp.security.app.MetricsCollector;
+import com.mycompany.pepitoapp.security.app.MetricsCollector.Metric;
 import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
 import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Base64;
@@ -15,18 +12,145 @@ import java.util.List;
 import java.util.Objects;
 
 /**
- * Manages the hash-chain ledger and verification routines.
+ * Manages the hash-chain ledger and verification routines. Entries are kept by
+ * a {@link StorageService}: the SQLite ledger table by default, or the
+ * segment log of {@link SegmentLogStorageService}.
+ *
+ * The chain head (last id and hash) is kept in memory so appends do not read
+ * the storage. It is loaded once, advanced only after a successful commit and
+ * reloaded when an append fails or another writer moved the chain.
+ *
+ * Every {@link #setCheckpointInterval checkpoint interval} sales, and at each
+ * cash close, a signed checkpoint entry is chained like any other entry so
+ * verification can start from it instead of from genesis.
+ *
+ * New entries use the binary v2 format (raw 32-byte hashes and 64-byte
+ * signatures in BLOB columns). Entries written in the original text format keep
+ * their v1 hashes and signatures; {@link #migrateToBinaryStorage} moves them to
+ * the BLOB columns without changing what was signed, and the first v2 entry
+ * chains from the last v1 hash.
+ *
+ * Closed periods can be moved out of the storage by {@link LedgerArchiver};
+ * verification then checks each archive by its signed anchor, or reads it
+ * again with {@link #verifyChainDeep}.
+ *
+ * With a {@link KeyRegistry} attached, appends are signed with its active
+ * key, {@link #rotateKey} switches to the next one between two appends, and
+ * verification resolves keys from the registry and checks each against the
+ * ids it was valid for.
+ *
+ * With {@link SaleAggregates} attached, every append also updates the running
+ * sales totals in its own transaction, and each cash-close checkpoint carries
+ * the totals of the shift it closes, so they are signed with the chain.
+ *
+ * In {@link SigningMode#MERKLE_BATCH} mode each append transaction signs only
+ * the Merkle root of its entries, in the same transaction, so a committed entry
+ * is never left unsigned; {@link #inclusionProof} proves a single boleta.
  */
 public class LedgerService {
 
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
+    public static final String CHECKPOINT_INTERVAL = "intervalo";
+    public static final String CHECKPOINT_CASH_CLOSE = "cierre";
+    public static final int DEFAULT_MIGRATION_BATCH = 500;
+    private static final int MAX_APPEND_ATTEMPTS = 2;
+    private static final byte[] NO_SIGNATURE = new byte[0];
+    private static final MetricsCollector METRICS = MetricsCollector.getInstance();
+
     private final SecureDatabaseProvider databaseProvider;
+    private final StorageService storage;
+    private final Object appendLock = new Object();
+    private volatile ChainHead head;
+    private volatile int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private volatile SigningMode signingMode = SigningMode.PER_ENTRY;
+    private volatile KeyRegistry keyRegistry;
+    private volatile SaleAggregates saleAggregates;
 
     public LedgerService() {
         this(new SecureDatabaseProvider());
     }
 
     public LedgerService(SecureDatabaseProvider databaseProvider) {
+        this(databaseProvider, new SqliteStorageService(databaseProvider));
+    }
+
+    /**
+     * @param databaseProvider local database, also used by callers for
+     *                         everything that is not the ledger
+     * @param storage where the entries are kept
+     */
+    public LedgerService(SecureDatabaseProvider databaseProvider, StorageService storage) {
         this.databaseProvider = Objects.requireNonNull(databaseProvider, "databaseProvider");
+        this.storage = Objects.requireNonNull(storage, "storage");
+    }
+
+    public SecureDatabaseProvider getDatabaseProvider() {
+        return databaseProvider;
+    }
+
+    public StorageService getStorage() {
+        return storage;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @param interval sales between automatic checkpoints, or 0 to write
+     *                 checkpoints only on explicit request
+     */
+    public void setCheckpointInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Checkpoint interval must not be negative");
+        }
+        this.checkpointInterval = interval;
+    }
+
+    public SigningMode getSigningMode() {
+        return signingMode;
+    }
+
+    /**
+     * Takes effect from the next append; entries already written keep the
+     * mode they were signed with.
+     */
+    public void setSigningMode(SigningMode mode) {
+        this.signingMode = Objects.requireNonNull(mode, "mode");
+    }
+
+    public KeyRegistry getKeyRegistry() {
+        return keyRegistry;
+    }
+
+    /**
+     * Once set, appends are signed with the active key of the registry and
+     * the keyId passed to them is used only while it has no active key.
+     */
+    public void setKeyRegistry(KeyRegistry keyRegistry) {
+        this.keyRegistry = keyRegistry;
+    }
+
+    public SaleAggregates getSaleAggregates() {
+        return saleAggregates;
+    }
+
+    /**
+     * Once set, every append folds its sales into saleAggregates before it
+     * commits; null detaches them. Rows appended while detached are counted
+     * by {@link SaleAggregates#catchUp}, or by the first append after the
+     * totals are attached again, whichever comes first.
+     *
+     * @throws IllegalStateException if the storage is not SQLite
+     */
+    public void setSaleAggregates(SaleAggregates saleAggregates) {
+        if (!(storage instanceof SqliteStorageService sqlite)) {
+            throw new IllegalStateException("Sale aggregates need the " + SqliteStorageService.NAME + " storage");
+        }
+        synchronized (appendLock) {
+            sqlite.setAppendHook(saleAggregates == null ? null : saleAggregates::apply);
+            this.saleAggregates = saleAggregates;
+        }
     }
 
     public boolean appendSignedEntry(String saleJson, String keyId, char[] passphrase, CryptoService cryptoService) {
@@ -34,13 +158,8 @@ public class LedgerService {
         Objects.requireNonNull(keyId, "keyId");
         Objects.requireNonNull(passphrase, "passphrase");
         Objects.requireNonNull(cryptoService, "cryptoService");
-        try (Connection connection = databaseProvider.getConnection(passphrase)) {
-            connection.setAutoCommit(false);
-            String prevHash = findLastHash(connection);
-            String currentHash = hash(prevHash + saleJson);
-            String signature = cryptoService.sign(currentHash.getBytes(StandardCharsets.UTF_8), keyId, passphrase);
-            insertEntry(connection, saleJson, prevHash, currentHash, signature, keyId);
-            connection.commit();
+        try {
+            appendBatch(List.of(saleJson), keyId, passphrase, cryptoService);
             return true;
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -48,86 +167,319 @@ public class LedgerService {
         }
     }
 
-    public VerificationResult verifyChain(char[] passphrase, CryptoService cryptoService) {
-        List<String> errors = new ArrayList<>();
-        try (Connection connection = databaseProvider.getConnection(passphrase)) {
-            List<LedgerEntry> entries = loadEntries(connection);
-            String expectedPrev = hash("GENESIS");
-            for (LedgerEntry entry : entries) {
-                if (!entry.previousHash().equals(expectedPrev)) {
-                    errors.add("Prev hash mismatch at id " + entry.id());
-                }
-                String recomputedHash = hash(entry.previousHash() + entry.saleJson());
-                if (!recomputedHash.equals(entry.currentHash())) {
-                    errors.add("Hash mismatch at id " + entry.id());
-                }
-                if (cryptoService != null) {
-                    boolean validSignature = cryptoService.verify(
-                            entry.currentHash().getBytes(StandardCharsets.UTF_8),
-                            entry.signature(),
-                            entry.keyId(),
-                            passphrase
-                    );
-                    if (!validSignature) {
-                        errors.add("Firma inválida en la entrada " + entry.id());
+    /**
+     * Chains, hashes and signs the given sales in order and commits them in a
+     * single transaction, adding interval checkpoints where they fall due.
+     *
+     * @return the ledger ids assigned to each sale, in the same order
+     */
+    long[] appendBatch(List<String> saleJsons, String keyId, char[] passphrase, CryptoService cryptoService) throws Exception {
+        return append(saleJsons, null, keyId, passphrase, cryptoService);
+    }
+
+    /**
+     * Appends a signed checkpoint entry, for example at cash close.
+     *
+     * @return the ledger id of the checkpoint
+     */
+    public long appendCheckpoint(String reason, String keyId, char[] passphrase, CryptoService cryptoService) throws Exception {
+        Objects.requireNonNull(reason, "reason");
+        long[] ids = append(List.of(), reason, keyId, passphrase, cryptoService);
+        return ids[0];
+    }
+
+    /**
+     * @return ids of the sales, or the id of the explicit checkpoint when
+     *         there are no sales
+     */
+    private long[] append(List<String> saleJsons, String checkpointReason, String keyId, char[] passphrase, CryptoService cryptoService) throws Exception {
+        if (saleJsons.isEmpty() && checkpointReason == null) {
+            return new long[0];
+        }
+        long start = System.nanoTime();
+        synchronized (appendLock) {
+            try {
+                for (int attempt = 1; attempt <= MAX_APPEND_ATTEMPTS; attempt++) {
+                    ChainHead current = head != null ? head : storage.readHead(passphrase);
+                    ChainAppend chain = new ChainAppend(current, signingKey(keyId), passphrase, cryptoService, signingMode == SigningMode.MERKLE_BATCH);
+                    int[] positions = new int[saleJsons.isEmpty() ? 1 : saleJsons.size()];
+                    for (int i = 0; i < saleJsons.size(); i++) {
+                        positions[i] = chain.append(saleJsons.get(i), false);
+                        int interval = checkpointInterval;
+                        if (interval > 0 && chain.sinceCheckpoint >= interval) {
+                            chain.appendCheckpoint(CHECKPOINT_INTERVAL);
+                        }
+                    }
+                    if (checkpointReason != null) {
+                        int checkpoint = chain.appendCheckpoint(checkpointReason, closeTotals(checkpointReason, passphrase));
+                        if (saleJsons.isEmpty()) {
+                            positions[0] = checkpoint;
+                        }
+                    }
+                    long[] stored = storage.append(passphrase, current, chain.entries, chain.sealMerkleBatch());
+                    if (stored == null) {
+                        // Another writer appended since the head was cached.
+                        head = null;
+                        continue;
                     }
+                    head = new ChainHead(stored[stored.length - 1], chain.prevHash, chain.sinceCheckpoint);
+                    long[] ids = new long[positions.length];
+                    for (int i = 0; i < positions.length; i++) {
+                        ids[i] = stored[positions[i]];
+                    }
+                    METRICS.recordSince(Metric.LEDGER_APPEND, start);
+                    return ids;
                 }
-                expectedPrev = entry.currentHash();
+                throw new IllegalStateException("Ledger head kept moving during append");
+            } catch (Exception ex) {
+                head = null;
+                throw ex;
             }
-        } catch (Exception ex) {
-            errors.add("Verification failed: " + ex.getMessage());
         }
-        return new VerificationResult(errors.isEmpty(), errors);
     }
 
-    private List<LedgerEntry> loadEntries(Connection connection) throws SQLException {
-        String query = "SELECT id, created_at, sale_json, previous_hash, current_hash, signature, key_id, checkpoint FROM ledger ORDER BY id ASC";
-        try (PreparedStatement statement = connection.prepareStatement(query)) {
-            ResultSet rs = statement.executeQuery();
-            List<LedgerEntry> entries = new ArrayList<>();
-            while (rs.next()) {
-                entries.add(new LedgerEntry(
-                        rs.getLong("id"),
-                        rs.getLong("created_at"),
-                        rs.getString("sale_json"),
-                        rs.getString("previous_hash"),
-                        rs.getString("current_hash"),
-                        rs.getString("signature"),
-                        rs.getString("key_id"),
-                        rs.getInt("checkpoint") == 1
-                ));
-            }
-            return entries;
+    /**
+     * Switches signing to the next key of the registry between two appends:
+     * the active key is retired after the current head and the next key signs
+     * every entry from the following id on.
+     *
+     * @return the new active key
+     * @throws IllegalStateException if there is no key registry or no next key
+     */
+    public KeyRegistry.SigningKey rotateKey(char[] passphrase) throws Exception {
+        KeyRegistry registry = keyRegistry;
+        if (registry == null) {
+            throw new IllegalStateException("No key registry attached");
+        }
+        synchronized (appendLock) {
+            ChainHead current = head != null ? head : storage.readHead(passphrase);
+            head = current;
+            return registry.activateNext(current.lastId(), passphrase);
         }
     }
 
-    private void insertEntry(Connection connection, String saleJson, String prevHash, String currentHash, String signature, String keyId) throws SQLException {
-        String insert = "INSERT INTO ledger(created_at, sale_json, previous_hash, current_hash, signature, key_id, checkpoint) VALUES(?,?,?,?,?,?,0)";
-        try (PreparedStatement statement = connection.prepareStatement(insert)) {
-            statement.setLong(1, Instant.now().getEpochSecond());
-            statement.setString(2, saleJson);
-            statement.setString(3, prevHash);
-            statement.setString(4, currentHash);
-            statement.setString(5, signature);
-            statement.setString(6, keyId);
-            statement.executeUpdate();
+    /**
+     * Totals of the shift a cash close ends, or null for other checkpoints
+     * and without aggregates. Read under the append lock, so no sale can
+     * slip in between them and the checkpoint.
+     */
+    private SalesTotals closeTotals(String reason, char[] passphrase) throws Exception {
+        SaleAggregates aggregates = saleAggregates;
+        if (aggregates == null || !CHECKPOINT_CASH_CLOSE.equals(reason)) {
+            return null;
         }
+        return aggregates.openShift(passphrase);
     }
 
-    private String findLastHash(Connection connection) throws SQLException {
-        String query = "SELECT current_hash FROM ledger ORDER BY id DESC LIMIT 1";
-        try (PreparedStatement statement = connection.prepareStatement(query)) {
-            ResultSet rs = statement.executeQuery();
-            if (rs.next()) {
-                return rs.getString(1);
-            }
-            return hash("GENESIS");
+    private String signingKey(String keyId) {
+        KeyRegistry registry = keyRegistry;
+        KeyRegistry.SigningKey active = registry == null ? null : registry.active();
+        return active == null ? keyId : active.keyId();
+    }
+
+    /**
+     * Moves the hashes and signatures of text-format rows into the BLOB
+     * columns, batchSize rows per transaction, so appends interleave with the
+     * migration. The rows keep format 1, and therefore their original hash
+     * and signature. Stops early, between batches, if the thread is
+     * interrupted. Safe to run again; migrated rows are skipped. Storages
+     * without a text format have nothing to migrate.
+     *
+     * @return number of rows migrated
+     */
+    public long migrateToBinaryStorage(char[] passphrase, int batchSize) throws Exception {
+        return storage.migrateToBinaryStorage(passphrase, batchSize);
+    }
+
+    /**
+     * Loads the chain head from the storage. Called at startup so the first
+     * sale does not pay for the lookup; appends also load it lazily.
+     */
+    public void loadHead(char[] passphrase) throws Exception {
+        synchronized (appendLock) {
+            head = storage.readHead(passphrase);
         }
     }
 
-    private String hash(String data) throws Exception {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] out = digest.digest(data.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(out);
+    public VerificationResult verifyChain(char[] passphrase, CryptoService cryptoService) {
+        return verifyChain(passphrase, cryptoService, VerificationProgress.NONE);
+    }
+
+    /**
+     * Verifies the whole chain entry by entry as the storage reads it,
+     * reporting progress as it goes. Memory use does not depend on the size
+     * of the ledger.
+     */
+    public VerificationResult verifyChain(char[] passphrase, CryptoService cryptoService, VerificationProgress progress) {
+        long start = System.nanoTime();
+        VerificationResult result = storage.verify(passphrase, keys(cryptoService), progress);
+        METRICS.recordSince(Metric.VERIFY_CHAIN, start);
+        return result;
+    }
+
+    /**
+     * {@link #verifyChain} plus deep verification of the archived periods:
+     * each archive file is read and every entry in it verified again, where
+     * verifyChain checks an archive only by the signature of its anchor.
+     */
+    public VerificationResult verifyChainDeep(char[] passphrase, CryptoService cryptoService, VerificationProgress progress) {
+        long start = System.nanoTime();
+        PublicKeyResolver keys = keys(cryptoService);
+        VerificationResult archives = storage.verifyArchives(passphrase, keys);
+        VerificationResult chain = storage.verify(passphrase, keys, progress);
+        METRICS.recordSince(Metric.VERIFY_CHAIN, start);
+        List<String> errors = new ArrayList<>(chain.errors());
+        errors.addAll(archives.errors());
+        return new VerificationResult(errors.isEmpty(), errors);
+    }
+
+    /**
+     * Verifies only the entries after the last valid checkpoint. The
+     * checkpoint's own hash and signature are checked and, since its hash
+     * covers every earlier entry, it is trusted as the start of the chain.
+     * Invalid checkpoints are reported and skipped in favour of older ones.
+     */
+    public VerificationResult verifyFromCheckpoint(char[] passphrase, CryptoService cryptoService) {
+        return verifyFromCheckpoint(passphrase, cryptoService, VerificationProgress.NONE);
+    }
+
+    public VerificationResult verifyFromCheckpoint(char[] passphrase, CryptoService cryptoService, VerificationProgress progress) {
+        return verifyFromCheckpoint(Long.MAX_VALUE, passphrase, cryptoService, progress);
+    }
+
+    /**
+     * Same as {@link #verifyFromCheckpoint(char[], CryptoService)} starting
+     * from the last valid checkpoint at or before checkpointId.
+     */
+    public VerificationResult verifyFromCheckpoint(long checkpointId, char[] passphrase, CryptoService cryptoService, VerificationProgress progress) {
+        long start = System.nanoTime();
+        VerificationResult result = storage.verifyFromCheckpoint(checkpointId, passphrase,
+                keys(cryptoService), progress);
+        METRICS.recordSince(Metric.VERIFY_FROM_CHECKPOINT, start);
+        return result;
+    }
+
+    /**
+     * Same checks as {@link #verifyChain} on several threads where the storage
+     * supports it. With SQLite the table is split over id ranges on the common
+     * ForkJoinPool, each range reading through its own connection.
+     */
+    public VerificationResult verifyChainParallel(char[] passphrase, CryptoService cryptoService) {
+        long start = System.nanoTime();
+        VerificationResult result = storage.verifyParallel(passphrase, keys(cryptoService));
+        METRICS.recordSince(Metric.VERIFY_PARALLEL, start);
+        return result;
+    }
+
+    /**
+     * Inclusion proof of an entry appended in Merkle mode. Reads only the
+     * entry's batch, and the returned path has O(log n) nodes for a batch of
+     * n entries.
+     *
+     * @throws IllegalArgumentException if the entry does not exist or was
+     *         signed on its own
+     */
+    public MerkleProof inclusionProof(long entryId, char[] passphrase) throws Exception {
+        return storage.inclusionProof(entryId, passphrase);
+    }
+
+    /**
+     * Public keys for verification: the registry's, falling back to the
+     * keystore for keys it does not know, or null to skip signatures.
+     */
+    private PublicKeyResolver keys(CryptoService cryptoService) {
+        if (cryptoService == null) {
+            return null;
+        }
+        KeyRegistry registry = keyRegistry;
+        return registry == null ? cryptoService.publicKeyResolver() : registry.resolver(cryptoService.publicKeyResolver());
+    }
+
+    private static String checkpointJson(String reason, long entries, long lastId, SalesTotals totals) {
+        return "{\"checkpoint\":{\"reason\":\"" + reason + "\",\"entries\":" + entries
+                + ",\"lastId\":" + lastId + ",\"timestamp\":" + Instant.now().getEpochSecond()
+                + (totals == null ? "" : ",\"totales\":" + totals.toJson()) + "}}";
+    }
+
+    /**
+     * Entries of one append, hashed and signed in chain order. They only
+     * reach the storage, and the chain head only moves, once all of them are
+     * ready. Ids are not known until then; the lastId of a checkpoint assumes
+     * they follow the head one by one, which is how both storages number them.
+     */
+    private static final class ChainAppend {
+
+        private final String keyId;
+        private final char[] passphrase;
+        private final CryptoService cryptoService;
+        private final List<byte[]> merkleLeaves;
+        private final List<LedgerEntry> entries = new ArrayList<>();
+        private long lastId;
+        private byte[] prevHash;
+        private long sinceCheckpoint;
+
+        ChainAppend(ChainHead start, String keyId, char[] passphrase, CryptoService cryptoService, boolean merkle) {
+            this.keyId = Objects.requireNonNull(keyId, "keyId");
+            this.passphrase = passphrase;
+            this.cryptoService = Objects.requireNonNull(cryptoService, "cryptoService");
+            this.lastId = start.lastId();
+            this.prevHash = start.lastHash();
+            this.sinceCheckpoint = start.entriesSinceCheckpoint();
+            this.merkleLeaves = merkle ? new ArrayList<>() : null;
+        }
+
+        /**
+         * @return position of the entry in this append
+         */
+        int append(String json, boolean checkpoint) throws Exception {
+            long start = System.nanoTime();
+            byte[] currentHash = ChainHashing.chain(LedgerEntry.FORMAT_V2, prevHash, json);
+            METRICS.recordSince(Metric.LEDGER_HASH, start);
+            byte[] signature = NO_SIGNATURE;
+            int leafIndex = -1;
+            if (merkleLeaves != null) {
+                leafIndex = merkleLeaves.size();
+                merkleLeaves.add(currentHash);
+            } else {
+                start = System.nanoTime();
+                signature = cryptoService.signBytes(currentHash, keyId, passphrase);
+                METRICS.recordSince(Metric.LEDGER_SIGN, start);
+            }
+            entries.add(new LedgerEntry(0L, Instant.now().getEpochSecond(), json, prevHash, currentHash, signature, keyId,
+                    checkpoint, 0L, leafIndex, LedgerEntry.FORMAT_V2));
+            lastId++;
+            prevHash = currentHash;
+            sinceCheckpoint = checkpoint ? 0 : sinceCheckpoint + 1;
+            return entries.size() - 1;
+        }
+
+        int appendCheckpoint(String reason) throws Exception {
+            return appendCheckpoint(reason, null);
+        }
+
+        /**
+         * @param totals sales totals to sign into the checkpoint, or null
+         */
+        int appendCheckpoint(String reason, SalesTotals totals) throws Exception {
+            return append(checkpointJson(reason, sinceCheckpoint, lastId, totals), true);
+        }
+
+        /**
+         * Signs the root over every entry of this append, so the batch is
+         * stored in the same transaction as its entries.
+         *
+         * @return the batch, or null in per-entry mode
+         */
+        MerkleBatch sealMerkleBatch() throws Exception {
+            if (merkleLeaves == null || merkleLeaves.isEmpty()) {
+                return null;
+            }
+            byte[] root = MerkleTree.root(merkleLeaves);
+            long start = System.nanoTime();
+            String signature = cryptoService.sign(root, keyId, passphrase);
+            METRICS.recordSince(Metric.LEDGER_SIGN, start);
+            return new MerkleBatch(0L, 0L, merkleLeaves.size(), Base64.getEncoder().encodeToString(root), signature,
+                    keyId, Instant.now().getEpochSecond());
+        }
     }
 }
@@ -0,0 +1,15 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+/**
+ * Signed Merkle root covering the ledger entries firstEntryId..lastEntryId.
+ * The batch id is the id of its first entry.
+ */
+public record MerkleBatch(
+        long id,
+        long lastEntryId,
+        int leafCount,
+        String root,
+        String signature,
+        String keyId,
+        long createdAt
+) {}
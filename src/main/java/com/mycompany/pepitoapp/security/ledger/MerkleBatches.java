@@ -0,0 +1,140 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * SQL for the merkle_batch table and the leaves each batch covers.
+ */
+final class MerkleBatches {
+
+    private static final String SELECT_BATCH = "SELECT id, last_entry_id, leaf_count, root, signature, key_id, created_at FROM merkle_batch WHERE id = ?";
+    private static final String SELECT_LEAVES = "SELECT id, current_hash, current_hash_bin, merkle_batch, leaf_index FROM ledger WHERE id BETWEEN ? AND ? ORDER BY id ASC";
+    private static final String SELECT_ENTRY = "SELECT previous_hash, current_hash, previous_hash_bin, current_hash_bin, merkle_batch, leaf_index, format FROM ledger WHERE id = ?";
+    private static final String SELECT_LAST_LEAF = "SELECT merkle_batch, leaf_index FROM ledger WHERE id = ?";
+    private static final String INSERT_BATCH = "INSERT INTO merkle_batch(id, last_entry_id, leaf_count, root, signature, key_id, created_at) VALUES(?,?,?,?,?,?,?)";
+    private static final String ASSIGN_BATCH = "UPDATE ledger SET merkle_batch = ? WHERE id BETWEEN ? AND ?";
+
+    private MerkleBatches() {
+    }
+
+    static MerkleBatch find(Connection connection, long batchId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_BATCH)) {
+            statement.setLong(1, batchId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return new MerkleBatch(
+                        rs.getLong("id"),
+                        rs.getLong("last_entry_id"),
+                        rs.getInt("leaf_count"),
+                        rs.getString("root"),
+                        rs.getString("signature"),
+                        rs.getString("key_id"),
+                        rs.getLong("created_at")
+                );
+            }
+        }
+    }
+
+    /**
+     * Leaf hashes of the batch in tree order, or null when the rows in its id
+     * range do not match the batch (missing, extra or reordered leaves).
+     */
+    static List<byte[]> leaves(Connection connection, MerkleBatch batch) throws SQLException {
+        List<byte[]> leaves = new ArrayList<>(batch.leafCount());
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_LEAVES)) {
+            statement.setLong(1, batch.id());
+            statement.setLong(2, batch.lastEntryId());
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getLong("merkle_batch") != batch.id() || rs.getInt("leaf_index") != leaves.size()) {
+                        return null;
+                    }
+                    leaves.add(LedgerRows.bytes(rs, "current_hash_bin", "current_hash"));
+                }
+            }
+        }
+        return leaves.size() == batch.leafCount() ? leaves : null;
+    }
+
+    /**
+     * Whether the last entry of the batch exists and is its last leaf. A
+     * batch whose last_entry_id is past the chain head, or lands on an entry
+     * of another batch, is never reached, so its root is never checked.
+     */
+    static boolean closes(Connection connection, MerkleBatch batch) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_LAST_LEAF)) {
+            statement.setLong(1, batch.lastEntryId());
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() && rs.getLong("merkle_batch") == batch.id()
+                        && rs.getInt("leaf_index") == batch.lastEntryId() - batch.id();
+            }
+        }
+    }
+
+    static MerkleProof proof(Connection connection, long entryId) throws SQLException {
+        long batchId;
+        int leafIndex;
+        int format;
+        byte[] previousHash;
+        byte[] currentHash;
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_ENTRY)) {
+            statement.setLong(1, entryId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    throw new IllegalArgumentException("No ledger entry with id " + entryId);
+                }
+                format = rs.getInt("format");
+                previousHash = LedgerRows.bytes(rs, "previous_hash_bin", "previous_hash");
+                currentHash = LedgerRows.bytes(rs, "current_hash_bin", "current_hash");
+                batchId = rs.getLong("merkle_batch");
+                leafIndex = rs.getInt("leaf_index");
+            }
+        }
+        if (batchId <= 0) {
+            throw new IllegalArgumentException("Entry " + entryId + " is not covered by a Merkle batch");
+        }
+        MerkleBatch batch = find(connection, batchId);
+        List<byte[]> leaves = batch == null || !EntryVerifier.covers(batchId, batch.lastEntryId(), entryId, leafIndex)
+                ? null : leaves(connection, batch);
+        if (leaves == null) {
+            throw new SQLException("Merkle batch " + batchId + " is missing or inconsistent");
+        }
+        List<String> path = new ArrayList<>();
+        for (byte[] node : MerkleTree.proof(leaves, leafIndex)) {
+            path.add(Base64.getEncoder().encodeToString(node));
+        }
+        return new MerkleProof(entryId, format, ChainHashing.encode(previousHash), ChainHashing.encode(currentHash), batchId, leafIndex, batch.leafCount(),
+                path, batch.root(), batch.signature(), batch.keyId());
+    }
+
+    /**
+     * Records the signed root and tags its entries, inside the caller's
+     * transaction.
+     */
+    static void insert(DatabaseSession session, long firstId, long lastId, int leafCount, String root,
+                       String signature, String keyId, long createdAt) throws SQLException {
+        PreparedStatement insert = session.prepare(INSERT_BATCH);
+        insert.setLong(1, firstId);
+        insert.setLong(2, lastId);
+        insert.setInt(3, leafCount);
+        insert.setString(4, root);
+        insert.setString(5, signature);
+        insert.setString(6, keyId);
+        insert.setLong(7, createdAt);
+        insert.executeUpdate();
+        PreparedStatement assign = session.prepare(ASSIGN_BATCH);
+        assign.setLong(1, firstId);
+        assign.setLong(2, firstId);
+        assign.setLong(3, lastId);
+        assign.executeUpdate();
+    }
+}
@@ -0,0 +1,69 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Inclusion proof for one boleta appended in {@link SigningMode#MERKLE_BATCH}
+ * mode: its chain hash, the audit path to the batch root and the root
+ * signature. It can be checked with the public key alone, without the ledger.
+ * Hashes and signatures are Base64 so the proof can be printed or shared as text.
+ */
+public record MerkleProof(
+        long entryId,
+        int format,
+        String previousHash,
+        String leafHash,
+        long batchId,
+        int leafIndex,
+        int leafCount,
+        List<String> path,
+        String root,
+        String signature,
+        String keyId
+) {
+
+    public MerkleProof {
+        path = List.copyOf(path);
+    }
+
+    /**
+     * Whether the proof is about this exact sale.
+     */
+    public boolean matches(String saleJson) {
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] hash = ChainHashing.chain(format, decoder.decode(previousHash), saleJson);
+        return MessageDigest.isEqual(hash, decoder.decode(leafHash));
+    }
+
+    /**
+     * Checks the audit path against the root and the root signature against
+     * the public key of keyId.
+     */
+    public boolean verify(PublicKey publicKey) throws GeneralSecurityException {
+        Base64.Decoder decoder = Base64.getDecoder();
+        List<byte[]> nodes = new ArrayList<>(path.size());
+        for (String node : path) {
+            nodes.add(decoder.decode(node));
+        }
+        byte[] rootBytes = decoder.decode(root);
+        if (!MerkleTree.verify(decoder.decode(leafHash), leafIndex, leafCount, nodes, rootBytes)) {
+            return false;
+        }
+        Signature verifier = Signature.getInstance("Ed25519");
+        verifier.initVerify(publicKey);
+        verifier.update(rootBytes);
+        try {
+            return verifier.verify(decoder.decode(signature));
+        } catch (SignatureException ex) {
+            // Thrown for an R that is not a curve point.
+            return false;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merkle tree over ledger hashes, following RFC 6962/9162: leaves are hashed as
+ * SHA-256(0x00 || leaf), interior nodes as SHA-256(0x01 || left || right), and
+ * a tree of n leaves splits at the largest power of two below n, so no node is
+ * ever duplicated.
+ */
+public final class MerkleTree {
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    private MerkleTree() {
+    }
+
+    public static byte[] root(List<byte[]> leaves) {
+        if (leaves.isEmpty()) {
+            throw new IllegalArgumentException("A Merkle tree needs at least one leaf");
+        }
+        return subtreeRoot(digest(), leaves, 0, leaves.size());
+    }
+
+    /**
+     * Audit path for the leaf at index, ordered from the leaf up to the root.
+     * Its length is at most ceil(log2(n)).
+     */
+    public static List<byte[]> proof(List<byte[]> leaves, int index) {
+        if (index < 0 || index >= leaves.size()) {
+            throw new IndexOutOfBoundsException("Leaf " + index + " outside tree of " + leaves.size());
+        }
+        List<byte[]> path = new ArrayList<>();
+        collectPath(digest(), leaves, index, 0, leaves.size(), path);
+        return path;
+    }
+
+    /**
+     * Checks that leaf sits at index in a tree of leafCount leaves with the given
+     * root (RFC 9162, section 2.1.3.2).
+     */
+    public static boolean verify(byte[] leaf, int index, int leafCount, List<byte[]> path, byte[] root) {
+        if (index < 0 || index >= leafCount) {
+            return false;
+        }
+        MessageDigest digest = digest();
+        long fn = index;
+        long sn = leafCount - 1L;
+        byte[] r = leafHash(digest, leaf);
+        for (byte[] p : path) {
+            if (sn == 0) {
+                return false;
+            }
+            if ((fn & 1) == 1 || fn == sn) {
+                r = nodeHash(digest, p, r);
+                if ((fn & 1) == 0) {
+                    while ((fn & 1) == 0 && fn != 0) {
+                        fn >>= 1;
+                        sn >>= 1;
+                    }
+                }
+            } else {
+                r = nodeHash(digest, r, p);
+            }
+            fn >>= 1;
+            sn >>= 1;
+        }
+        return sn == 0 && MessageDigest.isEqual(r, root);
+    }
+
+    private static byte[] subtreeRoot(MessageDigest digest, List<byte[]> leaves, int from, int to) {
+        int n = to - from;
+        if (n == 1) {
+            return leafHash(digest, leaves.get(from));
+        }
+        int k = splitPoint(n);
+        byte[] left = subtreeRoot(digest, leaves, from, from + k);
+        byte[] right = subtreeRoot(digest, leaves, from + k, to);
+        return nodeHash(digest, left, right);
+    }
+
+    private static void collectPath(MessageDigest digest, List<byte[]> leaves, int index, int from, int to, List<byte[]> path) {
+        int n = to - from;
+        if (n == 1) {
+            return;
+        }
+        int k = splitPoint(n);
+        if (index < from + k) {
+            collectPath(digest, leaves, index, from, from + k, path);
+            path.add(subtreeRoot(digest, leaves, from + k, to));
+        } else {
+            collectPath(digest, leaves, index, from + k, to, path);
+            path.add(subtreeRoot(digest, leaves, from, from + k));
+        }
+    }
+
+    /**
+     * Largest power of two strictly smaller than n (n >= 2).
+     */
+    private static int splitPoint(int n) {
+        return Integer.highestOneBit(n - 1);
+    }
+
+    private static byte[] leafHash(MessageDigest digest, byte[] leaf) {
+        digest.update(LEAF_PREFIX);
+        return digest.digest(leaf);
+    }
+
+    private static byte[] nodeHash(MessageDigest digest, byte[] left, byte[] right) {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        return digest.digest(right);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+}
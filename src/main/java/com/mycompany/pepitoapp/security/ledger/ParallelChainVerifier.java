@@ -0,0 +1,193 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import com.mycompany.pepitoapp.security.storage.ConnectionFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Verifies the ledger on a ForkJoinPool by splitting it into id ranges.
+ *
+ * Each range recomputes hashes, checks signatures and checks linkage between
+ * its own entries on a separate connection. Linkage across ranges is checked
+ * when results are joined, so the reported errors (and their order) are the
+ * same as the sequential {@link LedgerService#verifyChain} produces.
+ * Archived periods are checked through their anchors first, as there.
+ */
+public class ParallelChainVerifier {
+
+    public static final int DEFAULT_RANGE_SIZE = 4096;
+
+    private static final String SELECT_BOUNDS = "SELECT MIN(id), MAX(id) FROM ledger";
+    private static final String SELECT_RANGE = "SELECT " + LedgerRows.COLUMNS + " FROM ledger WHERE id BETWEEN ? AND ? ORDER BY id ASC";
+
+    private final ConnectionFactory connections;
+    private final ForkJoinPool pool;
+    private final int rangeSize;
+
+    public ParallelChainVerifier(ConnectionFactory connections) {
+        this(connections, ForkJoinPool.commonPool(), DEFAULT_RANGE_SIZE);
+    }
+
+    public ParallelChainVerifier(ConnectionFactory connections, ForkJoinPool pool, int rangeSize) {
+        this.connections = Objects.requireNonNull(connections, "connections");
+        this.pool = Objects.requireNonNull(pool, "pool");
+        if (rangeSize < 1) {
+            throw new IllegalArgumentException("Range size must be positive");
+        }
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * @param keys resolver for signature checks, or null to check only hashes
+     *             and linkage (same as passing a null CryptoService to verifyChain)
+     */
+    public VerificationResult verify(PublicKeyResolver keys) {
+        List<String> errors = new ArrayList<>();
+        try {
+            long minId;
+            long maxId;
+            ArchiveAnchor archived;
+            try (Connection connection = connections.open();
+                 PreparedStatement statement = connection.prepareStatement(SELECT_BOUNDS);
+                 ResultSet rs = statement.executeQuery()) {
+                archived = LedgerArchives.check(LedgerArchives.list(connection), new EntryVerifier(keys, connection), errors);
+                rs.next();
+                minId = rs.getLong(1);
+                maxId = rs.getLong(2);
+                if (rs.wasNull()) {
+                    return new VerificationResult(errors.isEmpty(), errors);
+                }
+            }
+            RangeResult result = pool.invoke(new RangeTask(minId, maxId, keys));
+            byte[] expectedPrev = archived == null ? ChainHashing.GENESIS_HASH : archived.lastHash();
+            if (!result.isEmpty() && !Arrays.equals(result.firstPreviousHash(), expectedPrev)) {
+                errors.add("Prev hash mismatch at id " + result.firstId());
+            }
+            if (!result.isEmpty() && archived != null && result.firstFormat() < archived.format()) {
+                errors.add(EntryVerifier.downgradeError(result.firstId()));
+            }
+            errors.addAll(result.errors());
+            if (result.failure() != null) {
+                errors.add("Verification failed: " + result.failure());
+            }
+        } catch (Exception ex) {
+            errors.add("Verification failed: " + ex.getMessage());
+        }
+        return new VerificationResult(errors.isEmpty(), errors);
+    }
+
+    private RangeResult verifyRange(long fromId, long toId, PublicKeyResolver keys) {
+        List<String> errors = new ArrayList<>();
+        long firstId = -1;
+        byte[] firstPreviousHash = null;
+        byte[] expectedPrev = null;
+        int firstFormat = 0;
+        int format = 0;
+        try (Connection connection = connections.open();
+             PreparedStatement statement = connection.prepareStatement(SELECT_RANGE)) {
+            EntryVerifier entryVerifier = new EntryVerifier(keys, connection);
+            statement.setLong(1, fromId);
+            statement.setLong(2, toId);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    LedgerEntry entry = LedgerRows.read(rs);
+                    if (firstId < 0) {
+                        firstId = entry.id();
+                        firstPreviousHash = entry.previousHash();
+                        firstFormat = entry.format();
+                    } else {
+                        if (!Arrays.equals(entry.previousHash(), expectedPrev)) {
+                            errors.add("Prev hash mismatch at id " + entry.id());
+                        }
+                        if (entry.format() < format) {
+                            errors.add(EntryVerifier.downgradeError(entry.id()));
+                        }
+                    }
+                    entryVerifier.check(entry, errors);
+                    expectedPrev = entry.currentHash();
+                    format = Math.max(format, entry.format());
+                }
+            }
+            entryVerifier.flush();
+        } catch (Exception ex) {
+            return new RangeResult(firstId, firstPreviousHash, firstFormat, expectedPrev, format, errors, ex.getMessage());
+        }
+        return new RangeResult(firstId, firstPreviousHash, firstFormat, expectedPrev, format, errors, null);
+    }
+
+    private static RangeResult merge(RangeResult left, RangeResult right) {
+        if (left.failure() != null) {
+            return left;
+        }
+        if (right.isEmpty()) {
+            return right.failure() == null
+                    ? left
+                    : new RangeResult(left.firstId(), left.firstPreviousHash(), left.firstFormat(), left.lastHash(), left.maxFormat(),
+                    left.errors(), right.failure());
+        }
+        if (left.isEmpty()) {
+            return right;
+        }
+        List<String> errors = new ArrayList<>(left.errors().size() + right.errors().size() + 1);
+        errors.addAll(left.errors());
+        if (!Arrays.equals(right.firstPreviousHash(), left.lastHash())) {
+            errors.add("Prev hash mismatch at id " + right.firstId());
+        }
+        if (right.firstFormat() < left.maxFormat()) {
+            errors.add(EntryVerifier.downgradeError(right.firstId()));
+        }
+        errors.addAll(right.errors());
+        return new RangeResult(left.firstId(), left.firstPreviousHash(), left.firstFormat(), right.lastHash(),
+                Math.max(left.maxFormat(), right.maxFormat()), errors, right.failure());
+    }
+
+    /**
+     * Outcome of one id range. The linkage and format order of its first entry
+     * are left to the join with the range before it. A failure stops the report
+     * at that range, as the sequential verifier stops at the first exception.
+     */
+    private record RangeResult(long firstId, byte[] firstPreviousHash, int firstFormat, byte[] lastHash, int maxFormat,
+                               List<String> errors, String failure) {
+
+        boolean isEmpty() {
+            return firstId < 0;
+        }
+    }
+
+    private final class RangeTask extends RecursiveTask<RangeResult> {
+
+        // ForkJoinTask is Serializable; these tasks never leave the pool
+        private static final long serialVersionUID = 1L;
+
+        private final long fromId;
+        private final long toId;
+        private final transient PublicKeyResolver keys;
+
+        RangeTask(long fromId, long toId, PublicKeyResolver keys) {
+            this.fromId = fromId;
+            this.toId = toId;
+            this.keys = keys;
+        }
+
+        @Override
+        protected RangeResult compute() {
+            if (toId - fromId < rangeSize) {
+                return verifyRange(fromId, toId, keys);
+            }
+            long middle = fromId + (toId - fromId) / 2;
+            RangeTask left = new RangeTask(fromId, middle, keys);
+            RangeTask right = new RangeTask(middle + 1, toId, keys);
+            right.fork();
+            RangeResult leftResult = left.compute();
+            return merge(leftResult, right.join());
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Running sales totals per shift, per day and per product within a day, kept
+ * in the sales_aggregate table of the SQLite ledger. {@link LedgerService}
+ * folds every append into them in the append's own transaction, so reading
+ * the totals of a shift or a day is a single-row lookup however busy the
+ * ledger is.
+ *
+ * A shift runs from one cash close to the next. The close checkpoint carries
+ * the totals of the shift it closes, so they are hashed into the chain and
+ * signed; {@link #verifyShift} recounts the shift's range of the ledger and
+ * checks the stored row against it and against the signed copy.
+ *
+ * Prices include IGV ({@link #IGV_PERCENT}); each sale's total is split into
+ * tax base and tax. Entries that are not boletas are not counted.
+ */
+public class SaleAggregates {
+
+    public static final int IGV_PERCENT = 18;
+
+    static final String SCOPE_SHIFT = "turno";
+    static final String SCOPE_DAY = "dia";
+    static final String SCOPE_PRODUCT = "producto";
+    static final String OPEN_SHIFT = "abierto";
+    private static final String SCOPE_APPLIED = "aplicado";
+
+    private static final String SELECT = "SELECT sales, items, total_cents, base_cents, tax_cents, first_id, last_id "
+            + "FROM sales_aggregate WHERE scope = ? AND period = ? AND product = ?";
+    private static final String SELECT_PRODUCTS = "SELECT product, sales, items, total_cents, base_cents, tax_cents, first_id, last_id "
+            + "FROM sales_aggregate WHERE scope = 'producto' AND period = ?";
+    private static final String UPSERT = "INSERT INTO sales_aggregate(scope, period, product, sales, items, total_cents, base_cents, tax_cents, first_id, last_id) "
+            + "VALUES(?,?,?,?,?,?,?,?,?,?) ON CONFLICT(scope, period, product) DO UPDATE SET "
+            + "sales = sales + excluded.sales, items = items + excluded.items, total_cents = total_cents + excluded.total_cents, "
+            + "base_cents = base_cents + excluded.base_cents, tax_cents = tax_cents + excluded.tax_cents, "
+            + "first_id = MIN(first_id, excluded.first_id), last_id = MAX(last_id, excluded.last_id)";
+    private static final String OPEN_EMPTY_SHIFT = "INSERT OR IGNORE INTO sales_aggregate(scope, period, product, sales, items, total_cents, base_cents, tax_cents, first_id, last_id) "
+            + "VALUES('turno', 'abierto', '', 0, 0, 0, 0, 0, 0, 0)";
+    private static final String CLOSE_SHIFT = "UPDATE sales_aggregate SET period = ? WHERE scope = 'turno' AND period = 'abierto'";
+    private static final String MARK_APPLIED = "INSERT INTO sales_aggregate(scope, period, product, sales, items, total_cents, base_cents, tax_cents, first_id, last_id) "
+            + "VALUES('aplicado', '', '', 0, 0, 0, 0, 0, 0, ?) ON CONFLICT(scope, period, product) DO UPDATE SET last_id = MAX(last_id, excluded.last_id)";
+    private static final String PREVIOUS_CLOSE = "SELECT MAX(CAST(period AS INTEGER)) FROM sales_aggregate "
+            + "WHERE scope = 'turno' AND period <> 'abierto' AND CAST(period AS INTEGER) < ?";
+    private static final String ARCHIVED_UP_TO = "SELECT COALESCE(MAX(last_id), 0) FROM ledger_archive";
+    private static final String SELECT_RANGE = "SELECT id, created_at, sale_json, checkpoint FROM ledger WHERE id > ? AND id <= ? ORDER BY id ASC";
+    private static final int CATCH_UP_BATCH = 1000;
+
+    private final SecureDatabaseProvider databaseProvider;
+    private final ZoneId zone;
+
+    /**
+     * @param zone time zone that decides the day of a sale
+     */
+    public SaleAggregates(SecureDatabaseProvider databaseProvider, ZoneId zone) {
+        this.databaseProvider = Objects.requireNonNull(databaseProvider, "databaseProvider");
+        this.zone = Objects.requireNonNull(zone, "zone");
+    }
+
+    /**
+     * Tax base of a total that includes IGV, rounded half up to the cent.
+     */
+    public static long taxBase(long totalCents) {
+        return Math.floorDiv(totalCents * 100L + (100L + IGV_PERCENT) / 2, 100L + IGV_PERCENT);
+    }
+
+    /**
+     * Totals of the shift that the next cash close will close.
+     */
+    public SalesTotals openShift(char[] passphrase) throws Exception {
+        return read(SCOPE_SHIFT, OPEN_SHIFT, "", passphrase);
+    }
+
+    /**
+     * Totals of the shift closed by the cash-close checkpoint closeId.
+     */
+    public SalesTotals shift(long closeId, char[] passphrase) throws Exception {
+        return read(SCOPE_SHIFT, Long.toString(closeId), "", passphrase);
+    }
+
+    public SalesTotals day(LocalDate day, char[] passphrase) throws Exception {
+        return read(SCOPE_DAY, day.toString(), "", passphrase);
+    }
+
+    /**
+     * Totals of each product sold on day, by description.
+     */
+    public Map<String, SalesTotals> products(LocalDate day, char[] passphrase) throws Exception {
+        Map<String, SalesTotals> products = new TreeMap<>();
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            PreparedStatement statement = session.prepare(SELECT_PRODUCTS);
+            statement.setString(1, day.toString());
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    products.put(rs.getString(1), totals(rs, 2));
+                }
+            }
+        }
+        return products;
+    }
+
+    /**
+     * Folds the entries of an append into the totals, inside the caller's
+     * transaction. ids are the ledger ids of entries, in the same order.
+     * Rows between the last one counted and the append, written while no
+     * totals were attached, are folded first, so the applied mark never
+     * moves past a row that was not counted.
+     */
+    void apply(DatabaseSession session, List<LedgerEntry> entries, long[] ids) throws SQLException {
+        Fold fold = new Fold(session);
+        long applied = applied(session);
+        if (ids.length > 0 && ids[0] - 1 > applied) {
+            fold.addRange(applied, ids[0] - 1, 0);
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            if (ids[i] > applied) {
+                LedgerEntry entry = entries.get(i);
+                fold.add(ids[i], entry.createdAt(), entry.saleJson(), entry.checkpoint());
+            }
+        }
+        fold.finish();
+    }
+
+    /**
+     * Folds the ledger rows after the last one already counted: rows written
+     * before the totals existed, or while nothing kept them up to date.
+     *
+     * @return number of rows folded
+     */
+    public long catchUp(char[] passphrase) throws Exception {
+        long folded = 0L;
+        while (true) {
+            int batch;
+            try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+                Connection connection = session.connection();
+                connection.setAutoCommit(false);
+                try {
+                    Fold fold = new Fold(session);
+                    batch = fold.addRange(applied(session), Long.MAX_VALUE, CATCH_UP_BATCH);
+                    fold.finish();
+                    connection.commit();
+                } catch (Exception ex) {
+                    connection.rollback();
+                    throw ex;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            }
+            folded += batch;
+            if (batch < CATCH_UP_BATCH) {
+                return folded;
+            }
+        }
+    }
+
+    /**
+     * Recounts the sales between the previous cash close and closeId from the
+     * ledger and compares them with the stored totals of the shift and with
+     * the totals signed into the close checkpoint. Hashes and signatures are
+     * left to the chain verification. If part of the shift has been archived
+     * since, only the signed copy is compared.
+     */
+    public VerificationResult verifyShift(long closeId, char[] passphrase) throws Exception {
+        List<String> errors = new ArrayList<>();
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            SalesTotals stored = read(session, SCOPE_SHIFT, Long.toString(closeId), "");
+            long previous = 0L;
+            PreparedStatement statement = session.prepare(PREVIOUS_CLOSE);
+            statement.setLong(1, closeId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    previous = rs.getLong(1);
+                }
+            }
+            SalesTotals counted = SalesTotals.EMPTY;
+            Map<String, Object> signed = null;
+            statement = session.prepare(SELECT_RANGE);
+            statement.setLong(1, previous);
+            statement.setLong(2, closeId);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    String json = rs.getString(3);
+                    if (id == closeId) {
+                        signed = closeTotals(json);
+                    } else if (rs.getInt(4) == 0) {
+                        counted = counted.plus(sale(id, json));
+                    }
+                }
+            }
+            boolean archived = false;
+            try (ResultSet rs = session.prepare(ARCHIVED_UP_TO).executeQuery()) {
+                archived = rs.next() && rs.getLong(1) > previous;
+            }
+            if (stored == null) {
+                errors.add("No hay totales del turno cerrado en " + closeId);
+            } else if (!archived && !stored.sameAmounts(counted)) {
+                errors.add("Los totales del turno cerrado en " + closeId + " no coinciden con el ledger");
+            }
+            if (signed == null) {
+                errors.add("La entrada " + closeId + " no es un cierre de caja con totales");
+            } else if (stored != null && !matches(signed, stored)) {
+                errors.add("Los totales del turno cerrado en " + closeId + " no coinciden con el cierre firmado");
+            }
+        }
+        return new VerificationResult(errors.isEmpty(), errors);
+    }
+
+    /**
+     * Recounts the sales of day within its stored id range and compares them
+     * with the stored totals. A day that has been archived is not recounted.
+     */
+    public VerificationResult verifyDay(LocalDate day, char[] passphrase) throws Exception {
+        List<String> errors = new ArrayList<>();
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            SalesTotals stored = read(session, SCOPE_DAY, day.toString(), "");
+            if (stored == null) {
+                return new VerificationResult(true, errors);
+            }
+            try (ResultSet rs = session.prepare(ARCHIVED_UP_TO).executeQuery()) {
+                if (rs.next() && rs.getLong(1) >= stored.firstId()) {
+                    return new VerificationResult(true, errors);
+                }
+            }
+            SalesTotals counted = SalesTotals.EMPTY;
+            PreparedStatement statement = session.prepare(SELECT_RANGE);
+            statement.setLong(1, stored.firstId() - 1);
+            statement.setLong(2, stored.lastId());
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getInt(4) == 0 && day.equals(day(rs.getLong(2)))) {
+                        counted = counted.plus(sale(rs.getLong(1), rs.getString(3)));
+                    }
+                }
+            }
+            if (!stored.sameAmounts(counted)) {
+                errors.add("Los totales del día " + day + " no coinciden con el ledger");
+            }
+        }
+        return new VerificationResult(errors.isEmpty(), errors);
+    }
+
+    private SalesTotals read(String scope, String period, String product, char[] passphrase) throws Exception {
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            SalesTotals totals = read(session, scope, period, product);
+            return totals == null ? SalesTotals.EMPTY : totals;
+        }
+    }
+
+    /**
+     * Id of the last ledger row counted, or 0 if none is.
+     */
+    private static long applied(DatabaseSession session) throws SQLException {
+        SalesTotals mark = read(session, SCOPE_APPLIED, "", "");
+        return mark == null ? 0L : mark.lastId();
+    }
+
+    private static SalesTotals read(DatabaseSession session, String scope, String period, String product) throws SQLException {
+        PreparedStatement statement = session.prepare(SELECT);
+        statement.setString(1, scope);
+        statement.setString(2, period);
+        statement.setString(3, product);
+        try (ResultSet rs = statement.executeQuery()) {
+            return rs.next() ? totals(rs, 1) : null;
+        }
+    }
+
+    private static SalesTotals totals(ResultSet rs, int column) throws SQLException {
+        return new SalesTotals(rs.getLong(column), rs.getLong(column + 1), rs.getLong(column + 2),
+                rs.getLong(column + 3), rs.getLong(column + 4), rs.getLong(column + 5), rs.getLong(column + 6));
+    }
+
+    private LocalDate day(long createdAt) {
+        return LocalDate.ofInstant(Instant.ofEpochSecond(createdAt), zone);
+    }
+
+    /**
+     * Totals of the boleta saleJson, or {@link SalesTotals#EMPTY} if it is
+     * not one.
+     */
+    static SalesTotals sale(long id, String saleJson) {
+        List<Line> lines = lines(saleJson);
+        if (lines == null) {
+            return SalesTotals.EMPTY;
+        }
+        long items = 0L;
+        long total = 0L;
+        for (Line line : lines) {
+            items += line.quantity();
+            total += line.cents();
+        }
+        return SalesTotals.of(id, items, total);
+    }
+
+    /**
+     * Whether saleJson is a boleta, as the totals count it: a JSON object
+     * with an items array of lines at the top level.
+     */
+    public static boolean isSale(String saleJson) {
+        return lines(saleJson) != null;
+    }
+
+    /**
+     * Lines of a boleta as written by the checkout, or null if saleJson is
+     * not a boleta.
+     */
+    static List<Line> lines(String saleJson) {
+        Object parsed;
+        try {
+            parsed = JsonReader.parse(saleJson);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        if (!(parsed instanceof Map<?, ?> sale) || !(sale.get("items") instanceof List<?> items)) {
+            return null;
+        }
+        List<Line> lines = new ArrayList<>(items.size());
+        for (Object item : items) {
+            if (!(item instanceof Map<?, ?> line)
+                    || !(line.get("precio") instanceof BigDecimal price)
+                    || !(line.get("cantidad") instanceof BigDecimal quantity)) {
+                return null;
+            }
+            String description = line.get("descripcion") instanceof String text ? text : "";
+            try {
+                long units = quantity.longValueExact();
+                long unitCents = price.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+                lines.add(new Line(description, units, Math.multiplyExact(unitCents, units)));
+            } catch (ArithmeticException ex) {
+                return null;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * The totals signed into a cash-close checkpoint, or null if json is not
+     * one or carries none.
+     */
+    private static Map<String, Object> closeTotals(String json) {
+        try {
+            if (JsonReader.parse(json) instanceof Map<?, ?> entry
+                    && entry.get("checkpoint") instanceof Map<?, ?> checkpoint
+                    && LedgerService.CHECKPOINT_CASH_CLOSE.equals(checkpoint.get("reason"))
+                    && checkpoint.get("totales") instanceof Map<?, ?> totals) {
+                Map<String, Object> copy = new LinkedHashMap<>();
+                totals.forEach((key, value) -> copy.put(String.valueOf(key), value));
+                return copy;
+            }
+        } catch (IllegalArgumentException ex) {
+            // Not JSON: not a close either.
+        }
+        return null;
+    }
+
+    private static boolean isCashClose(String json) {
+        try {
+            return JsonReader.parse(json) instanceof Map<?, ?> entry
+                    && entry.get("checkpoint") instanceof Map<?, ?> checkpoint
+                    && LedgerService.CHECKPOINT_CASH_CLOSE.equals(checkpoint.get("reason"));
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private static boolean matches(Map<String, Object> signed, SalesTotals totals) {
+        return number(signed, "ventas") == totals.sales() && number(signed, "items") == totals.items()
+                && number(signed, "total") == totals.totalCents() && number(signed, "base") == totals.baseCents()
+                && number(signed, "igv") == totals.taxCents();
+    }
+
+    private static long number(Map<String, Object> map, String key) {
+        return map.get(key) instanceof BigDecimal value ? value.longValue() : Long.MIN_VALUE;
+    }
+
+    record Line(String description, long quantity, long cents) {
+    }
+
+    /**
+     * Totals of consecutive entries, written with one upsert per row touched.
+     * A cash close writes what came before it and then closes the shift.
+     */
+    private final class Fold {
+
+        private final DatabaseSession session;
+        private final Map<List<String>, SalesTotals> pending = new LinkedHashMap<>();
+        private long lastId;
+
+        Fold(DatabaseSession session) {
+            this.session = session;
+        }
+
+        void add(long id, long createdAt, String json, boolean checkpoint) throws SQLException {
+            lastId = Math.max(lastId, id);
+            if (checkpoint) {
+                if (isCashClose(json)) {
+                    flush();
+                    closeShift(id);
+                }
+                return;
+            }
+            List<Line> lines = lines(json);
+            if (lines == null) {
+                return;
+            }
+            String day = day(createdAt).toString();
+            SalesTotals sale = sale(id, json);
+            add(SCOPE_SHIFT, OPEN_SHIFT, "", sale);
+            add(SCOPE_DAY, day, "", sale);
+            for (Line line : lines) {
+                add(SCOPE_PRODUCT, day, line.description(), SalesTotals.of(id, line.quantity(), line.cents()));
+            }
+        }
+
+        /**
+         * Adds the ledger rows with ids in (afterId, upToId], at most limit of
+         * them unless limit is 0.
+         *
+         * @return number of rows added
+         */
+        int addRange(long afterId, long upToId, int limit) throws SQLException {
+            int count = 0;
+            String sql = limit > 0 ? SELECT_RANGE + " LIMIT " + limit : SELECT_RANGE;
+            try (PreparedStatement statement = session.connection().prepareStatement(sql)) {
+                statement.setLong(1, afterId);
+                statement.setLong(2, upToId);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        add(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getInt(4) == 1);
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        void finish() throws SQLException {
+            flush();
+            if (lastId > 0) {
+                PreparedStatement statement = session.prepare(MARK_APPLIED);
+                statement.setLong(1, lastId);
+                statement.executeUpdate();
+            }
+        }
+
+        private void add(String scope, String period, String product, SalesTotals totals) {
+            pending.merge(List.of(scope, period, product), totals, SalesTotals::plus);
+        }
+
+        private void flush() throws SQLException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            PreparedStatement statement = session.prepare(UPSERT);
+            for (Map.Entry<List<String>, SalesTotals> row : pending.entrySet()) {
+                SalesTotals totals = row.getValue();
+                statement.setString(1, row.getKey().get(0));
+                statement.setString(2, row.getKey().get(1));
+                statement.setString(3, row.getKey().get(2));
+                statement.setLong(4, totals.sales());
+                statement.setLong(5, totals.items());
+                statement.setLong(6, totals.totalCents());
+                statement.setLong(7, totals.baseCents());
+                statement.setLong(8, totals.taxCents());
+                statement.setLong(9, totals.firstId());
+                statement.setLong(10, totals.lastId());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            pending.clear();
+        }
+
+        private void closeShift(long closeId) throws SQLException {
+            session.prepare(OPEN_EMPTY_SHIFT).executeUpdate();
+            PreparedStatement statement = session.prepare(CLOSE_SHIFT);
+            statement.setString(1, Long.toString(closeId));
+            statement.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+/**
+ * Running totals of a shift, a day or a product within a day. Amounts are in
+ * cents; the base and the IGV split each sale's total, whose prices include
+ * the tax. firstId and lastId are the ledger ids of the first and last sale
+ * counted, 0 when there is none.
+ */
+public record SalesTotals(long sales, long items, long totalCents, long baseCents, long taxCents, long firstId, long lastId) {
+
+    public static final SalesTotals EMPTY = new SalesTotals(0L, 0L, 0L, 0L, 0L, 0L, 0L);
+
+    /**
+     * Totals of one sale, or one line of it, with ledger id id.
+     */
+    static SalesTotals of(long id, long items, long totalCents) {
+        long base = SaleAggregates.taxBase(totalCents);
+        return new SalesTotals(1L, items, totalCents, base, totalCents - base, id, id);
+    }
+
+    SalesTotals plus(SalesTotals other) {
+        if (other.sales == 0L) {
+            return this;
+        }
+        if (sales == 0L) {
+            return other;
+        }
+        return new SalesTotals(sales + other.sales, items + other.items, totalCents + other.totalCents,
+                baseCents + other.baseCents, taxCents + other.taxCents, Math.min(firstId, other.firstId),
+                Math.max(lastId, other.lastId));
+    }
+
+    /**
+     * Whether the amounts match, ignoring the id range.
+     */
+    public boolean sameAmounts(SalesTotals other) {
+        return sales == other.sales && items == other.items && totalCents == other.totalCents
+                && baseCents == other.baseCents && taxCents == other.taxCents;
+    }
+
+    /**
+     * Form embedded in the signed cash-close checkpoint.
+     */
+    String toJson() {
+        return "{\"ventas\":" + sales + ",\"items\":" + items + ",\"total\":" + totalCents + ",\"base\":" + baseCents
+                + ",\"igv\":" + taxCents + ",\"desde\":" + firstId + ",\"hasta\":" + lastId + "}";
+    }
+}
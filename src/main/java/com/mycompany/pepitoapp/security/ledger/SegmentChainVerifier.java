@@ -0,0 +1,322 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import com.mycompany.pepitoapp.security.ledger.SegmentLog.Position;
+import com.mycompany.pepitoapp.security.ledger.SegmentLog.Segment;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+/**
+ * Verifies a {@link SegmentLog} straight from its mapped segments. The chain
+ * hash is computed over slices of the mapping (previous hash and UTF-8 sale as
+ * stored), linkage and hashes are compared in place, and no entry is decoded
+ * into a String. Only the 32-byte hash and the signature of each entry are
+ * copied, since the batch signature check holds on to them until it runs.
+ *
+ * Every record's CRC32C is checked as well; a damaged record ends the scan,
+ * because the lengths after it can no longer be trusted.
+ *
+ * The checks and their messages are those of {@link StreamingChainVerifier}.
+ * An entry whose Merkle batch record never comes, or whose batch record does
+ * not end at it, is reported when the scan moves past its batch, not at the
+ * entry itself.
+ */
+final class SegmentChainVerifier {
+
+    private static final int HASH = ChainHasher.HASH_LENGTH;
+
+    private final SegmentLog log;
+    private final PublicKeyResolver keys;
+    private final long progressInterval;
+    private final EntryVerifier entryVerifier;
+    private final ChainHasher hasher = new ChainHasher();
+    private final CRC32C crc = new CRC32C();
+    private final byte[] computed = new byte[HASH];
+    private final List<Long> unsealed = new ArrayList<>();
+    private byte[] cachedKeyBytes = new byte[0];
+    private String cachedKey;
+
+    // Chain position: the current hash of the previous entry, in place.
+    private ByteBuffer previousBuffer;
+    private int previousOffset;
+    private byte[] previousHash;
+    private int format;
+    private long openBatch;
+
+    /**
+     * @param keys resolver for signature checks, or null to check only hashes
+     */
+    SegmentChainVerifier(SegmentLog log, PublicKeyResolver keys, long progressInterval) {
+        this.log = Objects.requireNonNull(log, "log");
+        this.keys = keys;
+        if (progressInterval < 1) {
+            throw new IllegalArgumentException("Progress interval must be positive");
+        }
+        this.progressInterval = progressInterval;
+        this.entryVerifier = new EntryVerifier(keys, null);
+    }
+
+    VerificationResult verify(VerificationProgress progress) {
+        List<String> errors = new ArrayList<>();
+        try {
+            stream(0L, ChainHashing.GENESIS_HASH, null, LedgerEntry.FORMAT_V1, errors, progress);
+        } catch (Exception ex) {
+            errors.add("Verification failed: " + ex.getMessage());
+        }
+        return new VerificationResult(errors.isEmpty(), errors);
+    }
+
+    /**
+     * See {@link StreamingChainVerifier#verifyFromCheckpoint}.
+     */
+    VerificationResult verifyFromCheckpoint(long checkpointId, VerificationProgress progress) {
+        List<String> errors = new ArrayList<>();
+        try {
+            long afterId = 0L;
+            Position anchor = null;
+            int startFormat = LedgerEntry.FORMAT_V1;
+            long candidateId = checkpointId;
+            while (candidateId > 0) {
+                long checkpoint = log.checkpointAtOrBefore(candidateId);
+                Position position = checkpoint > 0 ? log.find(checkpoint) : null;
+                if (position == null) {
+                    break;
+                }
+                List<String> checkpointErrors = new ArrayList<>();
+                checkAnchor(position, checkpointErrors);
+                if (checkpointErrors.isEmpty()) {
+                    afterId = checkpoint;
+                    anchor = position;
+                    startFormat = SegmentLog.format(position.buffer(), position.offset());
+                    break;
+                }
+                errors.add("Checkpoint inválido en la entrada " + checkpoint);
+                candidateId = checkpoint - 1;
+            }
+            stream(afterId, ChainHashing.GENESIS_HASH, anchor, startFormat, errors, progress);
+        } catch (Exception ex) {
+            errors.add("Verification failed: " + ex.getMessage());
+        }
+        return new VerificationResult(errors.isEmpty(), errors);
+    }
+
+    /**
+     * Verifies the records after the entry afterId. The first entry must link
+     * to the current hash of anchor, or to expectedPrev when there is none.
+     */
+    private void stream(long afterId, byte[] expectedPrev, Position anchor, int startFormat, List<String> errors,
+                        VerificationProgress progress) throws Exception {
+        Objects.requireNonNull(progress, "progress");
+        if (anchor != null) {
+            previousBuffer = anchor.buffer();
+            previousOffset = SegmentLog.currentHashOffset(anchor.offset());
+        } else {
+            previousBuffer = null;
+            previousHash = expectedPrev;
+        }
+        format = startFormat;
+        openBatch = 0L;
+        unsealed.clear();
+        long lastId = log.head().lastId();
+        long[] verified = {0L};
+        long[] currentId = {afterId};
+        log.forEach(afterId + 1, (segment, offset) -> {
+            ByteBuffer buffer = segment.buffer;
+            if (!SegmentLog.intact(buffer, offset, segment.end, crc)) {
+                errors.add("Registro dañado en " + segment.file.getFileName() + " posición " + offset);
+                return false;
+            }
+            if (SegmentLog.type(buffer, offset) == SegmentLog.TYPE_BATCH) {
+                batchRecord(segment, offset, errors);
+                return true;
+            }
+            entryRecord(buffer, offset, errors);
+            currentId[0] = SegmentLog.id(buffer, offset);
+            verified[0]++;
+            if (verified[0] % progressInterval == 0) {
+                progress.onProgress(verified[0], currentId[0], lastId);
+            }
+            return true;
+        });
+        closeBatch(errors);
+        entryVerifier.flush();
+        progress.onProgress(verified[0], currentId[0], Math.max(lastId, currentId[0]));
+    }
+
+    private void entryRecord(ByteBuffer buffer, int offset, List<String> errors) throws Exception {
+        long id = SegmentLog.id(buffer, offset);
+        int entryFormat = SegmentLog.format(buffer, offset);
+        if (!previousMatches(buffer, SegmentLog.hashOffset(offset))) {
+            errors.add("Prev hash mismatch at id " + id);
+        }
+        if (entryFormat < format) {
+            errors.add(EntryVerifier.downgradeError(id));
+        }
+        checkEntry(buffer, offset, errors, false);
+        long batchId = SegmentLog.link(buffer, offset);
+        if (batchId != openBatch) {
+            closeBatch(errors);
+            openBatch = batchId;
+        }
+        if (batchId > 0) {
+            if (!EntryVerifier.covers(batchId, Long.MAX_VALUE, id, SegmentLog.leaf(buffer, offset))) {
+                errors.add(EntryVerifier.outOfBatchError(id, batchId));
+            }
+            unsealed.add(id);
+        }
+        previousBuffer = buffer;
+        previousOffset = SegmentLog.currentHashOffset(offset);
+        format = Math.max(format, entryFormat);
+    }
+
+    /**
+     * Seals the open batch if the record is its batch. The batch must end at
+     * the last entry read; entries past its last entry id are outside it, and
+     * a batch that claims entries not yet read is never reached.
+     */
+    private void batchRecord(Segment segment, int offset, List<String> errors) throws Exception {
+        long batchId = SegmentLog.id(segment.buffer, offset);
+        if (batchId == openBatch) {
+            long lastEntryId = SegmentLog.link(segment.buffer, offset);
+            long lastRead = unsealed.isEmpty() ? 0L : unsealed.get(unsealed.size() - 1);
+            for (long id : unsealed) {
+                if (id > lastEntryId) {
+                    errors.add(EntryVerifier.outOfBatchError(id, batchId));
+                } else if (lastRead < lastEntryId) {
+                    errors.add(EntryVerifier.unclosedBatchError(id, batchId));
+                }
+            }
+            unsealed.clear();
+            openBatch = 0L;
+        }
+        checkBatch(new Position(segment, offset), errors, false);
+    }
+
+    /**
+     * Entries of the open batch got no batch record.
+     */
+    private void closeBatch(List<String> errors) {
+        for (long id : unsealed) {
+            errors.add("Lote Merkle ausente para la entrada " + id);
+        }
+        unsealed.clear();
+        openBatch = 0L;
+    }
+
+    /**
+     * Like {@link EntryVerifier#checkAnchor}: the entry at position, and its
+     * Merkle batch if it has one, are verified completely and at once.
+     */
+    private void checkAnchor(Position position, List<String> errors) throws Exception {
+        ByteBuffer buffer = position.buffer();
+        int offset = position.offset();
+        if (!checkEntry(buffer, offset, errors, true)) {
+            return;
+        }
+        long batchId = SegmentLog.link(buffer, offset);
+        if (batchId > 0) {
+            long id = SegmentLog.id(buffer, offset);
+            Position batch = log.findBatch(position, batchId);
+            if (batch == null) {
+                errors.add("Lote Merkle ausente para la entrada " + id);
+            } else if (!EntryVerifier.covers(batchId, SegmentLog.link(batch.buffer(), batch.offset()), id,
+                    SegmentLog.leaf(buffer, offset))) {
+                errors.add(EntryVerifier.outOfBatchError(id, batchId));
+            } else {
+                checkBatch(batch, errors, true);
+            }
+        }
+    }
+
+    /**
+     * Checks the hash of the entry and, unless it belongs to a Merkle batch,
+     * its signature.
+     *
+     * @return false if the format is unknown and nothing else was checked
+     */
+    private boolean checkEntry(ByteBuffer buffer, int offset, List<String> errors, boolean anchor) throws Exception {
+        long id = SegmentLog.id(buffer, offset);
+        int entryFormat = SegmentLog.format(buffer, offset);
+        if (entryFormat != LedgerEntry.FORMAT_V1 && entryFormat != LedgerEntry.FORMAT_V2) {
+            errors.add("Formato desconocido en la entrada " + id);
+            return false;
+        }
+        hasher.chain(entryFormat,
+                buffer.slice(SegmentLog.hashOffset(offset), HASH),
+                buffer.slice(SegmentLog.saleOffset(buffer, offset), SegmentLog.saleLength(buffer, offset)),
+                computed, 0);
+        int current = SegmentLog.currentHashOffset(offset);
+        if (!equalAt(buffer, current, computed)) {
+            errors.add("Hash mismatch at id " + id);
+        }
+        if (SegmentLog.link(buffer, offset) == 0 && keys != null) {
+            byte[] hash = SegmentLog.bytes(buffer, current, HASH);
+            byte[] payload = ChainHashing.signingPayload(entryFormat, hash);
+            byte[] signature = SegmentLog.bytes(buffer, SegmentLog.signatureOffset(buffer, offset), SegmentLog.signatureLength(buffer, offset));
+            entryVerifier.checkSignature(keyId(buffer, offset), payload, signature, errors, id, false, anchor);
+        }
+        return true;
+    }
+
+    private void checkBatch(Position position, List<String> errors, boolean anchor) throws Exception {
+        ByteBuffer buffer = position.buffer();
+        int offset = position.offset();
+        long batchId = SegmentLog.id(buffer, offset);
+        List<byte[]> leaves = log.leaves(position);
+        if (leaves == null || !equalAt(buffer, SegmentLog.hashOffset(offset), MerkleTree.root(leaves))) {
+            errors.add("Raíz Merkle inválida en el lote " + batchId);
+        } else if (keys != null) {
+            byte[] root = SegmentLog.bytes(buffer, SegmentLog.hashOffset(offset), HASH);
+            byte[] signature = SegmentLog.bytes(buffer, SegmentLog.signatureOffset(buffer, offset), SegmentLog.signatureLength(buffer, offset));
+            entryVerifier.checkSignature(keyId(buffer, offset), root, signature, errors, batchId, true, anchor);
+        }
+    }
+
+    private boolean previousMatches(ByteBuffer buffer, int offset) {
+        if (previousBuffer == null) {
+            return equalAt(buffer, offset, previousHash);
+        }
+        for (int i = 0; i < HASH; i += Long.BYTES) {
+            if (buffer.getLong(offset + i) != previousBuffer.getLong(previousOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalAt(ByteBuffer buffer, int offset, byte[] expected) {
+        if (expected.length != HASH) {
+            return false;
+        }
+        for (int i = 0; i < HASH; i++) {
+            if (buffer.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The key id of the record, reusing the last String while the bytes are
+     * the same, which in a ledger signed by one key is always.
+     */
+    private String keyId(ByteBuffer buffer, int offset) {
+        int keyOffset = SegmentLog.keyOffset(buffer, offset);
+        int length = SegmentLog.keyLength(buffer, offset);
+        if (length == cachedKeyBytes.length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = buffer.get(keyOffset + i) == cachedKeyBytes[i];
+            }
+            if (same && cachedKey != null) {
+                return cachedKey;
+            }
+        }
+        cachedKeyBytes = SegmentLog.bytes(buffer, keyOffset, length);
+        cachedKey = SegmentLog.text(buffer, keyOffset, length);
+        return cachedKey;
+    }
+}
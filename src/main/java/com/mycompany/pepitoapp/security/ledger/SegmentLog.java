@@ -0,0 +1,978 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.app.MetricsCollector;
+import com.mycompany.pepitoapp.security.app.MetricsCollector.Metric;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only ledger log in memory-mapped segment files.
+ *
+ * A segment is a file named after the lowest id it may hold (20 digits, so
+ * names sort like ids), mapped whole. It starts with a 16-byte header (magic,
+ * version, that id) followed by length-prefixed records with a fixed header:
+ *
+ * <pre>
+ *  0 int   length of the whole record
+ *  4 int   CRC32C of bytes 8..length
+ *  8 byte  type: 1 entry, 2 Merkle batch
+ *  9 byte  flags: 1 checkpoint, 2 last record of an append
+ * 10 byte  format of the entry
+ * 11 byte  signature length
+ * 12 short key id length
+ * 14 short reserved
+ * 16 long  entry id, or batch id
+ * 24 long  created at
+ * 32 long  Merkle batch of the entry (0 for none), or last entry id of the batch
+ * 40 int   leaf index of the entry (-1 for none), or leaf count of the batch
+ * 44       entry: previous hash, current hash, signature, key id, sale JSON
+ *          batch: root, signature, key id
+ * </pre>
+ *
+ * Hashes take 32 bytes and text is UTF-8. A zero length marks the end of the
+ * written part. The records of one append are written together and only the
+ * last carries the commit flag, after its entries and Merkle batch. An append
+ * that does not fit in the current segment goes whole into a new one, so no
+ * append spans two segments. On open, whatever follows the last committed
+ * record of the newest segment is a torn append and is wiped; a damaged
+ * record followed by further commits is kept for the verifier to report.
+ *
+ * Each segment keeps a sparse index with the offset of every
+ * {@link #INDEX_INTERVAL}-th entry, plus its checkpoint ids. When a segment
+ * fills up its index is saved next to it (.idx) and it is never written
+ * again; the newest segment is indexed from its records when the log opens.
+ *
+ * One writer process at a time, enforced with a lock file. Readers see the
+ * records up to the end published by the last commit and may run while the
+ * log is being appended to.
+ */
+final class SegmentLog implements AutoCloseable {
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    static final int MIN_SEGMENT_SIZE = 64 << 10;
+    static final int MAX_SEGMENT_SIZE = 1 << 30;
+    static final int INDEX_INTERVAL = 64;
+
+    static final byte TYPE_ENTRY = 1;
+    static final byte TYPE_BATCH = 2;
+    static final int FLAG_CHECKPOINT = 1;
+    static final int FLAG_COMMIT = 2;
+
+    static final int SEGMENT_HEADER = 16;
+    static final int RECORD_HEADER = 44;
+    private static final int CRC = 4;
+    private static final int TYPE = 8;
+    private static final int FLAGS = 9;
+    private static final int FORMAT = 10;
+    private static final int SIGNATURE_LENGTH = 11;
+    private static final int KEY_LENGTH = 12;
+    private static final int ID = 16;
+    private static final int CREATED_AT = 24;
+    private static final int LINK = 32;
+    private static final int LEAF = 40;
+    private static final int HASH = ChainHasher.HASH_LENGTH;
+
+    private static final int SEGMENT_MAGIC = 0x504C4F47;
+    private static final int INDEX_MAGIC = 0x504C4958;
+    private static final int VERSION = 1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String LOCK_FILE = "ledger.lock";
+    private static final int WIPE_CHUNK = 64 << 10;
+    private static final MetricsCollector METRICS = MetricsCollector.getInstance();
+
+    private final Path directory;
+    private final int segmentSize;
+    private final CRC32C writeCrc = new CRC32C();
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private volatile Segment[] segments = new Segment[0];
+    private long lastId;
+    private byte[] lastHash = ChainHashing.GENESIS_HASH;
+    private long sinceCheckpoint;
+
+    private SegmentLog(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the log in directory, creating it if needed, and recovers the
+     * newest segment.
+     *
+     * @param segmentSize bytes per segment, a multiple of 4096 between 64 KiB
+     *                    and 1 GiB
+     * @throws IOException if another process, or another open log in this
+     *         one, holds the log, or a segment cannot be read
+     */
+    static SegmentLog open(Path directory, int segmentSize) throws IOException {
+        Objects.requireNonNull(directory, "directory");
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE || segmentSize % 4096 != 0) {
+            throw new IllegalArgumentException("Segment size must be a multiple of 4096 between 64 KiB and 1 GiB");
+        }
+        SegmentLog log = new SegmentLog(directory, segmentSize);
+        try {
+            log.load();
+        } catch (IOException | RuntimeException ex) {
+            log.close();
+            throw ex;
+        }
+        return log;
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    synchronized ChainHead head() {
+        return new ChainHead(lastId, lastHash, sinceCheckpoint);
+    }
+
+    /**
+     * Writes the entries and their batch as one append and forces them to
+     * disk before publishing them. See {@link StorageService#append}.
+     *
+     * @return the ids of the entries, or null when the log does not end at
+     *         expected
+     */
+    synchronized long[] append(ChainHead expected, List<LedgerEntry> entries, MerkleBatch batch) throws IOException {
+        if (segments.length == 0) {
+            throw new IOException("Ledger log is closed");
+        }
+        if (expected.lastId() != lastId || !Arrays.equals(expected.lastHash(), lastHash)) {
+            return null;
+        }
+        long[] ids = new long[entries.size()];
+        if (entries.isEmpty()) {
+            return ids;
+        }
+        byte[][] keys = new byte[entries.size()][];
+        byte[][] sales = new byte[entries.size()][];
+        long batchId = 0;
+        long lastLeafId = 0;
+        long next = lastId;
+        int total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            LedgerEntry entry = entries.get(i);
+            long id = entry.id() > 0 ? entry.id() : next + 1;
+            if (id <= next) {
+                throw new IllegalArgumentException("Ledger ids must grow: " + id + " after " + next);
+            }
+            if (entry.previousHash().length != HASH || entry.currentHash().length != HASH) {
+                throw new IllegalArgumentException("Hashes must be " + HASH + " bytes at id " + id);
+            }
+            ids[i] = id;
+            next = id;
+            if (batch != null && entry.leafIndex() >= 0) {
+                batchId = batchId == 0 ? id : batchId;
+                lastLeafId = id;
+            }
+            keys[i] = entry.keyId().getBytes(StandardCharsets.UTF_8);
+            sales[i] = entry.saleJson().getBytes(StandardCharsets.UTF_8);
+            total += RECORD_HEADER + 2 * HASH + entry.signature().length + keys[i].length + sales[i].length;
+        }
+        byte[] batchKey = null;
+        byte[] root = null;
+        byte[] batchSignature = null;
+        if (batchId > 0) {
+            batchKey = batch.keyId().getBytes(StandardCharsets.UTF_8);
+            root = Base64.getDecoder().decode(batch.root());
+            batchSignature = Base64.getDecoder().decode(batch.signature());
+            if (root.length != HASH) {
+                throw new IllegalArgumentException("Merkle root must be " + HASH + " bytes");
+            }
+            total += RECORD_HEADER + HASH + batchSignature.length + batchKey.length;
+        }
+
+        Segment segment = segments[segments.length - 1];
+        if ((long) segment.end + total > segment.capacity()) {
+            if (SEGMENT_HEADER + (long) total > segmentSize) {
+                throw new IllegalArgumentException("An append of " + total + " bytes does not fit in a " + segmentSize + "-byte segment");
+            }
+            segment = roll(ids[0]);
+        }
+        int start = segment.end;
+        int offset = start;
+        int[] offsets = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            long insertStart = System.nanoTime();
+            LedgerEntry entry = entries.get(i);
+            boolean commit = batchId == 0 && i == entries.size() - 1;
+            long link = batchId > 0 && entry.leafIndex() >= 0 ? batchId : 0L;
+            offsets[i] = offset;
+            offset = writeRecord(segment.buffer, offset, TYPE_ENTRY, flags(entry.checkpoint(), commit), entry.format(),
+                    ids[i], entry.createdAt(), link, link > 0 ? entry.leafIndex() : -1,
+                    entry.previousHash(), entry.currentHash(), entry.signature(), keys[i], sales[i]);
+            METRICS.recordSince(Metric.LEDGER_INSERT, insertStart);
+        }
+        if (batchId > 0) {
+            offset = writeRecord(segment.buffer, offset, TYPE_BATCH, FLAG_COMMIT, 0, batchId, batch.createdAt(),
+                    lastLeafId, batch.leafCount(), root, null, batchSignature, batchKey, null);
+        }
+        long commitStart = System.nanoTime();
+        segment.buffer.force(start, offset - start);
+        METRICS.recordSince(Metric.LEDGER_COMMIT, commitStart);
+
+        for (int i = 0; i < entries.size(); i++) {
+            boolean checkpoint = entries.get(i).checkpoint();
+            segment.noteEntry(ids[i], offsets[i], checkpoint);
+            sinceCheckpoint = checkpoint ? 0 : sinceCheckpoint + 1;
+        }
+        segment.end = offset;
+        lastId = ids[ids.length - 1];
+        lastHash = entries.get(entries.size() - 1).currentHash();
+        return ids;
+    }
+
+    /**
+     * Position of the entry with the given id, or null if there is none.
+     */
+    Position find(long id) {
+        Position position = seek(id);
+        if (position == null || type(position.buffer(), position.offset()) != TYPE_ENTRY
+                || id(position.buffer(), position.offset()) != id) {
+            return null;
+        }
+        return position;
+    }
+
+    /**
+     * Position of the first entry with id at least fromId, or null if the log
+     * has no such entry.
+     */
+    Position seek(long fromId) {
+        Segment[] current = segments;
+        for (int s = indexOf(current, fromId); s < current.length; s++) {
+            Segment segment = current[s];
+            int end = segment.end;
+            int offset = segment.floorOffset(fromId);
+            while (offset < end) {
+                if (type(segment.buffer, offset) == TYPE_ENTRY && id(segment.buffer, offset) >= fromId) {
+                    return new Position(segment, offset);
+                }
+                int length = length(segment.buffer, offset);
+                if (length < RECORD_HEADER) {
+                    break;
+                }
+                offset += length;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Visits the committed records from the first entry with id at least
+     * fromId to the end of the log, including Merkle batch records that come
+     * after that entry. Stops when the visitor returns false.
+     */
+    void forEach(long fromId, RecordVisitor visitor) throws Exception {
+        Position start = seek(fromId);
+        if (start == null) {
+            return;
+        }
+        Segment[] current = segments;
+        int first = Arrays.asList(current).indexOf(start.segment());
+        for (int s = first; s < current.length; s++) {
+            Segment segment = current[s];
+            int end = segment.end;
+            int offset = s == first ? start.offset() : SEGMENT_HEADER;
+            while (offset < end) {
+                int length = length(segment.buffer, offset);
+                if (!visitor.record(segment, offset) || length < RECORD_HEADER || length > end - offset) {
+                    return;
+                }
+                offset += length;
+            }
+        }
+    }
+
+    /**
+     * Newest checkpoint with id at or before id, or 0 if there is none.
+     */
+    long checkpointAtOrBefore(long id) {
+        Segment[] current = segments;
+        for (int s = Math.min(indexOf(current, id), current.length - 1); s >= 0; s--) {
+            long checkpoint = current[s].checkpointAtOrBefore(id);
+            if (checkpoint > 0) {
+                return checkpoint;
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * The record of the Merkle batch covering the entry at from, or null if
+     * it does not follow the entries of the batch.
+     */
+    Position findBatch(Position from, long batchId) throws Exception {
+        Position[] found = new Position[1];
+        forEach(id(from.buffer(), from.offset()), (segment, offset) -> {
+            if (type(segment.buffer, offset) == TYPE_BATCH) {
+                if (id(segment.buffer, offset) == batchId) {
+                    found[0] = new Position(segment, offset);
+                }
+                return false;
+            }
+            // The batch record comes right after the last entry it covers.
+            return link(segment.buffer, offset) == batchId;
+        });
+        return found[0];
+    }
+
+    /**
+     * Leaf hashes of the batch recorded at position, in tree order, or null
+     * when the entries in its id range do not match it (missing, extra or
+     * reordered leaves).
+     */
+    List<byte[]> leaves(Position batch) throws Exception {
+        ByteBuffer buffer = batch.buffer();
+        long batchId = id(buffer, batch.offset());
+        long lastEntryId = link(buffer, batch.offset());
+        int leafCount = leaf(buffer, batch.offset());
+        List<byte[]> leaves = new ArrayList<>(Math.max(0, leafCount));
+        boolean[] consistent = {true};
+        forEach(batchId, (segment, offset) -> {
+            if (type(segment.buffer, offset) != TYPE_ENTRY) {
+                return true;
+            }
+            if (id(segment.buffer, offset) > lastEntryId) {
+                return false;
+            }
+            if (link(segment.buffer, offset) != batchId || leaf(segment.buffer, offset) != leaves.size()) {
+                consistent[0] = false;
+                return false;
+            }
+            byte[] hash = new byte[HASH];
+            segment.buffer.get(currentHashOffset(offset), hash);
+            leaves.add(hash);
+            return true;
+        });
+        return consistent[0] && leaves.size() == leafCount ? leaves : null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segments = new Segment[0];
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+        } finally {
+            lock = null;
+            if (lockChannel != null) {
+                lockChannel.close();
+                lockChannel = null;
+            }
+        }
+    }
+
+    // Record fields, read with absolute gets so readers share the buffers.
+
+    static int length(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset);
+    }
+
+    static byte type(ByteBuffer buffer, int offset) {
+        return buffer.get(offset + TYPE);
+    }
+
+    static boolean checkpoint(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset + FLAGS) & FLAG_CHECKPOINT) != 0;
+    }
+
+    static int format(ByteBuffer buffer, int offset) {
+        return buffer.get(offset + FORMAT);
+    }
+
+    static long id(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + ID);
+    }
+
+    static long createdAt(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + CREATED_AT);
+    }
+
+    /**
+     * Merkle batch of an entry, or last entry id of a batch.
+     */
+    static long link(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + LINK);
+    }
+
+    /**
+     * Leaf index of an entry, or leaf count of a batch.
+     */
+    static int leaf(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + LEAF);
+    }
+
+    /**
+     * Previous hash of an entry, or root of a batch.
+     */
+    static int hashOffset(int offset) {
+        return offset + RECORD_HEADER;
+    }
+
+    static int currentHashOffset(int offset) {
+        return offset + RECORD_HEADER + HASH;
+    }
+
+    static int signatureOffset(ByteBuffer buffer, int offset) {
+        return offset + RECORD_HEADER + (type(buffer, offset) == TYPE_ENTRY ? 2 * HASH : HASH);
+    }
+
+    static int signatureLength(ByteBuffer buffer, int offset) {
+        return buffer.get(offset + SIGNATURE_LENGTH) & 0xFF;
+    }
+
+    static int keyOffset(ByteBuffer buffer, int offset) {
+        return signatureOffset(buffer, offset) + signatureLength(buffer, offset);
+    }
+
+    static int keyLength(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + KEY_LENGTH) & 0xFFFF;
+    }
+
+    static int saleOffset(ByteBuffer buffer, int offset) {
+        return keyOffset(buffer, offset) + keyLength(buffer, offset);
+    }
+
+    static int saleLength(ByteBuffer buffer, int offset) {
+        return offset + length(buffer, offset) - saleOffset(buffer, offset);
+    }
+
+    /**
+     * Whether the record at offset fits before end and its checksum matches.
+     */
+    static boolean intact(ByteBuffer buffer, int offset, int end, CRC32C crc) {
+        int length = length(buffer, offset);
+        return length >= RECORD_HEADER && length <= end - offset && crcMatches(buffer, offset, crc);
+    }
+
+    private static boolean crcMatches(ByteBuffer buffer, int offset, CRC32C crc) {
+        crc.reset();
+        crc.update(buffer.slice(offset + TYPE, length(buffer, offset) - TYPE));
+        return (int) crc.getValue() == buffer.getInt(offset + CRC);
+    }
+
+    static String text(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+
+    /**
+     * Copies the entry at offset out of the buffer.
+     */
+    static LedgerEntry readEntry(ByteBuffer buffer, int offset) {
+        int signature = signatureOffset(buffer, offset);
+        int key = keyOffset(buffer, offset);
+        return new LedgerEntry(
+                id(buffer, offset),
+                createdAt(buffer, offset),
+                text(buffer, saleOffset(buffer, offset), saleLength(buffer, offset)),
+                bytes(buffer, hashOffset(offset), HASH),
+                bytes(buffer, currentHashOffset(offset), HASH),
+                bytes(buffer, signature, signatureLength(buffer, offset)),
+                text(buffer, key, keyLength(buffer, offset)),
+                checkpoint(buffer, offset),
+                link(buffer, offset),
+                leaf(buffer, offset),
+                format(buffer, offset)
+        );
+    }
+
+    static MerkleBatch readBatch(ByteBuffer buffer, int offset) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        return new MerkleBatch(
+                id(buffer, offset),
+                link(buffer, offset),
+                leaf(buffer, offset),
+                encoder.encodeToString(bytes(buffer, hashOffset(offset), HASH)),
+                encoder.encodeToString(bytes(buffer, signatureOffset(buffer, offset), signatureLength(buffer, offset))),
+                text(buffer, keyOffset(buffer, offset), keyLength(buffer, offset)),
+                createdAt(buffer, offset)
+        );
+    }
+
+    private int writeRecord(ByteBuffer buffer, int offset, byte type, int flags, int format, long id, long createdAt,
+                            long link, int leaf, byte[] firstHash, byte[] secondHash, byte[] signature, byte[] key,
+                            byte[] sale) {
+        if (signature.length > 0xFF || key.length > 0xFFFF) {
+            throw new IllegalArgumentException("Signature or key id too long at id " + id);
+        }
+        int position = offset + RECORD_HEADER;
+        buffer.put(position, firstHash);
+        position += firstHash.length;
+        if (secondHash != null) {
+            buffer.put(position, secondHash);
+            position += secondHash.length;
+        }
+        buffer.put(position, signature);
+        position += signature.length;
+        buffer.put(position, key);
+        position += key.length;
+        if (sale != null) {
+            buffer.put(position, sale);
+            position += sale.length;
+        }
+        buffer.put(offset + TYPE, type);
+        buffer.put(offset + FLAGS, (byte) flags);
+        buffer.put(offset + FORMAT, (byte) format);
+        buffer.put(offset + SIGNATURE_LENGTH, (byte) signature.length);
+        buffer.putShort(offset + KEY_LENGTH, (short) key.length);
+        buffer.putShort(offset + KEY_LENGTH + 2, (short) 0);
+        buffer.putLong(offset + ID, id);
+        buffer.putLong(offset + CREATED_AT, createdAt);
+        buffer.putLong(offset + LINK, link);
+        buffer.putInt(offset + LEAF, leaf);
+        buffer.putInt(offset, position - offset);
+        writeCrc.reset();
+        writeCrc.update(buffer.slice(offset + TYPE, position - offset - TYPE));
+        buffer.putInt(offset + CRC, (int) writeCrc.getValue());
+        return position;
+    }
+
+    private static int flags(boolean checkpoint, boolean commit) {
+        return (checkpoint ? FLAG_CHECKPOINT : 0) | (commit ? FLAG_COMMIT : 0);
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            // Held by this same process, through another SegmentLog
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IOException("Ledger log in use by another process: " + directory);
+        }
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+        List<Segment> loaded = new ArrayList<>(files.size() + 1);
+        for (int i = 0; i < files.size(); i++) {
+            boolean newest = i == files.size() - 1;
+            Segment segment = map(files.get(i), newest);
+            if (newest) {
+                segment = recover(segment);
+            } else if (!loadIndex(segment)) {
+                scan(segment, true);
+                saveIndex(segment);
+            }
+            loaded.add(segment);
+        }
+        if (loaded.isEmpty()) {
+            loaded.add(create(1L));
+        }
+        segments = loaded.toArray(new Segment[0]);
+
+        long since = 0;
+        boolean headFound = false;
+        for (int s = segments.length - 1; s >= 0; s--) {
+            Segment segment = segments[s];
+            if (!headFound && segment.lastEntryOffset >= 0) {
+                lastId = segment.lastEntryId;
+                lastHash = bytes(segment.buffer, currentHashOffset(segment.lastEntryOffset), HASH);
+                headFound = true;
+            }
+            since += segment.trailing;
+            if (segment.checkpointCount > 0) {
+                break;
+            }
+        }
+        sinceCheckpoint = since;
+    }
+
+    private Segment create(long firstId) throws IOException {
+        Path file = directory.resolve(String.format("%020d", firstId) + SEGMENT_SUFFIX);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        buffer.putInt(0, SEGMENT_MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, firstId);
+        buffer.force(0, SEGMENT_HEADER);
+        Segment segment = new Segment(file, firstId, buffer);
+        segment.end = SEGMENT_HEADER;
+        return segment;
+    }
+
+    /**
+     * Closes the newest segment for writing and starts a new one.
+     */
+    private Segment roll(long firstId) throws IOException {
+        Segment full = segments[segments.length - 1];
+        saveIndex(full);
+        Segment segment = create(firstId);
+        Segment[] next = Arrays.copyOf(segments, segments.length + 1);
+        next[next.length - 1] = segment;
+        segments = next;
+        return segment;
+    }
+
+    private Segment map(Path file, boolean writable) throws IOException {
+        MappedByteBuffer buffer;
+        if (writable) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = Math.max(channel.size(), segmentSize);
+                if (size > MAX_SEGMENT_SIZE) {
+                    throw new IOException("Segment too large: " + file);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > MAX_SEGMENT_SIZE || channel.size() < SEGMENT_HEADER) {
+                    throw new IOException("Not a ledger segment: " + file);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        String name = file.getFileName().toString();
+        long firstId;
+        try {
+            firstId = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Not a ledger segment: " + file, ex);
+        }
+        if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != firstId) {
+            throw new IOException("Not a ledger segment: " + file);
+        }
+        return new Segment(file, firstId, buffer);
+    }
+
+    /**
+     * Indexes the committed records of a segment and sets its end after the
+     * last of them. A record that fails its CRC but whose length still leads
+     * to the next one is skipped when skipDamaged is set, and ends the scan
+     * otherwise.
+     *
+     * @return where scanning stopped, at or after the end
+     */
+    private static int scan(Segment segment, boolean skipDamaged) {
+        ByteBuffer buffer = segment.buffer;
+        CRC32C crc = new CRC32C();
+        List<int[]> pending = new ArrayList<>();
+        int offset = SEGMENT_HEADER;
+        int committed = offset;
+        while (offset <= segment.capacity() - RECORD_HEADER) {
+            int length = length(buffer, offset);
+            if (!intact(buffer, offset, segment.capacity(), crc)) {
+                if (!skipDamaged || length < RECORD_HEADER || length > segment.capacity() - offset) {
+                    break;
+                }
+                offset += length;
+                continue;
+            }
+            if (type(buffer, offset) == TYPE_ENTRY) {
+                pending.add(new int[]{offset});
+            }
+            boolean commit = (buffer.get(offset + FLAGS) & FLAG_COMMIT) != 0;
+            offset += length;
+            if (commit) {
+                for (int[] entry : pending) {
+                    segment.noteEntry(id(buffer, entry[0]), entry[0], checkpoint(buffer, entry[0]));
+                }
+                pending.clear();
+                committed = offset;
+            }
+        }
+        segment.end = committed;
+        return offset;
+    }
+
+    /**
+     * Indexes the newest segment and wipes anything written after its last
+     * commit, so a torn append can never be read back.
+     *
+     * A torn append holds at most one commit record (its last one, if that
+     * page reached the disk before an earlier one). When more intact commits
+     * follow the record where the scan stopped, that record was damaged after
+     * being committed: nothing is wiped, the records are indexed past it and
+     * the verifier reports it.
+     */
+    private static Segment recover(Segment segment) {
+        int stop = scan(segment, false);
+        if (commitsFrom(segment.buffer, stop, segment.capacity()) > 1) {
+            Segment damaged = new Segment(segment.file, segment.firstId, segment.buffer);
+            scan(damaged, true);
+            return damaged;
+        }
+        ByteBuffer buffer = segment.buffer;
+        int committed = segment.end;
+        int dirtyEnd = committed;
+        for (int offset = segment.capacity() - Long.BYTES; offset >= committed; offset -= Long.BYTES) {
+            if (buffer.getLong(offset) != 0L) {
+                dirtyEnd = offset + Long.BYTES;
+                break;
+            }
+        }
+        if (dirtyEnd > committed) {
+            byte[] zeros = new byte[Math.min(WIPE_CHUNK, dirtyEnd - committed)];
+            for (int offset = committed; offset < dirtyEnd; offset += zeros.length) {
+                buffer.put(offset, zeros, 0, Math.min(zeros.length, dirtyEnd - offset));
+            }
+            segment.buffer.force(committed, dirtyEnd - committed);
+        }
+        return segment;
+    }
+
+    /**
+     * Intact commit records reachable from offset by following the record
+     * lengths, damaged records included.
+     */
+    private static int commitsFrom(ByteBuffer buffer, int offset, int capacity) {
+        CRC32C crc = new CRC32C();
+        int commits = 0;
+        while (offset <= capacity - RECORD_HEADER) {
+            int length = length(buffer, offset);
+            if (length < RECORD_HEADER || length > capacity - offset) {
+                break;
+            }
+            if (intact(buffer, offset, capacity, crc) && (buffer.get(offset + FLAGS) & FLAG_COMMIT) != 0) {
+                commits++;
+            }
+            offset += length;
+        }
+        return commits;
+    }
+
+    private static Path indexFile(Segment segment) {
+        String name = segment.file.getFileName().toString();
+        return segment.file.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private static void saveIndex(Segment segment) throws IOException {
+        Path file = indexFile(segment);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            synchronized (segment) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(segment.firstId);
+                out.writeInt(segment.end);
+                out.writeLong(segment.lastEntryId);
+                out.writeInt(segment.lastEntryOffset);
+                out.writeLong(segment.entries);
+                out.writeLong(segment.trailing);
+                out.writeInt(segment.checkpointCount);
+                for (int i = 0; i < segment.checkpointCount; i++) {
+                    out.writeLong(segment.checkpointIds[i]);
+                }
+                out.writeInt(segment.indexSize);
+                for (int i = 0; i < segment.indexSize; i++) {
+                    out.writeLong(segment.indexIds[i]);
+                    out.writeInt(segment.indexOffsets[i]);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return false, leaving the segment untouched, when the index file is
+     *         missing or does not belong to the segment
+     */
+    private static boolean loadIndex(Segment segment) {
+        Path file = indexFile(segment);
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION || in.readLong() != segment.firstId) {
+                return false;
+            }
+            int end = in.readInt();
+            long lastEntryId = in.readLong();
+            int lastEntryOffset = in.readInt();
+            long entries = in.readLong();
+            long trailing = in.readLong();
+            long[] checkpoints = new long[in.readInt()];
+            for (int i = 0; i < checkpoints.length; i++) {
+                checkpoints[i] = in.readLong();
+            }
+            int indexSize = in.readInt();
+            long[] indexIds = new long[indexSize];
+            int[] indexOffsets = new int[indexSize];
+            for (int i = 0; i < indexSize; i++) {
+                indexIds[i] = in.readLong();
+                indexOffsets[i] = in.readInt();
+            }
+            if (end < SEGMENT_HEADER || end > segment.capacity() || lastEntryOffset >= end) {
+                return false;
+            }
+            synchronized (segment) {
+                segment.end = end;
+                segment.lastEntryId = lastEntryId;
+                segment.lastEntryOffset = lastEntryOffset;
+                segment.entries = entries;
+                segment.trailing = trailing;
+                segment.checkpointIds = checkpoints;
+                segment.checkpointCount = checkpoints.length;
+                segment.indexIds = indexIds;
+                segment.indexOffsets = indexOffsets;
+                segment.indexSize = indexSize;
+            }
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Segment that may hold id: the last one whose first id is not above it.
+     */
+    private static int indexOf(Segment[] current, long id) {
+        int low = 0;
+        int high = current.length - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (current[middle].firstId <= id) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Receives committed records in log order.
+     */
+    @FunctionalInterface
+    interface RecordVisitor {
+
+        /**
+         * @return false to stop
+         */
+        boolean record(Segment segment, int offset) throws Exception;
+    }
+
+    /**
+     * A record in a segment.
+     */
+    record Position(Segment segment, int offset) {
+
+        ByteBuffer buffer() {
+            return segment.buffer;
+        }
+    }
+
+    /**
+     * One mapped segment file. The writer publishes new records by moving
+     * end after writing them; the index and checkpoint lists are guarded by
+     * the segment itself.
+     */
+    static final class Segment {
+
+        final Path file;
+        final long firstId;
+        final MappedByteBuffer buffer;
+        volatile int end = SEGMENT_HEADER;
+        private long lastEntryId;
+        private int lastEntryOffset = -1;
+        private long entries;
+        private long trailing;
+        private long[] indexIds = new long[16];
+        private int[] indexOffsets = new int[16];
+        private int indexSize;
+        private long[] checkpointIds = new long[4];
+        private int checkpointCount;
+
+        Segment(Path file, long firstId, MappedByteBuffer buffer) {
+            this.file = file;
+            this.firstId = firstId;
+            this.buffer = buffer;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        synchronized void noteEntry(long id, int offset, boolean checkpoint) {
+            if (entries % INDEX_INTERVAL == 0) {
+                if (indexSize == indexIds.length) {
+                    indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+                    indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                }
+                indexIds[indexSize] = id;
+                indexOffsets[indexSize] = offset;
+                indexSize++;
+            }
+            entries++;
+            lastEntryId = id;
+            lastEntryOffset = offset;
+            if (checkpoint) {
+                if (checkpointCount == checkpointIds.length) {
+                    checkpointIds = Arrays.copyOf(checkpointIds, Math.max(4, checkpointCount * 2));
+                }
+                checkpointIds[checkpointCount++] = id;
+                trailing = 0;
+            } else {
+                trailing++;
+            }
+        }
+
+        /**
+         * Offset of the last indexed entry with id at or below id, or of the
+         * first record.
+         */
+        synchronized int floorOffset(long id) {
+            int low = 0;
+            int high = indexSize - 1;
+            int offset = SEGMENT_HEADER;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (indexIds[middle] <= id) {
+                    offset = indexOffsets[middle];
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return offset;
+        }
+
+        synchronized long checkpointAtOrBefore(long id) {
+            for (int i = checkpointCount - 1; i >= 0; i--) {
+                if (checkpointIds[i] <= id) {
+                    return checkpointIds[i];
+                }
+            }
+            return 0L;
+        }
+    }
+}
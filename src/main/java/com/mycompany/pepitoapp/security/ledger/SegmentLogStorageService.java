@@ -0,0 +1,146 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import com.mycompany.pepitoapp.security.ledger.SegmentLog.Position;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Ledger entries in an append-only log of memory-mapped segment files (see
+ * {@link SegmentLog} for the format). An append is a few bulk writes into the
+ * mapping and one force of the written range, and verification hashes the
+ * mapped records in place, without queries or row decoding.
+ *
+ * Hashes, signatures and checkpoints are exactly those of the SQLite ledger,
+ * so {@link StorageConverter} can move a ledger either way and it verifies the
+ * same. The files are not encrypted; like the ledger table, their integrity
+ * rests on the hash chain and the signatures.
+ *
+ * The log is opened on first use and held, with its lock file, until
+ * {@link #close}; the next call opens it again.
+ */
+public class SegmentLogStorageService implements StorageService {
+
+    public static final String NAME = "segment";
+    public static final int DEFAULT_SEGMENT_SIZE = SegmentLog.DEFAULT_SEGMENT_SIZE;
+
+    private final Path directory;
+    private final int segmentSize;
+    private SegmentLog log;
+
+    public SegmentLogStorageService(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize bytes per segment file, a multiple of 4096 between
+     *                    64 KiB and 1 GiB; a new segment starts when an append
+     *                    does not fit in the current one
+     */
+    public SegmentLogStorageService(Path directory, int segmentSize) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        if (segmentSize < SegmentLog.MIN_SEGMENT_SIZE || segmentSize > SegmentLog.MAX_SEGMENT_SIZE || segmentSize % 4096 != 0) {
+            throw new IllegalArgumentException("Segment size must be a multiple of 4096 between 64 KiB and 1 GiB");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public ChainHead readHead(char[] passphrase) throws IOException {
+        return log().head();
+    }
+
+    @Override
+    public long[] append(char[] passphrase, ChainHead expected, List<LedgerEntry> entries, MerkleBatch batch) throws IOException {
+        Objects.requireNonNull(expected, "expected");
+        return log().append(expected, entries, batch);
+    }
+
+    @Override
+    public void scan(char[] passphrase, long afterId, Visitor visitor) throws Exception {
+        log().forEach(afterId + 1, (segment, offset) -> {
+            if (SegmentLog.type(segment.buffer, offset) == SegmentLog.TYPE_ENTRY) {
+                visitor.entry(SegmentLog.readEntry(segment.buffer, offset));
+            } else {
+                visitor.batch(SegmentLog.readBatch(segment.buffer, offset));
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public VerificationResult verify(char[] passphrase, PublicKeyResolver keys, VerificationProgress progress) {
+        try {
+            return new SegmentChainVerifier(log(), keys, StreamingChainVerifier.DEFAULT_PROGRESS_INTERVAL).verify(progress);
+        } catch (IOException ex) {
+            return new VerificationResult(false, List.of("Verification failed: " + ex.getMessage()));
+        }
+    }
+
+    @Override
+    public VerificationResult verifyFromCheckpoint(long checkpointId, char[] passphrase, PublicKeyResolver keys, VerificationProgress progress) {
+        try {
+            return new SegmentChainVerifier(log(), keys, StreamingChainVerifier.DEFAULT_PROGRESS_INTERVAL)
+                    .verifyFromCheckpoint(checkpointId, progress);
+        } catch (IOException ex) {
+            return new VerificationResult(false, List.of("Verification failed: " + ex.getMessage()));
+        }
+    }
+
+    @Override
+    public MerkleProof inclusionProof(long entryId, char[] passphrase) throws Exception {
+        SegmentLog current = log();
+        Position entry = current.find(entryId);
+        if (entry == null) {
+            throw new IllegalArgumentException("No ledger entry with id " + entryId);
+        }
+        ByteBuffer buffer = entry.buffer();
+        long batchId = SegmentLog.link(buffer, entry.offset());
+        if (batchId <= 0) {
+            throw new IllegalArgumentException("Entry " + entryId + " is not covered by a Merkle batch");
+        }
+        Position batch = current.findBatch(entry, batchId);
+        List<byte[]> leaves = batch == null ? null : current.leaves(batch);
+        if (leaves == null) {
+            throw new IOException("Merkle batch " + batchId + " is missing or inconsistent");
+        }
+        int leafIndex = SegmentLog.leaf(buffer, entry.offset());
+        List<String> path = new ArrayList<>();
+        for (byte[] node : MerkleTree.proof(leaves, leafIndex)) {
+            path.add(ChainHashing.encode(node));
+        }
+        MerkleBatch signed = SegmentLog.readBatch(batch.buffer(), batch.offset());
+        return new MerkleProof(entryId, SegmentLog.format(buffer, entry.offset()),
+                ChainHashing.encode(SegmentLog.bytes(buffer, SegmentLog.hashOffset(entry.offset()), ChainHasher.HASH_LENGTH)),
+                ChainHashing.encode(SegmentLog.bytes(buffer, SegmentLog.currentHashOffset(entry.offset()), ChainHasher.HASH_LENGTH)),
+                batchId, leafIndex, signed.leafCount(), path, signed.root(), signed.signature(), signed.keyId());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private synchronized SegmentLog log() throws IOException {
+        if (log == null) {
+            log = SegmentLog.open(directory, segmentSize);
+        }
+        return log;
+    }
+}
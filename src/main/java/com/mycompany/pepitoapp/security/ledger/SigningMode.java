@@ -0,0 +1,21 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+/**
+ * How the ledger signs appended entries.
+ */
+public enum SigningMode {
+
+    /**
+     * One Ed25519 signature per entry.
+     */
+    PER_ENTRY,
+
+    /**
+     * One signature per append transaction over the Merkle root of its
+     * entries. Entries keep their place in the hash chain but carry no
+     * signature of their own; their inclusion is proven against the signed
+     * root. Pays off together with {@link GroupCommitLedgerAppender}, which
+     * turns a burst of sales into one transaction.
+     */
+    MERKLE_BATCH
+}
@@ -0,0 +1,329 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.app.MetricsCollector;
+import com.mycompany.pepitoapp.security.app.MetricsCollector.Metric;
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Ledger entries as rows of the ledger table and signed Merkle roots as rows
+ * of merkle_batch, in the database of a {@link SecureDatabaseProvider}. Each
+ * append is one transaction on the provider's session.
+ *
+ * Closed periods moved out by {@link LedgerArchiver} are represented by their
+ * anchors in ledger_archive; the chain continues from the last of them.
+ *
+ * An {@link AppendHook} sees every append before it commits, in the same
+ * transaction, which is how {@link SaleAggregates} stays in step with the
+ * ledger.
+ */
+public class SqliteStorageService implements StorageService {
+
+    public static final String NAME = "sqlite";
+
+    private static final String INSERT_ENTRY = "INSERT INTO ledger(id, created_at, sale_json, previous_hash, current_hash, signature, key_id, checkpoint, leaf_index, format, previous_hash_bin, current_hash_bin, signature_bin) "
+            + "VALUES(?,?,?,'','','',?,?,?,?,?,?,?) RETURNING id";
+    private static final String SELECT_HEAD = "SELECT id, current_hash, current_hash_bin FROM ledger ORDER BY id DESC LIMIT 1";
+    private static final String SELECT_HASH_BEFORE = "SELECT current_hash, current_hash_bin FROM ledger WHERE id < ? ORDER BY id DESC LIMIT 1";
+    private static final String SELECT_SINCE_CHECKPOINT = "SELECT COUNT(*) FROM ledger WHERE id > COALESCE((SELECT MAX(id) FROM ledger WHERE checkpoint = 1), 0)";
+    private static final String SELECT_AFTER = "SELECT " + LedgerRows.COLUMNS + " FROM ledger WHERE id > ? ORDER BY id ASC";
+    private static final String SELECT_TEXT_ROWS = "SELECT id, previous_hash, current_hash, signature FROM ledger WHERE id > ? AND current_hash_bin IS NULL ORDER BY id ASC LIMIT ?";
+    private static final String MOVE_TO_BINARY = "UPDATE ledger SET previous_hash_bin = ?, current_hash_bin = ?, signature_bin = ?, previous_hash = '', current_hash = '', signature = '' "
+            + "WHERE id = ? AND current_hash_bin IS NULL";
+    private static final int SCAN_FETCH_SIZE = 256;
+    private static final MetricsCollector METRICS = MetricsCollector.getInstance();
+
+    private final SecureDatabaseProvider databaseProvider;
+    private final Path archiveDirectory;
+    private volatile AppendHook appendHook;
+
+    /**
+     * Archives in ledger-archive next to ledger.db.
+     */
+    public SqliteStorageService(SecureDatabaseProvider databaseProvider) {
+        this(databaseProvider, databaseProvider.getDbFile().resolveSibling(LedgerArchiver.DIRECTORY));
+    }
+
+    public SqliteStorageService(SecureDatabaseProvider databaseProvider, Path archiveDirectory) {
+        this.databaseProvider = Objects.requireNonNull(databaseProvider, "databaseProvider");
+        this.archiveDirectory = Objects.requireNonNull(archiveDirectory, "archiveDirectory");
+    }
+
+    /**
+     * Runs inside the transaction of every append, after its entries are
+     * inserted and before it commits; an exception rolls the append back.
+     */
+    public interface AppendHook {
+
+        void appended(DatabaseSession session, List<LedgerEntry> entries, long[] ids) throws Exception;
+    }
+
+    public void setAppendHook(AppendHook appendHook) {
+        this.appendHook = appendHook;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public ChainHead readHead(char[] passphrase) throws Exception {
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            return readHead(session);
+        }
+    }
+
+    @Override
+    public long[] append(char[] passphrase, ChainHead expected, List<LedgerEntry> entries, MerkleBatch batch) throws Exception {
+        Objects.requireNonNull(expected, "expected");
+        long[] ids = new long[entries.size()];
+        if (entries.isEmpty()) {
+            return ids;
+        }
+        try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+            Connection connection = session.connection();
+            connection.setAutoCommit(false);
+            try {
+                long firstLeafId = 0;
+                long lastLeafId = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    LedgerEntry entry = entries.get(i);
+                    long start = System.nanoTime();
+                    ids[i] = insertEntry(session, entry);
+                    METRICS.recordSince(Metric.LEDGER_INSERT, start);
+                    if (entry.leafIndex() >= 0) {
+                        firstLeafId = firstLeafId == 0 ? ids[i] : firstLeafId;
+                        lastLeafId = ids[i];
+                    }
+                }
+                if (!followsHead(session, ids[0], expected)) {
+                    // Another writer appended since the head was read.
+                    connection.rollback();
+                    return null;
+                }
+                if (batch != null && firstLeafId > 0) {
+                    MerkleBatches.insert(session, firstLeafId, lastLeafId, batch.leafCount(), batch.root(),
+                            batch.signature(), batch.keyId(), batch.createdAt());
+                }
+                AppendHook hook = appendHook;
+                if (hook != null) {
+                    hook.appended(session, entries, ids);
+                }
+                long commitStart = System.nanoTime();
+                connection.commit();
+                METRICS.recordSince(Metric.LEDGER_COMMIT, commitStart);
+                return ids;
+            } catch (Exception ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public void scan(char[] passphrase, long afterId, Visitor visitor) throws Exception {
+        try (Connection connection = databaseProvider.readConnections(passphrase).open();
+             PreparedStatement statement = connection.prepareStatement(SELECT_AFTER)) {
+            statement.setFetchSize(SCAN_FETCH_SIZE);
+            statement.setLong(1, afterId);
+            MerkleBatch batch = null;
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    LedgerEntry entry = LedgerRows.read(rs);
+                    visitor.entry(entry);
+                    if (entry.merkleBatched()) {
+                        if (batch == null || batch.id() != entry.merkleBatch()) {
+                            batch = MerkleBatches.find(connection, entry.merkleBatch());
+                        }
+                        if (batch != null && batch.lastEntryId() == entry.id()) {
+                            visitor.batch(batch);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public VerificationResult verify(char[] passphrase, PublicKeyResolver keys, VerificationProgress progress) {
+        return new StreamingChainVerifier(databaseProvider.readConnections(passphrase)).verify(keys, progress);
+    }
+
+    @Override
+    public VerificationResult verifyFromCheckpoint(long checkpointId, char[] passphrase, PublicKeyResolver keys, VerificationProgress progress) {
+        return new StreamingChainVerifier(databaseProvider.readConnections(passphrase)).verifyFromCheckpoint(checkpointId, keys, progress);
+    }
+
+    /**
+     * Splits the table into id ranges on the common ForkJoinPool, see
+     * {@link ParallelChainVerifier}.
+     */
+    @Override
+    public VerificationResult verifyParallel(char[] passphrase, PublicKeyResolver keys) {
+        return new ParallelChainVerifier(databaseProvider.readConnections(passphrase)).verify(keys);
+    }
+
+    @Override
+    public VerificationResult verifyArchives(char[] passphrase, PublicKeyResolver keys) {
+        return LedgerArchiver.verifyArchives(databaseProvider.readConnections(passphrase), archiveDirectory, keys);
+    }
+
+    @Override
+    public MerkleProof inclusionProof(long entryId, char[] passphrase) throws Exception {
+        try (Connection connection = databaseProvider.readConnections(passphrase).open()) {
+            ArchiveAnchor archived = LedgerArchives.covering(LedgerArchives.list(connection), entryId);
+            if (archived != null) {
+                throw new IllegalArgumentException("Entry " + entryId + " is archived in " + archived.file());
+            }
+            return MerkleBatches.proof(connection, entryId);
+        }
+    }
+
+    /**
+     * Moves the hashes and signatures of text-format rows into the BLOB
+     * columns, batchSize rows per transaction, so appends interleave with the
+     * migration. The rows keep format 1, and therefore their original hash
+     * and signature. Stops early, between batches, if the thread is
+     * interrupted. Safe to run again; migrated rows are skipped.
+     */
+    @Override
+    public long migrateToBinaryStorage(char[] passphrase, int batchSize) throws Exception {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        Base64.Decoder decoder = Base64.getDecoder();
+        long migrated = 0;
+        long afterId = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            List<long[]> ids = new ArrayList<>(batchSize);
+            List<byte[][]> values = new ArrayList<>(batchSize);
+            try (DatabaseSession session = databaseProvider.openSession(passphrase)) {
+                Connection connection = session.connection();
+                PreparedStatement select = session.prepare(SELECT_TEXT_ROWS);
+                select.setLong(1, afterId);
+                select.setInt(2, batchSize);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        ids.add(new long[]{rs.getLong("id")});
+                        values.add(new byte[][]{
+                                decoder.decode(rs.getString("previous_hash")),
+                                decoder.decode(rs.getString("current_hash")),
+                                decoder.decode(rs.getString("signature"))
+                        });
+                    }
+                }
+                if (ids.isEmpty()) {
+                    break;
+                }
+                connection.setAutoCommit(false);
+                try {
+                    PreparedStatement update = session.prepare(MOVE_TO_BINARY);
+                    for (int i = 0; i < ids.size(); i++) {
+                        byte[][] row = values.get(i);
+                        update.setBytes(1, row[0]);
+                        update.setBytes(2, row[1]);
+                        update.setBytes(3, row[2]);
+                        update.setLong(4, ids.get(i)[0]);
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                    connection.commit();
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            }
+            migrated += ids.size();
+            afterId = ids.get(ids.size() - 1)[0];
+        }
+        return migrated;
+    }
+
+    /**
+     * The database belongs to the provider, which is closed by its owner.
+     */
+    @Override
+    public void close() {
+    }
+
+    private static long insertEntry(DatabaseSession session, LedgerEntry entry) throws SQLException {
+        PreparedStatement statement = session.prepare(INSERT_ENTRY);
+        if (entry.id() > 0) {
+            statement.setLong(1, entry.id());
+        } else {
+            statement.setNull(1, Types.INTEGER);
+        }
+        statement.setLong(2, entry.createdAt());
+        statement.setString(3, entry.saleJson());
+        statement.setString(4, entry.keyId());
+        statement.setInt(5, entry.checkpoint() ? 1 : 0);
+        if (entry.leafIndex() < 0) {
+            statement.setNull(6, Types.INTEGER);
+        } else {
+            statement.setInt(6, entry.leafIndex());
+        }
+        statement.setInt(7, entry.format());
+        statement.setBytes(8, entry.previousHash());
+        statement.setBytes(9, entry.currentHash());
+        statement.setBytes(10, entry.signature());
+        try (ResultSet rs = statement.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("Ledger insert returned no id");
+            }
+            return rs.getLong(1);
+        }
+    }
+
+    private static ChainHead readHead(DatabaseSession session) throws SQLException {
+        PreparedStatement statement = session.prepare(SELECT_HEAD);
+        try (ResultSet rs = statement.executeQuery()) {
+            if (!rs.next()) {
+                ArchiveAnchor archived = LedgerArchives.last(session.connection());
+                return archived == null
+                        ? new ChainHead(0L, ChainHashing.GENESIS_HASH, 0L)
+                        : new ChainHead(archived.lastId(), archived.lastHash(), 0L);
+            }
+            long lastId = rs.getLong(1);
+            byte[] lastHash = LedgerRows.bytes(rs, "current_hash_bin", "current_hash");
+            try (ResultSet since = session.prepare(SELECT_SINCE_CHECKPOINT).executeQuery()) {
+                since.next();
+                return new ChainHead(lastId, lastHash, since.getLong(1));
+            }
+        }
+    }
+
+    /**
+     * The usual case (id right after the head) needs no query. A gap in the ids
+     * is accepted only if the row before the new one, or the last archive when
+     * there is none, still carries the expected head hash.
+     */
+    private static boolean followsHead(DatabaseSession session, long id, ChainHead expected) throws SQLException {
+        if (id == expected.lastId() + 1) {
+            return true;
+        }
+        PreparedStatement statement = session.prepare(SELECT_HASH_BEFORE);
+        statement.setLong(1, id);
+        try (ResultSet rs = statement.executeQuery()) {
+            if (rs.next()) {
+                return Arrays.equals(LedgerRows.bytes(rs, "current_hash_bin", "current_hash"), expected.lastHash());
+            }
+        }
+        ArchiveAnchor archived = LedgerArchives.last(session.connection());
+        byte[] previous = archived == null ? ChainHashing.GENESIS_HASH : archived.lastHash();
+        return Arrays.equals(previous, expected.lastHash());
+    }
+}
@@ -0,0 +1,195 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Copies a ledger from one {@link StorageService} to another, entry by entry
+ * with its original id, timestamps, hashes and signatures, so the copy
+ * verifies exactly like the source. Merkle batches are copied whole, with the
+ * entries they cover, in one append each.
+ *
+ * A copy that stopped half way resumes after the last entry of the target,
+ * provided the source continues from it. Only entries still in the source
+ * are copied, so a SQLite ledger with archived periods (see
+ * {@link LedgerArchiver}) does not convert.
+ *
+ * <pre>
+ * sqlite segment [--data ~/.pepitoapp] [--log DIR]
+ * segment sqlite [--data ~/.pepitoapp] [--log DIR]
+ * </pre>
+ *
+ * The database passphrase comes from PEPITO_PASSPHRASE, as in SecurityModule,
+ * and the log directory defaults to ledger-log next to ledger.db. The
+ * application must be closed while converting.
+ */
+public final class StorageConverter {
+
+    public static final int DEFAULT_CHUNK = 256;
+
+    private StorageConverter() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        if (args.length < 2 || (args.length - 2) % 2 != 0) {
+            return usage();
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                return usage();
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        Path data = Path.of(options.getOrDefault("data", Path.of(System.getProperty("user.home"), ".pepitoapp").toString()));
+        Path log = options.containsKey("log") ? Path.of(options.get("log")) : data.resolve("ledger-log");
+        char[] passphrase = System.getenv().getOrDefault("PEPITO_PASSPHRASE", "pepito-demo-pass").toCharArray();
+        SecureDatabaseProvider database = new SecureDatabaseProvider(new Argon2KeyDeriver(), data);
+        try {
+            StorageService source = open(args[0], database, log);
+            StorageService target = open(args[1], database, log);
+            if (source.name().equals(target.name())) {
+                return usage();
+            }
+            try (source; target) {
+                database.open(passphrase);
+                long start = System.nanoTime();
+                long copied = copy(source, passphrase, target, passphrase);
+                long millis = Math.max(1L, (System.nanoTime() - start) / 1_000_000L);
+                System.out.println("Copied " + copied + " entries from " + source.name() + " to " + target.name()
+                        + " in " + millis + " ms");
+            } finally {
+                database.close();
+            }
+            return 0;
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return usage();
+        } catch (Exception ex) {
+            System.err.println("Conversion failed: " + ex.getMessage());
+            return 2;
+        } finally {
+            Arrays.fill(passphrase, '\0');
+        }
+    }
+
+    /**
+     * Appends to target every entry of source after the last entry of
+     * target.
+     *
+     * @return number of entries copied
+     * @throws IllegalStateException if the target holds entries that do not
+     *         end where the rest of the source begins, or changes meanwhile
+     */
+    public static long copy(StorageService source, char[] sourcePassphrase, StorageService target, char[] targetPassphrase) throws Exception {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(target, "target");
+        Copy copy = new Copy(target, targetPassphrase, target.readHead(targetPassphrase));
+        source.scan(sourcePassphrase, copy.head.lastId(), copy);
+        copy.finish();
+        return copy.copied;
+    }
+
+    private static StorageService open(String name, SecureDatabaseProvider database, Path log) {
+        return switch (name) {
+            case SqliteStorageService.NAME -> new SqliteStorageService(database);
+            case SegmentLogStorageService.NAME -> new SegmentLogStorageService(log);
+            default -> throw new IllegalArgumentException("Unknown storage " + name);
+        };
+    }
+
+    private static int usage() {
+        System.err.println("Usage: StorageConverter <sqlite|segment> <segment|sqlite> [--data DIR] [--log DIR]");
+        return 2;
+    }
+
+    /**
+     * Collects the scanned entries and appends them a chunk, or a whole Merkle
+     * batch, at a time.
+     */
+    private static final class Copy implements StorageService.Visitor {
+
+        private final StorageService target;
+        private final char[] passphrase;
+        private final List<LedgerEntry> pending = new ArrayList<>();
+        private ChainHead head;
+        private long copied;
+        private boolean first = true;
+
+        Copy(StorageService target, char[] passphrase, ChainHead head) {
+            this.target = target;
+            this.passphrase = passphrase;
+            this.head = head;
+        }
+
+        @Override
+        public void entry(LedgerEntry entry) throws Exception {
+            if (first) {
+                first = false;
+                if (!Arrays.equals(entry.previousHash(), head.lastHash())) {
+                    throw new IllegalStateException("The " + target.name() + " ledger does not continue at entry " + entry.id());
+                }
+            }
+            boolean batched = entry.merkleBatched();
+            if (!pending.isEmpty()) {
+                LedgerEntry previous = pending.get(pending.size() - 1);
+                if (previous.merkleBatched() && previous.merkleBatch() != entry.merkleBatch()) {
+                    // batch() flushes a complete batch before the next entry.
+                    throw missingBatch(previous);
+                }
+                if (!previous.merkleBatched() && batched) {
+                    flush(null);
+                }
+            }
+            pending.add(entry);
+            if (!batched && pending.size() >= DEFAULT_CHUNK) {
+                flush(null);
+            }
+        }
+
+        @Override
+        public void batch(MerkleBatch batch) throws Exception {
+            if (pending.isEmpty() || pending.get(0).merkleBatch() != batch.id()) {
+                // The batch of an entry the target already has.
+                return;
+            }
+            flush(batch);
+        }
+
+        void finish() throws Exception {
+            if (!pending.isEmpty() && pending.get(0).merkleBatched()) {
+                throw missingBatch(pending.get(0));
+            }
+            flush(null);
+        }
+
+        private static IllegalStateException missingBatch(LedgerEntry entry) {
+            return new IllegalStateException("Merkle batch " + entry.merkleBatch() + " of entry " + entry.id() + " is missing");
+        }
+
+        private void flush(MerkleBatch batch) throws Exception {
+            if (pending.isEmpty()) {
+                return;
+            }
+            long[] ids = target.append(passphrase, head, pending, batch);
+            if (ids == null) {
+                throw new IllegalStateException("The " + target.name() + " ledger changed during the copy");
+            }
+            LedgerEntry last = pending.get(pending.size() - 1);
+            head = new ChainHead(ids[ids.length - 1], last.currentHash(), 0L);
+            copied += pending.size();
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the ledger keeps its entries. {@link LedgerService} hashes and signs;
+ * a storage service only persists finished entries in chain order, reads them
+ * back and verifies them in whatever way suits its layout.
+ *
+ * Implementations: {@link SqliteStorageService} (the ledger and merkle_batch
+ * tables) and {@link SegmentLogStorageService} (memory-mapped append-only
+ * segment files). {@link StorageConverter} copies a ledger from one to the
+ * other.
+ *
+ * The passphrase is the one of the SQLite database; backends that do not need
+ * it ignore it.
+ */
+public interface StorageService extends AutoCloseable {
+
+    /**
+     * Short name used in configuration and messages, such as "sqlite".
+     */
+    String name();
+
+    /**
+     * Last committed position of the chain; id 0 and the genesis hash when
+     * the ledger is empty.
+     */
+    ChainHead readHead(char[] passphrase) throws Exception;
+
+    /**
+     * Stores the entries atomically, in order, after the expected head.
+     *
+     * Entries with id 0 get the next free id; entries with a positive id keep
+     * it (ids must grow). The merkleBatch of the entries is ignored: when batch
+     * is not null, the entries with a leafIndex are tagged with the id of the
+     * first of them, which also becomes the id of the batch, and the batch is
+     * stored with them. The id and lastEntryId of batch are ignored as well.
+     *
+     * @return the ids of the entries, or null when the chain no longer ends at
+     *         expected (another writer appended) and nothing was stored
+     */
+    long[] append(char[] passphrase, ChainHead expected, List<LedgerEntry> entries, MerkleBatch batch) throws Exception;
+
+    /**
+     * Calls the visitor for every entry with id greater than afterId, in id
+     * order. A Merkle batch is visited right after its last entry.
+     */
+    void scan(char[] passphrase, long afterId, Visitor visitor) throws Exception;
+
+    /**
+     * Verifies hashes, linkage and, when keys is not null, signatures of the
+     * whole chain.
+     */
+    VerificationResult verify(char[] passphrase, PublicKeyResolver keys, VerificationProgress progress);
+
+    /**
+     * Same as {@link #verify} from the newest valid checkpoint with id at or
+     * before checkpointId; see {@link LedgerService#verifyFromCheckpoint}.
+     */
+    VerificationResult verifyFromCheckpoint(long checkpointId, char[] passphrase, PublicKeyResolver keys, VerificationProgress progress);
+
+    /**
+     * Same result as {@link #verify}, using more threads where the backend can.
+     */
+    default VerificationResult verifyParallel(char[] passphrase, PublicKeyResolver keys) {
+        return verify(passphrase, keys, VerificationProgress.NONE);
+    }
+
+    /**
+     * Deep verification of the archived periods, reading every archived
+     * entry; {@link #verify} checks an archive by its signed anchor alone.
+     * Backends without archives have nothing to check.
+     */
+    default VerificationResult verifyArchives(char[] passphrase, PublicKeyResolver keys) {
+        return new VerificationResult(true, List.of());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the entry does not exist or was
+     *         signed on its own
+     */
+    MerkleProof inclusionProof(long entryId, char[] passphrase) throws Exception;
+
+    /**
+     * Moves entries kept in an older storage format to the current one; see
+     * {@link LedgerService#migrateToBinaryStorage}.
+     *
+     * @return number of entries migrated
+     */
+    default long migrateToBinaryStorage(char[] passphrase, int batchSize) throws Exception {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        return 0L;
+    }
+
+    /**
+     * Releases the files and mappings held by the service. A backend that
+     * opens them lazily opens them again on its next call.
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * Receives the entries of a {@link #scan}.
+     */
+    interface Visitor {
+
+        void entry(LedgerEntry entry) throws Exception;
+
+        /**
+         * Called after the last entry of the batch.
+         */
+        void batch(MerkleBatch batch) throws Exception;
+    }
+}
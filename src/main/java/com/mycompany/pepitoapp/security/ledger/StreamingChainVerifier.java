@@ -0,0 +1,167 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import com.mycompany.pepitoapp.security.crypto.PublicKeyResolver;
+import com.mycompany.pepitoapp.security.storage.ConnectionFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Verifies the chain through a forward-only cursor. Each row is checked as it
+ * arrives and then dropped; only the expected previous hash is carried to the
+ * next row, so memory stays flat whatever the size of the ledger.
+ *
+ * Entries of both formats are accepted, but once a v2 entry appears no v1
+ * entry may follow it: the migration boundary is crossed only once.
+ *
+ * Archived periods are checked through their anchors, one signature each,
+ * and the cursor starts after the last of them.
+ *
+ * It reads on its own connection, which in WAL mode does not block appends.
+ */
+public class StreamingChainVerifier {
+
+    public static final int DEFAULT_FETCH_SIZE = 256;
+    public static final long DEFAULT_PROGRESS_INTERVAL = 10_000L;
+
+    private static final String SELECT_MAX_ID = "SELECT MAX(id) FROM ledger";
+    private static final String SELECT_CHECKPOINT_AT_OR_BEFORE = "SELECT " + LedgerRows.COLUMNS + " FROM ledger WHERE checkpoint = 1 AND id <= ? ORDER BY id DESC LIMIT 1";
+    private static final String SELECT_AFTER = "SELECT " + LedgerRows.COLUMNS + " FROM ledger WHERE id > ? ORDER BY id ASC";
+
+    private final ConnectionFactory connections;
+    private final int fetchSize;
+    private final long progressInterval;
+
+    public StreamingChainVerifier(ConnectionFactory connections) {
+        this(connections, DEFAULT_FETCH_SIZE, DEFAULT_PROGRESS_INTERVAL);
+    }
+
+    public StreamingChainVerifier(ConnectionFactory connections, int fetchSize, long progressInterval) {
+        this.connections = Objects.requireNonNull(connections, "connections");
+        if (fetchSize < 1 || progressInterval < 1) {
+            throw new IllegalArgumentException("Fetch size and progress interval must be positive");
+        }
+        this.fetchSize = fetchSize;
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * @param keys resolver for signature checks, or null to check only hashes
+     * @param progress receives a call every progress interval and at the end
+     */
+    public VerificationResult verify(PublicKeyResolver keys, VerificationProgress progress) {
+        List<String> errors = new ArrayList<>();
+        try (Connection connection = connections.open()) {
+            EntryVerifier entryVerifier = new EntryVerifier(keys, connection);
+            ArchiveAnchor archived = LedgerArchives.check(LedgerArchives.list(connection), entryVerifier, errors);
+            if (archived == null) {
+                stream(connection, 0L, ChainHashing.GENESIS_HASH, LedgerEntry.FORMAT_V1, entryVerifier, errors, progress);
+            } else {
+                stream(connection, archived.lastId(), archived.lastHash(), archived.format(), entryVerifier, errors, progress);
+            }
+        } catch (Exception ex) {
+            errors.add("Verification failed: " + ex.getMessage());
+        }
+        return new VerificationResult(errors.isEmpty(), errors);
+    }
+
+    /**
+     * Starts from the newest checkpoint with id at or before checkpointId whose
+     * own hash and signature are valid, and verifies only the entries after it.
+     * Invalid checkpoints are reported and skipped. Without a valid checkpoint
+     * it starts after the newest archive with a valid anchor, or else verifies
+     * the whole chain.
+     */
+    public VerificationResult verifyFromCheckpoint(long checkpointId, PublicKeyResolver keys, VerificationProgress progress) {
+        List<String> errors = new ArrayList<>();
+        try (Connection connection = connections.open()) {
+            EntryVerifier entryVerifier = new EntryVerifier(keys, connection);
+            long afterId = 0L;
+            byte[] expectedPrev = ChainHashing.GENESIS_HASH;
+            int format = LedgerEntry.FORMAT_V1;
+            long candidateId = checkpointId;
+            while (candidateId > 0) {
+                LedgerEntry checkpoint = findCheckpoint(connection, candidateId);
+                if (checkpoint == null) {
+                    break;
+                }
+                List<String> checkpointErrors = new ArrayList<>();
+                entryVerifier.checkAnchor(checkpoint, checkpointErrors);
+                if (checkpointErrors.isEmpty()) {
+                    afterId = checkpoint.id();
+                    expectedPrev = checkpoint.currentHash();
+                    format = checkpoint.format();
+                    break;
+                }
+                errors.add("Checkpoint inválido en la entrada " + checkpoint.id());
+                candidateId = checkpoint.id() - 1;
+            }
+            if (afterId == 0L) {
+                ArchiveAnchor archived = LedgerArchives.newestValid(LedgerArchives.list(connection), entryVerifier, errors);
+                if (archived != null) {
+                    afterId = archived.lastId();
+                    expectedPrev = archived.lastHash();
+                    format = archived.format();
+                }
+            }
+            stream(connection, afterId, expectedPrev, format, entryVerifier, errors, progress);
+        } catch (Exception ex) {
+            errors.add("Verification failed: " + ex.getMessage());
+        }
+        return new VerificationResult(errors.isEmpty(), errors);
+    }
+
+    private void stream(Connection connection, long afterId, byte[] expectedPrev, int format, EntryVerifier entryVerifier,
+                        List<String> errors, VerificationProgress progress) throws Exception {
+        Objects.requireNonNull(progress, "progress");
+        long verified = 0;
+        long currentId = afterId;
+        long lastId = maxId(connection);
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_AFTER)) {
+            statement.setFetchSize(fetchSize);
+            statement.setLong(1, afterId);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    LedgerEntry entry = LedgerRows.read(rs);
+                    if (!Arrays.equals(entry.previousHash(), expectedPrev)) {
+                        errors.add("Prev hash mismatch at id " + entry.id());
+                    }
+                    if (entry.format() < format) {
+                        errors.add(EntryVerifier.downgradeError(entry.id()));
+                    }
+                    entryVerifier.check(entry, errors);
+                    expectedPrev = entry.currentHash();
+                    format = Math.max(format, entry.format());
+                    currentId = entry.id();
+                    verified++;
+                    if (verified % progressInterval == 0) {
+                        progress.onProgress(verified, currentId, lastId);
+                    }
+                }
+            }
+        }
+        entryVerifier.flush();
+        progress.onProgress(verified, currentId, Math.max(lastId, currentId));
+    }
+
+    private static LedgerEntry findCheckpoint(Connection connection, long atOrBeforeId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_CHECKPOINT_AT_OR_BEFORE)) {
+            statement.setLong(1, atOrBeforeId);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? LedgerRows.read(rs) : null;
+            }
+        }
+    }
+
+    private static long maxId(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_MAX_ID);
+             ResultSet rs = statement.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+/**
+ * Receives progress of a long running chain verification.
+ */
+@FunctionalInterface
+public interface VerificationProgress {
+
+    VerificationProgress NONE = (verifiedEntries, currentId, lastId) -> { };
+
+    /**
+     * @param verifiedEntries entries checked so far
+     * @param currentId id of the last checked entry
+     * @param lastId highest id in the ledger when verification started
+     */
+    void onProgress(long verifiedEntries, long currentId, long lastId);
+}
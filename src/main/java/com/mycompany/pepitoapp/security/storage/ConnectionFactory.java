@@ -0,0 +1,15 @@
+package com.mycompany.pepitoapp.security.storage;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Opens new connections to a ledger database, for example one per worker
+ * thread of a parallel verification.
+ */
+@FunctionalInterface
+public interface ConnectionFactory {
+
+    Connection open() throws SQLException, IOException;
+}
@@ -0,0 +1,100 @@
+package com.mycompany.pepitoapp.security.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A borrowed database connection plus its prepared-statement cache.
+ *
+ * Managed sessions share the provider's warm connection: closing them rolls
+ * back any unfinished transaction and releases the connection lock, but the
+ * connection and cached statements stay open. Standalone sessions own their
+ * connection and close everything on {@link #close()}.
+ *
+ * Statements returned by {@link #prepare(String)} belong to the session and
+ * must not be closed by the caller; result sets must be.
+ */
+public final class DatabaseSession implements AutoCloseable {
+
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+    private final Lock lock;
+    private boolean closed;
+
+    private DatabaseSession(Connection connection, Map<String, PreparedStatement> statements, Lock lock) {
+        this.connection = Objects.requireNonNull(connection, "connection");
+        this.statements = Objects.requireNonNull(statements, "statements");
+        this.lock = lock;
+    }
+
+    static DatabaseSession managed(Connection connection, Map<String, PreparedStatement> statements, Lock lock) {
+        lock.lock();
+        return new DatabaseSession(connection, statements, lock);
+    }
+
+    static DatabaseSession standalone(Connection connection) {
+        return new DatabaseSession(connection, new HashMap<>(), null);
+    }
+
+    public Connection connection() {
+        return connection;
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Closes the cached statements; {@link #prepare(String)} prepares them
+     * again on demand. SQLite refuses VACUUM while any of them is still
+     * stepping.
+     */
+    public void releaseStatements() {
+        closeStatements(statements);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (lock == null) {
+            try {
+                closeStatements(statements);
+            } finally {
+                connection.close();
+            }
+            return;
+        }
+        try {
+            if (!connection.isClosed() && !connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static void closeStatements(Map<String, PreparedStatement> statements) {
+        for (PreparedStatement statement : statements.values()) {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
+                // Best effort: the connection is being released anyway.
+            }
+        }
+        statements.clear();
+    }
+}
@@ -1,30 +1,56 @@
 package com.mycompany.pepitoapp.security.storage;
 
 import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides a SQLite connection prepared for SQLCipher (when available) and
  * initializes the ledger schema.
+ *
+ * After {@link #open(char[])} the provider works in managed mode: the database
+ * key is derived once, one warm connection with a prepared-statement cache is
+ * kept for the whole shift and {@link #openSession(char[])} lends it out under a
+ * lock. Without open() every session gets its own short-lived connection.
+ *
+ * db_key.properties keeps the salt of the database key and the
+ * {@link KdfProfile} it was derived with. When that profile is not the
+ * deriver's current one, open() re-keys the database under a new salt and
+ * profile; the new metadata is written to a pending file first, so an open
+ * interrupted between the re-key and the switch is repaired by the next one.
  */
-public class SecureDatabaseProvider {
+public class SecureDatabaseProvider implements AutoCloseable {
 
     private final Argon2KeyDeriver keyDeriver;
     private final Path dbDirectory;
     private final Path dbFile;
     private final Path keyMetadataFile;
+    private final Path pendingMetadataFile;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final ReentrantLock managedLock = new ReentrantLock();
+    private final Map<String, PreparedStatement> managedStatements = new HashMap<>();
+    private volatile Connection managedConnection;
+    private volatile byte[] databaseKey;
+    private volatile boolean schemaInitialized;
 
     public SecureDatabaseProvider() {
         this(new Argon2KeyDeriver(), Path.of(System.getProperty("user.home"), ".pepitoapp"));
@@ -35,21 +61,134 @@ public class SecureDatabaseProvider {
         this.dbDirectory = Objects.requireNonNull(dbDirectory, "dbDirectory");
         this.dbFile = dbDirectory.resolve("ledger.db");
         this.keyMetadataFile = dbDirectory.resolve("db_key.properties");
+        this.pendingMetadataFile = dbDirectory.resolve("db_key.properties.pending");
     }
 
-    public Connection getConnection(char[] passphrase) throws SQLException, IOException {
+    public Path getDbFile() {
+        return dbFile;
+    }
+
+    /**
+     * Derives the database key, opens the warm connection and initializes the
+     * schema. Calling it again while open is a no-op.
+     */
+    public synchronized void open(char[] passphrase) throws SQLException, IOException {
+        if (managedConnection != null) {
+            return;
+        }
         Files.createDirectories(dbDirectory);
-        String url = "jdbc:sqlite:" + dbFile.toString();
-        Connection connection = DriverManager.getConnection(url);
+        recoverRekey(passphrase);
+        KeyMetadata metadata = loadOrCreateMetadata();
+        byte[] key = keyDeriver.deriveKey(passphrase, metadata.salt(), metadata.profile());
+        Connection connection = DriverManager.getConnection(jdbcUrl());
         try {
-            applySqlCipherPragma(connection, passphrase);
+            applySqlCipherPragma(connection, key);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+            }
             initializeSchema(connection);
+            if (!metadata.profile().equals(keyDeriver.profile())) {
+                key = rekey(connection, passphrase, key);
+            }
+        } catch (SQLException ex) {
+            Arrays.fill(key, (byte) 0);
+            connection.close();
+            throw new SQLException("Unable to initialize secure database", ex);
+        } catch (IOException ex) {
+            Arrays.fill(key, (byte) 0);
+            connection.close();
+            throw ex;
+        }
+        databaseKey = key;
+        managedConnection = connection;
+    }
+
+    public boolean isOpen() {
+        return managedConnection != null;
+    }
+
+    /**
+     * Borrows a connection. In managed mode this is the shared warm connection
+     * and concurrent callers wait for each other; otherwise a new connection is
+     * opened and closed together with the session.
+     */
+    public DatabaseSession openSession(char[] passphrase) throws SQLException, IOException {
+        Connection connection = managedConnection;
+        if (connection != null) {
+            DatabaseSession session = DatabaseSession.managed(connection, managedStatements, managedLock);
+            if (managedConnection == connection) {
+                return session;
+            }
+            // The provider was closed while we were waiting for the lock.
+            session.close();
+        }
+        return DatabaseSession.standalone(getConnection(passphrase));
+    }
+
+    /**
+     * Factory of extra connections for read-only work such as parallel
+     * verification. In managed mode they reuse the cached database key.
+     */
+    public ConnectionFactory readConnections(char[] passphrase) {
+        return () -> getConnection(passphrase);
+    }
+
+    public Connection getConnection(char[] passphrase) throws SQLException, IOException {
+        Files.createDirectories(dbDirectory);
+        Connection connection = DriverManager.getConnection(jdbcUrl());
+        try {
+            byte[] key = databaseKey;
+            if (key != null) {
+                applySqlCipherPragma(connection, key);
+            } else {
+                recoverRekey(passphrase);
+                KeyMetadata metadata = loadOrCreateMetadata();
+                byte[] derived = keyDeriver.deriveKey(passphrase, metadata.salt(), metadata.profile());
+                try {
+                    applySqlCipherPragma(connection, derived);
+                } finally {
+                    Arrays.fill(derived, (byte) 0);
+                }
+            }
+            if (!schemaInitialized) {
+                initializeSchema(connection);
+            }
         } catch (Exception ex) {
+            connection.close();
             throw new SQLException("Unable to initialize secure database", ex);
         }
         return connection;
     }
 
+    /**
+     * Closes the warm connection and wipes the cached database key. Waits for
+     * a session that is currently using the connection to finish.
+     */
+    @Override
+    public synchronized void close() throws SQLException {
+        Connection connection = managedConnection;
+        if (connection == null) {
+            return;
+        }
+        managedLock.lock();
+        try {
+            managedConnection = null;
+            DatabaseSession.closeStatements(managedStatements);
+            connection.close();
+        } finally {
+            byte[] key = databaseKey;
+            databaseKey = null;
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+            managedLock.unlock();
+        }
+    }
+
+    private String jdbcUrl() {
+        return "jdbc:sqlite:" + dbFile.toString();
+    }
+
     private void initializeSchema(Connection connection) throws SQLException {
         String ddl = "CREATE TABLE IF NOT EXISTS ledger (" +
                 "id INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -61,37 +200,194 @@ public class SecureDatabaseProvider {
                 "key_id TEXT NOT NULL," +
                 "checkpoint INTEGER NOT NULL DEFAULT 0" +
                 ")";
+        String merkleDdl = "CREATE TABLE IF NOT EXISTS merkle_batch (" +
+                "id INTEGER PRIMARY KEY," +
+                "last_entry_id INTEGER NOT NULL," +
+                "leaf_count INTEGER NOT NULL," +
+                "root TEXT NOT NULL," +
+                "signature TEXT NOT NULL," +
+                "key_id TEXT NOT NULL," +
+                "created_at INTEGER NOT NULL" +
+                ")";
+        // One row per sealed archive file; the archived ledger rows are gone.
+        String archiveDdl = "CREATE TABLE IF NOT EXISTS ledger_archive (" +
+                "id INTEGER PRIMARY KEY," +
+                "period TEXT NOT NULL," +
+                "first_id INTEGER NOT NULL," +
+                "last_id INTEGER NOT NULL," +
+                "entry_count INTEGER NOT NULL," +
+                "first_previous_hash BLOB NOT NULL," +
+                "last_hash BLOB NOT NULL," +
+                "format INTEGER NOT NULL," +
+                "file TEXT NOT NULL," +
+                "digest BLOB NOT NULL," +
+                "signature BLOB NOT NULL," +
+                "key_id TEXT NOT NULL," +
+                "created_at INTEGER NOT NULL" +
+                ")";
+        // Signing keys and the ledger ids each one signed; see KeyRegistry.
+        String keyDdl = "CREATE TABLE IF NOT EXISTS signing_key (" +
+                "key_id TEXT PRIMARY KEY," +
+                "status TEXT NOT NULL," +
+                "first_id INTEGER NOT NULL," +
+                "last_id INTEGER NOT NULL," +
+                "public_key BLOB NOT NULL," +
+                "created_at INTEGER NOT NULL" +
+                ")";
+        // Running sales totals per shift, day and product; see SaleAggregates.
+        String aggregateDdl = "CREATE TABLE IF NOT EXISTS sales_aggregate (" +
+                "scope TEXT NOT NULL," +
+                "period TEXT NOT NULL," +
+                "product TEXT NOT NULL," +
+                "sales INTEGER NOT NULL," +
+                "items INTEGER NOT NULL," +
+                "total_cents INTEGER NOT NULL," +
+                "base_cents INTEGER NOT NULL," +
+                "tax_cents INTEGER NOT NULL," +
+                "first_id INTEGER NOT NULL," +
+                "last_id INTEGER NOT NULL," +
+                "PRIMARY KEY (scope, period, product)" +
+                ")";
         try (Statement statement = connection.createStatement()) {
             statement.executeUpdate(ddl);
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_ledger_checkpoint ON ledger(id) WHERE checkpoint = 1");
+            statement.executeUpdate(merkleDdl);
+            statement.executeUpdate(archiveDdl);
+            statement.executeUpdate(keyDdl);
+            statement.executeUpdate(aggregateDdl);
+        }
+        addColumnIfMissing(connection, "ledger", "merkle_batch", "INTEGER");
+        addColumnIfMissing(connection, "ledger", "leaf_index", "INTEGER");
+        // Binary (v2) storage. Rows that predate it keep format 1 and their
+        // Base64 TEXT columns until the ledger migration moves them here.
+        addColumnIfMissing(connection, "ledger", "format", "INTEGER NOT NULL DEFAULT 1");
+        addColumnIfMissing(connection, "ledger", "previous_hash_bin", "BLOB");
+        addColumnIfMissing(connection, "ledger", "current_hash_bin", "BLOB");
+        addColumnIfMissing(connection, "ledger", "signature_bin", "BLOB");
+        schemaInitialized = true;
+    }
+
+    /**
+     * Upgrades ledgers created before a column existed. SQLite has no
+     * ADD COLUMN IF NOT EXISTS, so the table is inspected first.
+     */
+    private static void addColumnIfMissing(Connection connection, String table, String column, String type) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet rs = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+                while (rs.next()) {
+                    if (column.equalsIgnoreCase(rs.getString("name"))) {
+                        return;
+                    }
+                }
+            }
+            statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
         }
     }
 
-    private void applySqlCipherPragma(Connection connection, char[] passphrase) throws Exception {
-        byte[] salt = loadOrCreateSalt();
-        byte[] key = keyDeriver.deriveKey(passphrase, salt);
-        String hexKey = Base64.getEncoder().encodeToString(key);
+    private void applySqlCipherPragma(Connection connection, byte[] key) {
         try (Statement statement = connection.createStatement()) {
-            statement.execute("PRAGMA key = '" + hexKey + "'");
+            statement.execute("PRAGMA key = '" + pragmaKey(key) + "'");
         } catch (SQLException ignored) {
             // When SQLCipher is not present this PRAGMA is ignored; keeping it lets the
             // same code work when the SQLCipher driver is configured.
         }
     }
 
-    private byte[] loadOrCreateSalt() throws IOException {
-        if (Files.exists(keyMetadataFile)) {
-            Properties props = new Properties();
-            try (InputStream in = Files.newInputStream(keyMetadataFile)) {
-                props.load(in);
+    private static String pragmaKey(byte[] key) {
+        return Base64.getEncoder().encodeToString(key);
+    }
+
+    /**
+     * Re-keys the open database with the current profile under a new salt.
+     * If the driver refuses, the database keeps its old key and metadata.
+     *
+     * @return the key the database uses afterwards
+     */
+    private byte[] rekey(Connection connection, char[] passphrase, byte[] oldKey) throws IOException {
+        KeyMetadata next = new KeyMetadata(newSalt(), keyDeriver.profile());
+        byte[] key = keyDeriver.deriveKey(passphrase, next.salt(), next.profile());
+        writeMetadata(pendingMetadataFile, next);
+        try (Statement statement = connection.createStatement()) {
+            // Ignored, like PRAGMA key, when SQLCipher is not present.
+            statement.execute("PRAGMA rekey = '" + pragmaKey(key) + "'");
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+            Files.deleteIfExists(pendingMetadataFile);
+            Arrays.fill(key, (byte) 0);
+            return oldKey;
+        }
+        Files.move(pendingMetadataFile, keyMetadataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Arrays.fill(oldKey, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Finishes or drops a re-key that was interrupted: the pending metadata
+     * wins only if the database no longer opens with the current one.
+     */
+    private void recoverRekey(char[] passphrase) throws IOException {
+        if (!Files.exists(pendingMetadataFile)) {
+            return;
+        }
+        if (Files.exists(keyMetadataFile) && opensWith(passphrase, readMetadata(keyMetadataFile))) {
+            Files.delete(pendingMetadataFile);
+        } else {
+            Files.move(pendingMetadataFile, keyMetadataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private boolean opensWith(char[] passphrase, KeyMetadata metadata) {
+        byte[] key = keyDeriver.deriveKey(passphrase, metadata.salt(), metadata.profile());
+        try (Connection connection = DriverManager.getConnection(jdbcUrl())) {
+            applySqlCipherPragma(connection, key);
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT count(*) FROM sqlite_master")) {
+                return rs.next();
             }
-            return Base64.getDecoder().decode(props.getProperty("salt"));
+        } catch (SQLException ex) {
+            return false;
+        } finally {
+            Arrays.fill(key, (byte) 0);
         }
-        byte[] salt = UUID.randomUUID().toString().getBytes();
+    }
+
+    private KeyMetadata loadOrCreateMetadata() throws IOException {
+        if (Files.exists(keyMetadataFile)) {
+            return readMetadata(keyMetadataFile);
+        }
+        KeyMetadata metadata = new KeyMetadata(newSalt(), keyDeriver.profile());
+        writeMetadata(keyMetadataFile, metadata);
+        return metadata;
+    }
+
+    private static KeyMetadata readMetadata(Path file) throws IOException {
         Properties props = new Properties();
-        props.setProperty("salt", Base64.getEncoder().encodeToString(salt));
-        try (OutputStream out = Files.newOutputStream(keyMetadataFile)) {
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        return new KeyMetadata(Base64.getDecoder().decode(props.getProperty("salt")), KdfProfile.from(props));
+    }
+
+    private static void writeMetadata(Path file, KeyMetadata metadata) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("salt", Base64.getEncoder().encodeToString(metadata.salt()));
+        metadata.profile().store(props);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
             props.store(out, "PepitoApp SQLCipher salt");
         }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private byte[] newSalt() {
+        byte[] salt = new byte[16];
+        secureRandom.nextBytes(salt);
         return salt;
     }
+
+    /**
+     * Salt of the database key and the profile it was derived with.
+     */
+    private record KeyMetadata(byte[] salt, KdfProfile profile) {
+    }
 }
@@ -0,0 +1,64 @@
+package com.mycompany.pepitoapp.catalog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LongIntIndexTest {
+
+    @Test
+    void findsEveryKeyAndNothingElse() {
+        Random random = new Random(11);
+        int count = 10_000;
+        long[] keys = new long[count];
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            // Half sequential codes, half arbitrary longs, as in a real catalog
+            keys[i] = i % 2 == 0 ? 7_750_000_000_000L + i : random.nextLong();
+            expected.put(keys[i], i);
+        }
+        LongIntIndex index = LongIntIndex.of(keys, count);
+
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), index.get(entry.getKey()));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            long absent = random.nextLong();
+            if (!expected.containsKey(absent)) {
+                assertEquals(LongIntIndex.MISSING, index.get(absent));
+            }
+        }
+    }
+
+    @Test
+    void laterDuplicatesReplaceEarlierOnes() {
+        LongIntIndex index = LongIntIndex.of(new long[] {5, 9, 5, 9, 5}, 5);
+        assertEquals(2, index.size());
+        assertEquals(4, index.get(5));
+        assertEquals(3, index.get(9));
+    }
+
+    @Test
+    void handlesEdgeKeysAndCount() {
+        long[] keys = {0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 42L};
+        LongIntIndex index = LongIntIndex.of(keys, 4);
+        assertEquals(4, index.size());
+        assertEquals(0, index.get(0L));
+        assertEquals(1, index.get(-1L));
+        assertEquals(2, index.get(Long.MIN_VALUE));
+        assertEquals(3, index.get(Long.MAX_VALUE));
+        // Only the first count keys are indexed.
+        assertEquals(LongIntIndex.MISSING, index.get(42L));
+    }
+
+    @Test
+    void emptyIndexFindsNothing() {
+        LongIntIndex index = LongIntIndex.of(new long[0], 0);
+        assertEquals(0, index.size());
+        assertEquals(LongIntIndex.MISSING, index.get(0L));
+    }
+}
@@ -0,0 +1,220 @@
+package com.mycompany.pepitoapp.catalog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.mycompany.pepitoapp.model.Producto;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class NameIndexTest {
+
+    private static final String[] PALABRAS = {"arroz", "azúcar", "aceite", "leche", "galletas", "atún", "fideos",
+        "harina", "café", "té", "chocolate", "gaseosa", "agua", "mantequilla", "yogur", "queso", "pan", "sal",
+        "vinagre", "avena", "Costeño", "Gloria", "Primor", "Bells", "Florida", "rubia", "blanca", "integral",
+        "light", "extra", "grande", "chica", "ar", "za"};
+    private static final String[] TIPOS = {"Abarrotes", "Lácteos", "Bebidas", "Limpieza", "Panadería"};
+
+    @Test
+    void ignoresCaseAndAccents() {
+        NameIndex index = index(producto(1, "Azúcar Rubia", "Abarrotes"), producto(2, "Café Altomayo", "Bebidas"));
+        assertEquals(List.of("1"), codigos(index.search("AZUCAR", 10)));
+        assertEquals(List.of("2"), codigos(index.search("cafe", 10)));
+        assertEquals(List.of("2"), codigos(index.search("bébidas", 10)));
+    }
+
+    @Test
+    void ranksWordStartThenInsideNameThenType() {
+        NameIndex index = index(
+                producto(1, "Mantequilla Gloria", "Lácteos"),
+                producto(2, "Aceite Primor", "Abarrotes"),
+                producto(3, "Detergente Ariel", "Limpieza con aceite"),
+                producto(4, "Galletas Soda", "Panadería"),
+                producto(5, "Paceite raro", "Abarrotes"));
+        // 2 starts a word with "aceite", 5 has it inside a word, 3 only in its type
+        assertEquals(List.of("2", "5", "3"), codigos(index.search("aceite", 10)));
+    }
+
+    @Test
+    void breaksTiesByShorterNameThenLowerId() {
+        NameIndex index = index(
+                producto(30, "Leche Gloria Grande", "Lácteos"),
+                producto(20, "Leche Pura", "Lácteos"),
+                producto(10, "Leche Gloria", "Lácteos"),
+                producto(11, "Leche Laive", "Lácteos"));
+        assertEquals(List.of("20", "11", "10", "30"), codigos(index.search("leche", 10)));
+        assertEquals(List.of("20", "11"), codigos(index.search("leche", 2)));
+    }
+
+    @Test
+    void shortWordsMatchWordStartsOnly() {
+        NameIndex index = index(producto(1, "Arroz Costeño", "Abarrotes"), producto(2, "Pan Francés", "Panadería"),
+                producto(3, "Harina Blanca", "Abarrotes"));
+        assertEquals(List.of("1"), codigos(index.search("ar", 10)));
+        assertEquals(List.of("2"), codigos(index.search("f", 10)));
+        assertEquals(List.of("1", "3"), codigos(index.search("ab", 10)));
+    }
+
+    @Test
+    void shortWordsNeedAWordStartWhicheverListIsRead() {
+        NameIndex index = index(producto(1, "Mantequilla Chica", "Lácteos"), producto(2, "Mantequilla Hacienda", "Lácteos"));
+        // "h" starts no word of product 1, only sits inside "chica"
+        assertEquals(List.of("2"), codigos(index.search("ma h", 10)));
+        assertEquals(List.of("2"), codigos(index.search("h", 10)));
+    }
+
+    @Test
+    void requiresEveryWord() {
+        NameIndex index = index(producto(1, "Leche Gloria", "Lácteos"), producto(2, "Leche Laive", "Lácteos"),
+                producto(3, "Yogur Gloria", "Lácteos"));
+        assertEquals(List.of("1"), codigos(index.search("gloria leche", 10)));
+        assertEquals(List.of(), codigos(index.search("gloria pan", 10)));
+        assertEquals(List.of(), codigos(index.search("  ", 10)));
+        assertEquals(List.of(), codigos(index.search("leche", 0)));
+    }
+
+    @Test
+    void updatesReplaceAndRemoveProducts() {
+        NameIndex index = index(producto(1, "Leche Gloria", "Lácteos"), producto(2, "Pan Francés", "Panadería"));
+        index.update(List.of(producto(1, "Yogur Gloria", "Lácteos")), new long[] {2}, 1);
+
+        assertEquals(1, index.size());
+        assertEquals(List.of(), codigos(index.search("leche", 10)));
+        assertEquals(List.of(), codigos(index.search("pan", 10)));
+        assertEquals(List.of("1"), codigos(index.search("yogur", 10)));
+    }
+
+    @Test
+    void matchesBruteForceOnRandomCatalog() {
+        Random random = new Random(24);
+        List<Producto> productos = new ArrayList<>();
+        for (int id = 1; id <= 3000; id++) {
+            productos.add(randomProducto(random, id));
+        }
+        NameIndex index = new NameIndex();
+        index.update(productos.subList(0, 2000), new long[0], 0);
+        index.update(productos.subList(2000, 3000), new long[0], 0);
+        // Rename a few hundred and drop a few hundred, as reloads do
+        long[] removed = new long[300];
+        List<Producto> renamed = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            removed[i] = 1 + i * 7;
+            Producto nuevo = randomProducto(random, 2 + i * 7);
+            renamed.add(nuevo);
+            productos.set(1 + i * 7, nuevo);
+        }
+        index.update(renamed, removed, removed.length);
+        List<Producto> vivos = new ArrayList<>();
+        for (Producto producto : productos) {
+            if ((Long.parseLong(producto.getCodigo()) - 1) % 7 != 0 || Long.parseLong(producto.getCodigo()) > 2100) {
+                vivos.add(producto);
+            }
+        }
+        assertEquals(vivos.size(), index.size());
+
+        for (int q = 0; q < 400; q++) {
+            String consulta = randomConsulta(random);
+            int limite = 1 + random.nextInt(10);
+            assertEquals(codigos(bruteForce(vivos, consulta, limite)), codigos(index.search(consulta, limite)),
+                    "consulta '" + consulta + "' limite " + limite);
+        }
+    }
+
+    private static List<Producto> bruteForce(List<Producto> productos, String consulta, int limite) {
+        String[] words = NameIndex.normalize(consulta).split(" ");
+        List<Producto> matches = new ArrayList<>();
+        List<Integer> scores = new ArrayList<>();
+        for (Producto producto : productos) {
+            String nombre = NameIndex.normalize(producto.getNombre());
+            String tipo = NameIndex.normalize(producto.getTipo());
+            int score = 0;
+            for (String word : words) {
+                if (word.length() < 3 && !startsAWord(nombre, word) && !startsAWord(tipo, word)) {
+                    score = 0;
+                    break;
+                }
+                int points = pointsFor(nombre, tipo, word);
+                if (points == 0) {
+                    score = 0;
+                    break;
+                }
+                score += points;
+            }
+            if (score > 0) {
+                matches.add(producto);
+                scores.add(score);
+            }
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < matches.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparing((Integer i) -> -scores.get(i))
+                .thenComparingInt(i -> NameIndex.normalize(matches.get(i).getNombre()).length())
+                .thenComparingLong(i -> Long.parseLong(matches.get(i).getCodigo())));
+        List<Producto> result = new ArrayList<>();
+        for (int i = 0; i < Math.min(limite, order.size()); i++) {
+            result.add(matches.get(order.get(i)));
+        }
+        return result;
+    }
+
+    private static int pointsFor(String nombre, String tipo, String word) {
+        if (startsAWord(nombre, word)) {
+            return 3;
+        }
+        if (nombre.contains(word)) {
+            return 2;
+        }
+        return tipo.contains(word) ? 1 : 0;
+    }
+
+    private static boolean startsAWord(String text, String word) {
+        return text.startsWith(word) || text.contains(" " + word);
+    }
+
+    private static Producto randomProducto(Random random, long id) {
+        StringBuilder nombre = new StringBuilder();
+        int words = 1 + random.nextInt(4);
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                nombre.append(' ');
+            }
+            nombre.append(PALABRAS[random.nextInt(PALABRAS.length)]);
+        }
+        return producto(id, nombre.toString(), TIPOS[random.nextInt(TIPOS.length)]);
+    }
+
+    private static String randomConsulta(Random random) {
+        int words = 1 + random.nextInt(2);
+        StringBuilder consulta = new StringBuilder();
+        for (int w = 0; w < words; w++) {
+            String source = random.nextInt(5) == 0 ? TIPOS[random.nextInt(TIPOS.length)]
+                    : PALABRAS[random.nextInt(PALABRAS.length)];
+            int from = random.nextInt(3) == 0 ? random.nextInt(source.length()) : 0;
+            int to = from + 1 + random.nextInt(source.length() - from);
+            consulta.append(source, from, to).append(' ');
+        }
+        return consulta.toString();
+    }
+
+    private static NameIndex index(Producto... productos) {
+        NameIndex index = new NameIndex();
+        index.update(List.of(productos), new long[0], 0);
+        return index;
+    }
+
+    private static Producto producto(long id, String nombre, String tipo) {
+        return new Producto(Long.toString(id), nombre, tipo, 1.0, 2.0, 10, null);
+    }
+
+    private static List<String> codigos(List<Producto> productos) {
+        List<String> codigos = new ArrayList<>();
+        for (Producto producto : productos) {
+            codigos.add(producto.getCodigo());
+        }
+        return codigos;
+    }
+}
@@ -0,0 +1,85 @@
+package com.mycompany.pepitoapp.catalog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mycompany.pepitoapp.model.Producto;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProductCatalogTest {
+
+    @TempDir
+    Path dir;
+
+    private Path db;
+
+    @BeforeEach
+    void createTable() throws SQLException {
+        db = dir.resolve("productos.db");
+        execute("CREATE TABLE productos (id_productos INTEGER PRIMARY KEY, nombre TEXT, tipo TEXT, "
+                + "stock_unidades INTEGER, precio_unitario_costo REAL, precio_unitario_venta REAL, "
+                + "fecha_de_caducidad TEXT)");
+        execute("INSERT INTO productos VALUES (1, 'Arroz Costeño', 'Abarrotes', 10, 3.2, 4.5, '2030-01-01'),"
+                + " (2, 'Leche Gloria', 'Lácteos', 20, 3.0, 3.8, '01/02/2030'),"
+                + " (3, 'Aceite Primor', 'Abarrotes', 5, 8.0, 9.9, NULL)");
+    }
+
+    @Test
+    void servesLookupsFromTheSnapshot() throws SQLException {
+        ProductCatalog catalog = new ProductCatalog(db);
+        assertFalse(catalog.isLoaded());
+
+        ProductCatalog.ReloadStats stats = catalog.reload();
+
+        assertEquals(new ProductCatalog.ReloadStats(3, 0, 0, 3), stats);
+        assertTrue(catalog.isLoaded());
+        assertEquals("Leche Gloria", catalog.buscar(2).getNombre());
+        assertNull(catalog.buscar(99));
+        Producto[] lote = catalog.buscarLote(new long[] {3, 99, 1}, 3);
+        assertEquals("Aceite Primor", lote[0].getNombre());
+        assertNull(lote[1]);
+        assertEquals("Arroz Costeño", lote[2].getNombre());
+    }
+
+    @Test
+    void reloadReportsChangesAndKeepsUnchangedInstances() throws SQLException {
+        ProductCatalog catalog = new ProductCatalog(db);
+        catalog.reload();
+        Producto arroz = catalog.buscar(1);
+
+        execute("UPDATE productos SET precio_unitario_venta = 4.0 WHERE id_productos = 2");
+        execute("DELETE FROM productos WHERE id_productos = 3");
+        execute("INSERT INTO productos VALUES (4, 'Azúcar Rubia', 'Abarrotes', 7, 2.5, 3.1, NULL)");
+
+        assertEquals(new ProductCatalog.ReloadStats(1, 1, 1, 3), catalog.reload());
+        assertSame(arroz, catalog.buscar(1));
+        assertEquals(4.0, catalog.buscar(2).getPrecio_unitario_venta());
+        assertNull(catalog.buscar(3));
+        assertEquals("Azúcar Rubia", catalog.buscar(4).getNombre());
+        assertEquals(3, catalog.size());
+    }
+
+    @Test
+    void missingDatabaseIsAnError() {
+        ProductCatalog catalog = new ProductCatalog(dir.resolve("no-existe.db"));
+        assertThrows(SQLException.class, () -> catalog.buscar(1));
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + db);
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.mycompany.pepitoapp.checkout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CarritoTest {
+
+    @Test
+    void mergesRepeatedProductsIntoOneLine() {
+        Carrito carrito = new Carrito();
+        carrito.agregar(1, "Arroz", 150, 1);
+        carrito.agregarTodos(List.of(new Carrito.Entrada(1, "Arroz", 150, 3), new Carrito.Entrada(2, "Azúcar", 99, 2)));
+        assertEquals(2, carrito.size());
+        assertEquals(4, carrito.getItems().get(0).getCantidad());
+        assertEquals(4 * 150 + 2 * 99, carrito.getTotalCentimos());
+    }
+
+    @Test
+    void totalFollowsQuantityEditsAndRemovals() {
+        Carrito carrito = new Carrito();
+        carrito.agregar(1, "Arroz", 150, 2);
+        carrito.agregar(2, "Azúcar", 99, 1);
+        carrito.getItems().get(1).setCantidad(5);
+        assertEquals(2 * 150 + 5 * 99, carrito.getTotalCentimos());
+        assertTrue(carrito.quitar(1L));
+        assertEquals(5 * 99, carrito.getTotalCentimos());
+    }
+
+    @Test
+    void descontarKeepsWhatWasAddedAfterTheSnapshot() {
+        Carrito carrito = new Carrito();
+        carrito.agregar(1, "Arroz", 150, 2);
+        carrito.agregar(2, "Azúcar", 99, 1);
+        VentaSnapshot venta = VentaSnapshot.of(carrito, "Cliente", "");
+        carrito.agregar(1, "Arroz", 150, 3);
+        carrito.agregar(3, "Aceite", 720, 1);
+
+        carrito.descontar(venta);
+
+        assertEquals(2, carrito.size());
+        assertEquals(3, carrito.getItems().get(0).getCantidad());
+        assertEquals(3 * 150 + 720, carrito.getTotalCentimos());
+    }
+}
@@ -0,0 +1,146 @@
+package com.mycompany.pepitoapp.checkout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.ledger.LedgerService;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Journal files on disk: a new file each day and at the size limit, a
+ * restart that carries on in the file it left, and reconciliation against
+ * the sales in the ledger.
+ */
+class SalesJournalTest {
+
+    private static final LocalDate DAY = LocalDate.of(2026, 10, 15);
+    // Each record is about 60 bytes: two fit under the limit
+    private static final long MAX_BYTES = 100;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void newFileEachDay() throws Exception {
+        try (SalesJournal journal = journal(1024 * 1024)) {
+            append(journal, venta(DAY, 1));
+            append(journal, venta(DAY, 2));
+            append(journal, venta(DAY.plusDays(1), 3));
+        }
+        assertEquals(List.of("historial-2026-10-15.tsv", "historial-2026-10-16.tsv"), files());
+        assertEquals(2, lines("historial-2026-10-15.tsv").size());
+        assertEquals(1, lines("historial-2026-10-16.tsv").size());
+    }
+
+    @Test
+    void newFileAtTheSizeLimitAndAfterRestart() throws Exception {
+        try (SalesJournal journal = journal(MAX_BYTES)) {
+            for (int i = 1; i <= 5; i++) {
+                append(journal, venta(DAY, i));
+            }
+        }
+        assertEquals(List.of("historial-2026-10-15.1.tsv", "historial-2026-10-15.2.tsv", "historial-2026-10-15.tsv"), files());
+        assertEquals(1, lines("historial-2026-10-15.2.tsv").size());
+
+        // The last file still has room: the restart writes there, then moves on
+        try (SalesJournal journal = journal(MAX_BYTES)) {
+            append(journal, venta(DAY, 6));
+            assertEquals(2, lines("historial-2026-10-15.2.tsv").size());
+            append(journal, venta(DAY, 7));
+        }
+        assertEquals(1, lines("historial-2026-10-15.3.tsv").size());
+        assertEquals(2, lines("historial-2026-10-15.tsv").size());
+        assertEquals(2, lines("historial-2026-10-15.1.tsv").size());
+        assertTrue(lines("historial-2026-10-15.3.tsv").get(0).startsWith(venta(DAY, 7).timestamp() + "\t"));
+    }
+
+    @Test
+    void reconcileListsSalesOnOneSideOnly() throws Exception {
+        // Cheapest Argon2id profile: the test is about the journal, not the KDF
+        KdfProfile profile = new KdfProfile(1, 19456, 1);
+        char[] passphrase = "secret".toCharArray();
+        KeyStoreManager keys = new KeyStoreManager(new Argon2KeyDeriver(profile, 32), dir.resolve("keystore"));
+        keys.unlock(passphrase, "pos-test");
+        CryptoService crypto = new CryptoService(keys);
+        try (SecureDatabaseProvider database = new SecureDatabaseProvider(new Argon2KeyDeriver(profile, 32), dir)) {
+            database.open(passphrase);
+            LedgerService ledger = new LedgerService(database);
+            ledger.loadHead(passphrase);
+            ledger.setCheckpointInterval(0);
+
+            VentaSnapshot both = venta(DAY, 1);
+            VentaSnapshot again = venta(DAY, 2);
+            VentaSnapshot journalOnly = venta(DAY, 3);
+            VentaSnapshot ledgerOnly = venta(DAY, 4);
+            try (SalesJournal journal = journal(1024 * 1024)) {
+                append(journal, both);
+                append(journal, again);
+                append(journal, again);
+                append(journal, journalOnly);
+            }
+            for (String json : List.of(both.toSaleJson(), again.toSaleJson(), again.toSaleJson(), ledgerOnly.toSaleJson(),
+                    // Not boletas, though they mention items
+                    "{\"devolucion\":{\"items\":[]}}", "{\"nota\":\"sin \\\"items\\\"\"}")) {
+                assertTrue(ledger.appendSignedEntry(json, "pos-test", passphrase, crypto));
+            }
+            ledger.appendCheckpoint(LedgerService.CHECKPOINT_CASH_CLOSE, "pos-test", passphrase, crypto);
+
+            SalesJournal.Reconciliation result = SalesJournal.reconcile(dir.resolve("historial"), ledger.getStorage(), passphrase);
+
+            assertFalse(result.matches());
+            assertEquals(4, result.journalSales());
+            assertEquals(4, result.ledgerSales());
+            assertEquals(List.of(digest(journalOnly.toSaleJson())), result.onlyInJournal());
+            assertEquals(List.of(digest(ledgerOnly.toSaleJson())), result.onlyInLedger());
+        }
+    }
+
+    private SalesJournal journal(long maxBytes) {
+        return new SalesJournal(dir.resolve("historial"), maxBytes, SalesJournal.Flush.SALE, Duration.ofSeconds(1),
+                SalesJournal.Sync.NEVER, ZoneOffset.UTC);
+    }
+
+    private static void append(SalesJournal journal, VentaSnapshot venta) throws Exception {
+        journal.append(venta, venta.toSaleJson());
+    }
+
+    /**
+     * Sale number n, at a distinct second of day.
+     */
+    private static VentaSnapshot venta(LocalDate day, int n) {
+        long timestamp = day.atTime(10, 0).toEpochSecond(ZoneOffset.UTC) + n;
+        return new VentaSnapshot(timestamp, "Cliente", "", List.of(new VentaSnapshot.Linea(n, "Pan", 0.5, 3)), 1.5);
+    }
+
+    private List<String> files() throws Exception {
+        try (Stream<Path> files = Files.list(dir.resolve("historial"))) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    private List<String> lines(String file) throws Exception {
+        return Files.readAllLines(dir.resolve("historial").resolve(file), StandardCharsets.UTF_8);
+    }
+
+    private static String digest(String saleJson) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(saleJson.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(hash, 0, 16);
+    }
+}
@@ -0,0 +1,113 @@
+package com.mycompany.pepitoapp.checkout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import com.mycompany.pepitoapp.catalog.ProductCatalog;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The scan pipeline driven frame by frame with a test clock, against a real
+ * catalog on disk.
+ */
+class ScanPipelineTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    private final Carrito carrito = new Carrito();
+    private final List<ScanPipeline.Resumen> resumenes = new ArrayList<>();
+    private ScanPipeline pipeline;
+
+    @AfterEach
+    void cerrar() {
+        if (pipeline != null) {
+            pipeline.cerrar();
+        }
+    }
+
+    @Test
+    void scansOfOneCodeBecomeOneQuantity() throws Exception {
+        createCatalog();
+        pipeline = new ScanPipeline(carrito, new ProductCatalog(dir.resolve("productos.db")), resumenes::add);
+        pipeline.escanear(1);
+        pipeline.escanear(2);
+        pipeline.escanear(1);
+        pipeline.escanear(99);
+        pipeline.escanear(1);
+
+        ScanPipeline.Resumen resumen = frameUntilResumen(0L);
+
+        assertEquals(new ScanPipeline.Resumen(4, List.of(99L), null), resumen);
+        assertEquals(2, carrito.size());
+        assertEquals(1L, carrito.getItems().get(0).getCodigo());
+        assertEquals(3, carrito.getItems().get(0).getCantidad());
+        assertEquals(3 * 450 + 380, carrito.getTotalCentimos());
+    }
+
+    @Test
+    void catalogFailureQueuesTheBatchAgain() throws Exception {
+        // No database yet: the first lookup fails
+        pipeline = new ScanPipeline(carrito, new ProductCatalog(dir.resolve("productos.db")), resumenes::add);
+        pipeline.escanear(1);
+        pipeline.escanear(1);
+
+        ScanPipeline.Resumen fallo = frameUntilResumen(0L);
+        assertEquals(0, fallo.unidades());
+        assertEquals(List.of(), fallo.desconocidos());
+        assertInstanceOf(SQLException.class, fallo.fallo());
+        assertTrue(carrito.isEmpty());
+
+        createCatalog();
+        pipeline.escanear(1);
+        // Still inside the pause after the failure: nothing is sent
+        pipeline.frame(SECOND / 2);
+        Thread.sleep(100);
+        pipeline.frame(SECOND / 2);
+        assertTrue(resumenes.isEmpty());
+
+        ScanPipeline.Resumen resumen = frameUntilResumen(SECOND);
+        assertEquals(new ScanPipeline.Resumen(3, List.of(), null), resumen);
+        assertEquals(1, carrito.size());
+        assertEquals(3, carrito.getItems().get(0).getCantidad());
+    }
+
+    /**
+     * Runs frames at now until one reports to the listener.
+     */
+    private ScanPipeline.Resumen frameUntilResumen(long now) throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            pipeline.frame(now);
+            if (!resumenes.isEmpty()) {
+                assertEquals(1, resumenes.size());
+                return resumenes.remove(0);
+            }
+            Thread.sleep(5);
+        }
+        return fail("No frame reported to the listener");
+    }
+
+    private void createCatalog() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("productos.db"));
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE productos (id_productos INTEGER PRIMARY KEY, nombre TEXT, tipo TEXT, "
+                    + "stock_unidades INTEGER, precio_unitario_costo REAL, precio_unitario_venta REAL, "
+                    + "fecha_de_caducidad TEXT)");
+            statement.executeUpdate("INSERT INTO productos VALUES (1, 'Arroz Costeño', 'Abarrotes', 10, 3.2, 4.5, NULL),"
+                    + " (2, 'Leche Gloria', 'Lácteos', 20, 3.0, 3.8, NULL)");
+        }
+    }
+}
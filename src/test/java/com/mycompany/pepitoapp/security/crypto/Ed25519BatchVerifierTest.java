@@ -0,0 +1,237 @@
+package com.mycompany.pepitoapp.security.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the batch verifier against the JDK Ed25519 provider: every batch
+ * must report exactly the signatures the JDK rejects.
+ */
+class Ed25519BatchVerifierTest {
+
+    private static final int BATCH = Ed25519BatchVerifier.DEFAULT_BATCH_SIZE;
+
+    private static KeyPair[] keys;
+
+    private final Random random = new Random(25519);
+
+    private record Case(PublicKey key, byte[] message, byte[] signature) {}
+
+    @BeforeAll
+    static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("Ed25519");
+        keys = new KeyPair[3];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = generator.generateKeyPair();
+        }
+    }
+
+    @Test
+    void acceptsValidBatch() throws Exception {
+        List<Case> cases = validCases(keys[0], BATCH);
+        assertTrue(verify(cases).isEmpty());
+        assertMatchesJdk(cases);
+    }
+
+    @Test
+    void rejectsCorruptedR() throws Exception {
+        List<Case> cases = validCases(keys[0], BATCH);
+        cases.get(5).signature()[3] ^= 0x01;
+        assertEquals(bits(5), verify(cases));
+        assertMatchesJdk(cases);
+    }
+
+    @Test
+    void rejectsCorruptedS() throws Exception {
+        List<Case> cases = validCases(keys[0], BATCH);
+        cases.get(17).signature()[40] ^= 0x10;
+        assertEquals(bits(17), verify(cases));
+        assertMatchesJdk(cases);
+    }
+
+    @Test
+    void rejectsChangedMessage() throws Exception {
+        List<Case> cases = validCases(keys[0], BATCH);
+        cases.get(0).message()[0] ^= 0x01;
+        assertEquals(bits(0), verify(cases));
+        assertMatchesJdk(cases);
+    }
+
+    @Test
+    void rejectsWrongKey() throws Exception {
+        List<Case> cases = validCases(keys[0], BATCH);
+        Case signed = cases.get(30);
+        cases.set(30, new Case(keys[1].getPublic(), signed.message(), signed.signature()));
+        assertEquals(bits(30), verify(cases));
+        assertMatchesJdk(cases);
+    }
+
+    @Test
+    void rejectsScalarNotBelowGroupOrder() throws Exception {
+        List<Case> cases = validCases(keys[0], BATCH);
+        byte[] signature = cases.get(9).signature();
+        BigInteger s = fromLittleEndian(signature, 32);
+        byte[] sPlusL = Field25519.toLittleEndian(s.add(Ed25519BatchVerifier.L));
+        System.arraycopy(sPlusL, 0, signature, 32, 32);
+        assertEquals(bits(9), verify(cases));
+        assertMatchesJdk(cases);
+    }
+
+    @Test
+    void rejectsNonCanonicalAndTruncatedEncodings() throws Exception {
+        List<Case> cases = validCases(keys[0], BATCH);
+        // y = p is the non-canonical encoding of y = 0.
+        byte[] nonCanonical = cases.get(2).signature();
+        Arrays.fill(nonCanonical, 0, 32, (byte) 0xff);
+        nonCanonical[0] = (byte) 0xed;
+        nonCanonical[31] = (byte) 0x7f;
+        // y = 2 is not the y of any curve point.
+        byte[] offCurve = cases.get(4).signature();
+        Arrays.fill(offCurve, 0, 32, (byte) 0);
+        offCurve[0] = 2;
+        Case truncated = cases.get(6);
+        cases.set(6, new Case(truncated.key(), truncated.message(), Arrays.copyOf(truncated.signature(), 63)));
+        Case extended = cases.get(8);
+        cases.set(8, new Case(extended.key(), extended.message(), Arrays.copyOf(extended.signature(), 65)));
+        Case empty = cases.get(10);
+        cases.set(10, new Case(empty.key(), empty.message(), new byte[0]));
+        assertEquals(bits(2, 4, 6, 8, 10), verify(cases));
+        assertMatchesJdk(cases);
+    }
+
+    @Test
+    void handlesMixedKeys() throws Exception {
+        List<Case> cases = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) {
+            cases.add(validCase(keys[i % keys.length]));
+        }
+        assertTrue(verify(cases).isEmpty());
+        cases.get(1).signature()[50] ^= 0x04;
+        cases.get(35).message()[2] ^= 0x40;
+        assertEquals(bits(1, 35), verify(cases));
+        assertMatchesJdk(cases);
+    }
+
+    @Test
+    void bisectionFindsEveryBadIndex() throws Exception {
+        for (int trial = 0; trial < 8; trial++) {
+            List<Case> cases = validCases(keys[trial % keys.length], BATCH);
+            BitSet expected = new BitSet();
+            int bad = 1 + random.nextInt(3);
+            while (expected.cardinality() < bad) {
+                int index = random.nextInt(BATCH);
+                if (expected.get(index)) {
+                    continue;
+                }
+                cases.get(index).signature()[random.nextInt(64)] ^= (byte) (1 << random.nextInt(8));
+                expected.set(index);
+            }
+            BitSet invalid = verify(cases);
+            assertEquals(expected, invalid);
+            assertEquals(jdkInvalid(cases), invalid);
+        }
+    }
+
+    @Test
+    void randomCasesMatchJdk() throws Exception {
+        List<Case> cases = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Case c = validCase(keys[random.nextInt(keys.length)]);
+            switch (random.nextInt(6)) {
+                case 0 -> c.signature()[random.nextInt(32)] ^= (byte) (1 << random.nextInt(8));
+                case 1 -> c.signature()[32 + random.nextInt(32)] ^= (byte) (1 << random.nextInt(8));
+                case 2 -> c.message()[random.nextInt(c.message().length)] ^= 0x01;
+                default -> { }
+            }
+            cases.add(c);
+        }
+        Ed25519BatchVerifier verifier = new Ed25519BatchVerifier(new SecureRandom());
+        for (int from = 0; from < cases.size(); from += BATCH) {
+            List<Case> batch = cases.subList(from, Math.min(from + BATCH, cases.size()));
+            for (Case c : batch) {
+                verifier.add(c.key(), c.message(), c.signature());
+            }
+            assertEquals(jdkInvalid(batch), verifier.verify(), "batch at " + from);
+        }
+    }
+
+    private BitSet verify(List<Case> cases) throws Exception {
+        Ed25519BatchVerifier verifier = new Ed25519BatchVerifier(new SecureRandom());
+        for (Case c : cases) {
+            verifier.add(c.key(), c.message(), c.signature());
+        }
+        return verifier.verify();
+    }
+
+    private void assertMatchesJdk(List<Case> cases) throws Exception {
+        assertEquals(jdkInvalid(cases), verify(cases));
+    }
+
+    private static BitSet jdkInvalid(List<Case> cases) throws Exception {
+        BitSet invalid = new BitSet();
+        for (int i = 0; i < cases.size(); i++) {
+            Case c = cases.get(i);
+            Signature verifier = Signature.getInstance("Ed25519");
+            verifier.initVerify(c.key());
+            verifier.update(c.message());
+            boolean valid;
+            try {
+                valid = verifier.verify(c.signature());
+            } catch (SignatureException ex) {
+                valid = false;
+            }
+            if (!valid) {
+                invalid.set(i);
+            }
+        }
+        return invalid;
+    }
+
+    private List<Case> validCases(KeyPair pair, int count) throws Exception {
+        List<Case> cases = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            cases.add(validCase(pair));
+        }
+        return cases;
+    }
+
+    private Case validCase(KeyPair pair) throws Exception {
+        byte[] message = new byte[1 + random.nextInt(200)];
+        random.nextBytes(message);
+        Signature signer = Signature.getInstance("Ed25519");
+        signer.initSign(pair.getPrivate());
+        signer.update(message);
+        return new Case(pair.getPublic(), message, signer.sign());
+    }
+
+    private static BitSet bits(int... indices) {
+        BitSet bits = new BitSet();
+        for (int index : indices) {
+            bits.set(index);
+        }
+        return bits;
+    }
+
+    private static BigInteger fromLittleEndian(byte[] bytes, int offset) {
+        byte[] big = new byte[33];
+        for (int i = 0; i < 32; i++) {
+            big[32 - i] = bytes[offset + i];
+        }
+        return new BigInteger(big);
+    }
+}
@@ -0,0 +1,152 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A ledger that starts with text-format (v1) rows, as written before the
+ * binary storage, and continues with binary (v2) rows.
+ */
+class BinaryStorageMigrationTest {
+
+    private static final String KEY = "pos-test";
+    private static final int V1_ROWS = 23;
+
+    @TempDir
+    Path dir;
+
+    private final char[] passphrase = "secret".toCharArray();
+    private SecureDatabaseProvider database;
+    private CryptoService crypto;
+    private LedgerService ledger;
+
+    @BeforeEach
+    void openLedger() throws Exception {
+        // Cheapest Argon2id profile: the test is about the ledger, not the KDF
+        KdfProfile profile = new KdfProfile(1, 19456, 1);
+        KeyStoreManager keys = new KeyStoreManager(new Argon2KeyDeriver(profile, 32), dir.resolve("keystore"));
+        keys.unlock(passphrase, KEY);
+        crypto = new CryptoService(keys);
+        database = new SecureDatabaseProvider(new Argon2KeyDeriver(profile, 32), dir);
+        database.open(passphrase);
+        insertTextRows();
+        ledger = new LedgerService(database);
+        ledger.loadHead(passphrase);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ledger.appendSignedEntry("{\"v2\":" + i + "}", KEY, passphrase, crypto));
+        }
+    }
+
+    @AfterEach
+    void closeLedger() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void mixedLedgerVerifiesBeforeAndAfterMigration() throws Exception {
+        assertTrue(ledger.verifyChain(passphrase, crypto).valid());
+        assertEquals(V1_ROWS, textRows());
+
+        assertEquals(V1_ROWS, ledger.migrateToBinaryStorage(passphrase, 5));
+
+        assertEquals(0, textRows());
+        assertEquals(V1_ROWS, formatCount(LedgerEntry.FORMAT_V1));
+        VerificationResult sequential = ledger.verifyChain(passphrase, crypto);
+        assertTrue(sequential.valid(), sequential.toString());
+        assertEquals(sequential, ledger.verifyChainParallel(passphrase, crypto));
+    }
+
+    @Test
+    void migrationIsIdempotentAndKeepsHashes() throws Exception {
+        byte[] before = hashOf(7);
+        ledger.migrateToBinaryStorage(passphrase, 4);
+
+        assertEquals(0, ledger.migrateToBinaryStorage(passphrase, 4));
+        assertArrayEquals(before, hashOf(7));
+        assertTrue(ledger.appendSignedEntry("{\"after\":1}", KEY, passphrase, crypto));
+        assertTrue(ledger.verifyChain(passphrase, crypto).valid());
+    }
+
+    @Test
+    void tamperedMigratedRowIsDetected() throws Exception {
+        ledger.migrateToBinaryStorage(passphrase, 50);
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement()) {
+            statement.executeUpdate("UPDATE ledger SET sale_json = '{\"v1\":999}' WHERE id = 12");
+        }
+
+        VerificationResult sequential = ledger.verifyChain(passphrase, crypto);
+        assertFalse(sequential.valid());
+        assertEquals(sequential, ledger.verifyChainParallel(passphrase, crypto));
+    }
+
+    /**
+     * Rows as the original text format wrote them: Base64 hashes and
+     * signatures in the TEXT columns, BLOB columns null.
+     */
+    private void insertTextRows() throws Exception {
+        byte[] previous = ChainHashing.GENESIS_HASH;
+        try (DatabaseSession session = database.openSession(passphrase);
+             PreparedStatement insert = session.connection().prepareStatement(
+                     "INSERT INTO ledger(id, created_at, sale_json, previous_hash, current_hash, signature, key_id, format) "
+                     + "VALUES (?, ?, ?, ?, ?, ?, ?, 1)")) {
+            for (int id = 1; id <= V1_ROWS; id++) {
+                String sale = "{\"v1\":" + id + "}";
+                byte[] hash = ChainHashing.chain(LedgerEntry.FORMAT_V1, previous, sale);
+                byte[] signature = crypto.signBytes(ChainHashing.signingPayload(LedgerEntry.FORMAT_V1, hash), KEY, passphrase);
+                insert.setLong(1, id);
+                insert.setLong(2, 1_700_000_000L + id);
+                insert.setString(3, sale);
+                insert.setString(4, ChainHashing.encode(previous));
+                insert.setString(5, ChainHashing.encode(hash));
+                insert.setString(6, ChainHashing.encode(signature));
+                insert.setString(7, KEY);
+                insert.executeUpdate();
+                previous = hash;
+            }
+        }
+    }
+
+    private long textRows() throws Exception {
+        return count("SELECT COUNT(*) FROM ledger WHERE current_hash_bin IS NULL");
+    }
+
+    private long formatCount(int format) throws Exception {
+        return count("SELECT COUNT(*) FROM ledger WHERE format = " + format);
+    }
+
+    private long count(String sql) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private byte[] hashOf(long id) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement();
+             ResultSet rs = statement.executeQuery("SELECT * FROM ledger WHERE id = " + id)) {
+            rs.next();
+            return LedgerRows.bytes(rs, "current_hash_bin", "current_hash");
+        }
+    }
+}
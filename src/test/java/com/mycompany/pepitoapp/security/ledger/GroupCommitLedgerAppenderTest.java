@@ -0,0 +1,199 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Group commit against a real ledger: submission order is ledger order,
+ * close commits what is queued, and no future is left pending when a sale
+ * races the close.
+ */
+class GroupCommitLedgerAppenderTest {
+
+    private static final String KEY = "pos-test";
+
+    @TempDir
+    Path dir;
+
+    private final char[] passphrase = "secret".toCharArray();
+    private SecureDatabaseProvider database;
+    private CryptoService crypto;
+    private LedgerService ledger;
+
+    @BeforeEach
+    void openLedger() throws Exception {
+        // Cheapest Argon2id profile: the test is about the ledger, not the KDF
+        KdfProfile profile = new KdfProfile(1, 19456, 1);
+        KeyStoreManager keys = new KeyStoreManager(new Argon2KeyDeriver(profile, 32), dir.resolve("keystore"));
+        keys.unlock(passphrase, KEY);
+        crypto = new CryptoService(keys);
+        database = new SecureDatabaseProvider(new Argon2KeyDeriver(profile, 32), dir);
+        database.open(passphrase);
+        ledger = new LedgerService(database);
+        ledger.loadHead(passphrase);
+        ledger.setCheckpointInterval(0);
+    }
+
+    @AfterEach
+    void closeLedger() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void ledgerOrderIsSubmissionOrder() throws Exception {
+        List<CompletableFuture<Long>> ids = new ArrayList<>();
+        try (GroupCommitLedgerAppender appender = appender(16, Duration.ofMillis(5))) {
+            for (int i = 0; i < 200; i++) {
+                ids.add(appender.submit(sale(i)));
+            }
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals(i + 1L, ids.get(i).get(10, TimeUnit.SECONDS));
+            }
+        }
+        List<String> sales = sales();
+        assertEquals(200, sales.size());
+        for (int i = 0; i < sales.size(); i++) {
+            assertEquals(sale(i), sales.get(i));
+        }
+        assertTrue(ledger.verifyChain(passphrase, crypto).valid());
+    }
+
+    @Test
+    void concurrentSubmittersKeepTheirOwnOrder() throws Exception {
+        int threads = 4;
+        int perThread = 50;
+        List<List<CompletableFuture<Long>>> submitted = new ArrayList<>();
+        try (GroupCommitLedgerAppender appender = appender(8, Duration.ofMillis(2))) {
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                List<CompletableFuture<Long>> own = new ArrayList<>();
+                submitted.add(own);
+                int thread = t;
+                workers.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            own.add(appender.submit(sale(thread * 1000 + i)));
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        List<String> sales = sales();
+        assertEquals(threads * perThread, sales.size());
+        for (List<CompletableFuture<Long>> own : submitted) {
+            long previous = 0L;
+            for (CompletableFuture<Long> future : own) {
+                long id = future.getNow(-1L);
+                assertTrue(id > previous, "ids of one thread must increase");
+                previous = id;
+            }
+        }
+    }
+
+    @Test
+    void closeCommitsWhatIsQueuedAndRefusesMore() throws Exception {
+        List<CompletableFuture<Long>> ids = new ArrayList<>();
+        // A long delay: the sales are still queued when close is called.
+        GroupCommitLedgerAppender appender = appender(1000, Duration.ofSeconds(30));
+        for (int i = 0; i < 20; i++) {
+            ids.add(appender.submit(sale(i)));
+        }
+        appender.close();
+
+        for (CompletableFuture<Long> id : ids) {
+            assertTrue(id.isDone() && !id.isCompletedExceptionally());
+        }
+        assertEquals(20, sales().size());
+        assertThrows(IllegalStateException.class, () -> appender.submit(sale(99)));
+        appender.close();
+    }
+
+    @Test
+    void submitRacingCloseNeverLeavesAFuturePending() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            // One slot: the submitters wait in put, past the closed check,
+            // while close() runs.
+            GroupCommitLedgerAppender appender = new GroupCommitLedgerAppender(ledger, crypto, KEY, passphrase,
+                    1, 1, Duration.ZERO);
+            ConcurrentLinkedQueue<CompletableFuture<Long>> futures = new ConcurrentLinkedQueue<>();
+            CountDownLatch started = new CountDownLatch(8);
+            List<Thread> submitters = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                submitters.add(Thread.ofPlatform().start(() -> {
+                    started.countDown();
+                    try {
+                        while (true) {
+                            futures.add(appender.submit("{\"race\":1}"));
+                        }
+                    } catch (IllegalStateException | InterruptedException ex) {
+                        // Closed
+                    }
+                }));
+            }
+            started.await();
+            Thread.sleep(5);
+            appender.close();
+            for (Thread submitter : submitters) {
+                submitter.join(10_000);
+                assertTrue(!submitter.isAlive(), "submitter stuck");
+            }
+            for (CompletableFuture<Long> future : futures) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                } catch (ExecutionException ex) {
+                    assertInstanceOf(IllegalStateException.class, ex.getCause());
+                }
+            }
+        }
+        assertTrue(ledger.verifyChain(passphrase, crypto).valid());
+    }
+
+    private GroupCommitLedgerAppender appender(int maxBatchSize, Duration maxBatchDelay) {
+        return new GroupCommitLedgerAppender(ledger, crypto, KEY, passphrase, 64, maxBatchSize, maxBatchDelay);
+    }
+
+    private static String sale(int n) {
+        return "{\"venta\":" + n + "}";
+    }
+
+    private List<String> sales() throws Exception {
+        List<String> sales = new ArrayList<>();
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement();
+             ResultSet rs = statement.executeQuery("SELECT sale_json FROM ledger ORDER BY id")) {
+            while (rs.next()) {
+                sales.add(rs.getString(1));
+            }
+        }
+        return sales;
+    }
+}
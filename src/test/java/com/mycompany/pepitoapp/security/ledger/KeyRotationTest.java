@@ -0,0 +1,229 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Key rotation through the registry: the switch happens at one id, in one
+ * transaction, and a retired key is refused for whatever it signs after the
+ * last id it was valid for, archive anchors included.
+ */
+class KeyRotationTest {
+
+    private static final String KEY = "pos-test";
+    private static final String NEXT_KEY = "pos-test-2";
+
+    @TempDir
+    Path dir;
+
+    private final char[] passphrase = "secret".toCharArray();
+    private SecureDatabaseProvider database;
+    private KeyStoreManager keys;
+    private CryptoService crypto;
+    private LedgerService ledger;
+    private KeyRegistry registry;
+
+    @BeforeEach
+    void openLedger() throws Exception {
+        // Cheapest Argon2id profile: the test is about the ledger, not the KDF
+        KdfProfile profile = new KdfProfile(1, 19456, 1);
+        keys = new KeyStoreManager(new Argon2KeyDeriver(profile, 32), dir.resolve("keystore"));
+        keys.unlock(passphrase, KEY, NEXT_KEY);
+        crypto = new CryptoService(keys);
+        database = new SecureDatabaseProvider(new Argon2KeyDeriver(profile, 32), dir);
+        database.open(passphrase);
+        ledger = new LedgerService(database);
+        ledger.loadHead(passphrase);
+        ledger.setCheckpointInterval(0);
+        registry = new KeyRegistry(database);
+        registry.load(passphrase);
+        registry.activateInitial(KEY, keys.readPublicKey(KEY), passphrase);
+        ledger.setKeyRegistry(registry);
+    }
+
+    @AfterEach
+    void closeLedger() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void rotationSwitchesKeysBetweenTwoAppends() throws Exception {
+        append(2);
+        registry.addNext(NEXT_KEY, keys.readPublicKey(NEXT_KEY), passphrase);
+        assertThrows(IllegalStateException.class,
+                () -> registry.addNext("pos-test-3", keys.readPublicKey(NEXT_KEY), passphrase));
+
+        KeyRegistry.SigningKey active = ledger.rotateKey(passphrase);
+        append(2);
+
+        assertEquals(NEXT_KEY, active.keyId());
+        assertEquals(3L, active.firstId());
+        assertEquals(List.of(KEY, KEY, NEXT_KEY, NEXT_KEY), signingKeys());
+        KeyRegistry reloaded = new KeyRegistry(database);
+        reloaded.load(passphrase);
+        assertEquals(registry.keys(), reloaded.keys());
+        KeyRegistry.SigningKey retired = reloaded.keys().get(0);
+        assertEquals(KeyRegistry.Status.RETIRED, retired.status());
+        assertEquals(2L, retired.lastId());
+        assertTrue(retired.covers(2) && !retired.covers(3));
+        assertTrue(retired.coversAfter(2) && !retired.coversAfter(3));
+        assertNullNext(reloaded);
+        assertAllValid();
+    }
+
+    @Test
+    void activateNextIsAllOrNothing() throws Exception {
+        append(2);
+        registry.addNext(NEXT_KEY, keys.readPublicKey(NEXT_KEY), passphrase);
+        // Taken from under the registry: retiring the active key succeeds,
+        // activating the next one does not.
+        execute("UPDATE signing_key SET status = 'RETIRED' WHERE key_id = '" + NEXT_KEY + "'");
+
+        assertThrows(IllegalStateException.class, () -> ledger.rotateKey(passphrase));
+
+        assertEquals(KEY, registry.active().keyId());
+        KeyRegistry reloaded = new KeyRegistry(database);
+        reloaded.load(passphrase);
+        assertEquals(KEY, reloaded.active().keyId());
+        assertEquals(0L, reloaded.active().lastId());
+        append(1);
+        assertEquals(List.of(KEY, KEY, KEY), signingKeys());
+        assertAllValid();
+    }
+
+    @Test
+    void entrySignedByARetiredKeyIsRejected() throws Exception {
+        append(2);
+        registry.addNext(NEXT_KEY, keys.readPublicKey(NEXT_KEY), passphrase);
+        ledger.rotateKey(passphrase);
+        append(2);
+
+        // A valid signature over entry 4, by the key retired after entry 2
+        resign(4, KEY);
+
+        VerificationResult result = ledger.verifyChain(passphrase, crypto);
+        assertEquals(List.of("Clave " + KEY + " fuera de su vigencia en la entrada 4"), result.errors());
+        assertEquals(result, ledger.verifyChainParallel(passphrase, crypto));
+        assertEquals(result, ledger.verifyFromCheckpoint(passphrase, crypto));
+        // Without the registry the signature itself is fine
+        ledger.setKeyRegistry(null);
+        assertTrue(ledger.verifyChain(passphrase, crypto).valid());
+    }
+
+    @Test
+    void archiveSealedByARetiredKeyIsRejected() throws Exception {
+        append(2);
+        registry.addNext(NEXT_KEY, keys.readPublicKey(NEXT_KEY), passphrase);
+        ledger.rotateKey(passphrase);
+        append(2);
+        LedgerArchiver archiver = new LedgerArchiver(database);
+
+        // Entries 1 to 4 sealed with the key retired after entry 2
+        ArchiveAnchor anchor = archiver.archivePeriod(YearMonth.now(ZoneOffset.UTC), ZoneOffset.UTC, KEY, passphrase, crypto);
+        assertEquals(4L, anchor.lastId());
+        append(1);
+
+        String error = "Clave " + KEY + " fuera de su vigencia en el archivo del periodo " + anchor.period();
+        VerificationResult result = ledger.verifyChain(passphrase, crypto);
+        assertEquals(List.of(error), result.errors());
+        assertEquals(result, ledger.verifyChainParallel(passphrase, crypto));
+        // Nor is the anchor a place to start from: without it, the first
+        // entry left in the table does not link
+        assertEquals(List.of(error, "Prev hash mismatch at id 5"), ledger.verifyFromCheckpoint(passphrase, crypto).errors());
+        ledger.setKeyRegistry(null);
+        assertTrue(ledger.verifyChain(passphrase, crypto).valid());
+    }
+
+    @Test
+    void archiveSealedAfterRotationByTheActiveKeyVerifies() throws Exception {
+        append(2);
+        registry.addNext(NEXT_KEY, keys.readPublicKey(NEXT_KEY), passphrase);
+        ledger.rotateKey(passphrase);
+        append(2);
+        LedgerArchiver archiver = new LedgerArchiver(database);
+
+        archiver.archivePeriod(YearMonth.now(ZoneOffset.UTC), ZoneOffset.UTC, NEXT_KEY, passphrase, crypto);
+        append(1);
+
+        assertAllValid();
+        VerificationResult archives = archiver.verifyArchives(passphrase, registry.resolver(crypto.publicKeyResolver()));
+        assertTrue(archives.valid(), archives.toString());
+    }
+
+    private void assertAllValid() {
+        VerificationResult sequential = ledger.verifyChain(passphrase, crypto);
+        assertTrue(sequential.valid(), sequential.toString());
+        assertEquals(sequential, ledger.verifyChainParallel(passphrase, crypto));
+        assertEquals(sequential, ledger.verifyFromCheckpoint(passphrase, crypto));
+    }
+
+    private static void assertNullNext(KeyRegistry registry) {
+        assertFalse(registry.keys().stream().anyMatch(key -> key.status() == KeyRegistry.Status.NEXT));
+    }
+
+    private void append(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(ledger.appendSignedEntry("{\"venta\":" + i + "}", KEY, passphrase, crypto));
+        }
+    }
+
+    private List<String> signingKeys() throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement();
+             ResultSet rs = statement.executeQuery("SELECT key_id FROM ledger ORDER BY id")) {
+            List<String> keyIds = new ArrayList<>();
+            while (rs.next()) {
+                keyIds.add(rs.getString(1));
+            }
+            return keyIds;
+        }
+    }
+
+    private void resign(long id, String keyId) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase)) {
+            byte[] hash;
+            try (PreparedStatement select = session.connection().prepareStatement("SELECT * FROM ledger WHERE id = ?")) {
+                select.setLong(1, id);
+                try (ResultSet rs = select.executeQuery()) {
+                    rs.next();
+                    hash = LedgerRows.bytes(rs, "current_hash_bin", "current_hash");
+                }
+            }
+            try (PreparedStatement update = session.connection().prepareStatement(
+                    "UPDATE ledger SET key_id = ?, signature = '', signature_bin = ? WHERE id = ?")) {
+                update.setString(1, keyId);
+                update.setBytes(2, crypto.signBytes(hash, keyId, passphrase));
+                update.setLong(3, id);
+                update.executeUpdate();
+            }
+        }
+    }
+
+    private void execute(String sql) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Archival of closed periods: what is sealed verifies from its anchor and
+ * from its file, a changed file or anchor does not, and a Merkle batch that
+ * straddles the end of a period stays whole.
+ */
+class LedgerArchiverTest {
+
+    private static final String KEY = "pos-test";
+
+    @TempDir
+    Path dir;
+
+    private final char[] passphrase = "secret".toCharArray();
+    private SecureDatabaseProvider database;
+    private CryptoService crypto;
+    private LedgerService ledger;
+    private LedgerArchiver archiver;
+
+    @BeforeEach
+    void openLedger() throws Exception {
+        // Cheapest Argon2id profile: the test is about the ledger, not the KDF
+        KdfProfile profile = new KdfProfile(1, 19456, 1);
+        KeyStoreManager keys = new KeyStoreManager(new Argon2KeyDeriver(profile, 32), dir.resolve("keystore"));
+        keys.unlock(passphrase, KEY);
+        crypto = new CryptoService(keys);
+        database = new SecureDatabaseProvider(new Argon2KeyDeriver(profile, 32), dir);
+        database.open(passphrase);
+        ledger = new LedgerService(database);
+        ledger.loadHead(passphrase);
+        ledger.setCheckpointInterval(0);
+        archiver = new LedgerArchiver(database);
+    }
+
+    @AfterEach
+    void closeLedger() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void sealedPeriodVerifiesAndATamperedFileIsRejected() throws Exception {
+        append(6);
+        ArchiveAnchor anchor = archiver.archivePeriod(thisMonth(), ZoneOffset.UTC, KEY, passphrase, crypto);
+        assertEquals(1L, anchor.firstId());
+        assertEquals(6L, anchor.lastId());
+        assertEquals(0L, count("SELECT COUNT(*) FROM ledger"));
+        assertNull(archiver.archivePeriod(thisMonth(), ZoneOffset.UTC, KEY, passphrase, crypto));
+        append(2);
+
+        assertTrue(archiver.verifyArchives(passphrase, crypto.publicKeyResolver()).valid());
+        VerificationResult deep = ledger.verifyChainDeep(passphrase, crypto, VerificationProgress.NONE);
+        assertTrue(deep.valid(), deep.toString());
+
+        Path file = archiver.getDirectory().resolve(anchor.file());
+        byte[] original = Files.readAllBytes(file);
+        Files.write(file, replaceSale(original, "{\"venta\":3}", "{\"venta\":9}"));
+        VerificationResult archives = archiver.verifyArchives(passphrase, crypto.publicKeyResolver());
+        assertTrue(archives.errors().contains("Archivo alterado del periodo " + anchor.period()), archives.toString());
+        // The anchor alone still holds: only deep verification reads the file
+        assertTrue(ledger.verifyChain(passphrase, crypto).valid());
+        assertTrue(ledger.verifyChainDeep(passphrase, crypto, VerificationProgress.NONE).errors()
+                .contains("Archivo alterado del periodo " + anchor.period()));
+
+        Files.write(file, original);
+        execute("UPDATE ledger_archive SET entry_count = entry_count - 1");
+        assertEquals(List.of("Firma inválida en el archivo del periodo " + anchor.period()),
+                ledger.verifyChain(passphrase, crypto).errors());
+    }
+
+    @Test
+    void batchAcrossThePeriodEndIsNotSplit() throws Exception {
+        append(1);
+        ledger.setSigningMode(SigningMode.MERKLE_BATCH);
+        ledger.appendBatch(List.of("{\"v\":2}", "{\"v\":3}", "{\"v\":4}"), KEY, passphrase, crypto);
+        append(1);
+        // Entries 1 to 3 last month: the period ends inside batch 2..4.
+        // created_at is not hashed, so the chain still verifies.
+        long lastMonth = thisMonth().minusMonths(1).atDay(2).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+        execute("UPDATE ledger SET created_at = " + lastMonth + " WHERE id <= 3");
+
+        ArchiveAnchor previous = archiver.archivePeriod(thisMonth().minusMonths(1), ZoneOffset.UTC, KEY, passphrase, crypto);
+        assertEquals(1L, previous.lastId());
+        assertEquals(4L, count("SELECT COUNT(*) FROM ledger"));
+        assertEquals(1L, count("SELECT COUNT(*) FROM merkle_batch WHERE id = 2"));
+
+        ArchiveAnchor current = archiver.archivePeriod(thisMonth(), ZoneOffset.UTC, KEY, passphrase, crypto);
+        assertEquals(2L, current.firstId());
+        assertEquals(5L, current.lastId());
+        assertEquals(0L, count("SELECT COUNT(*) FROM merkle_batch"));
+        append(1);
+
+        VerificationResult deep = ledger.verifyChainDeep(passphrase, crypto, VerificationProgress.NONE);
+        assertTrue(deep.valid(), deep.toString());
+        assertEquals(deep, ledger.verifyFromCheckpoint(passphrase, crypto));
+    }
+
+    /**
+     * The archive with one sale rewritten and the body compressed again, so
+     * the file still reads.
+     */
+    private static byte[] replaceSale(byte[] archive, String sale, String replacement) throws Exception {
+        int header = 2 * Integer.BYTES;
+        byte[] body;
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(archive, header, archive.length - header))) {
+            body = in.readAllBytes();
+        }
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        assertTrue(text.contains(sale));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(archive, 0, header);
+        try (OutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(text.replace(sale, replacement).getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return out.toByteArray();
+    }
+
+    private static YearMonth thisMonth() {
+        return YearMonth.now(ZoneOffset.UTC);
+    }
+
+    private void append(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(ledger.appendSignedEntry("{\"venta\":" + i + "}", KEY, passphrase, crypto));
+        }
+    }
+
+    private long count(String sql) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            return rs.getLong(1);
+        }
+    }
+
+    private void execute(String sql) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+}
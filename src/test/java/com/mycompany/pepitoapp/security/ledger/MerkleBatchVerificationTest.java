@@ -0,0 +1,233 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Merkle-batched ledgers against rows that claim a batch which does not
+ * cover them. Every verifier must reject them, whatever the signing mode of
+ * the ledger they were slipped into.
+ */
+class MerkleBatchVerificationTest {
+
+    private static final String KEY = "pos-test";
+
+    @TempDir
+    Path dir;
+
+    private final char[] passphrase = "secret".toCharArray();
+    private SecureDatabaseProvider database;
+    private CryptoService crypto;
+    private LedgerService ledger;
+
+    @BeforeEach
+    void openLedger() throws Exception {
+        // Cheapest Argon2id profile: the test is about the ledger, not the KDF
+        KdfProfile profile = new KdfProfile(1, 19456, 1);
+        KeyStoreManager keys = new KeyStoreManager(new Argon2KeyDeriver(profile, 32), dir.resolve("keystore"));
+        keys.unlock(passphrase, KEY);
+        crypto = new CryptoService(keys);
+        database = new SecureDatabaseProvider(new Argon2KeyDeriver(profile, 32), dir);
+        database.open(passphrase);
+        ledger = new LedgerService(database);
+        ledger.loadHead(passphrase);
+    }
+
+    @AfterEach
+    void closeLedger() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void batchedLedgerVerifiesAndProvesEachEntry() throws Exception {
+        ledger.setSigningMode(SigningMode.MERKLE_BATCH);
+        ledger.appendBatch(List.of("{\"v\":1}", "{\"v\":2}", "{\"v\":3}"), KEY, passphrase, crypto);
+        ledger.appendBatch(List.of("{\"v\":4}", "{\"v\":5}"), KEY, passphrase, crypto);
+        assertAllValid();
+
+        PublicKey publicKey = crypto.publicKeyResolver().resolve(KEY);
+        for (long id = 1; id <= 5; id++) {
+            MerkleProof proof = ledger.inclusionProof(id, passphrase);
+            assertEquals(id <= 3 ? 1L : 4L, proof.batchId());
+            assertTrue(proof.matches("{\"v\":" + id + "}"));
+            assertFalse(proof.matches("{\"v\":" + (id + 1) + "}"));
+            assertTrue(proof.verify(publicKey));
+        }
+    }
+
+    @Test
+    void segmentLedgerBatchesVerify() throws Exception {
+        try (SegmentLogStorageService segments = new SegmentLogStorageService(dir.resolve("segments"), SegmentLog.MIN_SEGMENT_SIZE)) {
+            LedgerService segmentLedger = new LedgerService(database, segments);
+            segmentLedger.setSigningMode(SigningMode.MERKLE_BATCH);
+            segmentLedger.appendBatch(List.of("{\"v\":1}", "{\"v\":2}", "{\"v\":3}"), KEY, passphrase, crypto);
+            long checkpoint = segmentLedger.appendCheckpoint(LedgerService.CHECKPOINT_CASH_CLOSE, KEY, passphrase, crypto);
+            segmentLedger.appendBatch(List.of("{\"v\":5}", "{\"v\":6}"), KEY, passphrase, crypto);
+
+            VerificationResult result = segmentLedger.verifyChain(passphrase, crypto);
+            assertTrue(result.valid(), result.toString());
+            result = segmentLedger.verifyFromCheckpoint(checkpoint, passphrase, crypto, VerificationProgress.NONE);
+            assertTrue(result.valid(), result.toString());
+        }
+    }
+
+    @Test
+    void unsignedRowAfterItsBatchIsRejected() throws Exception {
+        ledger.setSigningMode(SigningMode.MERKLE_BATCH);
+        ledger.appendBatch(List.of("{\"v\":1}", "{\"v\":2}", "{\"v\":3}"), KEY, passphrase, crypto);
+
+        // Correct chain hash, no signature, borrowing the first leaf of batch 1.
+        insertUnsigned(4, "{\"forged\":4}", 1L, 0);
+
+        assertAllReport(EntryVerifier.outOfBatchError(4, 1));
+        assertThrows(SQLException.class, () -> ledger.inclusionProof(4, passphrase));
+    }
+
+    @Test
+    void rowsOfABatchThatNeverEndsAreRejected() throws Exception {
+        ledger.appendSignedEntry("{\"v\":1}", KEY, passphrase, crypto);
+        ledger.appendSignedEntry("{\"v\":2}", KEY, passphrase, crypto);
+        assertAllValid();
+
+        execute("INSERT INTO merkle_batch(id, last_entry_id, leaf_count, root, signature, key_id, created_at) "
+                + "VALUES (3, 999999, 999997, 'AAAA', 'AAAA', '" + KEY + "', 0)");
+        insertUnsigned(3, "{\"forged\":3}", 3L, 0);
+        insertUnsigned(4, "{\"forged\":4}", 3L, 1);
+
+        assertAllReport(EntryVerifier.unclosedBatchError(3, 3), EntryVerifier.unclosedBatchError(4, 3));
+    }
+
+    @Test
+    void tamperedLeafRootOrRangeIsRejected() throws Exception {
+        ledger.setSigningMode(SigningMode.MERKLE_BATCH);
+        ledger.appendBatch(List.of("{\"v\":1}", "{\"v\":2}", "{\"v\":3}", "{\"v\":4}"), KEY, passphrase, crypto);
+
+        // A leaf moved within the batch
+        execute("UPDATE ledger SET leaf_index = 2 WHERE id = 2");
+        assertAllReport(EntryVerifier.outOfBatchError(2, 1), "Raíz Merkle inválida en el lote 1");
+        execute("UPDATE ledger SET leaf_index = 1 WHERE id = 2");
+        assertAllValid();
+
+        // A batch cut short before its last leaf
+        execute("UPDATE merkle_batch SET last_entry_id = 3, leaf_count = 3 WHERE id = 1");
+        assertAllReport("Raíz Merkle inválida en el lote 1", EntryVerifier.outOfBatchError(4, 1));
+        execute("UPDATE merkle_batch SET last_entry_id = 4, leaf_count = 4 WHERE id = 1");
+
+        String root;
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement();
+             ResultSet rs = statement.executeQuery("SELECT root FROM merkle_batch WHERE id = 1")) {
+            rs.next();
+            root = rs.getString(1);
+        }
+        execute("UPDATE merkle_batch SET root = '" + ChainHashing.encode(new byte[32]) + "' WHERE id = 1");
+        assertAllReport("Raíz Merkle inválida en el lote 1");
+        execute("UPDATE merkle_batch SET root = '" + root + "' WHERE id = 1");
+        assertAllValid();
+    }
+
+    @Test
+    void archiveCheckRejectsRowOutsideItsBatch() throws Exception {
+        List<LedgerEntry> entries = new ArrayList<>();
+        List<byte[]> leaves = new ArrayList<>();
+        byte[] previous = ChainHashing.GENESIS_HASH;
+        for (int id = 1; id <= 4; id++) {
+            String sale = "{\"v\":" + id + "}";
+            byte[] hash = ChainHashing.chain(LedgerEntry.FORMAT_V2, previous, sale);
+            // Entry 4 borrows the first leaf of batch 1, which ends at 3.
+            entries.add(new LedgerEntry(id, 0L, sale, previous, hash, new byte[0], KEY, false, 1L,
+                    id == 4 ? 0 : id - 1, LedgerEntry.FORMAT_V2));
+            if (id < 4) {
+                leaves.add(hash);
+            }
+            previous = hash;
+        }
+        byte[] root = MerkleTree.root(leaves);
+        MerkleBatch batch = new MerkleBatch(1L, 3L, 3, Base64.getEncoder().encodeToString(root),
+                crypto.sign(root, KEY, passphrase), KEY, 0L);
+
+        List<String> errors = new ArrayList<>();
+        LedgerArchives.ChainCheck check = new LedgerArchives.ChainCheck(ChainHashing.GENESIS_HASH, LedgerEntry.FORMAT_V1,
+                new EntryVerifier(crypto.publicKeyResolver(), null), errors);
+        for (int i = 0; i < 3; i++) {
+            check.entry(entries.get(i));
+        }
+        check.batch(batch);
+        check.entry(entries.get(3));
+        check.finish();
+
+        assertEquals(List.of(EntryVerifier.outOfBatchError(4, 1), "Lote Merkle ausente para la entrada 4"), errors);
+    }
+
+    private void assertAllValid() {
+        VerificationResult sequential = ledger.verifyChain(passphrase, crypto);
+        assertTrue(sequential.valid(), sequential.toString());
+        assertEquals(sequential, ledger.verifyChainParallel(passphrase, crypto));
+        assertEquals(sequential, ledger.verifyFromCheckpoint(passphrase, crypto));
+    }
+
+    private void assertAllReport(String... errors) {
+        VerificationResult expected = new VerificationResult(false, List.of(errors));
+        assertEquals(expected, ledger.verifyChain(passphrase, crypto));
+        assertEquals(expected, ledger.verifyChainParallel(passphrase, crypto));
+        assertEquals(expected, ledger.verifyFromCheckpoint(passphrase, crypto));
+    }
+
+    /**
+     * A row chained after the current last one, with an empty signature and
+     * the given Merkle batch and leaf index.
+     */
+    private void insertUnsigned(long id, String sale, long batchId, int leafIndex) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase)) {
+            byte[] previous;
+            try (Statement statement = session.connection().createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT * FROM ledger ORDER BY id DESC LIMIT 1")) {
+                rs.next();
+                previous = LedgerRows.bytes(rs, "current_hash_bin", "current_hash");
+            }
+            try (PreparedStatement insert = session.connection().prepareStatement(
+                    "INSERT INTO ledger(id, created_at, sale_json, previous_hash, current_hash, signature, key_id, checkpoint, "
+                    + "merkle_batch, leaf_index, format, previous_hash_bin, current_hash_bin, signature_bin) "
+                    + "VALUES (?, 0, ?, '', '', '', ?, 0, ?, ?, 2, ?, ?, ?)")) {
+                insert.setLong(1, id);
+                insert.setString(2, sale);
+                insert.setString(3, KEY);
+                insert.setLong(4, batchId);
+                insert.setInt(5, leafIndex);
+                insert.setBytes(6, previous);
+                insert.setBytes(7, ChainHashing.chain(LedgerEntry.FORMAT_V2, previous, sale));
+                insert.setBytes(8, new byte[0]);
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    private void execute(String sql) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+}
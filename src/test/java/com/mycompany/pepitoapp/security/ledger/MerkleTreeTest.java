@@ -0,0 +1,182 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The tree against the RFC 6962 test vectors (the eight leaves and the
+ * roots and audit paths published with Certificate Transparency), and proofs
+ * built from it against tampering.
+ */
+class MerkleTreeTest {
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final List<byte[]> LEAVES = hex(
+            "", "00", "10", "2021", "3031", "40414243", "5051525354555657", "606162636465666768696a6b6c6d6e6f");
+    private static final List<byte[]> ROOTS = hex(
+            "6e340b9cffb37a989ca544e6bb780a2c78901d3fb33738768511a30617afa01d",
+            "fac54203e7cc696cf0dfcb42c92a1d9dbaf70ad9e621f4bd8d98662f00e3c125",
+            "aeb6bcfe274b70a14fb067a5e5578264db0fa9b51af5e0ba159158f329e06e77",
+            "d37ee418976dd95753c1c73862b9398fa2a2cf9b4ff0fdfe8b30cd95209614b7",
+            "4e3bbb1f7b478dcfe71fb631631519a3bca12c9aefca1612bfce4c13a86264d4",
+            "76e67dadbcdf1e10e1b74ddc608abd2f98dfb16fbce75277b5232a127f2087ef",
+            "ddb89be403809e325750d3d263cd78929c2942b7942a34b77e122c9594a74c8c",
+            "5dc9da79a70659a9ad559cb701ded9a2ab9d823aad2f4960cfe370eff4604328");
+
+    private final Random random = new Random(6962);
+
+    @Test
+    void rootsMatchRfc6962Vectors() {
+        for (int n = 1; n <= LEAVES.size(); n++) {
+            assertArrayEquals(ROOTS.get(n - 1), MerkleTree.root(LEAVES.subList(0, n)), "tree of " + n);
+        }
+    }
+
+    @Test
+    void auditPathsMatchRfc6962Vectors() {
+        assertPath(0, 1);
+        assertPath(0, 8,
+                "96a296d224f285c67bee93c30f8a309157f0daa35dc5b87e410b78630a09cfc7",
+                "5f083f0a1a33ca076a95279832580db3e0ef4584bdff1f54c8a360f50de3031e",
+                "6b47aaf29ee3c2af9af889bc1fb9254dabd31177f16232dd6aab035ca39bf6e4");
+        assertPath(5, 8,
+                "bc1a0643b12e4d2d7c77918f44e0f4f79a838b6cf9ec5b5c283e1f4d88599e6b",
+                "ca854ea128ed050b41b35ffc1b87b8eb2bde461e9e3b5596ece6b9d5975a0ae0",
+                "d37ee418976dd95753c1c73862b9398fa2a2cf9b4ff0fdfe8b30cd95209614b7");
+        assertPath(2, 3,
+                "fac54203e7cc696cf0dfcb42c92a1d9dbaf70ad9e621f4bd8d98662f00e3c125");
+        assertPath(1, 5,
+                "6e340b9cffb37a989ca544e6bb780a2c78901d3fb33738768511a30617afa01d",
+                "5f083f0a1a33ca076a95279832580db3e0ef4584bdff1f54c8a360f50de3031e",
+                "bc1a0643b12e4d2d7c77918f44e0f4f79a838b6cf9ec5b5c283e1f4d88599e6b");
+    }
+
+    @Test
+    void everyProofRoundTripsAndNothingElseVerifies() {
+        for (int n = 1; n <= 40; n++) {
+            List<byte[]> leaves = randomLeaves(n);
+            byte[] root = MerkleTree.root(leaves);
+            for (int index = 0; index < n; index++) {
+                List<byte[]> path = MerkleTree.proof(leaves, index);
+                byte[] leaf = leaves.get(index);
+                assertTrue(path.size() <= 32 - Integer.numberOfLeadingZeros(n - 1), "path length");
+                assertTrue(MerkleTree.verify(leaf, index, n, path, root), n + "/" + index);
+
+                assertFalse(MerkleTree.verify(flip(leaf), index, n, path, root), "tampered leaf");
+                assertFalse(MerkleTree.verify(leaf, index, n, path, flip(root)), "tampered root");
+                if (n > 1) {
+                    assertFalse(MerkleTree.verify(leaf, (index + 1) % n, n, path, root), "other index");
+                    List<byte[]> tampered = new ArrayList<>(path);
+                    tampered.set(0, flip(tampered.get(0)));
+                    assertFalse(MerkleTree.verify(leaf, index, n, tampered, root), "tampered path");
+                    assertFalse(MerkleTree.verify(leaf, index, n, path.subList(0, path.size() - 1), root), "short path");
+                }
+                List<byte[]> longer = new ArrayList<>(path);
+                longer.add(root);
+                assertFalse(MerkleTree.verify(leaf, index, n, longer, root), "long path");
+            }
+            assertFalse(MerkleTree.verify(leaves.get(0), n, n, List.of(), root), "index past the tree");
+        }
+    }
+
+    @Test
+    void rejectsEmptyTreeAndIndexOutside() {
+        assertThrows(IllegalArgumentException.class, () -> MerkleTree.root(List.of()));
+        assertThrows(IndexOutOfBoundsException.class, () -> MerkleTree.proof(LEAVES, 8));
+        assertThrows(IndexOutOfBoundsException.class, () -> MerkleTree.proof(LEAVES, -1));
+    }
+
+    @Test
+    void signedProofVerifiesWithThePublicKeyOnly() throws Exception {
+        KeyPair pair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        KeyPair other = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        byte[] previous = ChainHashing.GENESIS_HASH;
+        List<byte[]> leaves = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = ChainHashing.chain(LedgerEntry.FORMAT_V2, previous, "{\"v\":" + i + "}");
+            leaves.add(hash);
+            previous = hash;
+        }
+        byte[] root = MerkleTree.root(leaves);
+        Signature signer = Signature.getInstance("Ed25519");
+        signer.initSign(pair.getPrivate());
+        signer.update(root);
+        String signature = base64(signer.sign());
+
+        MerkleProof proof = proof(leaves, 3, base64(root), signature);
+        assertTrue(proof.matches("{\"v\":3}"));
+        assertFalse(proof.matches("{\"v\":4}"));
+        assertTrue(proof.verify(pair.getPublic()));
+        assertFalse(proof.verify(other.getPublic()));
+
+        assertFalse(proof(leaves, 2, base64(root), signature).verify(pair.getPublic()), "other leaf's path");
+        assertFalse(proof(leaves, 3, base64(flip(root)), signature).verify(pair.getPublic()), "tampered root");
+        byte[] badSignature = Base64.getDecoder().decode(signature);
+        badSignature[10] ^= 1;
+        assertFalse(proof(leaves, 3, base64(root), base64(badSignature)).verify(pair.getPublic()), "tampered signature");
+    }
+
+    /**
+     * Proof that leaf 3 of leaves is in the tree, with the path of leaf
+     * pathOf.
+     */
+    private static MerkleProof proof(List<byte[]> leaves, int pathOf, String root, String signature) {
+        List<String> path = new ArrayList<>();
+        for (byte[] node : MerkleTree.proof(leaves, pathOf)) {
+            path.add(base64(node));
+        }
+        return new MerkleProof(4L, LedgerEntry.FORMAT_V2, base64(leaves.get(2)), base64(leaves.get(3)), 1L, 3,
+                leaves.size(), path, root, signature, "pos-test");
+    }
+
+    private static void assertPath(int index, int size, String... expected) {
+        List<byte[]> leaves = LEAVES.subList(0, size);
+        List<byte[]> path = MerkleTree.proof(leaves, index);
+        assertEquals(expected.length, path.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], HEX.formatHex(path.get(i)), "node " + i);
+        }
+        assertTrue(MerkleTree.verify(leaves.get(index), index, size, path, ROOTS.get(size - 1)));
+    }
+
+    private List<byte[]> randomLeaves(int n) {
+        List<byte[]> leaves = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            byte[] leaf = new byte[32];
+            random.nextBytes(leaf);
+            leaves.add(leaf);
+        }
+        return leaves;
+    }
+
+    private static byte[] flip(byte[] bytes) {
+        byte[] copy = bytes.length == 0 ? new byte[1] : bytes.clone();
+        copy[copy.length - 1] ^= 1;
+        return copy;
+    }
+
+    private static String base64(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static List<byte[]> hex(String... values) {
+        List<byte[]> bytes = new ArrayList<>(values.length);
+        for (String value : values) {
+            bytes.add(HEX.parseHex(value));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,200 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The running sales totals against a recount of the ledger: totals folded
+ * by catch-up must equal the ones kept up to date on every append.
+ */
+class SaleAggregatesTest {
+
+    private static final String KEY = "pos-test";
+    // Pan 3 x 0.50 + Leche 2 x 3.00
+    private static final String SALE = "{\"timestamp\":1,\"cliente\":{\"nombre\":\"A\",\"ruc\":\"\"},\"total\":7.5,"
+            + "\"items\":[{\"descripcion\":\"Pan\",\"precio\":0.5,\"cantidad\":3},"
+            + "{\"descripcion\":\"Leche\",\"precio\":3.0,\"cantidad\":2}]}";
+
+    @TempDir
+    Path dir;
+
+    private final char[] passphrase = "secret".toCharArray();
+    private SecureDatabaseProvider database;
+    private CryptoService crypto;
+    private LedgerService ledger;
+    private SaleAggregates aggregates;
+
+    @BeforeEach
+    void openLedger() throws Exception {
+        // Cheapest Argon2id profile: the test is about the totals, not the KDF
+        KdfProfile profile = new KdfProfile(1, 19456, 1);
+        KeyStoreManager keys = new KeyStoreManager(new Argon2KeyDeriver(profile, 32), dir.resolve("keystore"));
+        keys.unlock(passphrase, KEY);
+        crypto = new CryptoService(keys);
+        database = new SecureDatabaseProvider(new Argon2KeyDeriver(profile, 32), dir);
+        database.open(passphrase);
+        ledger = new LedgerService(database);
+        ledger.loadHead(passphrase);
+        aggregates = new SaleAggregates(database, ZoneOffset.UTC);
+    }
+
+    @AfterEach
+    void closeLedger() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void appendHookCountsSales() throws Exception {
+        ledger.setSaleAggregates(aggregates);
+        append(SALE, SALE, "{\"legacy\":1}");
+
+        SalesTotals shift = aggregates.openShift(passphrase);
+        assertEquals(2, shift.sales());
+        assertEquals(10, shift.items());
+        assertEquals(1500, shift.totalCents());
+        // The base is rounded per boleta, not on the shift total
+        assertEquals(2 * SaleAggregates.taxBase(750), shift.baseCents());
+        assertEquals(1500 - shift.baseCents(), shift.taxCents());
+        assertTrue(shift.sameAmounts(aggregates.day(today(), passphrase)));
+
+        Map<String, SalesTotals> products = aggregates.products(today(), passphrase);
+        assertEquals(List.of("Leche", "Pan"), new ArrayList<>(products.keySet()));
+        assertEquals(6, products.get("Pan").items());
+        assertEquals(300, products.get("Pan").totalCents());
+        assertEquals(1200, products.get("Leche").totalCents());
+        assertEquals(0L, aggregates.catchUp(passphrase));
+    }
+
+    @Test
+    void catchUpFoldsRowsWrittenWithoutTheHook() throws Exception {
+        append(SALE, "{\"legacy\":1}", SALE, SALE);
+
+        assertEquals(4L, aggregates.catchUp(passphrase));
+        assertEquals(0L, aggregates.catchUp(passphrase));
+        SalesTotals shift = aggregates.openShift(passphrase);
+        assertEquals(3, shift.sales());
+        assertEquals(2250, shift.totalCents());
+
+        ledger.setSaleAggregates(aggregates);
+        append(SALE);
+        assertEquals(4, aggregates.openShift(passphrase).sales());
+        assertEquals(0L, aggregates.catchUp(passphrase));
+    }
+
+    @Test
+    void appendAfterReattachCountsRowsWrittenWhileDetached() throws Exception {
+        ledger.setSaleAggregates(aggregates);
+        append(SALE);
+        ledger.setSaleAggregates(null);
+        append(SALE, SALE);
+
+        // No catchUp before the next sale
+        ledger.setSaleAggregates(aggregates);
+        append(SALE);
+
+        assertEquals(4, aggregates.openShift(passphrase).sales());
+        assertEquals(4, aggregates.day(today(), passphrase).sales());
+        assertEquals(0L, aggregates.catchUp(passphrase));
+        long close = ledger.appendCheckpoint(LedgerService.CHECKPOINT_CASH_CLOSE, KEY, passphrase, crypto);
+        VerificationResult verified = aggregates.verifyShift(close, passphrase);
+        assertTrue(verified.valid(), verified.toString());
+    }
+
+    @Test
+    void catchUpRebuildsTheSameTotals() throws Exception {
+        ledger.setSaleAggregates(aggregates);
+        List<String> sales = new ArrayList<>();
+        // More than one catch-up batch
+        for (int i = 0; i < 1200; i++) {
+            sales.add(i % 7 == 0 ? "{\"legacy\":" + i + "}" : SALE);
+        }
+        ledger.appendBatch(sales, KEY, passphrase, crypto);
+        SalesTotals shift = aggregates.openShift(passphrase);
+        SalesTotals day = aggregates.day(today(), passphrase);
+        Map<String, SalesTotals> products = aggregates.products(today(), passphrase);
+
+        execute("DELETE FROM sales_aggregate");
+        assertEquals(ledgerRows(), aggregates.catchUp(passphrase));
+
+        assertEquals(shift, aggregates.openShift(passphrase));
+        assertEquals(day, aggregates.day(today(), passphrase));
+        assertEquals(products, aggregates.products(today(), passphrase));
+    }
+
+    @Test
+    void catchUpClosesShiftsAtCashCloses() throws Exception {
+        append(SALE, SALE);
+        long unsignedClose = ledger.appendCheckpoint(LedgerService.CHECKPOINT_CASH_CLOSE, KEY, passphrase, crypto);
+        append(SALE);
+
+        aggregates.catchUp(passphrase);
+        assertEquals(2, aggregates.shift(unsignedClose, passphrase).sales());
+        assertEquals(1, aggregates.openShift(passphrase).sales());
+
+        ledger.setSaleAggregates(aggregates);
+        append(SALE);
+        long close = ledger.appendCheckpoint(LedgerService.CHECKPOINT_CASH_CLOSE, KEY, passphrase, crypto);
+        assertEquals(2, aggregates.shift(close, passphrase).sales());
+        assertEquals(4, aggregates.day(today(), passphrase).sales());
+        VerificationResult verified = aggregates.verifyShift(close, passphrase);
+        assertTrue(verified.valid(), verified.toString());
+        assertTrue(aggregates.verifyDay(today(), passphrase).valid());
+        // Closed while nothing kept the totals, so nothing was signed into it
+        assertFalse(aggregates.verifyShift(unsignedClose, passphrase).valid());
+    }
+
+    @Test
+    void verifyShiftDetectsChangedTotals() throws Exception {
+        ledger.setSaleAggregates(aggregates);
+        append(SALE, SALE);
+        long close = ledger.appendCheckpoint(LedgerService.CHECKPOINT_CASH_CLOSE, KEY, passphrase, crypto);
+        assertTrue(aggregates.verifyShift(close, passphrase).valid());
+
+        execute("UPDATE sales_aggregate SET total_cents = total_cents - 1 WHERE scope = 'turno' AND period = '" + close + "'");
+        assertFalse(aggregates.verifyShift(close, passphrase).valid());
+    }
+
+    private void append(String... sales) {
+        for (String sale : sales) {
+            assertTrue(ledger.appendSignedEntry(sale, KEY, passphrase, crypto));
+        }
+    }
+
+    private static LocalDate today() {
+        return LocalDate.now(ZoneOffset.UTC);
+    }
+
+    private long ledgerRows() throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+                ResultSet rs = session.prepare("SELECT COUNT(*) FROM ledger").executeQuery()) {
+            return rs.getLong(1);
+        }
+    }
+
+    private void execute(String sql) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+                Statement statement = session.connection().createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+}
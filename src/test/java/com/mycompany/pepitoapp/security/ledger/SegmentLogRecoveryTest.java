@@ -0,0 +1,184 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentLogRecoveryTest {
+
+    private static final int SEGMENT_SIZE = SegmentLog.MIN_SEGMENT_SIZE;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reopenRestoresHeadAndEntries() throws Exception {
+        ChainHead head;
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            appendSales(log, 5, 3);
+            head = log.head();
+        }
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            assertEquals(15, log.head().lastId());
+            assertArrayEquals(head.lastHash(), log.head().lastHash());
+            assertEquals(15, countEntries(log));
+            assertEquals("{\"venta\":7}", SegmentLog.readEntry(log.find(7).buffer(), log.find(7).offset()).saleJson());
+        }
+    }
+
+    @Test
+    void tornAppendIsWipedAndTheLogContinuesFromTheLastCommit() throws Exception {
+        ChainHead beforeTorn;
+        int tornStart;
+        int commitOffset;
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            appendSales(log, 4, 2);
+            beforeTorn = log.head();
+            appendSales(log, 1, 3);
+            tornStart = log.find(9).offset();
+            commitOffset = log.find(11).offset();
+        }
+        // The commit record of the last append never fully reached the disk
+        corrupt(segmentFile(1L), commitOffset + SegmentLog.RECORD_HEADER + 3);
+
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            assertEquals(beforeTorn.lastId(), log.head().lastId());
+            assertArrayEquals(beforeTorn.lastHash(), log.head().lastHash());
+            assertNull(log.find(9));
+            assertEquals(8, countEntries(log));
+            assertTrue(zeroFrom(segmentFile(1L), tornStart, commitOffset + 256));
+            appendSales(log, 1, 2);
+        }
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            assertEquals(10, log.head().lastId());
+            assertEquals(10, countEntries(log));
+        }
+    }
+
+    @Test
+    void damagedRecordFollowedByCommitsIsKeptForTheVerifier() throws Exception {
+        int damaged;
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            appendSales(log, 6, 2);
+            damaged = log.find(5).offset();
+        }
+        corrupt(segmentFile(1L), damaged + SegmentLog.RECORD_HEADER + 70);
+
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            assertEquals(12, log.head().lastId());
+            assertNotNull(log.find(12));
+            // Nothing was wiped: every record, the damaged one included, is still there
+            assertEquals(12, countEntries(log));
+            Path file = segmentFile(1L);
+            assertTrue(Files.size(file) >= SEGMENT_SIZE);
+        }
+    }
+
+    @Test
+    void filledSegmentsAreReopenedFromTheirIndex() throws Exception {
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            // About 200 bytes per entry: enough appends to fill several segments
+            appendSales(log, 200, 5);
+        }
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(dir)) {
+            segments = files.filter(path -> path.toString().endsWith(".seg")).sorted().toList();
+        }
+        assertTrue(segments.size() > 1, "expected several segments, got " + segments.size());
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(segments.size() - 1, files.filter(path -> path.toString().endsWith(".idx")).count());
+        }
+
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            assertEquals(1000, log.head().lastId());
+            assertEquals(1000, countEntries(log));
+            for (long id = 1; id <= 1000; id += 37) {
+                assertEquals("{\"venta\":" + id + "}", SegmentLog.readEntry(log.find(id).buffer(), log.find(id).offset()).saleJson());
+            }
+        }
+    }
+
+    @Test
+    void secondWriterIsRefused() throws Exception {
+        try (SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE)) {
+            assertThrows(IOException.class, () -> SegmentLog.open(dir, SEGMENT_SIZE));
+            // The first writer keeps the log
+            appendSales(log, 1, 3);
+            assertEquals(3, log.head().lastId());
+        }
+    }
+
+    /**
+     * Appends count appends of size chained entries each.
+     */
+    private static void appendSales(SegmentLog log, int count, int size) throws IOException {
+        for (int a = 0; a < count; a++) {
+            ChainHead head = log.head();
+            byte[] previous = head.lastHash();
+            long id = head.lastId();
+            List<LedgerEntry> entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                id++;
+                String sale = "{\"venta\":" + id + "}";
+                byte[] hash = ChainHashing.chain(LedgerEntry.FORMAT_V2, previous, sale);
+                entries.add(new LedgerEntry(0L, 1_700_000_000L + id, sale, previous, hash, new byte[64], "pos-test",
+                        false, 0L, -1, LedgerEntry.FORMAT_V2));
+                previous = hash;
+            }
+            assertNotNull(log.append(head, entries, null));
+        }
+    }
+
+    private static long countEntries(SegmentLog log) throws Exception {
+        long[] count = new long[1];
+        log.forEach(1L, (segment, offset) -> {
+            if (SegmentLog.type(segment.buffer, offset) == SegmentLog.TYPE_ENTRY) {
+                count[0]++;
+            }
+            return true;
+        });
+        return count[0];
+    }
+
+    private Path segmentFile(long firstId) {
+        return dir.resolve(String.format("%020d", firstId) + ".seg");
+    }
+
+    private static void corrupt(Path file, int offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, offset);
+            one.put(0, (byte) (one.get(0) ^ 0x5a));
+            one.rewind();
+            channel.write(one, offset);
+        }
+    }
+
+    private static boolean zeroFrom(Path file, int from, int to) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer bytes = ByteBuffer.allocate(to - from);
+            channel.read(bytes, from);
+            for (int i = 0; i < bytes.capacity(); i++) {
+                if (bytes.get(i) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
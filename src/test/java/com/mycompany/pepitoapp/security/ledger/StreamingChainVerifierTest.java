@@ -0,0 +1,112 @@
+package com.mycompany.pepitoapp.security.ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.CryptoService;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
+import com.mycompany.pepitoapp.security.crypto.KeyStoreManager;
+import com.mycompany.pepitoapp.security.storage.DatabaseSession;
+import com.mycompany.pepitoapp.security.storage.SecureDatabaseProvider;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The cursor-based verifier with a fetch size much smaller than the ledger,
+ * so every check happens across fetch boundaries.
+ */
+class StreamingChainVerifierTest {
+
+    private static final String KEY = "pos-test";
+    private static final int FETCH_SIZE = 3;
+
+    @TempDir
+    Path dir;
+
+    private final char[] passphrase = "secret".toCharArray();
+    private SecureDatabaseProvider database;
+    private CryptoService crypto;
+    private LedgerService ledger;
+    private StreamingChainVerifier verifier;
+
+    @BeforeEach
+    void openLedger() throws Exception {
+        // Cheapest Argon2id profile: the test is about the ledger, not the KDF
+        KdfProfile profile = new KdfProfile(1, 19456, 1);
+        KeyStoreManager keys = new KeyStoreManager(new Argon2KeyDeriver(profile, 32), dir.resolve("keystore"));
+        keys.unlock(passphrase, KEY);
+        crypto = new CryptoService(keys);
+        database = new SecureDatabaseProvider(new Argon2KeyDeriver(profile, 32), dir);
+        database.open(passphrase);
+        ledger = new LedgerService(database);
+        ledger.loadHead(passphrase);
+        ledger.setCheckpointInterval(0);
+        verifier = new StreamingChainVerifier(database.readConnections(passphrase), FETCH_SIZE, 10);
+    }
+
+    @AfterEach
+    void closeLedger() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void wholeLedgerVerifiesAcrossFetchesWithProgress() throws Exception {
+        append(25);
+        List<long[]> progress = new ArrayList<>();
+
+        VerificationResult result = verifier.verify(crypto.publicKeyResolver(),
+                (verified, currentId, lastId) -> progress.add(new long[] {verified, currentId, lastId}));
+
+        assertTrue(result.valid(), result.toString());
+        assertEquals(List.of("10/10/25", "20/20/25", "25/25/25"), progress.stream()
+                .map(call -> call[0] + "/" + call[1] + "/" + call[2]).toList());
+    }
+
+    @Test
+    void brokenLinkMidStreamIsDetected() throws Exception {
+        append(10);
+        long checkpoint = ledger.appendCheckpoint(LedgerService.CHECKPOINT_CASH_CLOSE, KEY, passphrase, crypto);
+        append(14);
+        assertTrue(verifier.verify(crypto.publicKeyResolver(), VerificationProgress.NONE).valid());
+
+        // A row removed after the checkpoint, a signature replaced before it
+        execute("DELETE FROM ledger WHERE id = 18");
+        try (DatabaseSession session = database.openSession(passphrase);
+             PreparedStatement update = session.connection().prepareStatement(
+                     "UPDATE ledger SET signature = '', signature_bin = ? WHERE id = 6")) {
+            update.setBytes(1, crypto.signBytes(new byte[32], KEY, passphrase));
+            update.executeUpdate();
+        }
+
+        String link = "Prev hash mismatch at id 19";
+        VerificationResult result = verifier.verify(crypto.publicKeyResolver(), VerificationProgress.NONE);
+        assertEquals(List.of(EntryVerifier.entrySignatureError(6), link), result.errors());
+        assertEquals(result, ledger.verifyChain(passphrase, crypto));
+        // Hashes alone still find the missing row
+        assertEquals(List.of(link), verifier.verify(null, VerificationProgress.NONE).errors());
+        // From the checkpoint, entry 6 is not read again
+        assertEquals(List.of(link),
+                verifier.verifyFromCheckpoint(checkpoint, crypto.publicKeyResolver(), VerificationProgress.NONE).errors());
+    }
+
+    private void append(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(ledger.appendSignedEntry("{\"venta\":" + i + "}", KEY, passphrase, crypto));
+        }
+    }
+
+    private void execute(String sql) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+}
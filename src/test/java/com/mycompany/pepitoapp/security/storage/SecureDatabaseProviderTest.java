@@ -0,0 +1,146 @@
+package com.mycompany.pepitoapp.security.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import com.mycompany.pepitoapp.security.crypto.Argon2KeyDeriver;
+import com.mycompany.pepitoapp.security.crypto.KdfProfile;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The database key metadata across a change of KDF profile: open() moves the
+ * database to the current profile, and a re-key interrupted before its
+ * metadata was switched is finished or dropped by the next open.
+ *
+ * The test driver is plain SQLite, where PRAGMA key and rekey are no-ops and
+ * the database opens with any metadata, so these tests follow the metadata
+ * files rather than the encryption.
+ */
+class SecureDatabaseProviderTest {
+
+    // Cheap Argon2id profiles: the tests are about the metadata, not the KDF
+    private static final KdfProfile OLD = new KdfProfile(1, 19456, 1);
+    private static final KdfProfile CURRENT = new KdfProfile(2, 19456, 1);
+
+    @TempDir
+    Path dir;
+
+    private final char[] passphrase = "secret".toCharArray();
+
+    @Test
+    void openWithANewProfileRekeysAndKeepsTheData() throws Exception {
+        try (SecureDatabaseProvider database = provider(OLD)) {
+            database.open(passphrase);
+            execute(database, "CREATE TABLE sample(value TEXT)");
+            execute(database, "INSERT INTO sample VALUES ('kept')");
+        }
+        Properties before = metadata();
+        assertEquals(OLD, KdfProfile.from(before));
+
+        try (SecureDatabaseProvider database = provider(CURRENT)) {
+            database.open(passphrase);
+            assertEquals("kept", value(database));
+        }
+        Properties after = metadata();
+        assertEquals(CURRENT, KdfProfile.from(after));
+        assertNotEquals(before.getProperty("salt"), after.getProperty("salt"));
+        assertFalse(Files.exists(pending()));
+
+        // Nothing left to re-key
+        try (SecureDatabaseProvider database = provider(CURRENT)) {
+            database.open(passphrase);
+        }
+        assertEquals(after, metadata());
+    }
+
+    @Test
+    void pendingMetadataIsDroppedWhenTheCurrentOneStillOpens() throws Exception {
+        try (SecureDatabaseProvider database = provider(CURRENT)) {
+            database.open(passphrase);
+            execute(database, "CREATE TABLE sample(value TEXT)");
+            execute(database, "INSERT INTO sample VALUES ('kept')");
+        }
+        Properties current = metadata();
+        // Interrupted after the pending file was written, before the re-key
+        writePending(OLD);
+
+        try (SecureDatabaseProvider database = provider(CURRENT)) {
+            database.open(passphrase);
+            assertEquals("kept", value(database));
+        }
+        assertFalse(Files.exists(pending()));
+        assertEquals(current, metadata());
+    }
+
+    @Test
+    void pendingMetadataIsAdoptedWhenThereIsNoCurrentOne() throws Exception {
+        try (SecureDatabaseProvider database = provider(CURRENT)) {
+            database.open(passphrase);
+            execute(database, "CREATE TABLE sample(value TEXT)");
+            execute(database, "INSERT INTO sample VALUES ('kept')");
+        }
+        Properties pending = writePending(CURRENT);
+        Files.delete(dir.resolve("db_key.properties"));
+
+        try (SecureDatabaseProvider database = provider(CURRENT)) {
+            database.open(passphrase);
+            assertEquals("kept", value(database));
+        }
+        assertFalse(Files.exists(pending()));
+        assertEquals(pending.getProperty("salt"), metadata().getProperty("salt"));
+    }
+
+    private SecureDatabaseProvider provider(KdfProfile profile) {
+        return new SecureDatabaseProvider(new Argon2KeyDeriver(profile, 32), dir);
+    }
+
+    private Path pending() {
+        return dir.resolve("db_key.properties.pending");
+    }
+
+    private Properties metadata() throws Exception {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve("db_key.properties"))) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    /**
+     * Pending metadata with a fresh salt, as a re-key writes it.
+     */
+    private Properties writePending(KdfProfile profile) throws Exception {
+        Properties props = new Properties();
+        props.setProperty("salt", Base64.getEncoder().encodeToString(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}));
+        profile.store(props);
+        try (OutputStream out = Files.newOutputStream(pending())) {
+            props.store(out, null);
+        }
+        return props;
+    }
+
+    private void execute(SecureDatabaseProvider database, String sql) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+
+    private String value(SecureDatabaseProvider database) throws Exception {
+        try (DatabaseSession session = database.openSession(passphrase);
+             Statement statement = session.connection().createStatement();
+             ResultSet rs = statement.executeQuery("SELECT value FROM sample")) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+}